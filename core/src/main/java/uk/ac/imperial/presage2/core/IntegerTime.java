@@ -19,11 +19,15 @@
 
 package uk.ac.imperial.presage2.core;
 
+import java.io.Serializable;
+
 /**
  * @author Sam Macbeth
  * 
  */
-public final class IntegerTime implements Time {
+public final class IntegerTime implements Time, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	private int time = 0;
 
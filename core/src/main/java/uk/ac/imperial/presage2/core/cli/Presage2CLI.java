@@ -19,6 +19,7 @@
 package uk.ac.imperial.presage2.core.cli;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.annotation.ElementType;
@@ -434,6 +435,12 @@ public final class Presage2CLI {
 		options.addOption("t", "threads", true,
 				"Number of threads for the simulatior (default " + threads
 						+ ").");
+		options.addOption("c", "checkpoint", true,
+				"Write a checkpoint every given number of cycles.");
+		options.addOption("f", "checkpoint-file", true,
+				"File to write checkpoints to (default simulation-<ID>.checkpoint).");
+		options.addOption("r", "restore", true,
+				"Resume the simulation from a checkpoint file.");
 		options.addOption("h", "help", false, "Show help");
 
 		CommandLineParser parser = new GnuParser();
@@ -468,10 +475,108 @@ public final class Presage2CLI {
 			return;
 		}
 
+		int checkpointInterval = 0;
+		if (cmd.hasOption("c")) {
+			try {
+				checkpointInterval = Integer.parseInt(cmd.getOptionValue("c"));
+			} catch (NumberFormatException e) {
+				System.err.println("Checkpoint interval should be an integer.");
+				return;
+			}
+		}
+		File checkpoint = null;
+		if (checkpointInterval > 0) {
+			checkpoint = new File(cmd.getOptionValue("f", "simulation-"
+					+ simulationID + ".checkpoint"));
+		}
+		File restore = null;
+		if (cmd.hasOption("r")) {
+			restore = new File(cmd.getOptionValue("r"));
+			if (!restore.isFile()) {
+				System.err.println("Checkpoint " + restore + " not found.");
+				return;
+			}
+		}
+
 		StorageService storage = getDatabase();
 		DatabaseService db = database;
 
-		RunnableSimulation.runSimulationID(db, storage, simulationID, threads);
+		RunnableSimulation.runSimulationID(db, storage, simulationID, threads,
+				checkpoint, checkpointInterval, restore);
+
+		stopDatabase();
+	}
+
+	@Command(description = "Run a simulation's children from a shared warm-up.", name = "fork")
+	static void fork(String[] args) throws ClassNotFoundException,
+			NoSuchMethodException, InvocationTargetException,
+			InstantiationException, IllegalAccessException {
+		int threads = 4;
+
+		Options options = new Options();
+		options.addOption("a", "at", true,
+				"Time to run the parent simulation to before forking.");
+		options.addOption("s", "seed", true,
+				"Random seed to run the warm-up and children deterministically with.");
+		options.addOption("t", "threads", true,
+				"Number of threads for the simulatior (default " + threads
+						+ ").");
+		options.addOption("h", "help", false, "Show help");
+
+		CommandLineParser parser = new GnuParser();
+		CommandLine cmd;
+		try {
+			cmd = parser.parse(options, args);
+		} catch (ParseException e) {
+			System.err.println(e.getMessage());
+			new HelpFormatter().printHelp("presage2cli fork <ID>", options,
+					true);
+			return;
+		}
+		if (cmd.hasOption("h") || args.length < 2 || !cmd.hasOption("a")
+				|| !cmd.hasOption("s")) {
+			new HelpFormatter().printHelp("presage2cli fork <ID>", options,
+					true);
+			return;
+		}
+		if (cmd.hasOption("t")) {
+			try {
+				threads = Integer.parseInt(cmd.getOptionValue("t"));
+			} catch (NumberFormatException e) {
+				System.err.println("Thread no. should be in integer.");
+				return;
+			}
+		}
+
+		long simulationID;
+		try {
+			simulationID = Long.parseLong(args[1]);
+		} catch (NumberFormatException e) {
+			System.err.println("Simulation ID should be an integer.");
+			return;
+		}
+		int warmUp;
+		try {
+			warmUp = Integer.parseInt(cmd.getOptionValue("a"));
+		} catch (NumberFormatException e) {
+			System.err.println("Fork time should be an integer.");
+			return;
+		}
+		long seed;
+		try {
+			seed = Long.parseLong(cmd.getOptionValue("s"));
+		} catch (NumberFormatException e) {
+			seed = 0;
+		}
+		if (seed <= 0) {
+			System.err.println("Seed should be an integer greater than 0.");
+			return;
+		}
+
+		StorageService storage = getDatabase();
+
+		RunnableSimulation.runForked(storage, simulationID, warmUp, threads,
+				seed);
 
 		stopDatabase();
 	}
@@ -0,0 +1,90 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.environment;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.event.Event;
+
+/**
+ * {@link Event} published by a {@link SharedStateStorage} when a piece of
+ * shared state is created, changed or deleted, so that the state can be
+ * rebuilt from a journal of these events.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class SharedStateChangeEvent implements Event {
+
+	public enum Kind {
+		CREATE, CHANGE, DELETE
+	}
+
+	final Kind kind;
+	final String key;
+	final UUID participantID;
+	final Serializable value;
+
+	/**
+	 * @param kind
+	 * @param key
+	 *            name of the state.
+	 * @param participantID
+	 *            participant the state belongs to, or null for global state.
+	 * @param value
+	 *            the new value, null if deleted.
+	 */
+	public SharedStateChangeEvent(Kind kind, String key, UUID participantID,
+			Serializable value) {
+		super();
+		this.kind = kind;
+		this.key = key;
+		this.participantID = participantID;
+		this.value = value;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * @return the participant this state belongs to, or null if it is global
+	 *         state.
+	 */
+	public UUID getParticipantID() {
+		return participantID;
+	}
+
+	public Serializable getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return "SharedStateChangeEvent [" + kind + " " + key
+				+ (participantID != null ? "@" + participantID : "") + "="
+				+ value + "]";
+	}
+
+}
@@ -0,0 +1,65 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.environment;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.Time;
+
+/**
+ * Read only copy of the environment shared state as it was committed at a
+ * given time. Only the structure of the state is copied, so values should be
+ * treated as immutable.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface SharedStateSnapshot {
+
+	/**
+	 * Get the time cycle this snapshot was taken in.
+	 * 
+	 * @return {@link Time}
+	 */
+	public Time getTime();
+
+	/**
+	 * Get a global shared state value.
+	 * 
+	 * @param name
+	 *            String key name of the value
+	 * @return {@link Serializable} value if it exists in the state, null
+	 *         otherwise.
+	 */
+	public Serializable getGlobal(String name);
+
+	/**
+	 * Get a shared state value for an individual agent.
+	 * 
+	 * @param name
+	 *            String key of the value to get
+	 * @param participantID
+	 *            {@link UUID} of the agent
+	 * @return {@link Serializable} value if it exists in the state for this
+	 *         agent, null otherwise.
+	 */
+	public Serializable get(String name, UUID participantID);
+
+}
@@ -0,0 +1,306 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle;
+import uk.ac.imperial.presage2.core.simulator.FinalizeEvent;
+
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * An {@link EventBus} which delivers events to {@link EventListener}s marked
+ * <code>async</code> on a pool of worker threads, so that slow listeners do
+ * not hold up the thread publishing the event. Other listeners are invoked on
+ * the publishing thread as in {@link EventBusImpl}.
+ * </p>
+ * 
+ * <p>
+ * Each subscribed listener has a queue of events which is drained by at most
+ * one worker at a time, so a listener receives its events in the order they
+ * were published and is never invoked concurrently. At most
+ * <code>capacity</code> events may be waiting for a listener; publishing
+ * blocks while it is full. Events published by an async listener itself are
+ * always queued, so that workers cannot block each other.
+ * </p>
+ * 
+ * <p>
+ * Publishing an {@link EndOfTimeCycle} or {@link FinalizeEvent} waits until
+ * every queue has been drained, so async listeners have handled all of a
+ * cycle's events before the simulator moves on to the next one.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+@Singleton
+class AsyncEventBus extends EventBusImpl {
+
+	private final Logger logger = Logger.getLogger(AsyncEventBus.class);
+
+	private final int capacity;
+
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Event queue of each listener, by listener identity. A listener may be
+	 * subscribed several times, with or without {@link EventKey}s, but has one
+	 * queue.
+	 */
+	private final ConcurrentHashMap<ListenerKey, ListenerQueue> queues = new ConcurrentHashMap<ListenerKey, ListenerQueue>();
+
+	/**
+	 * Number of events queued which have not yet been handled.
+	 */
+	private final AtomicLong pending = new AtomicLong();
+
+	private final Object flushLock = new Object();
+
+	/**
+	 * Set while a worker is draining a queue.
+	 */
+	private final ThreadLocal<Boolean> draining = new ThreadLocal<Boolean>();
+
+	/**
+	 * Weak reference to a listener which is equal to any other reference to
+	 * the same listener object.
+	 */
+	private static final class ListenerKey extends WeakReference<Object> {
+		private final int hash;
+
+		ListenerKey(Object listener) {
+			super(listener);
+			this.hash = System.identityHashCode(listener);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o)
+				return true;
+			if (!(o instanceof ListenerKey))
+				return false;
+			final Object listener = get();
+			return listener != null && listener == ((ListenerKey) o).get();
+		}
+	}
+
+	/**
+	 * An event waiting to be delivered to a listener method.
+	 */
+	private static class Delivery {
+		final Invoker invoker;
+		final Event event;
+		final boolean permit;
+
+		Delivery(Invoker invoker, Event event, boolean permit) {
+			super();
+			this.invoker = invoker;
+			this.event = event;
+			this.permit = permit;
+		}
+	}
+
+	/**
+	 * Events waiting for one listener. Scheduled on the worker pool whenever
+	 * it has events and is not already being drained.
+	 */
+	private class ListenerQueue implements Runnable {
+		final BlockingQueue<Delivery> events = new LinkedBlockingQueue<Delivery>();
+		final Semaphore space = new Semaphore(capacity);
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		void add(final Invoker invoker, final Event event) {
+			// workers do not wait for space, they could be waiting on
+			// themselves.
+			final boolean permit = draining.get() == null;
+			if (permit) {
+				try {
+					space.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.warn("Interrupted while queueing " + event
+							+ ", it will not be delivered.");
+					return;
+				}
+			}
+			pending.incrementAndGet();
+			events.add(new Delivery(invoker, event, permit));
+			schedule();
+		}
+
+		void schedule() {
+			if (scheduled.compareAndSet(false, true))
+				workers.execute(this);
+		}
+
+		@Override
+		public void run() {
+			draining.set(Boolean.TRUE);
+			try {
+				Delivery d;
+				while ((d = events.poll()) != null) {
+					try {
+						final Object listener = d.invoker.listener.get();
+						if (listener != null)
+							invoke(d.invoker.method, listener, d.event);
+					} finally {
+						if (d.permit)
+							space.release();
+						delivered();
+					}
+				}
+			} finally {
+				draining.remove();
+				scheduled.set(false);
+				// an event may have been added after we stopped polling.
+				if (!events.isEmpty())
+					schedule();
+			}
+		}
+	}
+
+	/**
+	 * @param threads
+	 *            number of worker threads to deliver events with.
+	 * @param capacity
+	 *            maximum number of events to queue for each listener.
+	 */
+	AsyncEventBus(int threads, int capacity) {
+		super();
+		if (threads < 1 || capacity < 1)
+			throw new IllegalArgumentException(
+					"Async event bus needs at least one thread and a capacity of at least one.");
+		this.capacity = capacity;
+		this.workers = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "eventbus-async-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		// don't keep idle threads once the simulation is finished.
+		this.workers.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	void dispatch(final Invoker invoker, final Object listener,
+			final Event event) {
+		if (!invoker.async) {
+			super.dispatch(invoker, listener, event);
+			return;
+		}
+		final ListenerKey key = new ListenerKey(listener);
+		ListenerQueue queue = queues.get(key);
+		if (queue == null) {
+			queue = new ListenerQueue();
+			ListenerQueue existing = queues.putIfAbsent(key, queue);
+			if (existing != null)
+				queue = existing;
+		}
+		queue.add(invoker, event);
+	}
+
+	@Override
+	public synchronized void unsubscribe(Object listener) {
+		super.unsubscribe(listener);
+		removeQueue(listener);
+	}
+
+	@Override
+	public synchronized void unsubscribe(Object listener, EventKey<?> key,
+			Object value) {
+		super.unsubscribe(listener, key, value);
+		if (!isSubscribed(listener))
+			removeQueue(listener);
+	}
+
+	private void removeQueue(Object listener) {
+		// events already queued will still be delivered.
+		for (Iterator<ListenerKey> it = queues.keySet().iterator(); it
+				.hasNext();) {
+			Object o = it.next().get();
+			if (o == null || o == listener)
+				it.remove();
+		}
+	}
+
+	/**
+	 * @return number of listeners with an event queue.
+	 */
+	int getQueueCount() {
+		return queues.size();
+	}
+
+	private void delivered() {
+		if (pending.decrementAndGet() == 0) {
+			synchronized (flushLock) {
+				flushLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait until all queued events have been delivered. Returns immediately if
+	 * called from an async listener, which would otherwise wait for itself.
+	 */
+	@Override
+	void flush() {
+		if (draining.get() != null)
+			return;
+		synchronized (flushLock) {
+			while (pending.get() > 0) {
+				try {
+					flushLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					logger.warn("Interrupted while waiting for "
+							+ pending.get() + " async events.");
+					return;
+				}
+			}
+		}
+	}
+
+}
@@ -29,6 +29,14 @@ package uk.ac.imperial.presage2.core.event;
  * of the event listener's method's argument.
  * </p>
  * 
+ * <p>
+ * A listener only interested in some events of a type may instead
+ * {@link #subscribe(Object, EventKey, Object)} with an {@link EventKey} and
+ * value, for example the network address of a message's recipient. The bus
+ * indexes these subscriptions by key so events are delivered directly to the
+ * listeners with a matching key.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
@@ -36,8 +44,37 @@ public interface EventBus {
 
 	public void subscribe(final Object listener);
 
+	/**
+	 * Subscribe the {@link EventListener} methods of <code>listener</code>
+	 * which accept the event type of <code>key</code> to receive only those
+	 * events where <code>key.keyOf(event)</code> equals <code>value</code>.
+	 * 
+	 * @param listener
+	 * @param key
+	 * @param value
+	 */
+	public void subscribe(final Object listener, final EventKey<?> key,
+			final Object value);
+
+	/**
+	 * Remove all subscriptions of <code>listener</code>, including those made
+	 * with a key.
+	 * 
+	 * @param listener
+	 */
 	public void unsubscribe(final Object listener);
 
+	/**
+	 * Remove a subscription made with
+	 * {@link #subscribe(Object, EventKey, Object)}.
+	 * 
+	 * @param listener
+	 * @param key
+	 * @param value
+	 */
+	public void unsubscribe(final Object listener, final EventKey<?> key,
+			final Object value);
+
 	public void publish(final Event event);
 
 }
@@ -21,18 +21,23 @@ package uk.ac.imperial.presage2.core.event;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.simulator.CycleProfiler;
+import uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle;
+import uk.ac.imperial.presage2.core.simulator.FinalizeEvent;
+
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 
 /**
@@ -46,6 +51,26 @@ import com.google.inject.Singleton;
  * http://www.mechanicalspirit.com/java-programming-tip-building-your-own-event
  * </p>
  * 
+ * <p>
+ * Listener methods are found when an object subscribes. For each event class
+ * published a dispatch table of the listeners for it and all of its
+ * superclasses and interfaces is built on first use and cached, so publishing
+ * an event does not use reflection to find its listeners.
+ * </p>
+ * 
+ * <p>
+ * Listeners are held in an immutable {@link Registry} which subscribe and
+ * unsubscribe replace with a modified copy. Events are published without
+ * locking against the current registry, so listeners may subscribe while
+ * other threads are publishing.
+ * </p>
+ * 
+ * <p>
+ * Subscriptions made with an {@link EventKey} are held in a map from key value
+ * to listeners for each key, so publishing an event looks up the listeners
+ * for its key rather than calling every listener for the event type.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
@@ -54,165 +79,498 @@ class EventBusImpl implements EventBus {
 
 	private final Logger logger = Logger.getLogger(EventBusImpl.class);
 
-	private Map<Class<?>, Set<WeakReference<Object>>> listeners = new HashMap<Class<?>, Set<WeakReference<Object>>>();
+	/**
+	 * Current listeners. Only replaced while holding the lock on this bus.
+	 */
+	private volatile Registry registry = new Registry(
+			Collections.<Class<?>, Invoker[]> emptyMap(),
+			Collections.<EventKey<?>, Map<Object, Invoker[]>> emptyMap());
+
+	private CycleProfiler profiler = null;
+
+	private EventBusMetrics metrics = null;
+
+	/**
+	 * An {@link EventListener} method bound to a subscribed listener.
+	 */
+	static class Invoker {
+		/**
+		 * Reference to the subscribed listener, shared by the methods bound
+		 * in one subscription.
+		 */
+		final WeakReference<Object> listener;
+		final Method method;
+		final boolean async;
+
+		Invoker(WeakReference<Object> listener, Method method) {
+			super();
+			this.listener = listener;
+			this.method = method;
+			this.async = method.getAnnotation(EventListener.class).async();
+		}
+	}
+
+	/**
+	 * Immutable snapshot of the subscribed listeners, with a cache of the
+	 * dispatch table for each event class published against it.
+	 */
+	private static class Registry {
+		/**
+		 * Listener methods for each event type, in subscription order.
+		 */
+		final Map<Class<?>, Invoker[]> listeners;
+		/**
+		 * Listener methods for each value of each {@link EventKey}.
+		 */
+		final Map<EventKey<?>, Map<Object, Invoker[]>> keyed;
+		final ConcurrentHashMap<Class<?>, Invoker[]> dispatch = new ConcurrentHashMap<Class<?>, Invoker[]>();
+		final ConcurrentHashMap<Class<?>, EventKey<?>[]> keys = new ConcurrentHashMap<Class<?>, EventKey<?>[]>();
+
+		Registry(Map<Class<?>, Invoker[]> listeners,
+				Map<EventKey<?>, Map<Object, Invoker[]>> keyed) {
+			super();
+			this.listeners = listeners;
+			this.keyed = keyed;
+		}
+
+		/**
+		 * Get the {@link EventKey}s with subscriptions which apply to
+		 * <code>eventClass</code>.
+		 * 
+		 * @param eventClass
+		 * @return
+		 */
+		EventKey<?>[] keysFor(final Class<?> eventClass) {
+			EventKey<?>[] table = keys.get(eventClass);
+			if (table == null) {
+				List<EventKey<?>> applicable = new ArrayList<EventKey<?>>();
+				for (EventKey<?> key : keyed.keySet()) {
+					if (key.getEventType().isAssignableFrom(eventClass))
+						applicable.add(key);
+				}
+				table = applicable.toArray(new EventKey<?>[applicable.size()]);
+				EventKey<?>[] existing = keys.putIfAbsent(eventClass, table);
+				if (existing != null)
+					table = existing;
+			}
+			return table;
+		}
+
+		/**
+		 * Get the dispatch table for <code>eventClass</code>: the listeners
+		 * for this class followed by those for each of its supertypes.
+		 * 
+		 * @param eventClass
+		 * @return the {@link Invoker}s to call for events of this class.
+		 */
+		Invoker[] dispatchFor(final Class<?> eventClass) {
+			Invoker[] table = dispatch.get(eventClass);
+			if (table == null) {
+				List<Invoker> invokers = new ArrayList<Invoker>();
+				for (Class<?> type : typeHierarchy(eventClass)) {
+					Invoker[] typeListeners = listeners.get(type);
+					if (typeListeners != null)
+						Collections.addAll(invokers, typeListeners);
+				}
+				table = invokers.toArray(new Invoker[invokers.size()]);
+				Invoker[] existing = dispatch.putIfAbsent(eventClass, table);
+				if (existing != null)
+					table = existing;
+			}
+			return table;
+		}
+	}
 
 	EventBusImpl() {
 		super();
 	}
 
+	@Inject(optional = true)
+	void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	@Inject(optional = true)
+	void setMetrics(EventBusMetrics metrics) {
+		// leave null when disabled so there is no overhead.
+		this.metrics = metrics.isEnabled() ? metrics : null;
+	}
+
 	@Override
 	public synchronized void subscribe(final Object listener) {
 
 		if (logger.isDebugEnabled())
 			logger.debug(listener + " subscribing to eventbus");
 
-		// find all @EventListeners
-		Set<Method> eventListeners = new HashSet<Method>();
+		// find all @EventListeners, grouped by event type
+		Map<Class<?>, List<Method>> eventListeners = new HashMap<Class<?>, List<Method>>();
 		for (Method method : listener.getClass().getMethods()) {
-			if (method.isAnnotationPresent(EventListener.class)) {
-				eventListeners.add(method);
-			}
-		}
-
-		// examine each @EventListener
-		for (Method method : eventListeners) {
+			if (!method.isAnnotationPresent(EventListener.class))
+				continue;
 
 			Class<?>[] paramTypes = method.getParameterTypes();
 
 			// Disqualify malformed candidates
 			if ((paramTypes.length == 1)
 					&& Event.class.isAssignableFrom(paramTypes[0])) {
-				addTypeSpecificListener(listener, paramTypes[0]);
+				List<Method> methods = eventListeners.get(paramTypes[0]);
+				if (methods == null) {
+					methods = new ArrayList<Method>(1);
+					eventListeners.put(paramTypes[0], methods);
+				}
+				methods.add(method);
 			}
 		}
+
+		if (eventListeners.isEmpty())
+			return;
+
+		final WeakReference<Object> ref = new WeakReference<Object>(listener);
+		final Map<Class<?>, Invoker[]> listeners = new HashMap<Class<?>, Invoker[]>(
+				registry.listeners);
+		for (Map.Entry<Class<?>, List<Method>> entry : eventListeners
+				.entrySet()) {
+			addListener(listeners, ref, entry.getKey(), entry.getValue());
+		}
+		registry = new Registry(listeners, registry.keyed);
 	}
 
 	@Override
-	public synchronized void unsubscribe(Object listener) {
+	public synchronized void subscribe(final Object listener,
+			final EventKey<?> key, final Object value) {
+
 		if (logger.isDebugEnabled())
-			logger.debug(listener + " unsubscribing from eventbus");
+			logger.debug(listener + " subscribing to eventbus for " + value);
 
-		for (Entry<Class<?>, Set<WeakReference<Object>>> clazzEntry : listeners
-				.entrySet()) {
-			Collection<WeakReference<Object>> toRemove = new LinkedList<WeakReference<Object>>();
-			for (WeakReference<Object> listenerRef : clazzEntry.getValue()) {
-				Object o = listenerRef.get();
-				if (o != null && o.equals(listener)) {
-					toRemove.add(listenerRef);
-				}
+		// find @EventListeners which can take events of the key's type
+		List<Method> methods = new ArrayList<Method>(1);
+		for (Method method : listener.getClass().getMethods()) {
+			if (!method.isAnnotationPresent(EventListener.class))
+				continue;
+
+			Class<?>[] paramTypes = method.getParameterTypes();
+			if ((paramTypes.length == 1)
+					&& Event.class.isAssignableFrom(paramTypes[0])
+					&& paramTypes[0].isAssignableFrom(key.getEventType())) {
+				methods.add(method);
 			}
-			clazzEntry.getValue().removeAll(toRemove);
 		}
+
+		if (methods.isEmpty()) {
+			logger.warn(listener + " has no EventListener for "
+					+ key.getEventType());
+			return;
+		}
+
+		final Map<EventKey<?>, Map<Object, Invoker[]>> keyed = new HashMap<EventKey<?>, Map<Object, Invoker[]>>(
+				registry.keyed);
+		final Map<Object, Invoker[]> values = keyed.containsKey(key) ? new HashMap<Object, Invoker[]>(
+				keyed.get(key)) : new HashMap<Object, Invoker[]>();
+		addListener(values, new WeakReference<Object>(listener), value,
+				methods);
+		keyed.put(key, values);
+		registry = new Registry(registry.listeners, keyed);
+	}
+
+	@Override
+	public synchronized void unsubscribe(Object listener) {
+		if (logger.isDebugEnabled())
+			logger.debug(listener + " unsubscribing from eventbus");
+
+		removeListeners(listener);
+	}
+
+	@Override
+	public synchronized void unsubscribe(final Object listener,
+			final EventKey<?> key, final Object value) {
+		if (logger.isDebugEnabled())
+			logger.debug(listener + " unsubscribing from eventbus for "
+					+ value);
+
+		final Map<Object, Invoker[]> current = registry.keyed.get(key);
+		if (current == null || !current.containsKey(value))
+			return;
+
+		final Map<Object, Invoker[]> values = new HashMap<Object, Invoker[]>(
+				current);
+		final Map<Object, Invoker[]> valueListeners = new HashMap<Object, Invoker[]>(
+				1);
+		valueListeners.put(value, values.remove(value));
+		final int dead = removeFrom(valueListeners, listener);
+		values.putAll(valueListeners);
+
+		final Map<EventKey<?>, Map<Object, Invoker[]>> keyed = new HashMap<EventKey<?>, Map<Object, Invoker[]>>(
+				registry.keyed);
+		if (values.isEmpty())
+			keyed.remove(key);
+		else
+			keyed.put(key, values);
+		registry = new Registry(registry.listeners, keyed);
+		if (metrics != null && dead > 0)
+			metrics.collected(dead);
 	}
 
 	@Override
 	public void publish(final Event event) {
+		final CycleProfiler prof = profiler != null && profiler.isEnabled() ? profiler
+				: null;
+		final long start = prof != null ? System.nanoTime() : 0L;
+		try {
+			doPublish(event);
+		} finally {
+			if (prof != null)
+				prof.publish(start);
+		}
+		if (event instanceof EndOfTimeCycle || event instanceof FinalizeEvent)
+			flush();
+		if (metrics != null && event instanceof FinalizeEvent)
+			logger.info(metrics.report());
+	}
+
+	/**
+	 * Wait for any events still being delivered. Called at the end of each
+	 * time cycle.
+	 */
+	void flush() {
+	}
+
+	private void doPublish(final Event event) {
 
 		if (logger.isDebugEnabled())
 			logger.debug("Taking publication of event " + event);
 
-		// loop this event type and it's supertypes.
-		for (Iterator<Class<?>> iter = superclassIterator(event.getClass()); iter
-				.hasNext();) {
+		final Registry r = registry;
+		final Invoker[] table = r.dispatchFor(event.getClass());
+		int fanOut = table.length;
+		boolean dead = dispatchAll(table, event);
 
-			Class<?> type = iter.next();
-			// skip Object
-			if (type.equals(Object.class)) {
-				continue;
+		for (EventKey<?> key : r.keysFor(event.getClass())) {
+			final Invoker[] keyTable = r.keyed.get(key).get(keyOf(key, event));
+			if (keyTable != null) {
+				fanOut += keyTable.length;
+				dead |= dispatchAll(keyTable, event);
 			}
+		}
 
-			// get listeners for this type
-			Set<WeakReference<Object>> typeListeners = listeners.get(type);
-			if (typeListeners != null) {
-				Collection<WeakReference<Object>> deadRefs = new LinkedList<WeakReference<Object>>();
-
-				for (WeakReference<Object> listenerRef : typeListeners) {
-					Object listener = listenerRef.get();
-					if (listener != null) {
-
-						// invoke methods
-						for (Method m : getEventListenersFor(listener, type)) {
-							try {
-								if (logger.isDebugEnabled())
-									logger.debug("Invoking EventListener "
-											+ listener + " with event " + event);
-								m.invoke(listener, event);
-							} catch (IllegalAccessException e) {
-								logger.warn(
-										"Exception when invoking EventListener "
-												+ listener + " with event "
-												+ event
-												+ ". Is your class public?", e);
-							} catch (InvocationTargetException e) {
-								logger.warn(
-										"Exception when invoking EventListener "
-												+ listener + " with event "
-												+ event, e);
-							}
-						}
-
-					} else {
-						deadRefs.add(listenerRef);
-					}
-				}
-				synchronized (typeListeners) {
-					typeListeners.removeAll(deadRefs);
-				}
+		if (metrics != null)
+			metrics.published(event.getClass(), fanOut);
+		if (dead)
+			removeListeners(null);
+	}
+
+	/**
+	 * Dispatch <code>event</code> to each of <code>table</code>.
+	 * 
+	 * @param table
+	 * @param event
+	 * @return true if any listeners have been garbage collected.
+	 */
+	private boolean dispatchAll(final Invoker[] table, final Event event) {
+		boolean dead = false;
+		for (int i = 0; i < table.length; i++) {
+			final Invoker invoker = table[i];
+			final Object listener = invoker.listener.get();
+			if (listener == null) {
+				dead = true;
+				continue;
 			}
+			dispatch(invoker, listener, event);
 		}
+		return dead;
 	}
 
-	private void addTypeSpecificListener(final Object listener,
-			final Class<?> type) {
-		// Get or create the Set of listeners for this type
-		Set<WeakReference<Object>> typeListeners = listeners.get(type);
-		if (typeListeners == null) {
-			typeListeners = new HashSet<WeakReference<Object>>();
-			listeners.put(type, typeListeners);
+	@SuppressWarnings("unchecked")
+	private static Object keyOf(final EventKey<?> key, final Event event) {
+		return ((EventKey<Event>) key).keyOf(event);
+	}
+
+	/**
+	 * Deliver <code>event</code> to a listener method. Invokes the method on
+	 * the calling thread.
+	 * 
+	 * @param invoker
+	 * @param listener
+	 *            the listener <code>invoker</code> refers to.
+	 * @param event
+	 */
+	void dispatch(final Invoker invoker, final Object listener,
+			final Event event) {
+		invoke(invoker.method, listener, event);
+	}
+
+	final void invoke(final Method method, final Object listener,
+			final Event event) {
+		final EventBusMetrics m = metrics;
+		final long start = m != null ? System.nanoTime() : 0L;
+		try {
+			if (logger.isDebugEnabled())
+				logger.debug("Invoking EventListener " + listener
+						+ " with event " + event);
+			method.invoke(listener, event);
+		} catch (IllegalAccessException e) {
+			logger.warn("Exception when invoking EventListener " + listener
+					+ " with event " + event + ". Is your class public?", e);
+		} catch (InvocationTargetException e) {
+			logger.warn("Exception when invoking EventListener " + listener
+					+ " with event " + event, e);
 		}
+		if (m != null)
+			m.invoked(method, System.nanoTime() - start);
+	}
 
-		// check for existence of this listener for this type
-		for (WeakReference<Object> weakReference : typeListeners) {
-			if (weakReference.get().equals(listener)) {
-				if (logger.isDebugEnabled())
-					logger.debug("Skipped duplicate listener " + listener
-							+ " for type " + type);
-				return;
-			}
+	/**
+	 * Replace the registry with one without <code>listener</code> or any
+	 * listeners which have been garbage collected.
+	 * 
+	 * @param listener
+	 *            listener to remove, or null to only remove dead listeners.
+	 */
+	private synchronized void removeListeners(final Object listener) {
+		final Map<Class<?>, Invoker[]> listeners = new HashMap<Class<?>, Invoker[]>(
+				registry.listeners);
+		int dead = removeFrom(listeners, listener);
+
+		final Map<EventKey<?>, Map<Object, Invoker[]>> keyed = new HashMap<EventKey<?>, Map<Object, Invoker[]>>();
+		for (Map.Entry<EventKey<?>, Map<Object, Invoker[]>> entry : registry.keyed
+				.entrySet()) {
+			Map<Object, Invoker[]> values = new HashMap<Object, Invoker[]>(
+					entry.getValue());
+			dead += removeFrom(values, listener);
+			if (!values.isEmpty())
+				keyed.put(entry.getKey(), values);
 		}
 
-		// Add the listener
-		typeListeners.add(new WeakReference<Object>(listener));
+		registry = new Registry(listeners, keyed);
+		if (metrics != null && dead > 0)
+			metrics.collected(dead);
+	}
 
-		if (logger.isDebugEnabled())
-			logger.debug("Added listener in " + listener + " for type " + type);
+	/**
+	 * Determine whether <code>listener</code> has any subscriptions left,
+	 * keyed or not. Checks every subscribed listener method.
+	 * 
+	 * @param listener
+	 * @return true if any listener method is bound to <code>listener</code>.
+	 */
+	synchronized boolean isSubscribed(final Object listener) {
+		final Registry r = registry;
+		if (isIn(r.listeners, listener))
+			return true;
+		for (Map<Object, Invoker[]> values : r.keyed.values()) {
+			if (isIn(values, listener))
+				return true;
+		}
+		return false;
 	}
 
-	private Iterator<Class<?>> superclassIterator(final Class<?> clazz) {
+	private static <K> boolean isIn(final Map<K, Invoker[]> listeners,
+			final Object listener) {
+		for (Invoker[] invokers : listeners.values()) {
+			for (Invoker invoker : invokers) {
+				if (invoker.listener.get() == listener)
+					return true;
+			}
+		}
+		return false;
+	}
 
-		Set<Class<?>> set = new LinkedHashSet<Class<?>>();
+	/**
+	 * Remove <code>listener</code> and any garbage collected listeners from
+	 * <code>listeners</code>.
+	 * 
+	 * @param listeners
+	 * @param listener
+	 *            listener to remove, or null to only remove dead listeners.
+	 * @return the number of dead listeners removed.
+	 */
+	private static <K> int removeFrom(final Map<K, Invoker[]> listeners,
+			final Object listener) {
+		int dead = 0;
+		for (Iterator<Map.Entry<K, Invoker[]>> it = listeners.entrySet()
+				.iterator(); it.hasNext();) {
+			Map.Entry<K, Invoker[]> entry = it.next();
+			List<Invoker> keep = new ArrayList<Invoker>(entry.getValue().length);
+			for (Invoker invoker : entry.getValue()) {
+				Object o = invoker.listener.get();
+				if (o == null)
+					dead++;
+				else if (listener == null || !o.equals(listener))
+					keep.add(invoker);
+			}
+			if (keep.isEmpty())
+				it.remove();
+			else if (keep.size() < entry.getValue().length)
+				entry.setValue(keep.toArray(new Invoker[keep.size()]));
+		}
+		return dead;
+	}
 
-		Class<?> superClass = clazz;
-		while (superClass != null) {
-			set.add(superClass);
-			superClass = superClass.getSuperclass();
+	/**
+	 * Get <code>clazz</code> followed by all of its superclasses and the
+	 * interfaces they implement, excluding {@link Object}.
+	 * 
+	 * @param clazz
+	 * @return
+	 */
+	static Set<Class<?>> typeHierarchy(final Class<?> clazz) {
+		Set<Class<?>> types = new LinkedHashSet<Class<?>>();
+		for (Class<?> type = clazz; type != null && type != Object.class; type = type
+				.getSuperclass()) {
+			types.add(type);
+			addInterfaces(type, types);
 		}
+		return types;
+	}
 
-		return set.iterator();
+	private static void addInterfaces(final Class<?> clazz,
+			final Set<Class<?>> types) {
+		for (Class<?> i : clazz.getInterfaces()) {
+			if (types.add(i))
+				addInterfaces(i, types);
+		}
 	}
 
-	private Set<Method> getEventListenersFor(final Object listener,
-			final Class<?> clazz) {
-		Set<Method> set = new LinkedHashSet<Method>();
-		for (Method m : listener.getClass().getMethods()) {
-			if (m.isAnnotationPresent(EventListener.class)) {
-				Class<?>[] paramTypes = m.getParameterTypes();
-				if (paramTypes[0] == clazz) {
-					set.add(m);
-				}
+	/**
+	 * Add <code>methods</code> as listeners for <code>type</code>, which is
+	 * either an event type or an {@link EventKey} value.
+	 */
+	private <K> void addListener(final Map<K, Invoker[]> listeners,
+			final WeakReference<Object> ref, final K type,
+			final List<Method> methods) {
+		final Object listener = ref.get();
+		Invoker[] current = listeners.get(type);
+		if (current == null)
+			current = new Invoker[0];
+
+		// check for existence of this listener for this type
+		for (Invoker invoker : current) {
+			Object existing = invoker.listener.get();
+			if (existing != null && existing.equals(listener)) {
+				if (logger.isDebugEnabled())
+					logger.debug("Skipped duplicate listener " + listener
+							+ " for " + type);
+				return;
 			}
 		}
-		return set;
+
+		// Add the listener
+		List<Invoker> typeListeners = new ArrayList<Invoker>(current.length
+				+ methods.size());
+		Collections.addAll(typeListeners, current);
+		for (Method m : methods) {
+			try {
+				// skip access checks on each invocation
+				m.setAccessible(true);
+			} catch (SecurityException e) {
+				logger.debug("Could not suppress access checks for " + m, e);
+			}
+			typeListeners.add(new Invoker(ref, m));
+		}
+		listeners.put(type,
+				typeListeners.toArray(new Invoker[typeListeners.size()]));
+
+		if (logger.isDebugEnabled())
+			logger.debug("Added listener in " + listener + " for " + type);
 	}
 
 }
@@ -0,0 +1,196 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.imperial.presage2.core.simulator.FinalizeEvent;
+import uk.ac.imperial.presage2.core.simulator.LatencyHistogram;
+
+/**
+ * <p>
+ * Metrics collected by an {@link EventBus}: how many of each event class are
+ * published and to how many listener methods, how long each
+ * {@link EventListener} method takes, and how many listeners have been
+ * garbage collected without unsubscribing.
+ * </p>
+ * 
+ * <p>
+ * Metrics are only collected if enabled, see
+ * {@link EventBusModule#withMetrics()}, and are logged on the
+ * {@link FinalizeEvent}. All times are in nanoseconds.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class EventBusMetrics {
+
+	/**
+	 * Number of listener methods invoked for each publish of each event class.
+	 */
+	private final ConcurrentHashMap<Class<?>, LatencyHistogram> fanOut = new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+	private final ConcurrentHashMap<Method, LatencyHistogram> latency = new ConcurrentHashMap<Method, LatencyHistogram>();
+
+	private final AtomicLong deadReferences = new AtomicLong(0);
+
+	private boolean enabled = false;
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Enable collection. Must be set before the {@link EventBus} is created.
+	 * 
+	 * @param enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	void published(Class<?> type, int listeners) {
+		histogram(fanOut, type).record(listeners);
+	}
+
+	void invoked(Method method, long nanos) {
+		histogram(latency, method).record(nanos);
+	}
+
+	void collected(int count) {
+		deadReferences.addAndGet(count);
+	}
+
+	private static <K> LatencyHistogram histogram(
+			ConcurrentHashMap<K, LatencyHistogram> map, K key) {
+		LatencyHistogram h = map.get(key);
+		if (h == null) {
+			h = new LatencyHistogram();
+			LatencyHistogram existing = map.putIfAbsent(key, h);
+			if (existing != null)
+				h = existing;
+		}
+		return h;
+	}
+
+	/**
+	 * @param type
+	 * @return number of events of exactly class <code>type</code> published.
+	 */
+	public long getPublishCount(Class<?> type) {
+		LatencyHistogram h = fanOut.get(type);
+		return h != null ? h.getCount() : 0;
+	}
+
+	/**
+	 * @return number of events published of each class.
+	 */
+	public Map<Class<?>, Long> getPublishCounts() {
+		Map<Class<?>, Long> counts = new HashMap<Class<?>, Long>();
+		for (Map.Entry<Class<?>, LatencyHistogram> e : fanOut.entrySet()) {
+			counts.put(e.getKey(), e.getValue().getCount());
+		}
+		return counts;
+	}
+
+	/**
+	 * @param type
+	 * @return histogram of the number of listener methods each event of class
+	 *         <code>type</code> was delivered to, or null if none have been
+	 *         published.
+	 */
+	public LatencyHistogram getFanOut(Class<?> type) {
+		return fanOut.get(type);
+	}
+
+	/**
+	 * @param method
+	 * @return histogram of the time taken by each invocation of
+	 *         <code>method</code>, or null if it has not been invoked.
+	 */
+	public LatencyHistogram getListenerLatency(Method method) {
+		return latency.get(method);
+	}
+
+	/**
+	 * @return latency histograms of each listener method which has been
+	 *         invoked.
+	 */
+	public Map<Method, LatencyHistogram> getListenerLatencies() {
+		return Collections.unmodifiableMap(latency);
+	}
+
+	/**
+	 * @return number of listeners removed because they had been garbage
+	 *         collected.
+	 */
+	public long getDeadReferencesCollected() {
+		return deadReferences.get();
+	}
+
+	/**
+	 * @return a summary of the metrics, with listener methods in order of the
+	 *         total time spent in them.
+	 */
+	public String report() {
+		final StringBuilder s = new StringBuilder("EventBus metrics\n");
+		s.append("event\tpublished\tmean fan-out\tmax fan-out\n");
+		for (Map.Entry<Class<?>, LatencyHistogram> e : fanOut.entrySet()) {
+			final LatencyHistogram h = e.getValue();
+			s.append(e.getKey().getName()).append('\t').append(h.getCount())
+					.append('\t').append(String.format("%.1f", h.getMean()))
+					.append('\t').append(h.getMax()).append('\n');
+		}
+		final List<Map.Entry<Method, LatencyHistogram>> methods = new ArrayList<Map.Entry<Method, LatencyHistogram>>(
+				latency.entrySet());
+		Collections.sort(methods,
+				new Comparator<Map.Entry<Method, LatencyHistogram>>() {
+					@Override
+					public int compare(Map.Entry<Method, LatencyHistogram> e1,
+							Map.Entry<Method, LatencyHistogram> e2) {
+						final long t1 = e1.getValue().getTotal();
+						final long t2 = e2.getValue().getTotal();
+						return t1 < t2 ? 1 : (t1 > t2 ? -1 : 0);
+					}
+				});
+		s.append("listener\tcalls\ttotal ns\tmean ns\tp99 ns\tmax ns\n");
+		for (Map.Entry<Method, LatencyHistogram> e : methods) {
+			final Method m = e.getKey();
+			final LatencyHistogram h = e.getValue();
+			s.append(m.getDeclaringClass().getName()).append('.')
+					.append(m.getName()).append('\t').append(h.getCount())
+					.append('\t').append(h.getTotal()).append('\t')
+					.append(String.format("%.0f", h.getMean())).append('\t')
+					.append(h.getPercentile(0.99)).append('\t')
+					.append(h.getMax()).append('\n');
+		}
+		s.append("dead listeners collected: ").append(deadReferences.get());
+		return s.toString();
+	}
+
+}
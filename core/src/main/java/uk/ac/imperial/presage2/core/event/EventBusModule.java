@@ -20,11 +20,65 @@ package uk.ac.imperial.presage2.core.event;
 
 import com.google.inject.AbstractModule;
 
+/**
+ * Binds the {@link EventBus}. By default this is {@link EventBusImpl}, which
+ * invokes listeners on the publishing thread; {@link #async(int, int)} binds
+ * an {@link AsyncEventBus} instead.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
 public class EventBusModule extends AbstractModule {
 
+	private int asyncThreads = 0;
+	private int asyncCapacity = 0;
+	private boolean metrics = false;
+
+	/**
+	 * Bind an {@link EventBus} which delivers events to {@link EventListener}s
+	 * marked <code>async</code> on a pool of worker threads.
+	 * 
+	 * @param threads
+	 *            number of worker threads.
+	 * @param capacity
+	 *            maximum number of events to queue for each listener before
+	 *            publishing blocks.
+	 * @return
+	 */
+	public static EventBusModule async(final int threads, final int capacity) {
+		if (threads < 1 || capacity < 1)
+			throw new IllegalArgumentException(
+					"Async event bus needs at least one thread and a capacity of at least one.");
+		EventBusModule module = new EventBusModule();
+		module.asyncThreads = threads;
+		module.asyncCapacity = capacity;
+		return module;
+	}
+
+	/**
+	 * Collect {@link EventBusMetrics} for the event bus. The metrics are bound
+	 * so they can be injected and queried, and are logged when the simulation
+	 * finishes.
+	 * 
+	 * @return this
+	 */
+	public EventBusModule withMetrics() {
+		this.metrics = true;
+		return this;
+	}
+
 	@Override
 	protected void configure() {
-		bind(EventBus.class).to(EventBusImpl.class);
+		if (asyncThreads > 0)
+			bind(EventBus.class).toInstance(
+					new AsyncEventBus(asyncThreads, asyncCapacity));
+		else
+			bind(EventBus.class).to(EventBusImpl.class);
+		if (metrics) {
+			EventBusMetrics m = new EventBusMetrics();
+			m.setEnabled(true);
+			bind(EventBusMetrics.class).toInstance(m);
+		}
 	}
 
 }
@@ -0,0 +1,63 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+/**
+ * <p>
+ * Selects a key from events of type <code>E</code>, such as the recipient of a
+ * message or the time at which an event occurred. A listener may
+ * {@link EventBus#subscribe(Object, EventKey, Object)} with a key value and
+ * will then only receive those events whose key matches it.
+ * </p>
+ * 
+ * <p>
+ * Keys are compared by identity, so should be shared constants.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ * @param <E>
+ *            type of event this key applies to.
+ */
+public abstract class EventKey<E extends Event> {
+
+	private final Class<E> eventType;
+
+	protected EventKey(Class<E> eventType) {
+		super();
+		this.eventType = eventType;
+	}
+
+	/**
+	 * @return the type of event this key applies to, including subclasses.
+	 */
+	public final Class<E> getEventType() {
+		return eventType;
+	}
+
+	/**
+	 * Get the key of <code>event</code>. Keys are compared with
+	 * {@link Object#equals(Object)}.
+	 * 
+	 * @param event
+	 * @return
+	 */
+	public abstract Object keyOf(E event);
+
+}
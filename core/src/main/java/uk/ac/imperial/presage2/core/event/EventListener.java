@@ -27,4 +27,11 @@ import java.lang.annotation.Target;
 @Target(ElementType.METHOD)
 public @interface EventListener {
 
+	/**
+	 * Deliver events to this method on a worker thread rather than the
+	 * publishing thread, if the {@link EventBus} supports it. See
+	 * {@link EventBusModule#async(int, int)}.
+	 */
+	boolean async() default false;
+
 }
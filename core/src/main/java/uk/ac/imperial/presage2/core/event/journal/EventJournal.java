@@ -0,0 +1,390 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+import com.google.inject.Inject;
+
+/**
+ * <p>
+ * A {@link Plugin} which appends chosen {@link Event}s published on the
+ * {@link EventBus} to a journal of memory-mapped segment files in a
+ * directory. Events are converted to compact binary records by the
+ * {@link JournalCodec} for their type. The journal can be read back with a
+ * {@link JournalReader}.
+ * </p>
+ * 
+ * <p>
+ * Each segment file starts with a header and the definitions of the event types
+ * used so far, so segments can be read independently. When a segment is full a
+ * new one is started. An index file records where each time cycle starts in
+ * each segment.
+ * </p>
+ * 
+ * <p>
+ * Records are formatted into a per-thread buffer and then copied into the
+ * current segment, so the lock is only held for the copy. All publishing
+ * threads still share that lock.
+ * </p>
+ * 
+ * <p>
+ * The cost of journaling an event is mostly its codec's. The codecs for
+ * {@link uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle} and for
+ * {@link uk.ac.imperial.presage2.core.network.MessageDeliveryEvent}s and
+ * {@link uk.ac.imperial.presage2.core.network.MessageBlockedEvent}s of
+ * messages without data write fixed fields and strings without allocating,
+ * and are cheap enough to journal every event of a large simulation.
+ * Message data and
+ * {@link uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent}
+ * values other than strings, boxed primitives and UUIDs, and events with no
+ * codec of their own, are written with java serialisation, which allocates
+ * and costs far more per event. Register a {@link JournalCodec} for any such
+ * type published at high rates.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class EventJournal implements Plugin {
+
+	static final int MAGIC = 0x50324a4c;
+	static final short VERSION = 1;
+	/**
+	 * Record header: int length, short type, int time.
+	 */
+	static final int RECORD_HEADER = 10;
+	/**
+	 * Type ID of records defining a type ID.
+	 */
+	static final short DEFINITION = 0;
+	static final String INDEX_FILE = "journal.index";
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+	private final Logger logger = Logger.getLogger(EventJournal.class);
+
+	private final File directory;
+	private final int segmentSize;
+	private final Set<Class<? extends Event>> types;
+	private final JournalCodecs codecs;
+
+	private EventBus eventBus = null;
+	private Time time = null;
+
+	/**
+	 * Whether and how to journal each event class published.
+	 */
+	private final ConcurrentHashMap<Class<?>, EventType> eventTypes = new ConcurrentHashMap<Class<?>, EventType>();
+	private static final EventType IGNORED = new EventType(null, null);
+
+	// guarded by this
+	private final List<EventType> defined = new ArrayList<EventType>();
+	private RandomAccessFile file = null;
+	private MappedByteBuffer segment = null;
+	private int segmentNumber = -1;
+	private int indexedTime;
+	private DataOutputStream index = null;
+	private long records = 0;
+
+	private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(4096);
+		}
+	};
+
+	static class EventType {
+		final Class<?> type;
+		final JournalCodec<Event> codec;
+		short id = 0;
+
+		EventType(Class<?> type, JournalCodec<Event> codec) {
+			super();
+			this.type = type;
+			this.codec = codec;
+		}
+	}
+
+	/**
+	 * @param directory
+	 *            directory to write segment files to.
+	 * @param segmentSize
+	 *            size of each segment file in bytes.
+	 * @param types
+	 *            event types to journal, including their subclasses.
+	 * @param codecs
+	 */
+	public EventJournal(File directory, int segmentSize,
+			Collection<Class<? extends Event>> types, JournalCodecs codecs) {
+		super();
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.types = new HashSet<Class<? extends Event>>(types);
+		this.codecs = codecs;
+	}
+
+	@Inject
+	public void setEventBus(EventBus eventBus) {
+		this.eventBus = eventBus;
+	}
+
+	@Inject(optional = true)
+	public void setTime(Time time) {
+		this.time = time;
+	}
+
+	@Override
+	public synchronized void initialise() {
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Could not create journal directory "
+						+ directory);
+			index = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(directory, INDEX_FILE))));
+			index.writeInt(MAGIC);
+			index.writeShort(VERSION);
+			roll();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open event journal", e);
+		}
+		if (eventBus != null)
+			eventBus.subscribe(this);
+	}
+
+	@Override
+	public void incrementTime() {
+	}
+
+	@Deprecated
+	@Override
+	public void execute() {
+	}
+
+	@Override
+	public void onSimulationComplete() {
+		if (eventBus != null)
+			eventBus.unsubscribe(this);
+		close();
+	}
+
+	/**
+	 * @return the number of events journaled.
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	@EventListener
+	public void onEvent(Event event) {
+		EventType type = eventTypes.get(event.getClass());
+		if (type == null)
+			type = typeOf(event.getClass());
+		if (type == IGNORED)
+			return;
+
+		final int t = time != null ? time.intValue() : 0;
+		final ByteBuffer payload;
+		try {
+			payload = encode(type.codec, event);
+		} catch (RuntimeException e) {
+			logger.warn("Could not journal " + event, e);
+			return;
+		}
+		append(type, t, payload);
+	}
+
+	private EventType typeOf(Class<?> clazz) {
+		EventType type = IGNORED;
+		for (Class<? extends Event> t : types) {
+			if (t.isAssignableFrom(clazz)) {
+				JournalCodec<Event> codec = codecs.get(clazz);
+				if (codec != null) {
+					type = new EventType(clazz, codec);
+				} else {
+					logger.warn("No journal codec for " + clazz.getName()
+							+ ", it will not be journaled.");
+				}
+				break;
+			}
+		}
+		EventType existing = eventTypes.putIfAbsent(clazz, type);
+		return existing != null ? existing : type;
+	}
+
+	private ByteBuffer encode(JournalCodec<Event> codec, Event event) {
+		ByteBuffer buf = scratch.get();
+		while (true) {
+			buf.clear();
+			try {
+				codec.write(event, buf);
+				buf.flip();
+				return buf;
+			} catch (BufferOverflowException e) {
+				if (buf.capacity() >= segmentSize)
+					throw new IllegalArgumentException(
+							"Event does not fit in a journal segment.");
+				buf = ByteBuffer.allocate(Math.min(buf.capacity() * 2,
+						segmentSize));
+				scratch.set(buf);
+			}
+		}
+	}
+
+	private synchronized void append(EventType type, int t, ByteBuffer payload) {
+		if (segment == null)
+			return;
+		try {
+			if (type.id == DEFINITION) {
+				type.id = (short) (defined.size() + 1);
+				defined.add(type);
+				if (!fits(definitionSize(type)))
+					roll();
+				else
+					writeDefinition(type);
+			}
+			final int length = RECORD_HEADER + payload.remaining();
+			if (!fits(length)) {
+				roll();
+				if (!fits(length)) {
+					logger.warn("Record of " + length
+							+ " bytes is larger than a journal segment.");
+					return;
+				}
+			}
+			if (t != indexedTime) {
+				index.writeInt(t);
+				index.writeInt(segmentNumber);
+				index.writeInt(segment.position());
+				indexedTime = t;
+			}
+			segment.putInt(length);
+			segment.putShort(type.id);
+			segment.putInt(t);
+			segment.put(payload);
+			records++;
+		} catch (IOException e) {
+			logger.warn("Could not write to event journal, closing it.", e);
+			close();
+		}
+	}
+
+	private boolean fits(int length) {
+		return segment.remaining() >= length;
+	}
+
+	private int definitionSize(EventType type) {
+		return RECORD_HEADER + 6 + 4 * type.type.getName().length();
+	}
+
+	private void writeDefinition(EventType type) {
+		final int start = segment.position();
+		segment.position(start + RECORD_HEADER);
+		segment.putShort(type.id);
+		JournalData.putString(segment, type.type.getName());
+		final int end = segment.position();
+		segment.position(start);
+		segment.putInt(end - start);
+		segment.putShort(DEFINITION);
+		segment.putInt(0);
+		segment.position(end);
+	}
+
+	/**
+	 * Finish the current segment and start the next one.
+	 * 
+	 * @throws IOException
+	 */
+	private void roll() throws IOException {
+		closeSegment();
+		segmentNumber++;
+		file = new RandomAccessFile(segmentFile(directory, segmentNumber), "rw");
+		file.setLength(segmentSize);
+		segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+				segmentSize);
+		segment.putInt(MAGIC);
+		segment.putShort(VERSION);
+		segment.putInt(segmentNumber);
+		for (EventType type : defined) {
+			writeDefinition(type);
+		}
+		indexedTime = Integer.MIN_VALUE;
+		index.flush();
+	}
+
+	private void closeSegment() throws IOException {
+		if (segment == null)
+			return;
+		final int end = segment.position();
+		segment.force();
+		segment = null;
+		try {
+			// trim the unused end of the segment
+			file.getChannel().truncate(end);
+		} finally {
+			file.close();
+			file = null;
+		}
+	}
+
+	private synchronized void close() {
+		try {
+			closeSegment();
+		} catch (IOException e) {
+			logger.warn("Could not close journal segment", e);
+		}
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				logger.warn("Could not close journal index", e);
+			}
+			index = null;
+		}
+	}
+
+	static File segmentFile(File directory, int segment) {
+		return new File(directory, String.format("segment-%06d.journal",
+				segment));
+	}
+
+}
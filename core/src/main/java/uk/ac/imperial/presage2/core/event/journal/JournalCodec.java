@@ -0,0 +1,56 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.presage2.core.event.Event;
+
+/**
+ * Converts an {@link Event} type to and from the binary records of an
+ * {@link EventJournal}.
+ * 
+ * @author Sam Macbeth
+ * 
+ * @param <E>
+ *            type of event.
+ */
+public interface JournalCodec<E extends Event> {
+
+	/**
+	 * Write <code>event</code> to <code>out</code>. If <code>out</code> is too
+	 * small a {@link java.nio.BufferOverflowException} may be thrown, and the
+	 * event will be written again to a larger buffer.
+	 * 
+	 * @param event
+	 * @param out
+	 */
+	public void write(E event, ByteBuffer out);
+
+	/**
+	 * Read an event written by {@link #write(Event, ByteBuffer)}.
+	 * 
+	 * @param time
+	 *            time the event was journaled at.
+	 * @param in
+	 * @return the event.
+	 */
+	public E read(int time, ByteBuffer in);
+
+}
@@ -0,0 +1,85 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.network.MessageBlockedEvent;
+import uk.ac.imperial.presage2.core.network.MessageDeliveryEvent;
+import uk.ac.imperial.presage2.core.network.NetworkEventCodecs;
+import uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle;
+import uk.ac.imperial.presage2.core.simulator.SimulatorEventCodecs;
+
+/**
+ * The {@link JournalCodec}s to use for each event class. Includes codecs for
+ * {@link MessageDeliveryEvent}, {@link MessageBlockedEvent},
+ * {@link EndOfTimeCycle} and {@link SharedStateChangeEvent}; other {@link Serializable} events are journaled with
+ * java serialisation unless a codec is registered for them.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class JournalCodecs {
+
+	private static final JournalCodec<Event> serializable = new SerializableCodec();
+
+	private final Map<Class<?>, JournalCodec<?>> codecs = new ConcurrentHashMap<Class<?>, JournalCodec<?>>();
+
+	public JournalCodecs() {
+		super();
+		register(MessageDeliveryEvent.class, NetworkEventCodecs.DELIVERY);
+		register(MessageBlockedEvent.class, NetworkEventCodecs.BLOCKED);
+		register(EndOfTimeCycle.class, SimulatorEventCodecs.END_OF_TIME_CYCLE);
+		register(SharedStateChangeEvent.class, new SharedStateChangeCodec());
+	}
+
+	/**
+	 * Use <code>codec</code> for events of exactly class <code>type</code>.
+	 * 
+	 * @param type
+	 * @param codec
+	 * @return this
+	 */
+	public <E extends Event> JournalCodecs register(Class<E> type,
+			JournalCodec<E> codec) {
+		codecs.put(type, codec);
+		return this;
+	}
+
+	/**
+	 * Get the codec for events of class <code>type</code>.
+	 * 
+	 * @param type
+	 * @return the codec, or null if <code>type</code> cannot be journaled.
+	 */
+	@SuppressWarnings("unchecked")
+	public JournalCodec<Event> get(Class<?> type) {
+		JournalCodec<?> codec = codecs.get(type);
+		if (codec != null)
+			return (JournalCodec<Event>) codec;
+		if (Serializable.class.isAssignableFrom(type))
+			return serializable;
+		return null;
+	}
+
+}
@@ -0,0 +1,180 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Helpers for {@link JournalCodec}s to write common values compactly.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public final class JournalData {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BOOLEAN = 5;
+	private static final byte UUID_VALUE = 6;
+	private static final byte SERIALIZED = 7;
+
+	private JournalData() {
+	}
+
+	public static void putString(ByteBuffer out, String s) {
+		if (s == null) {
+			out.putInt(-1);
+		} else {
+			byte[] bytes = s.getBytes(UTF8);
+			out.putInt(bytes.length);
+			out.put(bytes);
+		}
+	}
+
+	public static String getString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Write a non-null UUID.
+	 */
+	public static void putUUID(ByteBuffer out, UUID id) {
+		out.putLong(id.getMostSignificantBits());
+		out.putLong(id.getLeastSignificantBits());
+	}
+
+	public static UUID getUUID(ByteBuffer in) {
+		return new UUID(in.getLong(), in.getLong());
+	}
+
+	/**
+	 * Write a value which may be null. Strings, boxed primitives and UUIDs are
+	 * written directly, other {@link Serializable} objects are written with
+	 * java serialisation.
+	 * 
+	 * @param out
+	 * @param value
+	 * @throws IllegalArgumentException
+	 *             if <code>value</code> cannot be written.
+	 */
+	public static void putObject(ByteBuffer out, Object value) {
+		if (value == null) {
+			out.put(NULL);
+		} else if (value instanceof String) {
+			out.put(STRING);
+			putString(out, (String) value);
+		} else if (value instanceof Integer) {
+			out.put(INTEGER);
+			out.putInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.put(LONG);
+			out.putLong((Long) value);
+		} else if (value instanceof Double) {
+			out.put(DOUBLE);
+			out.putDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.put(BOOLEAN);
+			out.put((byte) (((Boolean) value) ? 1 : 0));
+		} else if (value instanceof UUID) {
+			out.put(UUID_VALUE);
+			putUUID(out, (UUID) value);
+		} else if (value instanceof Serializable) {
+			out.put(SERIALIZED);
+			byte[] bytes = serialise((Serializable) value);
+			out.putInt(bytes.length);
+			out.put(bytes);
+		} else {
+			throw new IllegalArgumentException("Cannot journal "
+					+ value.getClass().getName() + ", it is not Serializable.");
+		}
+	}
+
+	public static Object getObject(ByteBuffer in) {
+		byte tag = in.get();
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+			return getString(in);
+		case INTEGER:
+			return in.getInt();
+		case LONG:
+			return in.getLong();
+		case DOUBLE:
+			return in.getDouble();
+		case BOOLEAN:
+			return in.get() != 0;
+		case UUID_VALUE:
+			return getUUID(in);
+		case SERIALIZED:
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			return deserialise(bytes);
+		default:
+			throw new IllegalStateException("Unknown value tag " + tag);
+		}
+	}
+
+	static byte[] serialise(Serializable value) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(value);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not serialise " + value, e);
+		}
+	}
+
+	static Object deserialise(byte[] bytes) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(
+					new ByteArrayInputStream(bytes));
+			try {
+				return in.readObject();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not deserialise journal value", e);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Could not deserialise journal value", e);
+		}
+	}
+
+}
@@ -0,0 +1,112 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.multibindings.Multibinder;
+
+/**
+ * Adds an {@link EventJournal} plugin to the simulation which journals the
+ * given event types to <code>directory</code>.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class JournalModule extends AbstractModule {
+
+	private final String directory;
+	private final Set<Class<? extends Event>> types = new HashSet<Class<? extends Event>>();
+	private final JournalCodecs codecs = new JournalCodecs();
+	private int segmentSize = EventJournal.DEFAULT_SEGMENT_SIZE;
+
+	/**
+	 * Journal no event types yet; add them with {@link #addType(Class)}.
+	 * 
+	 * @param directory
+	 */
+	public JournalModule(String directory) {
+		super();
+		this.directory = directory;
+	}
+
+	/**
+	 * @param directory
+	 * @param types
+	 *            event classes (and their subclasses) to journal.
+	 */
+	public JournalModule(String directory,
+			Collection<Class<? extends Event>> types) {
+		this(directory);
+		this.types.addAll(types);
+	}
+
+	/**
+	 * Also journal events of class <code>type</code> (and its subclasses).
+	 * 
+	 * @param type
+	 * @return this
+	 */
+	public JournalModule addType(Class<? extends Event> type) {
+		this.types.add(type);
+		return this;
+	}
+
+	/**
+	 * Journal events of class <code>type</code> using <code>codec</code>.
+	 * 
+	 * @param type
+	 * @param codec
+	 * @return this
+	 */
+	public <E extends Event> JournalModule addType(Class<E> type,
+			JournalCodec<E> codec) {
+		this.types.add(type);
+		this.codecs.register(type, codec);
+		return this;
+	}
+
+	/**
+	 * @param bytes
+	 *            size of each journal segment file.
+	 * @return this
+	 */
+	public JournalModule segmentSize(int bytes) {
+		if (bytes < 1024)
+			throw new IllegalArgumentException(
+					"Journal segments must be at least 1KB.");
+		this.segmentSize = bytes;
+		return this;
+	}
+
+	@Override
+	protected void configure() {
+		Multibinder.newSetBinder(binder(), Plugin.class).addBinding()
+				.toInstance(new EventJournal(new File(directory), segmentSize,
+						types, codecs));
+	}
+
+}
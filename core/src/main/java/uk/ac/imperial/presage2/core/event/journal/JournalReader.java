@@ -0,0 +1,299 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.event.Event;
+
+/**
+ * <p>
+ * Reads the events written by an {@link EventJournal} back in the order they
+ * were journaled.
+ * </p>
+ * 
+ * <pre>
+ * JournalReader reader = new JournalReader(directory);
+ * reader.seek(100);
+ * while (reader.next()) {
+ * 	Event e = reader.getEvent();
+ * 	...
+ * }
+ * reader.close();
+ * </pre>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class JournalReader {
+
+	private final Logger logger = Logger.getLogger(JournalReader.class);
+
+	private final File directory;
+	private final JournalCodecs codecs;
+
+	private int segmentNumber = -1;
+	private int lastSegment = Integer.MAX_VALUE;
+	private MappedByteBuffer segment = null;
+	private final Map<Short, JournalCodec<Event>> definitions = new HashMap<Short, JournalCodec<Event>>();
+
+	private Event event = null;
+	private int time = 0;
+
+	public JournalReader(File directory) {
+		this(directory, new JournalCodecs());
+	}
+
+	public JournalReader(File directory, JournalCodecs codecs) {
+		super();
+		this.directory = directory;
+		this.codecs = codecs;
+	}
+
+	/**
+	 * @return the number of segment files in the journal.
+	 */
+	public int getSegmentCount() {
+		int count = 0;
+		while (EventJournal.segmentFile(directory, count).isFile())
+			count++;
+		return count;
+	}
+
+	/**
+	 * Move to the next event in the journal.
+	 * 
+	 * @return false if there are no more events.
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			if (segment == null && !openSegment(segmentNumber + 1, 0))
+				return false;
+			if (readRecord())
+				return true;
+			segment = null;
+		}
+	}
+
+	/**
+	 * @return the current event.
+	 */
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * @return the time the current event was journaled at.
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the segment the current event was read from.
+	 */
+	public int getSegment() {
+		return segmentNumber;
+	}
+
+	/**
+	 * Position the reader so that {@link #next()} returns the first event
+	 * journaled at or after <code>t</code>, using the journal's index.
+	 * 
+	 * @param t
+	 * @throws IOException
+	 */
+	public void seek(int t) throws IOException {
+		int seg = -1;
+		int offset = 0;
+		File indexFile = new File(directory, EventJournal.INDEX_FILE);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(indexFile)));
+		try {
+			checkHeader(in.readInt(), in.readShort(), indexFile);
+			while (true) {
+				int entryTime = in.readInt();
+				int entrySegment = in.readInt();
+				int entryOffset = in.readInt();
+				if (entryTime >= t) {
+					seg = entrySegment;
+					offset = entryOffset;
+					break;
+				}
+			}
+		} catch (EOFException e) {
+			// no events at or after t
+		} finally {
+			in.close();
+		}
+		segment = null;
+		if (seg < 0) {
+			segmentNumber = getSegmentCount();
+			return;
+		}
+		openSegment(seg, offset);
+	}
+
+	/**
+	 * Position the reader at the start of segment <code>number</code>.
+	 * 
+	 * @param number
+	 * @throws IOException
+	 */
+	public void seekSegment(int number) throws IOException {
+		segment = null;
+		segmentNumber = number - 1;
+		if (!openSegment(number, 0))
+			segmentNumber = number;
+	}
+
+	/**
+	 * Stop reading after segment <code>number</code>.
+	 * 
+	 * @param number
+	 */
+	public void setLastSegment(int number) {
+		this.lastSegment = number;
+	}
+
+	public void close() {
+		segment = null;
+		definitions.clear();
+		event = null;
+	}
+
+	/**
+	 * Open a segment and skip to <code>offset</code>, reading the type
+	 * definitions before it.
+	 */
+	private boolean openSegment(int number, int offset) throws IOException {
+		File f = EventJournal.segmentFile(directory, number);
+		if (number > lastSegment || !f.isFile())
+			return false;
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		segmentNumber = number;
+		definitions.clear();
+		checkHeader(segment.getInt(), segment.getShort(), f);
+		segment.getInt();
+		while (segment.position() < offset) {
+			if (!skipRecord())
+				break;
+		}
+		return true;
+	}
+
+	private void checkHeader(int magic, short version, File f)
+			throws IOException {
+		if (magic != EventJournal.MAGIC)
+			throw new IOException(f + " is not an event journal.");
+		if (version != EventJournal.VERSION)
+			throw new IOException("Unsupported journal version " + version
+					+ " in " + f);
+	}
+
+	/**
+	 * Read the next event record in the segment, processing any definitions
+	 * before it.
+	 * 
+	 * @return false at the end of the segment.
+	 */
+	private boolean readRecord() {
+		while (segment.remaining() >= EventJournal.RECORD_HEADER) {
+			final int start = segment.position();
+			final int length = segment.getInt();
+			if (length == 0)
+				return false;
+			final short type = segment.getShort();
+			final int t = segment.getInt();
+			final ByteBuffer payload = slice(start, length);
+			segment.position(start + length);
+			if (type == EventJournal.DEFINITION) {
+				define(payload);
+				continue;
+			}
+			final JournalCodec<Event> codec = definitions.get(type);
+			if (codec == null)
+				continue;
+			event = codec.read(t, payload);
+			time = t;
+			return true;
+		}
+		return false;
+	}
+
+	private boolean skipRecord() {
+		if (segment.remaining() < EventJournal.RECORD_HEADER)
+			return false;
+		final int start = segment.position();
+		final int length = segment.getInt();
+		if (length == 0)
+			return false;
+		final short type = segment.getShort();
+		segment.getInt();
+		if (type == EventJournal.DEFINITION)
+			define(slice(start, length));
+		segment.position(start + length);
+		return true;
+	}
+
+	private ByteBuffer slice(int start, int length) {
+		ByteBuffer payload = segment.duplicate();
+		payload.position(start + EventJournal.RECORD_HEADER);
+		payload.limit(start + length);
+		return payload;
+	}
+
+	private void define(ByteBuffer payload) {
+		final short id = payload.getShort();
+		final String className = JournalData.getString(payload);
+		JournalCodec<Event> codec = null;
+		try {
+			codec = codecs.get(Class.forName(className, false, Thread
+					.currentThread().getContextClassLoader()));
+		} catch (ClassNotFoundException e) {
+			logger.warn("Event class " + className
+					+ " not found, its events will be skipped.");
+		}
+		if (codec == null)
+			definitions.remove(id);
+		else
+			definitions.put(id, codec);
+	}
+
+}
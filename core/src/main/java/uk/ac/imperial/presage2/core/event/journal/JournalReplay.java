@@ -0,0 +1,211 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventBusModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Provider;
+
+/**
+ * <p>
+ * Replays the events in an {@link EventJournal} through a new {@link EventBus},
+ * without running a simulation, so that analysis listeners can be run over a
+ * completed simulation.
+ * </p>
+ * 
+ * <pre>
+ * long events = new JournalReplay(directory).from(100).to(200).replay(listener);
+ * </pre>
+ * 
+ * <p>
+ * Segments of the journal can be read independently, so
+ * {@link #replayParallel(int, Provider)} replays each segment through its own
+ * {@link EventBus} and listener concurrently. Each listener then only sees part
+ * of the journal, so it must be possible to combine their results.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class JournalReplay {
+
+	private final Logger logger = Logger.getLogger(JournalReplay.class);
+
+	private final File directory;
+	private final JournalCodecs codecs;
+	private int from = Integer.MIN_VALUE;
+	private int to = Integer.MAX_VALUE;
+
+	public JournalReplay(File directory) {
+		this(directory, new JournalCodecs());
+	}
+
+	public JournalReplay(File directory, JournalCodecs codecs) {
+		super();
+		this.directory = directory;
+		this.codecs = codecs;
+	}
+
+	/**
+	 * Only replay events journaled at or after <code>time</code>.
+	 * 
+	 * @param time
+	 * @return this
+	 */
+	public JournalReplay from(int time) {
+		this.from = time;
+		return this;
+	}
+
+	/**
+	 * Only replay events journaled at or before <code>time</code>.
+	 * 
+	 * @param time
+	 * @return this
+	 */
+	public JournalReplay to(int time) {
+		this.to = time;
+		return this;
+	}
+
+	/**
+	 * Replay the journal in order to the given listeners.
+	 * 
+	 * @param listeners
+	 *            objects with {@link uk.ac.imperial.presage2.core.event.EventListener}
+	 *            methods.
+	 * @return number of events replayed.
+	 * @throws IOException
+	 */
+	public long replay(Object... listeners) throws IOException {
+		final EventBus eventBus = newEventBus();
+		for (Object l : listeners) {
+			eventBus.subscribe(l);
+		}
+		final JournalReader reader = new JournalReader(directory, codecs);
+		try {
+			if (from != Integer.MIN_VALUE)
+				reader.seek(from);
+			return publish(reader, eventBus);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Replay each segment of the journal concurrently, each through a new
+	 * {@link EventBus} with a new listener from <code>listeners</code>.
+	 * 
+	 * @param threads
+	 *            number of segments to replay at once.
+	 * @param listeners
+	 *            provides a listener for each segment.
+	 * @return the listener for each segment, in segment order.
+	 * @throws IOException
+	 */
+	public <T> List<T> replayParallel(int threads, final Provider<T> listeners)
+			throws IOException {
+		final int segments = new JournalReader(directory, codecs)
+				.getSegmentCount();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final List<Future<T>> results = new ArrayList<Future<T>>(segments);
+			for (int i = 0; i < segments; i++) {
+				final int segment = i;
+				results.add(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return replaySegment(segment, listeners.get());
+					}
+				}));
+			}
+			final List<T> replayed = new ArrayList<T>(segments);
+			for (Future<T> result : results) {
+				try {
+					replayed.add(result.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException)
+						throw (IOException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted during replay");
+				}
+			}
+			return replayed;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private <T> T replaySegment(int segment, T listener) throws IOException {
+		final EventBus eventBus = newEventBus();
+		eventBus.subscribe(listener);
+		final JournalReader reader = new JournalReader(directory, codecs);
+		try {
+			reader.seekSegment(segment);
+			reader.setLastSegment(segment);
+			long count = publish(reader, eventBus);
+			if (logger.isDebugEnabled())
+				logger.debug("Replayed " + count + " events from segment "
+						+ segment);
+		} finally {
+			reader.close();
+		}
+		return listener;
+	}
+
+	private long publish(JournalReader reader, EventBus eventBus)
+			throws IOException {
+		long count = 0;
+		while (reader.next()) {
+			final int t = reader.getTime();
+			if (t < from)
+				continue;
+			// events are journaled in time order
+			if (t > to)
+				break;
+			final Event e = reader.getEvent();
+			eventBus.publish(e);
+			count++;
+		}
+		return count;
+	}
+
+	private static EventBus newEventBus() {
+		return Guice.createInjector(new EventBusModule()).getInstance(
+				EventBus.class);
+	}
+
+}
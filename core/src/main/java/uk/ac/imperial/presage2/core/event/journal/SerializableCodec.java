@@ -0,0 +1,50 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+import uk.ac.imperial.presage2.core.event.Event;
+
+/**
+ * Journals any {@link Serializable} {@link Event} with java serialisation. Much
+ * slower and larger than a specific {@link JournalCodec}, used when an event
+ * type has none.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class SerializableCodec implements JournalCodec<Event> {
+
+	@Override
+	public void write(Event event, ByteBuffer out) {
+		byte[] bytes = JournalData.serialise((Serializable) event);
+		out.putInt(bytes.length);
+		out.put(bytes);
+	}
+
+	@Override
+	public Event read(int time, ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return (Event) JournalData.deserialise(bytes);
+	}
+
+}
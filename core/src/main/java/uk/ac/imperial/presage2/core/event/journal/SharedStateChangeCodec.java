@@ -0,0 +1,59 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent;
+
+/**
+ * {@link JournalCodec} for {@link SharedStateChangeEvent}s.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class SharedStateChangeCodec implements JournalCodec<SharedStateChangeEvent> {
+
+	private static final SharedStateChangeEvent.Kind[] kinds = SharedStateChangeEvent.Kind
+			.values();
+
+	@Override
+	public void write(SharedStateChangeEvent event, ByteBuffer out) {
+		out.put((byte) event.getKind().ordinal());
+		JournalData.putString(out, event.getKey());
+		final UUID participant = event.getParticipantID();
+		out.put((byte) (participant != null ? 1 : 0));
+		if (participant != null)
+			JournalData.putUUID(out, participant);
+		JournalData.putObject(out, event.getValue());
+	}
+
+	@Override
+	public SharedStateChangeEvent read(int time, ByteBuffer in) {
+		final SharedStateChangeEvent.Kind kind = kinds[in.get()];
+		final String key = JournalData.getString(in);
+		final UUID participant = in.get() != 0 ? JournalData.getUUID(in)
+				: null;
+		final Serializable value = (Serializable) JournalData.getObject(in);
+		return new SharedStateChangeEvent(kind, key, participant, value);
+	}
+
+}
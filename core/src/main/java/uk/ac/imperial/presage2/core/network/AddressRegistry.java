@@ -0,0 +1,173 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Table of the devices registered with a {@link NetworkController}. Each
+ * {@link NetworkAddress} is given a dense index when it is registered, and its
+ * link is stored in an array at that index.
+ * </p>
+ * 
+ * <p>
+ * Addresses are compared by value. The index of an address is cached on the
+ * {@link NetworkAddress} instance, so resolving an address which has been seen
+ * before is a field read and an array lookup rather than a hash probe.
+ * </p>
+ * 
+ * <p>
+ * Registration is synchronized, lookups are not. A new device is written to
+ * the arrays before <code>size</code> is increased, so readers which read
+ * <code>size</code> first see every registered device.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class AddressRegistry {
+
+	/**
+	 * Index of an address in a registry, cached on the address.
+	 */
+	static final class Slot {
+		final AddressRegistry owner;
+		final int index;
+
+		Slot(AddressRegistry owner, int index) {
+			super();
+			this.owner = owner;
+			this.index = index;
+		}
+	}
+
+	private final ConcurrentHashMap<NetworkAddress, Slot> slots = new ConcurrentHashMap<NetworkAddress, Slot>();
+
+	private NetworkAddress[] addresses = new NetworkAddress[16];
+	private volatile NetworkChannel[] links = new NetworkChannel[16];
+	private volatile int size = 0;
+
+	public AddressRegistry() {
+		super();
+	}
+
+	/**
+	 * Register <code>link</code> as the device at <code>address</code>,
+	 * replacing any existing link for an equal address.
+	 * 
+	 * @param address
+	 * @param link
+	 * @return the index of <code>address</code>.
+	 */
+	public synchronized int register(NetworkAddress address, NetworkChannel link) {
+		if (address == null || link == null)
+			throw new NullPointerException();
+		Slot s = slots.get(address);
+		if (s != null) {
+			// copy so the replaced link is published by the volatile write
+			final NetworkChannel[] replaced = links.clone();
+			replaced[s.index] = link;
+			links = replaced;
+			return s.index;
+		}
+		final int index = size;
+		if (index == addresses.length) {
+			addresses = Arrays.copyOf(addresses, 2 * index);
+			links = Arrays.copyOf(links, 2 * index);
+		}
+		addresses[index] = address;
+		links[index] = link;
+		s = new Slot(this, index);
+		slots.put(address, s);
+		address.slot = s;
+		size = index + 1;
+		return index;
+	}
+
+	/**
+	 * Get the index of <code>address</code>.
+	 * 
+	 * @param address
+	 * @return the index, or -1 if the address is not registered.
+	 */
+	public int indexOf(NetworkAddress address) {
+		Slot s = address.slot;
+		if (s != null && s.owner == this)
+			return s.index;
+		s = slots.get(address);
+		if (s == null)
+			return -1;
+		// racy but safe, slots are immutable.
+		address.slot = s;
+		return s.index;
+	}
+
+	/**
+	 * Get the link registered at <code>address</code>.
+	 * 
+	 * @param address
+	 * @return the link, or null if the address is not registered.
+	 */
+	public NetworkChannel getLink(NetworkAddress address) {
+		final int index = indexOf(address);
+		return index < 0 ? null : getLink(index);
+	}
+
+	/**
+	 * @param index
+	 * @return the link registered with this index.
+	 */
+	public NetworkChannel getLink(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return links[index];
+	}
+
+	/**
+	 * @param index
+	 * @return the address registered with this index.
+	 */
+	public NetworkAddress getAddress(int index) {
+		if (index >= size)
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		return addresses[index];
+	}
+
+	/**
+	 * @return the number of registered devices. Indices are from 0 to
+	 *         <code>size() - 1</code>.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the registered addresses, in order of their index.
+	 */
+	public List<NetworkAddress> getAddresses() {
+		final int n = size;
+		return Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(
+				addresses, n)));
+	}
+
+}
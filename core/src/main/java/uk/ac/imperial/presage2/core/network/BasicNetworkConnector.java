@@ -19,13 +19,16 @@
 
 package uk.ac.imperial.presage2.core.network;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.simulator.DeterministicExecution;
+
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 
@@ -36,7 +39,7 @@ import com.google.inject.assistedinject.Assisted;
  * 
  * <p>
  * We simply send messages directly over the networkchannel, and store received
- * messages in a list for the participant to retrieve.
+ * messages in a lock-free {@link Mailbox} for the participant to retrieve.
  * </p>
  * 
  * @author Sam Macbeth
@@ -46,13 +49,12 @@ public class BasicNetworkConnector extends NetworkConnector {
 
 	final private Logger logger = Logger.getLogger(BasicNetworkConnector.class);
 
-	protected List<Message<?>> receivedMessages;
+	protected final Mailbox receivedMessages = new Mailbox();
 
 	@Inject
 	protected BasicNetworkConnector(NetworkChannel controller,
 			NetworkAddressFactory networkAddressFactory, @Assisted UUID id) {
 		super(controller, networkAddressFactory, id);
-		receivedMessages = new LinkedList<Message<?>>();
 	}
 
 	public BasicNetworkConnector(NetworkChannel controller,
@@ -68,24 +70,50 @@ public class BasicNetworkConnector extends NetworkConnector {
 	 * After returning these message we will clear our list, therefore the
 	 * caller must store these messages if they want to use them later
 	 * </p>
+	 * <p>
+	 * Under {@link DeterministicExecution} the messages are returned in
+	 * canonical order rather than the order in which they arrived.
+	 * </p>
 	 * 
 	 * @see uk.ac.imperial.presage2.core.network.NetworkAdaptor#getMessages()
 	 */
 	@Override
 	public List<Message<?>> getMessages() {
-		List<Message<?>> messages = receivedMessages;
-		receivedMessages = new LinkedList<Message<?>>();
+		List<Message<?>> messages = new ArrayList<Message<?>>();
+		drainMessages(messages);
 		return messages;
 	}
 
+	/**
+	 * Move the messages we have into <code>messages</code>. Unlike
+	 * {@link #getMessages()} this does not allocate a new list, so a
+	 * participant receiving many messages may reuse one buffer each time
+	 * step.
+	 * 
+	 * @param messages
+	 *            list to add messages to. Under {@link DeterministicExecution}
+	 *            this list is sorted after the messages are added.
+	 * @return the number of messages added.
+	 */
+	public int drainMessages(List<? super Message<?>> messages) {
+		if (DeterministicExecution.isEnabled()) {
+			final List<Message<?>> received = new ArrayList<Message<?>>();
+			receivedMessages.drainTo(received);
+			Collections.sort(received, Message.DELIVERY_ORDER);
+			messages.addAll(received);
+			return received.size();
+		}
+		return receivedMessages.drainTo(messages);
+	}
+
 	/**
 	 * @see uk.ac.imperial.presage2.core.network.NetworkConnector#deliverMessage(uk.ac.imperial.presage2.core.network.Message)
 	 */
 	@Override
-	synchronized public void deliverMessage(Message<?> m) {
+	public void deliverMessage(Message<?> m) {
 		if (logger.isDebugEnabled())
 			logger.debug("Received message: " + m.toString());
-		this.receivedMessages.add(m);
+		this.receivedMessages.offer(m);
 	}
 
 	/**
@@ -18,10 +18,11 @@
  */
 package uk.ac.imperial.presage2.core.network;
 
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
@@ -43,6 +44,11 @@ import com.google.inject.Inject;
  * individual.
  * </p>
  * 
+ * <p>
+ * Decisions of {@link LinkConstraint}s are cached for each sender and
+ * recipient until the end of the time cycle.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
@@ -53,7 +59,19 @@ public class ConstrainedNetworkController extends NetworkController {
 
 	protected Set<NetworkConstraint> constraints;
 
-	private Map<NetworkAddress, Set<NetworkAddress>> blockedCache = new HashMap<NetworkAddress, Set<NetworkAddress>>();
+	/**
+	 * Decisions of {@link LinkConstraint}s this cycle, by sender index.
+	 */
+	private volatile AtomicReferenceArray<LinkRow> linkCache = new AtomicReferenceArray<LinkRow>(
+			0);
+
+	/**
+	 * Cached link decisions from one sender, by recipient index.
+	 */
+	private static final class LinkRow {
+		final BitSet known = new BitSet();
+		final BitSet blocked = new BitSet();
+	}
 
 	/**
 	 * @param time
@@ -78,53 +96,224 @@ public class ConstrainedNetworkController extends NetworkController {
 	@Override
 	protected void handleMessage(Message<?> m) {
 		// apply NetworkConstraints.
+		final long sequence = m.deliverySequence;
 		for (NetworkConstraint c : this.constraints) {
 			m = c.constrainMessage(m);
 		}
+		// constraints may replace the message, keep its place in the order.
+		m.deliverySequence = sequence;
 		super.handleMessage(m);
 	}
 
+	/**
+	 * Determine whether any of our constraints block delivery of
+	 * <code>m</code> to <code>to</code>.
+	 * 
+	 * @param to
+	 * @param m
+	 * @return true if delivery is blocked.
+	 */
 	@Override
-	protected void deliverMessageTo(NetworkAddress to, Message<?> m) {
-		boolean blockMessage = false;
-		// ask all networkconstraints if they want to block
+	protected boolean isBlocked(NetworkAddress to, Message<?> m) {
+		boolean links = false;
+		// ask constraints which depend on the message if they want to block
 		for (NetworkConstraint c : this.constraints) {
-			blockMessage = blockMessage || c.blockMessageDelivery(to, m);
+			if (c instanceof LinkConstraint)
+				links = true;
+			else if (c.blockMessageDelivery(to, m))
+				return true;
 		}
-		if (blockMessage) {
-			if (logger.isDebugEnabled()) {
-				logger.debug("Delivery of message " + m + " to " + to
-						+ " was blocked by a constraint.");
-			}
-			if (this.eventBus != null && DELIVER_MESSAGE_EVENTS_ENABLED) {
+		if (!links)
+			return false;
+
+		final int sender = m.getFrom() != null ? devices.indexOf(m.getFrom())
+				: -1;
+		final int recipient = devices.indexOf(to);
+		if (sender < 0 || recipient < 0)
+			return isLinkBlocked(to, m);
+
+		final LinkRow row = linkRow(sender);
+		synchronized (row) {
+			if (row.known.get(recipient))
+				return row.blocked.get(recipient);
+		}
+		final boolean blocked = isLinkBlocked(to, m);
+		synchronized (row) {
+			row.known.set(recipient);
+			row.blocked.set(recipient, blocked);
+		}
+		return blocked;
+	}
+
+	private boolean isLinkBlocked(NetworkAddress to, Message<?> m) {
+		for (NetworkConstraint c : this.constraints) {
+			if (c instanceof LinkConstraint && c.blockMessageDelivery(to, m))
+				return true;
+		}
+		return false;
+	}
+
+	private LinkRow linkRow(int sender) {
+		AtomicReferenceArray<LinkRow> rows = linkCache;
+		if (sender >= rows.length())
+			rows = growLinkCache(sender);
+		LinkRow row = rows.get(sender);
+		if (row == null) {
+			rows.compareAndSet(sender, null, new LinkRow());
+			row = rows.get(sender);
+		}
+		return row;
+	}
+
+	private synchronized AtomicReferenceArray<LinkRow> growLinkCache(
+			int sender) {
+		final AtomicReferenceArray<LinkRow> rows = linkCache;
+		if (sender < rows.length())
+			return rows;
+		final AtomicReferenceArray<LinkRow> grown = new AtomicReferenceArray<LinkRow>(
+				Math.max(sender + 1, devices.size()));
+		for (int i = 0; i < rows.length(); i++) {
+			grown.set(i, rows.get(i));
+		}
+		linkCache = grown;
+		return grown;
+	}
+
+	@Override
+	protected void deliverMessageTo(NetworkAddress to, Message<?> m) {
+		if (isBlocked(to, m))
+			deliveryBlocked(to, m);
+		else
+			super.deliverMessageTo(to, m);
+	}
+
+	@Override
+	protected void deliveryBlocked(NetworkAddress to, Message<?> m) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Delivery of message " + m + " to " + to
+					+ " was blocked by a constraint.");
+		}
+		if (this.eventBus != null && DELIVER_MESSAGE_EVENTS_ENABLED) {
+			if (BATCH_MESSAGE_EVENTS)
+				shardOf(to).blocked.add(m, to);
+			else
 				this.eventBus.publish(new MessageBlockedEvent(time, m, to));
+		}
+	}
+
+	/**
+	 * Send a broadcast message. If any of our constraints are
+	 * {@link NeighbourhoodConstraint}s only the smallest set of candidates
+	 * they give is checked for delivery, rather than every device. The
+	 * recipients which are not blocked are queued as a single fan-out.
+	 */
+	@Override
+	protected void doBroadcast(BroadcastMessage<?> m) {
+		if (this.constraints.isEmpty()) {
+			super.doBroadcast(m);
+			return;
+		}
+		final Collection<NetworkAddress> candidates = getCandidates(m);
+		final int from = m.getFrom() != null ? this.devices.indexOf(m
+				.getFrom()) : -1;
+		final BitSet allowed = new BitSet();
+		if (candidates == null) {
+			final int n = this.devices.size();
+			for (int i = 0; i < n; i++) {
+				// deliver to all but sender
+				if (i != from)
+					allow(allowed, i, this.devices.getAddress(i), m);
 			}
 		} else {
-			super.deliverMessageTo(to, m);
+			for (NetworkAddress to : candidates) {
+				// deliver to all but sender
+				if (!to.equals(m.getFrom()))
+					allow(allowed, this.devices.indexOf(to), to, m);
+			}
 		}
+		queueFanOut(m, allowed, -1);
+		if (logger.isDebugEnabled())
+			logger.debug("Sent broadcast message to "
+					+ allowed.cardinality() + " recipients: " + m.toString());
 	}
 
-	@Override
-	protected Pong getPong(Ping p) {
-		// start with all NetworkAddresses, then determine and remove those
-		// which will be blocked by constraints.
-		Set<NetworkAddress> links = new HashSet<NetworkAddress>();
-		// Set<NetworkAddress> blocked = new HashSet<NetworkAddress>();
-		for (NetworkAddress a : this.devices.keySet()) {
+	private void allow(BitSet allowed, int index, NetworkAddress to,
+			Message<?> m) {
+		if (index < 0)
+			deliverMessageTo(to, m);
+		else if (isBlocked(to, m))
+			deliveryBlocked(to, m);
+		else
+			allowed.set(index);
+	}
+
+	/**
+	 * Get the smallest set of candidate recipients for <code>m</code> given by
+	 * our {@link NeighbourhoodConstraint}s.
+	 * 
+	 * @param m
+	 * @return candidates, or null if every device is a candidate.
+	 */
+	protected Collection<NetworkAddress> getCandidates(Message<?> m) {
+		Collection<NetworkAddress> candidates = null;
+		if (m.getFrom() != null) {
 			for (NetworkConstraint c : this.constraints) {
-				if (!c.blockMessageDelivery(a, p)) {
-					links.add(a);
+				if (c instanceof NeighbourhoodConstraint) {
+					Collection<NetworkAddress> n = ((NeighbourhoodConstraint) c)
+							.getCandidates(m.getFrom(), this.devices);
+					if (n != null
+							&& (candidates == null || n.size() < candidates
+									.size()))
+						candidates = n;
 				}
 			}
 		}
-		// links.removeAll(blocked);
+		return candidates;
+	}
+
+	@Override
+	protected void publishMessageBatches() {
+		super.publishMessageBatches();
+		if (this.eventBus == null)
+			return;
+		final DeliveryShard[] shards = awaitingDelivery;
+		final MessageBatchBuilder[] builders = new MessageBatchBuilder[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			builders[i] = shards[i].blocked;
+		}
+		MessageBatch batch = MessageBatchBuilder.buildBlockedBatch(
+				time.clone(), builders);
+		if (batch != null)
+			this.eventBus.publish(batch);
+	}
+
+	@Override
+	protected Pong getPong(Ping p) {
+		// start with all candidate NetworkAddresses, then keep those which
+		// will not be blocked by constraints.
+		Collection<NetworkAddress> candidates = getCandidates(p);
+		if (candidates == null)
+			candidates = this.devices.getAddresses();
+		Set<NetworkAddress> links = new HashSet<NetworkAddress>();
+		for (NetworkAddress a : candidates) {
+			if (!isBlocked(a, p))
+				links.add(a);
+		}
 		return new Pong(time.clone(), links);
 	}
 
+	/**
+	 * Forget the link decisions of the last cycle before any routers are
+	 * scheduled, as participants may have moved since.
+	 */
 	@Override
-	public void incrementTime() {
-		super.incrementTime();
-		blockedCache.clear();
+	protected void routeMessages() {
+		resetLinkCache();
+		super.routeMessages();
+	}
+
+	private synchronized void resetLinkCache() {
+		linkCache = new AtomicReferenceArray<LinkRow>(devices.size());
 	}
 
 }
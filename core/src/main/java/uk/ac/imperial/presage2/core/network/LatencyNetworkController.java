@@ -0,0 +1,414 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.simulator.EventScheduler;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+
+import com.google.inject.Inject;
+
+/**
+ * <p>
+ * A {@link ConstrainedNetworkController} where messages may take several time
+ * cycles to arrive, may be lost, and may be held back by the capacity of the
+ * link they are sent over.
+ * </p>
+ * 
+ * <p>
+ * When a message is routed each recipient which is not blocked is checked
+ * against the {@link LossModel}, then given a delivery cycle from the
+ * {@link LatencyModel} and {@link BandwidthModel}. Deliveries due later than
+ * the current cycle are held in a {@link TimingWheel} until the end of that
+ * cycle, when they are delivered with the messages sent in it. Lost messages
+ * are reported as blocked. Without any models messages are delivered at the
+ * end of the cycle they are sent in, as by the
+ * {@link ConstrainedNetworkController}.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class LatencyNetworkController extends ConstrainedNetworkController {
+
+	private final Logger logger = Logger
+			.getLogger(LatencyNetworkController.class);
+
+	protected LatencyModel latencyModel = null;
+
+	protected LossModel lossModel = null;
+
+	protected BandwidthModel bandwidthModel = null;
+
+	/**
+	 * Deliveries due in later cycles.
+	 */
+	private final TimingWheel<Delayed> delayed;
+
+	/**
+	 * Wakes us in cycles with delayed deliveries when the simulator skips
+	 * idle cycles.
+	 */
+	private EventScheduler scheduler = null;
+
+	/**
+	 * Cycles a wake-up has been scheduled for. Guarded by {@link #delayed}.
+	 */
+	private final TreeSet<Integer> wakeUps = new TreeSet<Integer>();
+
+	/**
+	 * Bandwidth used on each link, keyed by sender and recipient index.
+	 */
+	private final ConcurrentMap<Long, LinkLoad> linkLoads = new ConcurrentHashMap<Long, LinkLoad>();
+
+	/**
+	 * The cycle whose messages are being routed. With a thread pool the
+	 * routers may still be running when {@link #incrementTime()} moves
+	 * {@link #time} on, so delivery cycles are counted from this instead.
+	 */
+	private volatile int routing;
+
+	/**
+	 * A delivery, or fan-out of deliveries, due in a later cycle.
+	 */
+	static class Delayed implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int due;
+		final Delivery delivery;
+
+		Delayed(int due, Delivery delivery) {
+			super();
+			this.due = due;
+			this.delivery = delivery;
+		}
+	}
+
+	/**
+	 * The latest cycle a link has delivery booked in, and how many messages
+	 * are booked in it.
+	 */
+	private static final class LinkLoad {
+		int cycle = Integer.MIN_VALUE;
+		int used = 0;
+	}
+
+	static class LatencyState implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final Serializable network;
+		final ArrayList<Delayed> delayed;
+
+		LatencyState(Serializable network, ArrayList<Delayed> delayed) {
+			super();
+			this.network = network;
+			this.delayed = delayed;
+		}
+	}
+
+	@Inject
+	public LatencyNetworkController(Time time,
+			EnvironmentSharedStateAccess environment, Scenario s) {
+		super(time, environment, s);
+		routing = time.intValue();
+		delayed = new TimingWheel<Delayed>(routing);
+	}
+
+	@Inject(optional = true)
+	public void setLatencyModel(LatencyModel latencyModel) {
+		this.latencyModel = latencyModel;
+	}
+
+	@Inject(optional = true)
+	public void setLossModel(LossModel lossModel) {
+		this.lossModel = lossModel;
+	}
+
+	@Inject(optional = true)
+	public void setBandwidthModel(BandwidthModel bandwidthModel) {
+		this.bandwidthModel = bandwidthModel;
+	}
+
+	@Inject(optional = true)
+	public void setEventScheduler(EventScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Get the number of deliveries waiting for a later time cycle.
+	 * 
+	 * @return number of delayed deliveries and fan-outs.
+	 */
+	public int getDelayedCount() {
+		synchronized (delayed) {
+			return delayed.size();
+		}
+	}
+
+	@Override
+	protected void deliverMessageTo(NetworkAddress to, Message<?> m) {
+		if (isBlocked(to, m)) {
+			deliveryBlocked(to, m);
+			return;
+		}
+		final int now = routing;
+		final int due = dueCycle(to, m, now);
+		if (due < 0)
+			return;
+		if (due <= now) {
+			notifyDelivery(to, m);
+			queueDelivery(to, m);
+		} else {
+			delay(due, new Delivery(to, m));
+		}
+	}
+
+	/**
+	 * Split a fan-out into recipients to deliver to this cycle, which are
+	 * queued as one fan-out as usual, and recipients due in later cycles,
+	 * which are delayed as one fan-out per cycle.
+	 */
+	@Override
+	protected void queueFanOut(Message<?> m, BitSet recipients, int except) {
+		if (latencyModel == null && lossModel == null && bandwidthModel == null) {
+			super.queueFanOut(m, recipients, except);
+			return;
+		}
+		final int count = devices.size();
+		if (recipients == null) {
+			recipients = new BitSet(count);
+			recipients.set(0, count);
+			if (except >= 0)
+				recipients.clear(except);
+		}
+		final int now = routing;
+		final BitSet immediate = new BitSet();
+		final Map<Integer, BitSet> later = new TreeMap<Integer, BitSet>();
+		for (int i = recipients.nextSetBit(0); i >= 0; i = recipients
+				.nextSetBit(i + 1)) {
+			final int due = dueCycle(devices.getAddress(i), m, now);
+			if (due < 0)
+				continue;
+			if (due <= now) {
+				immediate.set(i);
+			} else {
+				BitSet dueRecipients = later.get(due);
+				if (dueRecipients == null) {
+					dueRecipients = new BitSet();
+					later.put(due, dueRecipients);
+				}
+				dueRecipients.set(i);
+			}
+		}
+		super.queueFanOut(m, immediate, -1);
+		for (Map.Entry<Integer, BitSet> e : later.entrySet()) {
+			delay(e.getKey(), new FanOut(m, e.getValue(), count, -1));
+		}
+	}
+
+	/**
+	 * Get the cycle to deliver <code>m</code> to <code>to</code> in.
+	 * 
+	 * @param to
+	 * @param m
+	 * @param now
+	 *            the current cycle.
+	 * @return the delivery cycle, or -1 if the message is lost.
+	 */
+	private int dueCycle(NetworkAddress to, Message<?> m, int now) {
+		if (lossModel != null && lossModel.isLost(to, m)) {
+			if (logger.isDebugEnabled())
+				logger.debug("Message " + m + " to " + to + " was lost.");
+			deliveryBlocked(to, m);
+			return -1;
+		}
+		int due = now;
+		if (latencyModel != null)
+			due += Math.max(0, latencyModel.getLatency(to, m));
+		if (bandwidthModel != null && m.getFrom() != null)
+			due = reserve(m.getFrom(), to, due);
+		return due;
+	}
+
+	/**
+	 * Book a delivery over the link from <code>from</code> to <code>to</code>
+	 * in the first cycle from <code>due</code> with capacity left on the link.
+	 * 
+	 * @return the cycle booked.
+	 */
+	private int reserve(NetworkAddress from, NetworkAddress to, int due) {
+		final int capacity = bandwidthModel.getCapacity(from, to);
+		if (capacity <= 0)
+			return due;
+		final int sender = devices.indexOf(from);
+		final int recipient = devices.indexOf(to);
+		if (sender < 0 || recipient < 0)
+			return due;
+
+		final Long link = Long.valueOf(((long) sender << 32) | recipient);
+		LinkLoad load = linkLoads.get(link);
+		if (load == null) {
+			final LinkLoad added = new LinkLoad();
+			load = linkLoads.putIfAbsent(link, added);
+			if (load == null)
+				load = added;
+		}
+		synchronized (load) {
+			if (load.cycle < due) {
+				load.cycle = due;
+				load.used = 0;
+			} else if (load.used >= capacity) {
+				load.cycle++;
+				load.used = 0;
+			}
+			load.used++;
+			return load.cycle;
+		}
+	}
+
+	private void delay(int due, Delivery d) {
+		synchronized (delayed) {
+			delayed.schedule(due, new Delayed(due, d));
+			wakeAt(due);
+		}
+	}
+
+	/**
+	 * Make sure the simulator runs cycle <code>due</code>. Must hold the lock
+	 * on {@link #delayed}.
+	 */
+	private void wakeAt(int due) {
+		if (scheduler != null && wakeUps.add(due))
+			scheduler.scheduleAt(this, new IntegerTime(due));
+	}
+
+	/**
+	 * Queue deliveries which are due in this cycle before routing the
+	 * messages sent in it. This is called before any routers are scheduled,
+	 * so it is the only place {@link #time} is read while routing.
+	 */
+	@Override
+	protected void routeMessages() {
+		final int now = time.intValue();
+		routing = now;
+		// forget loads of links which are free from this cycle
+		for (Iterator<LinkLoad> it = linkLoads.values().iterator(); it
+				.hasNext();) {
+			if (it.next().cycle < now)
+				it.remove();
+		}
+		final List<Delayed> due = new ArrayList<Delayed>();
+		synchronized (delayed) {
+			delayed.expire(now, due);
+			wakeUps.headSet(now, true).clear();
+		}
+		for (Delayed d : due) {
+			final Delivery delivery = d.delivery;
+			if (delivery instanceof FanOut) {
+				super.queueFanOut(delivery.msg,
+						((FanOut) delivery).recipients, -1);
+			} else {
+				notifyDelivery(delivery.to, delivery.msg);
+				queueDelivery(delivery.to, delivery.msg);
+			}
+		}
+		super.routeMessages();
+	}
+
+	/**
+	 * Delayed fan-outs are saved as one delivery per recipient address, as
+	 * devices may be registered in a different order when restored. They are
+	 * grouped into fan-outs again by {@link #restore(Serializable)}.
+	 */
+	@Override
+	public Serializable checkpoint() {
+		final ArrayList<Delayed> copy = new ArrayList<Delayed>();
+		synchronized (delayed) {
+			delayed.copyTo(copy);
+		}
+		final ArrayList<Delayed> saved = new ArrayList<Delayed>();
+		for (Delayed d : copy) {
+			if (d.delivery instanceof FanOut) {
+				final FanOut f = (FanOut) d.delivery;
+				for (int i = 0; i < devices.size(); i++) {
+					if (f.isTo(i))
+						saved.add(new Delayed(d.due, new Delivery(devices
+								.getAddress(i), f.msg)));
+				}
+			} else {
+				saved.add(d);
+			}
+		}
+		return new LatencyState(super.checkpoint(), saved);
+	}
+
+	@Override
+	public void restore(Serializable state) {
+		final LatencyState s = (LatencyState) state;
+		super.restore(s.network);
+		linkLoads.clear();
+		routing = time.intValue();
+		synchronized (delayed) {
+			delayed.clear(time.intValue());
+			wakeUps.clear();
+			// the deliveries of each saved fan-out are next to each other
+			Delayed fanOut = null;
+			for (Delayed d : s.delayed) {
+				final int index = devices.indexOf(d.delivery.to);
+				if (fanOut != null && fanOut.due == d.due
+						&& fanOut.delivery.msg == d.delivery.msg && index >= 0) {
+					((FanOut) fanOut.delivery).recipients.set(index);
+					continue;
+				}
+				if (fanOut != null)
+					delayed.schedule(fanOut.due, fanOut);
+				wakeAt(d.due);
+				fanOut = null;
+				if (index >= 0 && !(d.delivery instanceof FanOut)) {
+					final BitSet recipients = new BitSet();
+					recipients.set(index);
+					fanOut = new Delayed(d.due, new FanOut(d.delivery.msg,
+							recipients, devices.size(), -1));
+				} else {
+					delayed.schedule(d.due, d);
+				}
+			}
+			if (fanOut != null)
+				delayed.schedule(fanOut.due, fanOut);
+		}
+	}
+
+}
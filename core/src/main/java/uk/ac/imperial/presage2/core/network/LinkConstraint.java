@@ -0,0 +1,40 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+/**
+ * <p>
+ * A {@link NetworkConstraint} whose
+ * {@link #blockMessageDelivery(NetworkAddress, Message)} decision depends only
+ * on the sender and recipient of the message and the current time cycle, not
+ * on the message itself.
+ * </p>
+ * 
+ * <p>
+ * The {@link ConstrainedNetworkController} evaluates these constraints once
+ * per sender and recipient each cycle and reuses the result for later messages
+ * and for {@link Pong}s.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface LinkConstraint extends NetworkConstraint {
+
+}
@@ -0,0 +1,106 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>
+ * Lock-free queue of received messages for a single recipient. Any number of
+ * threads may {@link #offer(Message)} messages concurrently, while a single
+ * consumer removes them all at once with {@link #drainTo(Collection)}.
+ * </p>
+ * 
+ * <p>
+ * Offered messages are pushed onto a stack with a compare-and-set on its head.
+ * Draining swaps the head for an empty stack, then reverses the detached
+ * nodes so that messages are drained in the order they were offered.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class Mailbox {
+
+	private static final class Node {
+		final Message<?> message;
+		Node next;
+
+		Node(Message<?> message) {
+			super();
+			this.message = message;
+		}
+	}
+
+	private final AtomicReference<Node> head = new AtomicReference<Node>();
+
+	public Mailbox() {
+		super();
+	}
+
+	/**
+	 * Add a message to this mailbox. May be called from any thread.
+	 * 
+	 * @param m
+	 */
+	public void offer(final Message<?> m) {
+		final Node n = new Node(m);
+		Node h;
+		do {
+			h = head.get();
+			n.next = h;
+		} while (!head.compareAndSet(h, n));
+	}
+
+	/**
+	 * Remove all messages from this mailbox and add them, oldest first, to
+	 * <code>to</code>. Only one thread may drain a mailbox at a time.
+	 * 
+	 * @param to
+	 *            collection to add messages to, which may be reused between
+	 *            calls.
+	 * @return the number of messages drained.
+	 */
+	public int drainTo(final Collection<? super Message<?>> to) {
+		Node n = head.getAndSet(null);
+		// reverse the detached stack
+		Node reversed = null;
+		while (n != null) {
+			final Node next = n.next;
+			n.next = reversed;
+			reversed = n;
+			n = next;
+		}
+		int count = 0;
+		for (n = reversed; n != null; n = n.next) {
+			to.add(n.message);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return true if there are no messages in this mailbox.
+	 */
+	public boolean isEmpty() {
+		return head.get() == null;
+	}
+
+}
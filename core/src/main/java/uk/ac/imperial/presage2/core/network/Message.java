@@ -19,11 +19,14 @@
 
 package uk.ac.imperial.presage2.core.network;
 
+import java.io.Serializable;
+import java.util.Comparator;
 import java.util.UUID;
 
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.messaging.Input;
 import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.simulator.DeterministicExecution;
 
 /**
  * <p>
@@ -38,7 +41,9 @@ import uk.ac.imperial.presage2.core.messaging.Performative;
  * @author Sam Macbeth
  * 
  */
-public abstract class Message<T> implements Input {
+public abstract class Message<T> implements Input, Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * FIPA performative of the message
@@ -69,6 +74,30 @@ public abstract class Message<T> implements Input {
 
 	protected T data;
 
+	/**
+	 * Order in which this message was sent, used to put deliveries into a
+	 * canonical order under {@link DeterministicExecution}.
+	 */
+	long deliverySequence = 0;
+
+	/**
+	 * Canonical delivery order of messages under
+	 * {@link DeterministicExecution}: by sender, then by the order each sender
+	 * sent in.
+	 */
+	static final Comparator<Message<?>> DELIVERY_ORDER = new Comparator<Message<?>>() {
+		@Override
+		public int compare(Message<?> m1, Message<?> m2) {
+			final int c = DeterministicExecution.compareOrigin(
+					m1.from == null ? null : m1.from.getId(),
+					m2.from == null ? null : m2.from.getId());
+			if (c != 0)
+				return c;
+			return DeterministicExecution.compareSequence(
+					m1.deliverySequence, m2.deliverySequence);
+		}
+	};
+
 	/**
 	 * @param performative
 	 * @param from
@@ -0,0 +1,143 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * <p>
+ * A batch of message deliveries, stored as columns of primitives rather than
+ * an event object per delivery. Entry <code>i</code> is the delivery of
+ * {@link #getMessage(int)} to {@link #getTo(int)}.
+ * </p>
+ * 
+ * <p>
+ * Batches are immutable once published, so listeners may keep them.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public abstract class MessageBatch implements Event {
+
+	private static final Performative[] performatives = Performative.values();
+
+	final Time time;
+	final int size;
+	/**
+	 * Sender and recipient IDs, as pairs of most and least significant bits.
+	 */
+	final long[] from;
+	final long[] to;
+	final byte[] performative;
+	/**
+	 * Index of each message's type in <code>types</code>.
+	 */
+	final int[] type;
+	final String[] types;
+	final Message<?>[] messages;
+
+	MessageBatch(Time time, int size, long[] from, long[] to,
+			byte[] performative, int[] type, String[] types,
+			Message<?>[] messages) {
+		super();
+		this.time = time;
+		this.size = size;
+		this.from = from;
+		this.to = to;
+		this.performative = performative;
+		this.type = type;
+		this.types = types;
+		this.messages = messages;
+	}
+
+	public Time getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the number of deliveries in this batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i
+	 * @return ID of the sender of message <code>i</code>, or null if it has
+	 *         none.
+	 */
+	public UUID getFrom(int i) {
+		checkIndex(i);
+		if (from[2 * i] == 0 && from[2 * i + 1] == 0)
+			return null;
+		return new UUID(from[2 * i], from[2 * i + 1]);
+	}
+
+	/**
+	 * @param i
+	 * @return ID of the recipient of delivery <code>i</code>.
+	 */
+	public UUID getTo(int i) {
+		checkIndex(i);
+		return new UUID(to[2 * i], to[2 * i + 1]);
+	}
+
+	/**
+	 * @param i
+	 * @return true if delivery <code>i</code> was to <code>recipient</code>.
+	 */
+	public boolean isTo(int i, UUID recipient) {
+		checkIndex(i);
+		return to[2 * i] == recipient.getMostSignificantBits()
+				&& to[2 * i + 1] == recipient.getLeastSignificantBits();
+	}
+
+	public Performative getPerformative(int i) {
+		checkIndex(i);
+		return performative[i] < 0 ? null : performatives[performative[i]];
+	}
+
+	public String getType(int i) {
+		checkIndex(i);
+		return types[type[i]];
+	}
+
+	public Message<?> getMessage(int i) {
+		checkIndex(i);
+		return messages[i];
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index " + i + ", size "
+					+ size);
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + " [time=" + time + ", size="
+				+ size + "]";
+	}
+
+}
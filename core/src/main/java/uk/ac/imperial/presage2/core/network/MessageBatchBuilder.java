@@ -0,0 +1,204 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.Time;
+
+/**
+ * Accumulates deliveries into the columns of a {@link MessageBatch}. Safe to
+ * add to from several threads, but each add takes the builder's lock, so
+ * {@link NetworkController} keeps one builder per delivery shard and merges
+ * them when the batch is built.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class MessageBatchBuilder {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private int size;
+	private long[] from;
+	private long[] to;
+	private byte[] performative;
+	private int[] type;
+	private Message<?>[] messages;
+	private Map<String, Integer> typeIndex;
+	private List<String> types;
+
+	MessageBatchBuilder() {
+		this(INITIAL_CAPACITY);
+	}
+
+	MessageBatchBuilder(int capacity) {
+		super();
+		reset(Math.max(1, capacity));
+	}
+
+	private void reset(int capacity) {
+		size = 0;
+		from = new long[2 * capacity];
+		to = new long[2 * capacity];
+		performative = new byte[capacity];
+		type = new int[capacity];
+		messages = new Message<?>[capacity];
+		typeIndex = new HashMap<String, Integer>();
+		types = new ArrayList<String>();
+	}
+
+	synchronized void add(Message<?> m, NetworkAddress recipient) {
+		final UUID f = m.getFrom() != null ? m.getFrom().getId() : null;
+		final UUID t = recipient.getId();
+		append(f != null ? f.getMostSignificantBits() : 0,
+				f != null ? f.getLeastSignificantBits() : 0,
+				t.getMostSignificantBits(), t.getLeastSignificantBits(),
+				(byte) (m.getPerformative() != null ? m.getPerformative()
+						.ordinal() : -1), m.getType(), m);
+	}
+
+	private void append(long fromMost, long fromLeast, long toMost,
+			long toLeast, byte perf, String messageType, Message<?> m) {
+		if (size == messages.length) {
+			final int capacity = 2 * size;
+			from = Arrays.copyOf(from, 2 * capacity);
+			to = Arrays.copyOf(to, 2 * capacity);
+			performative = Arrays.copyOf(performative, capacity);
+			type = Arrays.copyOf(type, capacity);
+			messages = Arrays.copyOf(messages, capacity);
+		}
+		from[2 * size] = fromMost;
+		from[2 * size + 1] = fromLeast;
+		to[2 * size] = toMost;
+		to[2 * size + 1] = toLeast;
+		performative[size] = perf;
+		Integer index = typeIndex.get(messageType);
+		if (index == null) {
+			index = types.size();
+			types.add(messageType);
+			typeIndex.put(messageType, index);
+		}
+		type[size] = index;
+		messages[size] = m;
+		size++;
+	}
+
+	/**
+	 * Move the deliveries added so far to the end of <code>merged</code>,
+	 * keeping this builder's arrays for its next batch.
+	 * 
+	 * @param merged
+	 */
+	private synchronized void drainTo(MessageBatchBuilder merged) {
+		for (int i = 0; i < size; i++) {
+			merged.append(from[2 * i], from[2 * i + 1], to[2 * i],
+					to[2 * i + 1], performative[i], types.get(type[i]),
+					messages[i]);
+		}
+		Arrays.fill(messages, 0, size, null);
+		size = 0;
+		typeIndex.clear();
+		types.clear();
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Build a {@link MessageDeliveryBatch} of the deliveries added so far and
+	 * start a new batch.
+	 * 
+	 * @param time
+	 * @return the batch, or null if there have been no deliveries.
+	 */
+	synchronized MessageDeliveryBatch buildDeliveryBatch(Time time) {
+		if (size == 0)
+			return null;
+		MessageDeliveryBatch b = new MessageDeliveryBatch(time, size, from,
+				to, performative, type, types.toArray(new String[types.size()]),
+				messages);
+		reset(messages.length);
+		return b;
+	}
+
+	/**
+	 * Build a {@link MessageBlockedBatch} of the deliveries added so far and
+	 * start a new batch.
+	 * 
+	 * @param time
+	 * @return the batch, or null if there have been no deliveries.
+	 */
+	synchronized MessageBlockedBatch buildBlockedBatch(Time time) {
+		if (size == 0)
+			return null;
+		MessageBlockedBatch b = new MessageBlockedBatch(time, size, from, to,
+				performative, type, types.toArray(new String[types.size()]),
+				messages);
+		reset(messages.length);
+		return b;
+	}
+
+	/**
+	 * Build one {@link MessageDeliveryBatch} of the deliveries added to all of
+	 * <code>builders</code>, in order, and start a new batch in each.
+	 * 
+	 * @param time
+	 * @param builders
+	 * @return the batch, or null if there have been no deliveries.
+	 */
+	static MessageDeliveryBatch buildDeliveryBatch(Time time,
+			MessageBatchBuilder[] builders) {
+		return merge(builders).buildDeliveryBatch(time);
+	}
+
+	/**
+	 * Build one {@link MessageBlockedBatch} of the deliveries added to all of
+	 * <code>builders</code>, in order, and start a new batch in each.
+	 * 
+	 * @param time
+	 * @param builders
+	 * @return the batch, or null if there have been no deliveries.
+	 */
+	static MessageBlockedBatch buildBlockedBatch(Time time,
+			MessageBatchBuilder[] builders) {
+		return merge(builders).buildBlockedBatch(time);
+	}
+
+	private static MessageBatchBuilder merge(MessageBatchBuilder[] builders) {
+		if (builders.length == 1)
+			return builders[0];
+		int total = 0;
+		for (MessageBatchBuilder b : builders) {
+			total += b.size();
+		}
+		final MessageBatchBuilder merged = new MessageBatchBuilder(total);
+		for (MessageBatchBuilder b : builders) {
+			b.drainTo(merged);
+		}
+		return merged;
+	}
+
+}
@@ -40,6 +40,8 @@ import uk.ac.imperial.presage2.core.messaging.Performative;
  */
 public class MulticastMessage<T> extends Message<T> {
 
+	private static final long serialVersionUID = 1L;
+
 	protected List<NetworkAddress> to;
 
 	/**
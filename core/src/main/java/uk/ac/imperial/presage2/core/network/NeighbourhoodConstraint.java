@@ -0,0 +1,49 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.Collection;
+
+/**
+ * A {@link NetworkConstraint} which can list the devices a message could
+ * reach, such as those within range of the sender. The
+ * {@link ConstrainedNetworkController} uses this to check broadcasts against
+ * only these candidates instead of every registered device.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface NeighbourhoodConstraint extends NetworkConstraint {
+
+	/**
+	 * Get the devices which a message from <code>from</code> could be
+	 * delivered to. This must include every device to which
+	 * {@link #blockMessageDelivery(NetworkAddress, Message)} would not block
+	 * delivery, but may include others.
+	 * 
+	 * @param from
+	 *            sender of the message.
+	 * @param devices
+	 *            devices registered with the network.
+	 * @return candidate recipients, or null if every device is a candidate.
+	 */
+	public Collection<NetworkAddress> getCandidates(NetworkAddress from,
+			AddressRegistry devices);
+
+}
@@ -19,6 +19,7 @@
 
 package uk.ac.imperial.presage2.core.network;
 
+import java.io.Serializable;
 import java.util.UUID;
 
 import com.google.inject.Inject;
@@ -36,7 +37,9 @@ import com.google.inject.assistedinject.Assisted;
  * @author Sam Macbeth
  * 
  */
-public class NetworkAddress {
+public class NetworkAddress implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	/**
 	 * Unique UUID of device we're sending the message to. Likely to be a
@@ -44,6 +47,12 @@ public class NetworkAddress {
 	 */
 	final protected UUID id;
 
+	/**
+	 * Index of this address in the {@link AddressRegistry} it was last
+	 * resolved in.
+	 */
+	transient AddressRegistry.Slot slot = null;
+
 	/**
 	 * Create a NetworkAddress given this UUID.
 	 * 
@@ -73,4 +82,22 @@ public class NetworkAddress {
 		return "NetworkAddress: " + this.id.toString();
 	}
 
+	/**
+	 * Addresses are equal if they have the same ID, so that an address
+	 * restored from a checkpoint matches the one registered with the network.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null || getClass() != obj.getClass())
+			return false;
+		return id.equals(((NetworkAddress) obj).id);
+	}
+
+	@Override
+	public int hashCode() {
+		return id.hashCode();
+	}
+
 }
@@ -19,23 +19,30 @@
 
 package uk.ac.imperial.presage2.core.network;
 
+import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.IntegerTime;
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.TimeDriven;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.event.EventBus;
 import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.participant.ParticipantActivity;
+import uk.ac.imperial.presage2.core.simulator.Checkpointable;
+import uk.ac.imperial.presage2.core.simulator.CycleProfiler;
+import uk.ac.imperial.presage2.core.simulator.DeterministicExecution;
 import uk.ac.imperial.presage2.core.simulator.ParticipantsComplete;
 import uk.ac.imperial.presage2.core.simulator.Scenario;
 import uk.ac.imperial.presage2.core.simulator.ThreadPool;
@@ -54,12 +61,21 @@ import com.google.inject.Singleton;
  * case these are to do with the network, such as transmission ranges etc.
  * </p>
  * 
+ * <p>
+ * Messages are queued as they are sent. Once participants have finished
+ * executing they are routed by {@link MessageRouter}s, which add each
+ * delivery to the {@link DeliveryShard} for its recipient. Each shard then
+ * delivers its own messages, so shards do not contend with each other. With a
+ * {@link ThreadPool} these are tasks which finish by the end of the time
+ * cycle, without one they run in {@link #incrementTime()}.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
 @Singleton
 public class NetworkController implements NetworkChannel, TimeDriven,
-		RequiresRegistration {
+		RequiresRegistration, Checkpointable {
 
 	private final Logger logger = Logger.getLogger(NetworkController.class);
 
@@ -69,7 +85,11 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 * Queue of messages sent by agents which require processing.
 	 */
 	protected BlockingQueue<Message<?>> toDeliver;
-	protected BlockingQueue<Delivery> awaitingDelivery = new LinkedBlockingQueue<Delivery>();
+
+	/**
+	 * Routed messages waiting to be delivered, split by recipient index.
+	 */
+	protected DeliveryShard[] awaitingDelivery = { new DeliveryShard(0) };
 
 	/**
 	 * Whether or not to fire {@link MessageDeliveryEvent} for every message
@@ -77,7 +97,17 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 */
 	protected boolean DELIVER_MESSAGE_EVENTS_ENABLED = false;
 
-	static class Delivery {
+	/**
+	 * Whether to collect message events into a {@link MessageDeliveryBatch}
+	 * published once messages have been delivered, rather than publishing
+	 * them one by one.
+	 */
+	protected boolean BATCH_MESSAGE_EVENTS = false;
+
+	static class Delivery implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
 		NetworkAddress to;
 		Message<?> msg;
 
@@ -89,9 +119,43 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	}
 
 	/**
-	 * Map of devices registered to this controller.
+	 * Delivery of one message to many recipients, by their index in
+	 * {@link NetworkController#devices}. The same instance is queued in every
+	 * {@link DeliveryShard}, each of which delivers to its own recipients.
 	 */
-	protected Map<NetworkAddress, NetworkChannel> devices;
+	static class FanOut extends Delivery {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Recipient indices, or null for every device below
+		 * <code>count</code> except <code>except</code>.
+		 */
+		final BitSet recipients;
+		final int count;
+		final int except;
+
+		FanOut(Message<?> msg, BitSet recipients, int count, int except) {
+			super(null, msg);
+			this.recipients = recipients;
+			this.count = count;
+			this.except = except;
+		}
+
+		/**
+		 * @param index
+		 * @return true if the device at <code>index</code> is a recipient.
+		 */
+		boolean isTo(int index) {
+			return recipients == null ? index < count && index != except
+					: recipients.get(index);
+		}
+	}
+
+	/**
+	 * Devices registered to this controller.
+	 */
+	protected final AddressRegistry devices = new AddressRegistry();
 
 	/**
 	 * Access to environment shared state.
@@ -102,26 +166,36 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 
 	protected ThreadPool threadPool = null;
 
-	protected List<MessageHandler> threads = Collections
-			.synchronizedList(new ArrayList<MessageHandler>());
+	/**
+	 * Participant activity to wake message recipients with, if set.
+	 */
+	protected ParticipantActivity activity = null;
+
+	/**
+	 * Profiler to report queue depths to, if set.
+	 */
+	protected CycleProfiler profiler = null;
 
-	protected transient boolean allowDelivery = false;
+	/**
+	 * Number of {@link MessageRouter}s still running this cycle.
+	 */
+	private final AtomicInteger routersRunning = new AtomicInteger();
 
 	/**
-	 * Maximum number of extra threads we will spawn to process messages with.
-	 * Defaults to the same size as the threadpool.
+	 * Number of {@link DeliveryShard}s still delivering this cycle.
 	 */
-	protected int MAX_THREADS = 4;
+	private final AtomicInteger shardsDelivering = new AtomicInteger();
+
 	/**
-	 * Maximum number of Messages a {@link MessageHandler} will take from the
-	 * queue at once.
+	 * Number of tasks to route and deliver messages with. Defaults to the same
+	 * size as the threadpool.
 	 */
-	protected int HANDLER_DRAIN_LIMIT = 100;
+	protected int MAX_THREADS = 1;
 	/**
-	 * Queue size required to cause a {@link MessageHandler} to try and fork a
-	 * new thread.
+	 * Maximum number of Messages a {@link MessageRouter} will take from the
+	 * queue at once.
 	 */
-	protected int HANDLER_FORK_THRESHOLD = 250;
+	protected int HANDLER_DRAIN_LIMIT = 100;
 	/**
 	 * Maximum capacity of the toDeliver queue. Using 0 gives a maximum sized
 	 * queue.
@@ -137,7 +211,6 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 		super();
 		this.time = time;
 		this.environment = environment;
-		this.devices = new HashMap<NetworkAddress, NetworkChannel>();
 		this.toDeliver = TODELIVER_CAPACITY > 0 ? new LinkedBlockingQueue<Message<?>>(
 				TODELIVER_CAPACITY) : new LinkedBlockingQueue<Message<?>>();
 		s.addTimeDriven(this);
@@ -152,7 +225,43 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	@Inject
 	public void setThreadPool(ThreadPool pool) {
 		threadPool = pool;
-		MAX_THREADS = threadPool.getThreadCount();
+		MAX_THREADS = Math.max(1, threadPool.getThreadCount());
+		final DeliveryShard[] shards = new DeliveryShard[MAX_THREADS];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new DeliveryShard(i);
+		}
+		final List<Delivery> queued = new ArrayList<Delivery>();
+		awaitingDelivery[0].expand(queued);
+		awaitingDelivery = shards;
+		for (Delivery d : queued) {
+			queueDelivery(d.to, d.msg);
+		}
+	}
+
+	/**
+	 * Wake up sleeping participants when they are sent a message.
+	 * 
+	 * @param activity
+	 */
+	@Inject(optional = true)
+	public void setParticipantActivity(ParticipantActivity activity) {
+		this.activity = activity;
+	}
+
+	@Inject(optional = true)
+	public void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Set which events to publish about message deliveries.
+	 * 
+	 * @param mode
+	 */
+	@Inject(optional = true)
+	public void setMessageEventMode(MessageEventMode mode) {
+		DELIVER_MESSAGE_EVENTS_ENABLED = mode != MessageEventMode.NONE;
+		BATCH_MESSAGE_EVENTS = mode == MessageEventMode.BATCHED;
 	}
 
 	/**
@@ -160,93 +269,223 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 */
 	@Override
 	public void incrementTime() {
-		if (this.logger.isDebugEnabled()) {
-			this.logger.debug("Delivering messages for time "
-					+ this.time.toString());
-		}
-		// if there is no threadpool we must join the messagedeliverer to ensure
-		// the timestep waits for us.
+		// with a threadpool messages are delivered after participants have
+		// executed, see onParticipantsComplete.
 		if (threadPool == null) {
-			allowDelivery = true;
+			if (this.logger.isDebugEnabled()) {
+				this.logger.debug("Delivering messages for time "
+						+ this.time.toString());
+			}
+			routeMessages();
 		}
-		spawnMessageHandler();
-
 		time.increment();
 	}
 
-	private synchronized void spawnMessageHandler() {
-		if (this.threadPool == null) {
-			new MessageHandler().run();
-		} else if (this.threads.size() < MAX_THREADS) {
-			MessageHandler m = new MessageHandler();
-			this.threads.add(m);
-			this.threadPool.submitScheduled(m, WaitCondition.END_OF_TIME_CYCLE);
-			logger.info("Spawning message handler. Total Handlers: "
-					+ threads.size());
+	/**
+	 * Route all queued messages, then deliver them.
+	 */
+	protected void routeMessages() {
+		final int routers = awaitingDelivery.length;
+		routersRunning.set(routers);
+		for (int i = 0; i < routers; i++) {
+			schedule(new MessageRouter());
 		}
 	}
 
+	private void deliverRoutedMessages() {
+		final DeliveryShard[] shards = awaitingDelivery;
+		shardsDelivering.set(shards.length);
+		for (DeliveryShard shard : shards) {
+			schedule(shard);
+		}
+	}
+
+	/**
+	 * Run <code>task</code> on the threadpool to complete by the end of the
+	 * time cycle, or now if there is no threadpool.
+	 * 
+	 * @param task
+	 */
+	private void schedule(Runnable task) {
+		if (threadPool == null)
+			task.run();
+		else
+			threadPool.submitScheduled(task, WaitCondition.END_OF_TIME_CYCLE);
+	}
+
 	/**
 	 * <p>
-	 * Processes messages delivered by agents. Runs until all messages for the
-	 * time step are delivered. We also dynamically allocate threads as the
-	 * queue expands, up to a maximum of <code>MAX_THREADS</code>.
+	 * Takes messages from the <code>toDeliver</code> queue and processes them
+	 * until it is empty. Processing a message adds its deliveries to the
+	 * {@link DeliveryShard}s of its recipients. When the last router finishes
+	 * the shards are scheduled to deliver them.
 	 * </p>
 	 * 
 	 * @author Sam Macbeth
 	 * 
 	 */
-	class MessageHandler implements Runnable {
+	class MessageRouter implements Runnable {
 
 		@Override
 		public void run() {
-			logger.debug("Message Handler started.");
-			while (true) {
-				// deliver messages if allowed
-				if (allowDelivery) {
-					Delivery d;
-					while ((d = awaitingDelivery.poll()) != null) {
-						if (devices.containsKey(d.to))
-							devices.get(d.to).deliverMessage(d.msg);
+			try {
+				final List<Message<?>> messages = new ArrayList<Message<?>>(
+						HANDLER_DRAIN_LIMIT);
+				while (toDeliver.drainTo(messages, HANDLER_DRAIN_LIMIT) > 0) {
+					for (Message<?> m : messages) {
+						try {
+							handleMessage(m);
+						} catch (NetworkException e) {
+							logger.warn(e.getMessage(), e);
+						}
 					}
+					messages.clear();
 				}
+			} finally {
+				if (routersRunning.decrementAndGet() == 0)
+					deliverRoutedMessages();
+			}
+		}
+
+	}
+
+	/**
+	 * <p>
+	 * Deliveries to the recipients whose index in {@link #devices} is in this
+	 * shard. Run to deliver them.
+	 * </p>
+	 * 
+	 * @author Sam Macbeth
+	 * 
+	 */
+	class DeliveryShard implements Runnable {
+
+		final Queue<Delivery> deliveries = new ConcurrentLinkedQueue<Delivery>();
+
+		/**
+		 * Batched events for deliveries to this shard's recipients. Only
+		 * routers delivering to the same shard contend for them.
+		 */
+		final MessageBatchBuilder delivered = new MessageBatchBuilder();
 
-				// take some messages to process
-				List<Message<?>> messages = new LinkedList<Message<?>>();
-				toDeliver.drainTo(messages, HANDLER_DRAIN_LIMIT);
+		final MessageBatchBuilder blocked = new MessageBatchBuilder();
 
-				// process messages
-				for (Message<?> m : messages) {
-					try {
-						handleMessage(m);
-					} catch (NetworkException e) {
-						logger.warn(e.getMessage(), e);
+		final int shard;
+
+		DeliveryShard(int shard) {
+			super();
+			this.shard = shard;
+		}
+
+		@Override
+		public void run() {
+			try {
+				Delivery d;
+				while ((d = deliveries.poll()) != null) {
+					if (d instanceof FanOut) {
+						deliver((FanOut) d);
+					} else {
+						final NetworkChannel link = devices.getLink(d.to);
+						if (link != null)
+							link.deliverMessage(d.msg);
 					}
 				}
+			} finally {
+				if (shardsDelivering.decrementAndGet() == 0)
+					publishMessageBatches();
+			}
+		}
 
-				int queueSize = toDeliver.size();
-
-				// fork new thread if queue is large
-				if (queueSize > HANDLER_FORK_THRESHOLD) {
-					spawnMessageHandler();
+		private void deliver(FanOut f) {
+			final int shards = awaitingDelivery.length;
+			if (f.recipients == null) {
+				for (int i = shard; i < f.count; i += shards) {
+					if (i != f.except)
+						deliver(i, f.msg);
 				}
+			} else {
+				for (int i = f.recipients.nextSetBit(0); i >= 0; i = f.recipients
+						.nextSetBit(i + 1)) {
+					if (i % shards == shard)
+						deliver(i, f.msg);
+				}
+			}
+		}
 
-				// break when everything has been done.
-				if (allowDelivery && queueSize == 0
-						&& awaitingDelivery.size() == 0)
-					break;
+		private void deliver(int index, Message<?> m) {
+			final NetworkAddress to = devices.getAddress(index);
+			notifyDelivery(to, m);
+			devices.getLink(index).deliverMessage(m);
+		}
+
+		/**
+		 * Add the deliveries in this shard to <code>deliveries</code>,
+		 * expanding any {@link FanOut}s.
+		 */
+		void expand(List<Delivery> expanded) {
+			final int shards = awaitingDelivery.length;
+			for (Delivery d : deliveries) {
+				if (d instanceof FanOut) {
+					final FanOut f = (FanOut) d;
+					for (int i = 0; i < devices.size(); i++) {
+						if (i % shards == shard && f.isTo(i))
+							expanded.add(new Delivery(devices.getAddress(i),
+									f.msg));
+					}
+				} else {
+					expanded.add(d);
+				}
 			}
-			logger.debug("Message Handler shutting down.");
-			threads.remove(this);
-			if (threads.size() == 0)
-				allowDelivery = false;
 		}
 
 	}
 
-	class ShutdownMessage extends Message<Object> {
-		public ShutdownMessage() {
-			super(null, null, time);
+	private int shardOf(NetworkAddress to, int shards) {
+		final int index = devices.indexOf(to);
+		return index < 0 ? 0 : index % shards;
+	}
+
+	/**
+	 * @param to
+	 * @return the {@link DeliveryShard} of recipient <code>to</code>.
+	 */
+	DeliveryShard shardOf(NetworkAddress to) {
+		final DeliveryShard[] shards = awaitingDelivery;
+		return shards[shardOf(to, shards.length)];
+	}
+
+	/**
+	 * Queue delivery of <code>m</code> to <code>to</code> in the recipient's
+	 * {@link DeliveryShard}.
+	 * 
+	 * @param to
+	 * @param m
+	 */
+	protected void queueDelivery(NetworkAddress to, Message<?> m) {
+		final DeliveryShard[] shards = awaitingDelivery;
+		shards[shardOf(to, shards.length)].deliveries.offer(new Delivery(to, m));
+	}
+
+	/**
+	 * Queue delivery of <code>m</code> to many recipients as one
+	 * {@link FanOut} in each {@link DeliveryShard}, rather than one delivery
+	 * per recipient. {@link #notifyDelivery(NetworkAddress, Message)} is
+	 * called for each recipient when the message is delivered.
+	 * 
+	 * @param m
+	 * @param recipients
+	 *            indices of recipients in {@link #devices}, or null for all
+	 *            devices.
+	 * @param except
+	 *            index of a device not to deliver to when sending to all
+	 *            devices, or -1.
+	 */
+	protected void queueFanOut(Message<?> m, BitSet recipients, int except) {
+		if (recipients != null && recipients.isEmpty())
+			return;
+		final FanOut f = new FanOut(m, recipients, devices.size(), except);
+		for (DeliveryShard shard : awaitingDelivery) {
+			shard.deliveries.offer(f);
 		}
 	}
 
@@ -263,9 +502,82 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 */
 	@Override
 	public void deliverMessage(Message<?> m) {
+		if (DeterministicExecution.isEnabled()) {
+			m.deliverySequence = DeterministicExecution.nextSequence();
+		}
 		this.toDeliver.offer(m);
 	}
 
+	/**
+	 * Get the number of messages waiting to be processed by the message
+	 * handlers.
+	 * 
+	 * @return size of the toDeliver queue.
+	 */
+	public int getToDeliverCount() {
+		return this.toDeliver.size();
+	}
+
+	/**
+	 * Get the number of processed messages waiting to be delivered to their
+	 * recipients. A broadcast or multicast is queued once in each
+	 * {@link DeliveryShard} whatever its number of recipients.
+	 * 
+	 * @return size of the awaitingDelivery queues.
+	 */
+	public int getAwaitingDeliveryCount() {
+		int count = 0;
+		for (DeliveryShard shard : this.awaitingDelivery) {
+			count += shard.deliveries.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Saved state of the controller: its time and any messages which have not
+	 * been delivered yet.
+	 */
+	static class State implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int time;
+		final ArrayList<Message<?>> toDeliver;
+		final ArrayList<Delivery> awaitingDelivery;
+
+		State(int time, ArrayList<Message<?>> toDeliver,
+				ArrayList<Delivery> awaitingDelivery) {
+			super();
+			this.time = time;
+			this.toDeliver = toDeliver;
+			this.awaitingDelivery = awaitingDelivery;
+		}
+	}
+
+	@Override
+	public Serializable checkpoint() {
+		final ArrayList<Delivery> deliveries = new ArrayList<Delivery>();
+		for (DeliveryShard shard : this.awaitingDelivery) {
+			shard.expand(deliveries);
+		}
+		return new State(time.intValue(), new ArrayList<Message<?>>(toDeliver),
+				deliveries);
+	}
+
+	@Override
+	public void restore(Serializable state) {
+		final State s = (State) state;
+		time.setTime(new IntegerTime(s.time));
+		toDeliver.clear();
+		toDeliver.addAll(s.toDeliver);
+		for (DeliveryShard shard : this.awaitingDelivery) {
+			shard.deliveries.clear();
+		}
+		for (Delivery d : s.awaitingDelivery) {
+			queueDelivery(d.to, d.msg);
+		}
+	}
+
 	protected void handleMessage(Message<?> m) {
 		// check message type
 		if (m instanceof UnicastMessage) {
@@ -275,9 +587,17 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 		} else if (m instanceof BroadcastMessage) {
 			doBroadcast((BroadcastMessage<?>) m);
 		} else if (m instanceof Ping) {
+			if (activity != null)
+				activity.wake(m.getFrom().getId());
 			// we do not constrain messages, so give them all registered network
 			// addresses
-			this.devices.get(m.getFrom()).deliverMessage(getPong((Ping) m));
+			if (DeterministicExecution.isEnabled()) {
+				// deliver with the other messages at the end of the cycle
+				queueDelivery(m.getFrom(), getPong((Ping) m));
+			} else {
+				this.devices.getLink(m.getFrom()).deliverMessage(
+						getPong((Ping) m));
+			}
 		} else {
 			throw new UnknownMessageTypeException(m);
 		}
@@ -309,13 +629,21 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	protected void doMulticast(MulticastMessage<?> m) {
 		final List<NetworkAddress> recipients = m.getTo();
 		final List<NetworkAddress> unreachable = new LinkedList<NetworkAddress>();
+		final BitSet registered = new BitSet();
 		for (NetworkAddress to : recipients) {
 			try {
-				this.deliverMessageTo(to, m);
+				final int index = this.devices.indexOf(to);
+				if (index < 0)
+					this.deliverMessageTo(to, m);
+				else if (isBlocked(to, m))
+					deliveryBlocked(to, m);
+				else
+					registered.set(index);
 			} catch (NullPointerException e) {
 				unreachable.add(to);
 			}
 		}
+		queueFanOut(m, registered, -1);
 		if (this.logger.isDebugEnabled()) {
 			this.logger.debug("Sent multicast message: " + m.toString());
 		}
@@ -330,11 +658,10 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 * @param m
 	 */
 	protected void doBroadcast(BroadcastMessage<?> m) {
-		for (NetworkAddress to : this.devices.keySet()) {
-			// deliver to all but sender
-			if (m.getFrom() != to)
-				this.deliverMessageTo(to, m);
-		}
+		// deliver to all but sender
+		final int from = m.getFrom() != null ? this.devices.indexOf(m
+				.getFrom()) : -1;
+		queueFanOut(m, null, from);
 		this.logger.debug("Sent broadcast message: " + m.toString());
 	}
 
@@ -348,7 +675,7 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 */
 	protected Pong getPong(Ping p) {
 		return new Pong(time.clone(), new HashSet<NetworkAddress>(
-				this.devices.keySet()));
+				this.devices.getAddresses()));
 	}
 
 	/**
@@ -366,7 +693,7 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 					"NetworkRegistrationRequest null or containing null parameters");
 		}
 
-		this.devices.put(req.getAddress(), req.getLink());
+		this.devices.register(req.getAddress(), req.getLink());
 	}
 
 	/**
@@ -376,22 +703,85 @@ public class NetworkController implements NetworkChannel, TimeDriven,
 	 * @param m
 	 */
 	protected void deliverMessageTo(NetworkAddress to, Message<?> m) {
+		notifyDelivery(to, m);
+		queueDelivery(to, m);
+	}
+
+	/**
+	 * Determine whether delivery of <code>m</code> to <code>to</code> is
+	 * blocked. Nothing is blocked by this controller.
+	 * 
+	 * @param to
+	 * @param m
+	 * @return true if delivery is blocked.
+	 */
+	protected boolean isBlocked(NetworkAddress to, Message<?> m) {
+		return false;
+	}
+
+	/**
+	 * Called when delivery of <code>m</code> to <code>to</code> is blocked.
+	 * 
+	 * @param to
+	 * @param m
+	 */
+	protected void deliveryBlocked(NetworkAddress to, Message<?> m) {
+	}
+
+	/**
+	 * Publish a {@link MessageDeliveryEvent} for, and wake, the recipient of a
+	 * message being delivered.
+	 * 
+	 * @param to
+	 * @param m
+	 */
+	protected void notifyDelivery(NetworkAddress to, Message<?> m) {
 		if (this.eventBus != null && DELIVER_MESSAGE_EVENTS_ENABLED) {
-			this.eventBus
-					.publish(new MessageDeliveryEvent(time.clone(), m, to));
+			if (BATCH_MESSAGE_EVENTS)
+				shardOf(to).delivered.add(m, to);
+			else
+				this.eventBus.publish(new MessageDeliveryEvent(time.clone(),
+						m, to));
+		}
+		if (activity != null)
+			activity.wake(to.getId());
+	}
+
+	/**
+	 * Publish the message events batched since the last time messages were
+	 * delivered.
+	 */
+	protected void publishMessageBatches() {
+		if (this.eventBus == null)
+			return;
+		final DeliveryShard[] shards = awaitingDelivery;
+		final MessageBatchBuilder[] builders = new MessageBatchBuilder[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			builders[i] = shards[i].delivered;
 		}
-		this.awaitingDelivery.offer(new Delivery(to, m));
-		// this.devices.get(to).deliverMessage(m);
+		MessageBatch batch = MessageBatchBuilder.buildDeliveryBatch(
+				time.clone(), builders);
+		if (batch != null)
+			this.eventBus.publish(batch);
 	}
 
 	@EventListener
 	public void onParticipantsComplete(ParticipantsComplete e) {
-		// tell MessageHandler threads to shutdown
-		if (logger.isDebugEnabled()) {
-			logger.debug("Received end of time cycle event, telling threads to deliver messages");
+		if (profiler != null && profiler.isEnabled()) {
+			profiler.queueDepth("network.toDeliver", toDeliver.size());
+			profiler.queueDepth("network.awaitingDelivery",
+					getAwaitingDeliveryCount());
 		}
+		// keep to the simulation time, as the simulator may skip cycles in
+		// which we are not stepped.
+		time.setTime(e.getTime());
+		// participants have finished sending, deliver their messages.
 		if (threadPool != null) {
-			allowDelivery = true;
+			if (logger.isDebugEnabled()) {
+				logger.debug("Participants complete, delivering messages for time "
+						+ e.getTime());
+			}
+			routeMessages();
 		}
 	}
 
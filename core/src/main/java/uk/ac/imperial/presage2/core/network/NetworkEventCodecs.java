@@ -0,0 +1,151 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.event.journal.JournalCodec;
+import uk.ac.imperial.presage2.core.event.journal.JournalData;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * {@link JournalCodec}s for {@link MessageDeliveryEvent}s and
+ * {@link MessageBlockedEvent}s. {@link UnicastMessage}s,
+ * {@link BroadcastMessage}s and {@link MulticastMessage}s are written field by
+ * field, other messages with java serialisation.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public final class NetworkEventCodecs {
+
+	private static final byte UNICAST = 0;
+	private static final byte BROADCAST = 1;
+	private static final byte MULTICAST = 2;
+	private static final byte SERIALIZED = 3;
+
+	private static final Performative[] performatives = Performative.values();
+
+	public static final JournalCodec<MessageDeliveryEvent> DELIVERY = new JournalCodec<MessageDeliveryEvent>() {
+		@Override
+		public void write(MessageDeliveryEvent event, ByteBuffer out) {
+			JournalData.putUUID(out, event.recipient.getId());
+			writeMessage(event.message, out);
+		}
+
+		@Override
+		public MessageDeliveryEvent read(int time, ByteBuffer in) {
+			NetworkAddress recipient = new NetworkAddress(JournalData.getUUID(in));
+			return new MessageDeliveryEvent(new IntegerTime(time), readMessage(in), recipient);
+		}
+	};
+
+	public static final JournalCodec<MessageBlockedEvent> BLOCKED = new JournalCodec<MessageBlockedEvent>() {
+		@Override
+		public void write(MessageBlockedEvent event, ByteBuffer out) {
+			JournalData.putUUID(out, event.recipient.getId());
+			writeMessage(event.message, out);
+		}
+
+		@Override
+		public MessageBlockedEvent read(int time, ByteBuffer in) {
+			NetworkAddress recipient = new NetworkAddress(JournalData.getUUID(in));
+			return new MessageBlockedEvent(new IntegerTime(time), readMessage(in), recipient);
+		}
+	};
+
+	private NetworkEventCodecs() {
+	}
+
+	static void writeMessage(Message<?> m, ByteBuffer out) {
+		final Class<?> type = m.getClass();
+		if (type == UnicastMessage.class) {
+			out.put(UNICAST);
+		} else if (type == BroadcastMessage.class) {
+			out.put(BROADCAST);
+		} else if (type == MulticastMessage.class) {
+			out.put(MULTICAST);
+		} else {
+			out.put(SERIALIZED);
+			JournalData.putObject(out, m);
+			return;
+		}
+		out.put((byte) m.performative.ordinal());
+		JournalData.putString(out, m.type);
+		JournalData.putString(out, m.protocol);
+		out.putInt(m.timestamp != null ? m.timestamp.intValue() : -1);
+		JournalData.putUUID(out, m.from.getId());
+		out.put((byte) (m.conversationKey != null ? 1 : 0));
+		if (m.conversationKey != null)
+			JournalData.putUUID(out, m.conversationKey);
+		if (m instanceof UnicastMessage) {
+			JournalData.putUUID(out, ((UnicastMessage<?>) m).to.getId());
+		} else if (m instanceof MulticastMessage) {
+			List<NetworkAddress> to = ((MulticastMessage<?>) m).to;
+			out.putInt(to.size());
+			for (NetworkAddress a : to) {
+				JournalData.putUUID(out, a.getId());
+			}
+		}
+		JournalData.putObject(out, m.data);
+	}
+
+	static Message<?> readMessage(ByteBuffer in) {
+		final byte kind = in.get();
+		if (kind == SERIALIZED)
+			return (Message<?>) JournalData.getObject(in);
+
+		final Performative performative = performatives[in.get()];
+		final String type = JournalData.getString(in);
+		final String protocol = JournalData.getString(in);
+		final int t = in.getInt();
+		final Time timestamp = t >= 0 ? new IntegerTime(t) : null;
+		final NetworkAddress from = new NetworkAddress(JournalData.getUUID(in));
+		final boolean hasConversation = in.get() != 0;
+		final UUID conversation = hasConversation ? JournalData.getUUID(in) : null;
+
+		final Message<Object> m;
+		switch (kind) {
+		case UNICAST:
+			NetworkAddress to = new NetworkAddress(JournalData.getUUID(in));
+			m = new UnicastMessage<Object>(performative, type, timestamp, from, to);
+			break;
+		case MULTICAST:
+			int count = in.getInt();
+			List<NetworkAddress> recipients = new ArrayList<NetworkAddress>(count);
+			for (int i = 0; i < count; i++) {
+				recipients.add(new NetworkAddress(JournalData.getUUID(in)));
+			}
+			m = new MulticastMessage<Object>(performative, type, timestamp, from, recipients);
+			break;
+		default:
+			m = new BroadcastMessage<Object>(performative, type, timestamp, from);
+		}
+		m.data = JournalData.getObject(in);
+		m.protocol = protocol;
+		m.conversationKey = conversation;
+		return m;
+	}
+
+}
@@ -0,0 +1,70 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import uk.ac.imperial.presage2.core.event.EventKey;
+
+/**
+ * {@link EventKey}s for filtered subscriptions to network events.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public final class NetworkEventKeys {
+
+	/**
+	 * Key {@link MessageDeliveryEvent}s by their recipient
+	 * {@link NetworkAddress}.
+	 */
+	public static final EventKey<MessageDeliveryEvent> DELIVERY_RECIPIENT = new EventKey<MessageDeliveryEvent>(
+			MessageDeliveryEvent.class) {
+		@Override
+		public Object keyOf(MessageDeliveryEvent event) {
+			return event.getRecipient();
+		}
+	};
+
+	/**
+	 * Key {@link MessageDeliveryEvent}s by the time they were delivered, as
+	 * an {@link Integer}.
+	 */
+	public static final EventKey<MessageDeliveryEvent> DELIVERY_TIME = new EventKey<MessageDeliveryEvent>(
+			MessageDeliveryEvent.class) {
+		@Override
+		public Object keyOf(MessageDeliveryEvent event) {
+			return event.getTime().intValue();
+		}
+	};
+
+	/**
+	 * Key {@link MessageBlockedEvent}s by their intended recipient
+	 * {@link NetworkAddress}.
+	 */
+	public static final EventKey<MessageBlockedEvent> BLOCKED_RECIPIENT = new EventKey<MessageBlockedEvent>(
+			MessageBlockedEvent.class) {
+		@Override
+		public Object keyOf(MessageBlockedEvent event) {
+			return event.getRecipient();
+		}
+	};
+
+	private NetworkEventKeys() {
+	}
+
+}
@@ -35,6 +35,8 @@ import uk.ac.imperial.presage2.core.messaging.Performative;
  */
 class Ping extends Message<Object> {
 
+	private static final long serialVersionUID = 1L;
+
 	Ping(NetworkAddress from, Time timestamp) {
 		super(Performative.REQUEST, from, timestamp);
 	}
@@ -34,6 +34,8 @@ import uk.ac.imperial.presage2.core.messaging.Performative;
  */
 class Pong extends Message<Set<NetworkAddress>> {
 
+	private static final long serialVersionUID = 1L;
+
 	Pong(Time timestamp, Set<NetworkAddress> data) {
 		super(Performative.INFORM, null, timestamp, data);
 	}
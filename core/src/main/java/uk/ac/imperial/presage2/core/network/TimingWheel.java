@@ -0,0 +1,191 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ * A hierarchical timing wheel of items due at integer time cycles.
+ * </p>
+ * 
+ * <p>
+ * There are {@value #LEVELS} wheels of {@value #SLOTS} slots. Items due
+ * within {@value #SLOTS} cycles go in the first wheel, by their cycle; later
+ * items go in the wheel whose slots span their distance away. When the first
+ * wheel wraps around the next slot of the wheel above is cascaded down into
+ * it. Scheduling and expiring an item are constant time.
+ * </p>
+ * 
+ * <p>
+ * Not safe for use from several threads without synchronisation.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ * @param <T>
+ *            type of scheduled items.
+ */
+final class TimingWheel<T> {
+
+	private static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	static final int LEVELS = 6;
+
+	private static final class Entry<T> {
+		final int cycle;
+		final T item;
+		Entry<T> next;
+
+		Entry(int cycle, T item) {
+			super();
+			this.cycle = cycle;
+			this.item = item;
+		}
+	}
+
+	private final Entry<T>[][] wheels;
+
+	/**
+	 * The next cycle to expire.
+	 */
+	private int now;
+
+	private int size = 0;
+
+	/**
+	 * @param now
+	 *            the first cycle which will be expired.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	TimingWheel(int now) {
+		super();
+		this.wheels = new Entry[LEVELS][SLOTS];
+		this.now = now;
+	}
+
+	/**
+	 * Schedule <code>item</code> to expire in <code>cycle</code>. Items
+	 * scheduled for a cycle which has already been expired are expired with
+	 * the next cycle.
+	 * 
+	 * @param cycle
+	 * @param item
+	 */
+	void schedule(int cycle, T item) {
+		add(new Entry<T>(cycle, item));
+		size++;
+	}
+
+	private void add(Entry<T> e) {
+		final long delta = (long) e.cycle - now;
+		int level = 0;
+		int slot;
+		if (delta < 0) {
+			slot = now & SLOT_MASK;
+		} else {
+			while (level < LEVELS - 1
+					&& delta >= 1L << (SLOT_BITS * (level + 1))) {
+				level++;
+			}
+			slot = (e.cycle >>> (SLOT_BITS * level)) & SLOT_MASK;
+		}
+		e.next = wheels[level][slot];
+		wheels[level][slot] = e;
+	}
+
+	/**
+	 * Expire every item due in or before <code>cycle</code>, adding them to
+	 * <code>expired</code>.
+	 * 
+	 * @param cycle
+	 * @param expired
+	 */
+	void expire(int cycle, Collection<? super T> expired) {
+		while (now <= cycle) {
+			final int index = now & SLOT_MASK;
+			if (index == 0)
+				cascade(1);
+			Entry<T> e = wheels[0][index];
+			wheels[0][index] = null;
+			while (e != null) {
+				expired.add(e.item);
+				size--;
+				e = e.next;
+			}
+			now++;
+		}
+	}
+
+	/**
+	 * Move items in the current slot of the wheel at <code>level</code> down
+	 * to lower wheels, cascading the wheel above if this one has wrapped.
+	 */
+	private void cascade(int level) {
+		final int index = (now >>> (SLOT_BITS * level)) & SLOT_MASK;
+		Entry<T> e = wheels[level][index];
+		wheels[level][index] = null;
+		while (e != null) {
+			final Entry<T> next = e.next;
+			add(e);
+			e = next;
+		}
+		if (index == 0 && level < LEVELS - 1)
+			cascade(level + 1);
+	}
+
+	/**
+	 * Add every scheduled item to <code>items</code> without expiring them.
+	 * 
+	 * @param items
+	 */
+	void copyTo(Collection<? super T> items) {
+		for (Entry<T>[] wheel : wheels) {
+			for (Entry<T> e : wheel) {
+				for (; e != null; e = e.next) {
+					items.add(e.item);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove all items and set the next cycle to expire.
+	 * 
+	 * @param now
+	 */
+	void clear(int now) {
+		for (Entry<T>[] wheel : wheels) {
+			for (int i = 0; i < SLOTS; i++) {
+				wheel[i] = null;
+			}
+		}
+		this.now = now;
+		this.size = 0;
+	}
+
+	/**
+	 * @return number of scheduled items.
+	 */
+	int size() {
+		return size;
+	}
+
+}
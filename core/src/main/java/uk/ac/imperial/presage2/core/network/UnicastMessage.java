@@ -37,6 +37,8 @@ import uk.ac.imperial.presage2.core.messaging.Performative;
  */
 public class UnicastMessage<T> extends Message<T> {
 
+	private static final long serialVersionUID = 1L;
+
 	/**
 	 * Intended recipient of this message.
 	 */
@@ -0,0 +1,97 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.participant;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.simulator.Checkpointable;
+
+/**
+ * <p>
+ * Keeps track of which {@link Participant}s are awake so that the simulator
+ * only steps those which have something to do.
+ * </p>
+ * 
+ * <p>
+ * A participant may sleep until a given time, or until it is sent a message.
+ * Either way a message arriving for it will wake it up for the next time
+ * cycle. Participants which never sleep are stepped every cycle as before.
+ * </p>
+ * 
+ * <p>
+ * There is no default binding for this interface. Activity is only tracked
+ * when it is enabled with 
+ * {@link uk.ac.imperial.presage2.core.simulator.SimulatorModule#trackActivity()}
+ *; otherwise
+ * every participant is stepped every cycle.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface ParticipantActivity extends Checkpointable {
+
+	/**
+	 * Start tracking the activity of the given participants. They all start
+	 * awake.
+	 * 
+	 * @param participants
+	 */
+	public void track(Collection<? extends Participant> participants);
+
+	/**
+	 * Put <code>p</code> to sleep until the time cycle <code>t</code>, or
+	 * until it is sent a message.
+	 * 
+	 * @param p
+	 * @param t
+	 */
+	public void sleepUntil(Participant p, Time t);
+
+	/**
+	 * Put <code>p</code> to sleep until it is sent a message.
+	 * 
+	 * @param p
+	 */
+	public void sleepUntilMessage(Participant p);
+
+	/**
+	 * Wake up the participant with the given ID, if it is asleep. It will be
+	 * stepped from the next time cycle.
+	 * 
+	 * @param id
+	 */
+	public void wake(UUID id);
+
+	public boolean isAsleep(UUID id);
+
+	/**
+	 * Get the participants to step in time cycle <code>t</code>. Any
+	 * participant whose sleep ends at or before <code>t</code> is woken first.
+	 * 
+	 * @param t
+	 *            current simulation time.
+	 * @return the awake participants.
+	 */
+	public List<Participant> getAwake(Time t);
+
+}
@@ -0,0 +1,223 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.participant;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import uk.ac.imperial.presage2.core.Time;
+
+/**
+ * <p>
+ * Default {@link ParticipantActivity}, which keeps the awake participants in
+ * insertion order and timed wake-ups in a sorted map by time.
+ * </p>
+ * 
+ * <p>
+ * When a participant is woken its {@link Participant#getTime()} is set to the
+ * time it was woken at, as it will have missed the cycles it slept through.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class ParticipantActivityTracker implements ParticipantActivity {
+
+	/**
+	 * Participants which are awake, in the order they were tracked or woken.
+	 */
+	private final Set<Participant> active = new LinkedHashSet<Participant>();
+
+	/**
+	 * Participants which are asleep, by ID. Only modified while holding the
+	 * lock, but concurrent so that {@link #wake(UUID)} and
+	 * {@link #isAsleep(UUID)} can be checked without it: they are called for
+	 * every delivered message, and the recipient is usually awake.
+	 */
+	private final Map<UUID, Participant> asleep = new ConcurrentHashMap<UUID, Participant>();
+
+	/**
+	 * Timed wake-ups, by time.
+	 */
+	private final SortedMap<Integer, List<UUID>> alarms = new TreeMap<Integer, List<UUID>>();
+
+	/**
+	 * Time each timed sleeper is due to wake at. Alarms which do not match this
+	 * are stale, and ignored.
+	 */
+	private final Map<UUID, Integer> wakeAt = new HashMap<UUID, Integer>();
+
+	/**
+	 * Participants woken since the last call to {@link #getAwake(Time)}.
+	 */
+	private final List<Participant> woken = new LinkedList<Participant>();
+
+	@Override
+	public synchronized void track(Collection<? extends Participant> participants) {
+		active.addAll(participants);
+	}
+
+	@Override
+	public synchronized void sleepUntil(Participant p, Time t) {
+		sleepUntil(p, t.intValue());
+	}
+
+	private void sleepUntil(Participant p, Integer at) {
+		sleep(p);
+		wakeAt.put(p.getID(), at);
+		List<UUID> due = alarms.get(at);
+		if (due == null) {
+			due = new ArrayList<UUID>();
+			alarms.put(at, due);
+		}
+		due.add(p.getID());
+	}
+
+	@Override
+	public synchronized void sleepUntilMessage(Participant p) {
+		sleep(p);
+		wakeAt.remove(p.getID());
+	}
+
+	private void sleep(Participant p) {
+		if (active.remove(p))
+			asleep.put(p.getID(), p);
+	}
+
+	@Override
+	public void wake(UUID id) {
+		if (asleep.containsKey(id)) {
+			synchronized (this) {
+				wakeAsleep(id);
+			}
+		}
+	}
+
+	private void wakeAsleep(UUID id) {
+		final Participant p = asleep.remove(id);
+		if (p != null) {
+			wakeAt.remove(id);
+			active.add(p);
+			woken.add(p);
+		}
+	}
+
+	@Override
+	public boolean isAsleep(UUID id) {
+		return asleep.containsKey(id);
+	}
+
+	@Override
+	public synchronized List<Participant> getAwake(Time t) {
+		if (!alarms.isEmpty()) {
+			final Iterator<Map.Entry<Integer, List<UUID>>> due = alarms
+					.headMap(t.intValue() + 1).entrySet().iterator();
+			while (due.hasNext()) {
+				final Map.Entry<Integer, List<UUID>> alarm = due.next();
+				for (UUID id : alarm.getValue()) {
+					if (alarm.getKey().equals(wakeAt.get(id)))
+						wakeAsleep(id);
+				}
+				due.remove();
+			}
+		}
+		for (Participant p : woken) {
+			final Time pt = p.getTime();
+			if (pt != null && !pt.equals(t))
+				pt.setTime(t);
+		}
+		woken.clear();
+		return new ArrayList<Participant>(active);
+	}
+
+	/**
+	 * Saved sleep state: the time each sleeping participant will wake at, or
+	 * null if it is waiting for a message, and the participants which have
+	 * been woken but not yet stepped.
+	 */
+	static class State implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final HashMap<UUID, Integer> asleep;
+		final ArrayList<UUID> woken;
+
+		State(HashMap<UUID, Integer> asleep, ArrayList<UUID> woken) {
+			super();
+			this.asleep = asleep;
+			this.woken = woken;
+		}
+	}
+
+	@Override
+	public synchronized Serializable checkpoint() {
+		final HashMap<UUID, Integer> sleeping = new HashMap<UUID, Integer>();
+		for (UUID id : asleep.keySet()) {
+			sleeping.put(id, wakeAt.get(id));
+		}
+		final ArrayList<UUID> wokenIds = new ArrayList<UUID>();
+		for (Participant p : woken) {
+			wokenIds.add(p.getID());
+		}
+		return new State(sleeping, wokenIds);
+	}
+
+	@Override
+	public synchronized void restore(Serializable state) {
+		final State s = (State) state;
+		// wake everyone, then put to sleep those which were asleep.
+		for (UUID id : new ArrayList<UUID>(asleep.keySet())) {
+			wakeAsleep(id);
+		}
+		alarms.clear();
+		wakeAt.clear();
+		woken.clear();
+		final Map<UUID, Participant> tracked = new HashMap<UUID, Participant>();
+		for (Participant p : active) {
+			tracked.put(p.getID(), p);
+		}
+		for (Map.Entry<UUID, Integer> sleeper : s.asleep.entrySet()) {
+			final Participant p = tracked.get(sleeper.getKey());
+			if (p == null)
+				continue;
+			if (sleeper.getValue() == null)
+				sleepUntilMessage(p);
+			else
+				sleepUntil(p, sleeper.getValue());
+		}
+		for (UUID id : s.woken) {
+			final Participant p = tracked.get(id);
+			if (p != null)
+				woken.add(p);
+		}
+	}
+
+}
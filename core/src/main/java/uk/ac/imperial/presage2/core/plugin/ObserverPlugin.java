@@ -0,0 +1,51 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.plugin;
+
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+
+/**
+ * <p>
+ * A {@link Plugin} which only reads state which has already been committed,
+ * for example to store it in a database.
+ * </p>
+ * 
+ * <p>
+ * When the simulator is run pipelined, observers are given a
+ * {@link SharedStateSnapshot} of each time cycle through
+ * {@link #observe(SharedStateSnapshot)} in place of
+ * {@link TimeDriven#incrementTime()}, and may run while later cycles are
+ * being simulated. Otherwise they are stepped like any other {@link Plugin}.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface ObserverPlugin extends Plugin {
+
+	/**
+	 * Observe the committed state of a time cycle. Called once per cycle, in
+	 * order, from a single thread.
+	 * 
+	 * @param state
+	 */
+	public void observe(SharedStateSnapshot state);
+
+}
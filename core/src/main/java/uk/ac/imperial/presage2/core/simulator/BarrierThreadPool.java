@@ -0,0 +1,234 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * A {@link ThreadPool} which keeps a single counted barrier per
+ * {@link WaitCondition} instead of a {@link Future} per task.
+ * </p>
+ * 
+ * <p>
+ * Scheduling a task registers it with the barrier for its condition and hands
+ * it straight to the executor. Each task arrives at the barrier when it
+ * completes, so {@link #waitFor(WaitCondition)} is a single blocking wait for
+ * the pending count to reach zero, no matter how many tasks were scheduled.
+ * Tasks may schedule further tasks against a condition which is being waited
+ * on; as they are registered before the scheduling task arrives the barrier
+ * cannot be released early.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class BarrierThreadPool implements MeasuredThreadPool {
+
+	private final Logger logger = Logger.getLogger(BarrierThreadPool.class);
+
+	private final ExecutorService threadPool;
+
+	private final Map<WaitCondition, PhaseBarrier> barriers = new EnumMap<WaitCondition, PhaseBarrier>(
+			WaitCondition.class);
+
+	private final int threads;
+
+	private final AtomicLong busyNanos = new AtomicLong(0);
+
+	private volatile CycleProfiler profiler = null;
+
+	BarrierThreadPool(final int threads) {
+		super();
+		this.threads = threads;
+		this.threadPool = Executors.newFixedThreadPool(this.threads);
+		for (WaitCondition c : WaitCondition.values()) {
+			barriers.put(c, new PhaseBarrier());
+		}
+	}
+
+	@Override
+	public void submitScheduled(Runnable s, WaitCondition condition) {
+		final PhaseBarrier barrier = barriers.get(condition);
+		barrier.register();
+		try {
+			threadPool.execute(new BarrierTask(s, condition, barrier));
+		} catch (RejectedExecutionException e) {
+			barrier.arrive();
+			throw e;
+		}
+	}
+
+	@Override
+	public void submit(Runnable s) {
+		threadPool.execute(new TimedTask(s));
+	}
+
+	@Override
+	public void waitFor(WaitCondition condition) {
+		final PhaseBarrier barrier = barriers.get(condition);
+		while (true) {
+			try {
+				barrier.awaitRelease();
+				return;
+			} catch (InterruptedException e) {
+				logger.warn("Unexpected InterruptedException", e);
+			}
+		}
+	}
+
+	@Override
+	public int getThreadCount() {
+		return this.threads;
+	}
+
+	@Override
+	public void shutdown() {
+		threadPool.shutdown();
+	}
+
+	@Override
+	public long getBusyNanos() {
+		return busyNanos.get();
+	}
+
+	@Override
+	public void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Wraps an unscheduled task to measure its run time.
+	 */
+	private class TimedTask implements Runnable {
+
+		private final Runnable task;
+		private final CycleProfiler prof = profiler;
+		private final long submitted = prof != null ? System.nanoTime() : 0L;
+
+		TimedTask(Runnable task) {
+			super();
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				task.run();
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				if (prof != null)
+					prof.poolTask(null, submitted, start);
+			}
+		}
+	}
+
+	/**
+	 * Wraps a scheduled task so that it arrives at its barrier however it
+	 * completes.
+	 */
+	private class BarrierTask implements Runnable {
+
+		private final Runnable task;
+		private final WaitCondition condition;
+		private final PhaseBarrier barrier;
+		private final CycleProfiler prof = profiler;
+		private final long submitted = prof != null ? System.nanoTime() : 0L;
+
+		BarrierTask(Runnable task, WaitCondition condition,
+				PhaseBarrier barrier) {
+			super();
+			this.task = task;
+			this.condition = condition;
+			this.barrier = barrier;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.warn("Unexpected exception thrown by scheduled task.", e);
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				if (prof != null)
+					prof.poolTask(condition, submitted, start);
+				barrier.arrive();
+			}
+		}
+
+	}
+
+	/**
+	 * <p>
+	 * A reusable counted barrier. Parties register before they start and
+	 * arrive when they are done; waiters are released whenever the count of
+	 * pending parties drops to zero.
+	 * </p>
+	 * 
+	 * <p>
+	 * Registration and arrival only touch an atomic counter, the monitor is
+	 * only taken by the party which releases the barrier and by waiters which
+	 * find it not yet released.
+	 * </p>
+	 */
+	static final class PhaseBarrier {
+
+		private final AtomicInteger pending = new AtomicInteger(0);
+
+		void register() {
+			pending.incrementAndGet();
+		}
+
+		void arrive() {
+			if (pending.decrementAndGet() == 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		int getPending() {
+			return pending.get();
+		}
+
+		void awaitRelease() throws InterruptedException {
+			if (pending.get() == 0)
+				return;
+			synchronized (this) {
+				while (pending.get() > 0) {
+					wait();
+				}
+			}
+		}
+
+	}
+
+}
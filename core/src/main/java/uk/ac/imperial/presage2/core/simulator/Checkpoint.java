@@ -0,0 +1,298 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * The saved state of a simulation at the start of a time cycle.
+ * </p>
+ * 
+ * <p>
+ * A checkpoint is a set of named sections, one for each
+ * {@link Checkpointable} component, held as serialised bytes. It is written
+ * as a gzipped binary file:
+ * </p>
+ * 
+ * <pre>
+ * int    magic (P2CK)
+ * short  format version
+ * int    time
+ * int    number of sections
+ * then for each section:
+ *   UTF    name
+ *   int    length
+ *   byte[] serialised state
+ * </pre>
+ * 
+ * <p>
+ * Sections are length prefixed so that a reader can skip ones it does not
+ * recognise.
+ * </p>
+ * 
+ * <p>
+ * Each section is only deserialised once. Restoring several simulations from
+ * the same checkpoint, as when forking them from a shared warm-up, gives them
+ * all the same state objects, which {@link Checkpointable}s copy as they
+ * change them.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class Checkpoint {
+
+	final static int MAGIC = 0x50324b43;
+
+	final static short VERSION = 1;
+
+	private final int time;
+
+	private final Map<String, byte[]> sections = new LinkedHashMap<String, byte[]>();
+
+	private final Map<String, Serializable> restored = new HashMap<String, Serializable>();
+
+	/**
+	 * Captured states which have not been serialised yet.
+	 */
+	private final Map<String, Serializable> captured = new LinkedHashMap<String, Serializable>();
+
+	Checkpoint(int time) {
+		super();
+		this.time = time;
+	}
+
+	/**
+	 * Get the time cycle the simulation will resume at.
+	 * 
+	 * @return time
+	 */
+	public int getTime() {
+		return time;
+	}
+
+	/**
+	 * Get the names of the sections in this checkpoint.
+	 * 
+	 * @return section names, in the order they were saved.
+	 */
+	public Set<String> getSections() {
+		return Collections.unmodifiableSet(sections.keySet());
+	}
+
+	/**
+	 * Serialise and save <code>state</code> as the named section. Nothing is
+	 * saved if <code>state</code> is null.
+	 * 
+	 * @param name
+	 * @param state
+	 * @throws IOException
+	 *             if <code>state</code> cannot be serialised.
+	 */
+	void put(String name, Serializable state) throws IOException {
+		if (state == null)
+			return;
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(state);
+		out.close();
+		sections.put(name, bytes.toByteArray());
+	}
+
+	/**
+	 * Keep <code>state</code> to be saved as the named section by
+	 * {@link #serialiseCaptured()}. The state must not change afterwards.
+	 * 
+	 * @param name
+	 * @param state
+	 */
+	void capture(String name, Serializable state) {
+		if (state != null)
+			captured.put(name, state);
+	}
+
+	/**
+	 * Serialise and save the states kept by
+	 * {@link #capture(String, Serializable)}.
+	 * 
+	 * @throws IOException
+	 *             if a state cannot be serialised.
+	 */
+	void serialiseCaptured() throws IOException {
+		for (Map.Entry<String, Serializable> state : captured.entrySet()) {
+			put(state.getKey(), state.getValue());
+		}
+		captured.clear();
+	}
+
+	/**
+	 * @param name
+	 * @return true if there is a section called <code>name</code>.
+	 */
+	synchronized boolean has(String name) {
+		return sections.containsKey(name) || captured.containsKey(name);
+	}
+
+	/**
+	 * Get the state saved under the named section. The same object is
+	 * returned every time and must not be modified.
+	 * 
+	 * @param name
+	 * @return the saved state, or null if there is no such section.
+	 * @throws IOException
+	 *             if the state cannot be deserialised.
+	 */
+	synchronized Serializable get(String name) throws IOException {
+		Serializable state = restored.get(name);
+		if (state == null) {
+			state = deserialise(name);
+			if (state != null)
+				restored.put(name, state);
+		}
+		return state;
+	}
+
+	private Serializable deserialise(String name) throws IOException {
+		final byte[] state = sections.get(name);
+		if (state == null)
+			return null;
+		final ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(state));
+		try {
+			return (Serializable) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Unknown class in checkpoint section " + name
+					+ ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write this checkpoint to a stream. The stream is not closed.
+	 * 
+	 * @param os
+	 * @throws IOException
+	 */
+	public void write(OutputStream os) throws IOException {
+		final GZIPOutputStream gzip = new GZIPOutputStream(os);
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(gzip));
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeInt(time);
+		out.writeInt(sections.size());
+		for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+			out.writeUTF(section.getKey());
+			out.writeInt(section.getValue().length);
+			out.write(section.getValue());
+		}
+		out.flush();
+		gzip.finish();
+	}
+
+	/**
+	 * Write this checkpoint to <code>file</code>. It is written to a temporary
+	 * file first and then renamed, so an existing checkpoint is only replaced
+	 * by a complete one.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			write(out);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (file.exists() && !file.delete())
+			throw new IOException("Could not replace checkpoint " + file);
+		if (!tmp.renameTo(file))
+			throw new IOException("Could not rename " + tmp + " to " + file);
+	}
+
+	/**
+	 * Read a checkpoint from a stream.
+	 * 
+	 * @param is
+	 * @return {@link Checkpoint}
+	 * @throws IOException
+	 *             if the stream is not a checkpoint of a version we can read.
+	 */
+	public static Checkpoint read(InputStream is) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(is)));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a checkpoint.");
+		final short version = in.readShort();
+		if (version > VERSION)
+			throw new IOException("Unsupported checkpoint version " + version);
+		final Checkpoint c = new Checkpoint(in.readInt());
+		final int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			final String name = in.readUTF();
+			final byte[] state = new byte[in.readInt()];
+			in.readFully(state);
+			c.sections.put(name, state);
+		}
+		return c;
+	}
+
+	/**
+	 * Read a checkpoint from <code>file</code>.
+	 * 
+	 * @param file
+	 * @return {@link Checkpoint}
+	 * @throws IOException
+	 */
+	public static Checkpoint read(File file) throws IOException {
+		final InputStream in = new FileInputStream(file);
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,58 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.multibindings.Multibinder;
+
+/**
+ * Adds a {@link Checkpointer} plugin to the simulation which writes a
+ * {@link Checkpoint} to <code>file</code> every <code>interval</code> time
+ * cycles.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class CheckpointModule extends AbstractModule {
+
+	private final String file;
+
+	private final int interval;
+
+	public CheckpointModule(String file, int interval) {
+		super();
+		if (interval <= 0)
+			throw new IllegalArgumentException(
+					"Checkpoint interval must be greater than 0.");
+		this.file = file;
+		this.interval = interval;
+	}
+
+	@Override
+	protected void configure() {
+		bind(String.class).annotatedWith(CheckpointFile.class).toInstance(file);
+		bind(Integer.class).annotatedWith(CheckpointInterval.class).toInstance(
+				interval);
+		Multibinder.newSetBinder(binder(), Plugin.class).addBinding()
+				.to(Checkpointer.class);
+	}
+
+}
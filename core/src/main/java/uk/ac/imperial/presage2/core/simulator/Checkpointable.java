@@ -0,0 +1,64 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * A simulation component whose state can be saved in a {@link Checkpoint} and
+ * restored later.
+ * </p>
+ * 
+ * <p>
+ * {@link #checkpoint()} is called at the end of a time cycle, once all
+ * components have finished with it, and must return a copy of the state
+ * which will not change as the simulation continues, as it may be serialised
+ * on another thread while the next cycles run. {@link #restore(Serializable)}
+ * is called after the simulation has been initialised and before it runs,
+ * with the value that was returned.
+ * </p>
+ * 
+ * <p>
+ * Several simulations may be restored from the same {@link Checkpoint}, and
+ * they are given the same state object, so {@link #restore(Serializable)}
+ * must not modify it. Copy any part of it which will change, preferably only
+ * when it first changes.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface Checkpointable {
+
+	/**
+	 * Get this component's current state.
+	 * 
+	 * @return state to save.
+	 */
+	public Serializable checkpoint();
+
+	/**
+	 * Restore this component to a state returned from {@link #checkpoint()}.
+	 * 
+	 * @param state
+	 */
+	public void restore(Serializable state);
+
+}
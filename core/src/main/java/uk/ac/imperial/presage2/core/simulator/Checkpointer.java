@@ -0,0 +1,192 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Writes a {@link Checkpoint} of the simulation every
+ * {@link CheckpointInterval} time cycles to the {@link CheckpointFile},
+ * replacing the previous one.
+ * </p>
+ * 
+ * <p>
+ * Add it as a {@link Plugin}, or use a {@link CheckpointModule}. Between
+ * cycles each {@link Checkpointable} component returns a copy of its state;
+ * the copies are then serialised, compressed and written to disk on a
+ * background thread while the next cycles run, so the simulation is only held
+ * up while the components copy their state. Only one checkpoint is written at
+ * a time; if the previous one is still being written when the next is due the
+ * simulation waits for it.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+@Singleton
+public class Checkpointer implements Plugin {
+
+	private final Logger logger = Logger.getLogger(Checkpointer.class);
+
+	private File file = null;
+
+	private int interval = 0;
+
+	private int last = 0;
+
+	private ExecutorService writer = null;
+
+	private Future<?> pending = null;
+
+	public Checkpointer() {
+		super();
+	}
+
+	public Checkpointer(File file, int interval) {
+		super();
+		this.file = file;
+		this.interval = interval;
+	}
+
+	@Inject(optional = true)
+	public void setFile(@CheckpointFile String file) {
+		this.file = new File(file);
+	}
+
+	@Inject(optional = true)
+	public void setInterval(@CheckpointInterval int interval) {
+		this.interval = interval;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getInterval() {
+		return interval;
+	}
+
+	/**
+	 * Write a checkpoint if one is due at the simulator's current time.
+	 * 
+	 * @param sim
+	 */
+	void cycleComplete(Simulator sim) {
+		final int now = sim.time.intValue();
+		if (file == null || interval <= 0 || now - last < interval)
+			return;
+		last = now;
+		final Checkpoint c;
+		try {
+			awaitPending();
+			c = sim.captureCheckpoint();
+		} catch (IOException e) {
+			logger.warn("Could not checkpoint simulation at time " + now, e);
+			return;
+		}
+		pending = writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					c.serialiseCaptured();
+					c.write(file);
+					logger.info("Wrote checkpoint for time " + c.getTime()
+							+ " to " + file);
+				} catch (IOException e) {
+					logger.warn("Could not write checkpoint to " + file, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * The simulation was restored from a checkpoint at <code>time</code>, so
+	 * count the interval to the next checkpoint from there.
+	 * 
+	 * @param time
+	 */
+	void restored(int time) {
+		last = time;
+	}
+
+	private void awaitPending() {
+		if (pending == null)
+			return;
+		while (true) {
+			try {
+				pending.get();
+				break;
+			} catch (InterruptedException e) {
+				logger.warn("Unexpected InterruptedException", e);
+			} catch (ExecutionException e) {
+				logger.warn("Exception thrown writing checkpoint", e.getCause());
+				break;
+			}
+		}
+		pending = null;
+	}
+
+	@Override
+	public void initialise() {
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "checkpoint-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	@Override
+	public void incrementTime() {
+	}
+
+	@Override
+	@Deprecated
+	public void execute() {
+	}
+
+	@Override
+	public void onSimulationComplete() {
+		awaitPending();
+		if (writer != null)
+			writer.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return "Checkpointer";
+	}
+
+}
@@ -0,0 +1,222 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool.WaitCondition;
+
+/**
+ * <p>
+ * Executes a cycle of {@link Participant}s with one worker task per thread
+ * rather than one task per participant.
+ * </p>
+ * 
+ * <p>
+ * The participants for the cycle are split into chunks which workers claim
+ * from a shared cursor, so a worker which finishes early takes over work which
+ * would otherwise wait behind a slow worker. Chunk sizes are adapted to the
+ * per-participant cost measured in earlier cycles so that claiming a chunk is
+ * cheap relative to executing it, and shrink as the cycle runs out of
+ * participants so that the final chunks balance across workers.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class ChunkedParticipantExecutor {
+
+	private final Logger logger = Logger
+			.getLogger(ChunkedParticipantExecutor.class);
+
+	/**
+	 * Wall time we aim for a single chunk to take.
+	 */
+	static final long TARGET_CHUNK_NANOS = 200000;
+
+	/**
+	 * Weight given to the most recent cycle's measurement in the
+	 * per-participant cost estimate.
+	 */
+	static final double COST_SMOOTHING = 0.3;
+
+	private final int workers;
+
+	private Participant[] participants = new Participant[0];
+
+	private int count = 0;
+
+	private final AtomicInteger cursor = new AtomicInteger(0);
+
+	private final AtomicLong executedNanos = new AtomicLong(0);
+
+	private final AtomicLong executedCount = new AtomicLong(0);
+
+	/**
+	 * Smoothed estimate of the nanoseconds taken per participant, 0 until
+	 * we have measured a cycle.
+	 */
+	private double nanosPerParticipant = 0;
+
+	private volatile int chunkSize = 1;
+
+	private volatile CycleProfiler profiler = null;
+
+	ChunkedParticipantExecutor(int workers) {
+		super();
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Schedule execution of the given participants in the pool. The
+	 * participants will have completed once the given {@link WaitCondition}
+	 * has been waited for.
+	 * 
+	 * @param pool
+	 * @param cycleParticipants
+	 * @param condition
+	 */
+	void execute(ThreadPool pool, Collection<Participant> cycleParticipants,
+			WaitCondition condition) {
+		updateCostEstimate();
+		participants = cycleParticipants.toArray(participants);
+		count = cycleParticipants.size();
+		cursor.set(0);
+		chunkSize = computeChunkSize();
+		if (logger.isDebugEnabled()) {
+			logger.debug("Executing " + count + " participants in chunks of "
+					+ chunkSize + " over " + workers + " workers.");
+		}
+		final int tasks = Math.min(workers, (count + chunkSize - 1) / chunkSize);
+		for (int i = 0; i < tasks; i++) {
+			pool.submitScheduled(new Worker(), condition);
+		}
+	}
+
+	/**
+	 * Record each participant's execution with the given profiler, or stop
+	 * recording if it is null.
+	 * 
+	 * @param profiler
+	 */
+	void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Current estimate of the time taken to execute a single participant.
+	 * 
+	 * @return nanoseconds per participant, or 0 if not yet measured.
+	 */
+	double getNanosPerParticipant() {
+		return nanosPerParticipant;
+	}
+
+	int getChunkSize() {
+		return chunkSize;
+	}
+
+	private void updateCostEstimate() {
+		final long n = executedCount.getAndSet(0);
+		final long nanos = executedNanos.getAndSet(0);
+		if (n == 0)
+			return;
+		final double measured = (double) nanos / n;
+		if (nanosPerParticipant == 0)
+			nanosPerParticipant = measured;
+		else
+			nanosPerParticipant = COST_SMOOTHING * measured
+					+ (1 - COST_SMOOTHING) * nanosPerParticipant;
+	}
+
+	private int computeChunkSize() {
+		// until we have a measurement split evenly into several chunks per
+		// worker.
+		final int evenSplit = Math.max(1, count / (workers * 4));
+		if (nanosPerParticipant <= 0)
+			return evenSplit;
+		final long adaptive = (long) (TARGET_CHUNK_NANOS / nanosPerParticipant);
+		return (int) Math.max(1, Math.min(adaptive, evenSplit));
+	}
+
+	/**
+	 * Claim the next chunk of participants.
+	 * 
+	 * @return start index of the chunk in the high 32 bits, end index in the
+	 *         low 32 bits, or -1 if there is nothing left to claim.
+	 */
+	private long claim() {
+		while (true) {
+			final int start = cursor.get();
+			final int remaining = count - start;
+			if (remaining <= 0)
+				return -1;
+			// guided: never take more than a share of what is left.
+			final int size = Math.max(1,
+					Math.min(chunkSize, remaining / (2 * workers)));
+			if (cursor.compareAndSet(start, start + size)) {
+				return ((long) start << 32) | (start + size);
+			}
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			final Participant[] ps = participants;
+			final boolean deterministic = DeterministicExecution.isEnabled();
+			final CycleProfiler prof = profiler;
+			long executed = 0;
+			final long begin = System.nanoTime();
+			long chunk;
+			while ((chunk = claim()) >= 0) {
+				final int end = (int) chunk;
+				for (int i = (int) (chunk >>> 32); i < end; i++) {
+					final Participant p = ps[i];
+					if (deterministic)
+						DeterministicExecution.enter(p.getID());
+					final long start = prof != null ? System.nanoTime() : 0L;
+					try {
+						p.incrementTime();
+					} catch (Exception e) {
+						logger.warn(
+								"Exception thrown by participant "
+										+ p.getName() + " on execution.", e);
+					} finally {
+						if (prof != null)
+							prof.participant(p, start);
+						if (deterministic)
+							DeterministicExecution.exit();
+					}
+				}
+				executed += end - (int) (chunk >>> 32);
+			}
+			executedNanos.addAndGet(System.nanoTime() - begin);
+			executedCount.addAndGet(executed);
+		}
+
+	}
+
+}
@@ -0,0 +1,462 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool.WaitCondition;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Profiles where the time in each simulation cycle goes.
+ * </p>
+ * 
+ * <p>
+ * Add it as a {@link Plugin} to enable it. Once enabled the simulator, event
+ * bus and network controller record:
+ * </p>
+ * <ul>
+ * <li>wall time of each {@link Phase} of the cycle, and of the whole cycle;</li>
+ * <li>a latency histogram of {@link Participant#incrementTime()} for each
+ * participant, and of {@link Plugin#incrementTime()} for each plugin;</li>
+ * <li>time taken to publish events;</li>
+ * <li>for a {@link ThreadPool} which supports it, how long tasks for each
+ * {@link WaitCondition} wait to start and how long they run;</li>
+ * <li>depths of the network controller's message queues each cycle.</li>
+ * </ul>
+ * 
+ * <p>
+ * When the simulation completes the report is written to the
+ * {@link ProfileReport} file, as CSV or JSON depending on its extension, or to
+ * the log if no file is set. Participants are listed slowest first.
+ * </p>
+ * 
+ * <p>
+ * Recording costs a couple of calls to {@link System#nanoTime()} and a few
+ * atomic increments per measurement, so it may be left on for long runs.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+@Singleton
+public class CycleProfiler implements Plugin {
+
+	/**
+	 * Phases of a time cycle. Simulators run the work of each phase in a
+	 * different order, and may overlap some of it, but record it under the
+	 * same phases.
+	 */
+	public enum Phase {
+		/**
+		 * Stepping participants.
+		 */
+		PARTICIPANTS,
+		/**
+		 * Stepping plugins, and {@link ParticipantsComplete} listeners when
+		 * they run alongside them.
+		 */
+		PLUGINS,
+		/**
+		 * Stepping the environment and other time driven components.
+		 */
+		ENVIRONMENT
+	}
+
+	private final Logger logger = Logger.getLogger(CycleProfiler.class);
+
+	private volatile boolean enabled = false;
+
+	private File report = null;
+
+	private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(
+			Phase.class);
+
+	private final LatencyHistogram cycles = new LatencyHistogram();
+
+	private final LatencyHistogram publish = new LatencyHistogram();
+
+	private final ConcurrentMap<UUID, Entry> participants = new ConcurrentHashMap<UUID, Entry>();
+
+	private final ConcurrentMap<Plugin, Entry> plugins = new ConcurrentHashMap<Plugin, Entry>();
+
+	private final ConcurrentMap<String, Entry> queues = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Thread pool task wait and run times, by wait condition.
+	 */
+	private final Map<WaitCondition, Entry> poolWaits = new EnumMap<WaitCondition, Entry>(
+			WaitCondition.class);
+	private final Map<WaitCondition, Entry> poolRuns = new EnumMap<WaitCondition, Entry>(
+			WaitCondition.class);
+	private final Entry unscheduledWait = new Entry("pool",
+			"UNSCHEDULED wait", "ns");
+	private final Entry unscheduledRun = new Entry("pool", "UNSCHEDULED run",
+			"ns");
+
+	/**
+	 * Start of the current cycle and phase, only used by the simulator thread.
+	 */
+	private long cycleStart = 0;
+	private long phaseStart = 0;
+
+	public CycleProfiler() {
+		super();
+		for (Phase p : Phase.values()) {
+			phases.put(p, new LatencyHistogram());
+		}
+		for (WaitCondition c : WaitCondition.values()) {
+			poolWaits.put(c, new Entry("pool", c.name() + " wait", "ns"));
+			poolRuns.put(c, new Entry("pool", c.name() + " run", "ns"));
+		}
+	}
+
+	static class Entry {
+		final String type;
+		final String name;
+		final String unit;
+		final LatencyHistogram histogram;
+
+		Entry(String type, String name, String unit) {
+			this(type, name, unit, new LatencyHistogram());
+		}
+
+		Entry(String type, String name, String unit, LatencyHistogram histogram) {
+			super();
+			this.type = type;
+			this.name = name;
+			this.unit = unit;
+			this.histogram = histogram;
+		}
+	}
+
+	/**
+	 * Order entries by total recorded, highest first.
+	 */
+	static final Comparator<Entry> BY_TOTAL = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			final long t1 = e1.histogram.getTotal();
+			final long t2 = e2.histogram.getTotal();
+			return t1 > t2 ? -1 : (t1 == t2 ? 0 : 1);
+		}
+	};
+
+	@Inject(optional = true)
+	public void setReportFile(@ProfileReport String file) {
+		this.report = new File(file);
+	}
+
+	public void setReportFile(File file) {
+		this.report = file;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Mark the start of a time cycle, and of its first phase.
+	 */
+	public void startCycle() {
+		cycleStart = phaseStart = System.nanoTime();
+	}
+
+	/**
+	 * Mark the end of a phase of the cycle. The next phase starts now.
+	 * 
+	 * @param phase
+	 */
+	public void endPhase(Phase phase) {
+		final long now = System.nanoTime();
+		phases.get(phase).record(now - phaseStart);
+		phaseStart = now;
+	}
+
+	/**
+	 * Mark the end of a time cycle.
+	 */
+	public void endCycle() {
+		cycles.record(System.nanoTime() - cycleStart);
+	}
+
+	/**
+	 * Record a participant's {@link Participant#incrementTime()}.
+	 * 
+	 * @param p
+	 * @param start
+	 *            {@link System#nanoTime()} when it started.
+	 */
+	public void participant(Participant p, long start) {
+		final long nanos = System.nanoTime() - start;
+		Entry e = participants.get(p.getID());
+		if (e == null) {
+			final Entry created = new Entry("participant", p.getName() + " ("
+					+ p.getID() + ")", "ns");
+			e = participants.putIfAbsent(p.getID(), created);
+			if (e == null)
+				e = created;
+		}
+		e.histogram.record(nanos);
+	}
+
+	/**
+	 * Record a plugin's {@link Plugin#incrementTime()}.
+	 * 
+	 * @param p
+	 * @param start
+	 *            {@link System#nanoTime()} when it started.
+	 */
+	public void plugin(Plugin p, long start) {
+		final long nanos = System.nanoTime() - start;
+		Entry e = plugins.get(p);
+		if (e == null) {
+			final Entry created = new Entry("plugin", p.toString(), "ns");
+			e = plugins.putIfAbsent(p, created);
+			if (e == null)
+				e = created;
+		}
+		e.histogram.record(nanos);
+	}
+
+	/**
+	 * Record a task run by a {@link ThreadPool}.
+	 * 
+	 * @param condition
+	 *            condition the task was scheduled for, or null if it was not
+	 *            scheduled.
+	 * @param submitted
+	 *            {@link System#nanoTime()} when it was submitted.
+	 * @param start
+	 *            {@link System#nanoTime()} when it started.
+	 */
+	public void poolTask(WaitCondition condition, long submitted, long start) {
+		final long now = System.nanoTime();
+		(condition == null ? unscheduledWait : poolWaits.get(condition)).histogram
+				.record(start - submitted);
+		(condition == null ? unscheduledRun : poolRuns.get(condition)).histogram
+				.record(now - start);
+	}
+
+	/**
+	 * Record the publication of an event.
+	 * 
+	 * @param start
+	 *            {@link System#nanoTime()} when it started.
+	 */
+	public void publish(long start) {
+		publish.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record the depth of a named queue.
+	 * 
+	 * @param queue
+	 * @param depth
+	 */
+	public void queueDepth(String queue, int depth) {
+		Entry e = queues.get(queue);
+		if (e == null) {
+			final Entry created = new Entry("queue", queue, "items");
+			e = queues.putIfAbsent(queue, created);
+			if (e == null)
+				e = created;
+		}
+		e.histogram.record(depth);
+	}
+
+	/**
+	 * Get the report entries: cycle and phase times, event publication,
+	 * queues, plugins and then participants, slowest first.
+	 */
+	List<Entry> getEntries() {
+		final List<Entry> entries = new ArrayList<Entry>();
+		entries.add(new Entry("cycle", "cycle", "ns", cycles));
+		for (Map.Entry<Phase, LatencyHistogram> phase : phases.entrySet()) {
+			entries.add(new Entry("phase", phase.getKey().name(), "ns", phase
+					.getValue()));
+		}
+		entries.add(new Entry("eventbus", "publish", "ns", publish));
+		for (WaitCondition c : WaitCondition.values()) {
+			addPoolEntry(entries, poolWaits.get(c));
+			addPoolEntry(entries, poolRuns.get(c));
+		}
+		addPoolEntry(entries, unscheduledWait);
+		addPoolEntry(entries, unscheduledRun);
+		entries.addAll(queues.values());
+		final List<Entry> sorted = new ArrayList<Entry>(plugins.values());
+		Collections.sort(sorted, BY_TOTAL);
+		entries.addAll(sorted);
+		sorted.clear();
+		sorted.addAll(participants.values());
+		Collections.sort(sorted, BY_TOTAL);
+		entries.addAll(sorted);
+		return entries;
+	}
+
+	private static void addPoolEntry(List<Entry> entries, Entry e) {
+		// only report pools which recorded anything
+		if (e.histogram.getCount() > 0)
+			entries.add(e);
+	}
+
+	/**
+	 * Write the report as CSV, one row per entry.
+	 * 
+	 * @param out
+	 */
+	public void writeCsv(Writer out) {
+		final PrintWriter w = new PrintWriter(out);
+		w.println("type,name,unit,count,total,mean,p50,p99,max");
+		for (Entry e : getEntries()) {
+			final LatencyHistogram h = e.histogram;
+			w.println(e.type + "," + csv(e.name) + "," + e.unit + ","
+					+ h.getCount() + "," + h.getTotal() + ","
+					+ Math.round(h.getMean()) + "," + h.getPercentile(0.5)
+					+ "," + h.getPercentile(0.99) + "," + h.getMax());
+		}
+		w.flush();
+	}
+
+	private static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0)
+			return s;
+		return "\"" + s.replace("\"", "\"\"") + "\"";
+	}
+
+	/**
+	 * Write the report as a JSON array, one object per entry.
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeJson(Writer out) throws IOException {
+		final JSONArray rows = new JSONArray();
+		try {
+			for (Entry e : getEntries()) {
+				final LatencyHistogram h = e.histogram;
+				final JSONObject row = new JSONObject();
+				row.put("type", e.type);
+				row.put("name", e.name);
+				row.put("unit", e.unit);
+				row.put("count", h.getCount());
+				row.put("total", h.getTotal());
+				row.put("mean", h.getMean());
+				row.put("p50", h.getPercentile(0.5));
+				row.put("p99", h.getPercentile(0.99));
+				row.put("max", h.getMax());
+				rows.put(row);
+			}
+			out.write(rows.toString(2));
+		} catch (JSONException e) {
+			throw new IOException(e.getMessage());
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the report to the {@link ProfileReport} file, or the log if it is
+	 * not set.
+	 */
+	public void writeReport() {
+		if (report == null) {
+			final StringWriter s = new StringWriter();
+			writeCsv(s);
+			logger.info("Cycle profile:\n" + s);
+			return;
+		}
+		Writer out = null;
+		try {
+			out = new BufferedWriter(new FileWriter(report));
+			if (report.getName().endsWith(".csv"))
+				writeCsv(out);
+			else
+				writeJson(out);
+			logger.info("Wrote cycle profile to " + report);
+		} catch (IOException e) {
+			logger.warn("Could not write cycle profile to " + report, e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					logger.warn("Could not close " + report, e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Enables profiling.
+	 */
+	@Override
+	public void initialise() {
+		enabled = true;
+	}
+
+	@Override
+	public void incrementTime() {
+	}
+
+	@Override
+	@Deprecated
+	public void execute() {
+	}
+
+	@Override
+	public void onSimulationComplete() {
+		if (enabled)
+			writeReport();
+	}
+
+	@Override
+	public String toString() {
+		return "CycleProfiler";
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * <p>
+ * Global switch and execution context for deterministic simulation.
+ * </p>
+ * 
+ * <p>
+ * In deterministic mode a seeded simulation gives the same results regardless
+ * of the number of threads it is run with. To achieve this:
+ * </p>
+ * <ul>
+ * <li>The {@link Simulator} marks the thread executing a {@link Participant}
+ * with that participant's ID, and {@link Random} gives each participant its own
+ * stream of random numbers derived from the seed and its ID.</li>
+ * <li>Operations whose order would otherwise depend on thread interleaving,
+ * such as message delivery and shared state changes, are stamped with a
+ * sequence number from {@link #nextSequence()}. As a participant executes on a
+ * single thread its stamps increase in program order, so sorting by the
+ * originating participant then by sequence gives a canonical order.</li>
+ * </ul>
+ * 
+ * <p>
+ * Work done outside of a participant, for example by {@link TimeDriven}
+ * elements and plugins executing concurrently with one another, does not have
+ * an originating participant and is only ordered by sequence.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public final class DeterministicExecution {
+
+	private static volatile boolean enabled = false;
+
+	private static final ThreadLocal<UUID> currentParticipant = new ThreadLocal<UUID>();
+
+	private static final AtomicLong sequence = new AtomicLong(0);
+
+	private DeterministicExecution() {
+	}
+
+	/**
+	 * @return true if deterministic execution is enabled.
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	static void setEnabled(boolean enabled) {
+		DeterministicExecution.enabled = enabled;
+		Random.reset();
+	}
+
+	/**
+	 * Mark the current thread as executing on behalf of the given participant.
+	 * Must be paired with a call to {@link #exit()}.
+	 * 
+	 * @param participant
+	 *            ID of the participant.
+	 */
+	public static void enter(UUID participant) {
+		currentParticipant.set(participant);
+	}
+
+	/**
+	 * Mark the current thread as no longer executing a participant.
+	 */
+	public static void exit() {
+		currentParticipant.remove();
+	}
+
+	/**
+	 * Get the participant the current thread is executing on behalf of.
+	 * 
+	 * @return {@link UUID} of the participant, or null if the thread is not
+	 *         executing a participant or deterministic execution is disabled.
+	 */
+	public static UUID currentParticipant() {
+		if (!enabled)
+			return null;
+		return currentParticipant.get();
+	}
+
+	/**
+	 * Get the next sequence number to order an operation with.
+	 * 
+	 * @return strictly increasing sequence number.
+	 */
+	public static long nextSequence() {
+		return sequence.incrementAndGet();
+	}
+
+	/**
+	 * Compare two originating participants for canonical ordering. Operations
+	 * without an originating participant come first.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int compareOrigin(UUID a, UUID b) {
+		if (a == null)
+			return b == null ? 0 : -1;
+		if (b == null)
+			return 1;
+		return a.compareTo(b);
+	}
+
+	/**
+	 * Compare two sequence numbers.
+	 * 
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static int compareSequence(long a, long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+}
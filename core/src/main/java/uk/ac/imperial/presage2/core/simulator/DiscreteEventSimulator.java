@@ -0,0 +1,342 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.participant.ParticipantActivity;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * <p>
+ * Single threaded simulator which keeps a calendar of wake-ups for
+ * {@link EventDriven} components and jumps the simulation time straight to the
+ * next one when there is nothing to do in between.
+ * </p>
+ * 
+ * <p>
+ * {@link Participant}s and {@link Plugin}s which are not {@link EventDriven}
+ * are stepped every cycle as in the {@link SingleThreadedSimulator}, and while
+ * there are any of these the simulation time advances one cycle at a time.
+ * {@link EventDriven} components are stepped in the first cycle, and then only
+ * at times they schedule with {@link #scheduleAt(TimeDriven, Time)} or
+ * {@link #scheduleIn(TimeDriven, int)}. Other {@link TimeDriven}s, such as the
+ * network controller, and the environment are stepped in every cycle which
+ * is run, but do not stop the simulator skipping idle cycles unless they
+ * schedule a wake-up too. They are still only stepped once in that cycle.
+ * Components which keep their own count of time should take it from
+ * {@link ParticipantsComplete} or {@link EndOfTimeCycle}, rather than count
+ * the times they are stepped.
+ * </p>
+ * 
+ * <p>
+ * {@link ParticipantsComplete} and {@link EndOfTimeCycle} are published for
+ * each cycle which is run. When a {@link Participant} is woken its
+ * {@link Participant#getTime()} is set to the current time before it is
+ * stepped.
+ * </p>
+ * 
+ * <p>
+ * Participants which are not {@link EventDriven} may still sleep with the
+ * {@link ParticipantActivity}, but while there are any of them the simulator
+ * steps through every cycle.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+@Singleton
+public class DiscreteEventSimulator extends SingleThreadedSimulator implements
+		EventScheduler {
+
+	private final Logger logger = Logger
+			.getLogger(DiscreteEventSimulator.class);
+
+	/**
+	 * Pending wake-ups, in time order.
+	 */
+	private final PriorityQueue<WakeUp> calendar = new PriorityQueue<WakeUp>();
+
+	/**
+	 * Number of wake-ups scheduled so far. Used to keep wake-ups for the same
+	 * time in the order they were scheduled.
+	 */
+	private long scheduled = 0;
+
+	/**
+	 * Set once the wake-ups for the current cycle have been taken from the
+	 * calendar, after which new wake-ups go to the next cycle at the earliest.
+	 */
+	private boolean cycleStarted = false;
+
+	@Inject
+	public DiscreteEventSimulator(Scenario scenario, Time t, EventBus eventBus) {
+		super(scenario, t, eventBus);
+	}
+
+	static class WakeUp implements Comparable<WakeUp> {
+		final Time time;
+		final long order;
+		final TimeDriven target;
+
+		WakeUp(Time time, long order, TimeDriven target) {
+			super();
+			this.time = time;
+			this.order = order;
+			this.target = target;
+		}
+
+		@Override
+		public int compareTo(WakeUp o) {
+			if (time.greaterThan(o.time))
+				return 1;
+			else if (o.time.greaterThan(time))
+				return -1;
+			return order < o.order ? -1 : (order == o.order ? 0 : 1);
+		}
+	}
+
+	@Override
+	public synchronized void scheduleAt(TimeDriven target, Time t) {
+		Time earliest = time.clone();
+		if (cycleStarted)
+			earliest.increment();
+		final Time when = earliest.greaterThan(t) ? earliest : t.clone();
+		calendar.add(new WakeUp(when, scheduled++, target));
+	}
+
+	@Override
+	public synchronized void scheduleIn(TimeDriven target, int ticks) {
+		final Time when = time.clone();
+		for (int i = 0; i < ticks; i++) {
+			when.increment();
+		}
+		scheduleAt(target, when);
+	}
+
+	@Override
+	public void run() {
+		// split components into those stepped every cycle and those which wait
+		// for a wake-up.
+		final List<Participant> activeParticipants = new ArrayList<Participant>();
+		final List<TimeDriven> activeTimeDriven = new ArrayList<TimeDriven>();
+		final List<Plugin> activePlugins = new ArrayList<Plugin>();
+		for (Participant p : this.scenario.getParticipants()) {
+			if (p instanceof EventDriven)
+				scheduleAt(p, time);
+			else
+				activeParticipants.add(p);
+		}
+		for (TimeDriven t : this.scenario.getTimeDriven()) {
+			if (t instanceof EventDriven)
+				scheduleAt(t, time);
+			else
+				activeTimeDriven.add(t);
+		}
+		for (Plugin pl : this.scenario.getPlugins()) {
+			if (pl instanceof EventDriven)
+				scheduleAt(pl, time);
+			else
+				activePlugins.add(pl);
+		}
+		final boolean everyCycle = !activeParticipants.isEmpty()
+				|| !activePlugins.isEmpty();
+
+		final Set<Participant> dueParticipants = new LinkedHashSet<Participant>();
+		final Set<TimeDriven> dueTimeDriven = new LinkedHashSet<TimeDriven>();
+		final Set<Plugin> duePlugins = new LinkedHashSet<Plugin>();
+
+		while (this.scenario.getFinishTime().greaterThan(time)) {
+
+			logger.info("Time: " + time.toString());
+			final CycleProfiler prof = profiling();
+			if (prof != null)
+				prof.startCycle();
+
+			takeDue(dueParticipants, dueTimeDriven, duePlugins);
+
+			logger.debug("Executing Participants...");
+			if (activity == null) {
+				for (Participant p : activeParticipants) {
+					stepParticipant(p, prof);
+				}
+			} else {
+				// only the awake participants which are not event driven.
+				for (Participant p : getAwakeParticipants()) {
+					if (!(p instanceof EventDriven))
+						stepParticipant(p, prof);
+				}
+			}
+			for (Participant p : dueParticipants) {
+				if (!(p instanceof EventDriven))
+					continue;
+				final Time pt = p.getTime();
+				if (pt != null && !pt.equals(time))
+					pt.setTime(time);
+				stepParticipant(p, prof);
+			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PARTICIPANTS);
+
+			logger.debug("Executing TimeDriven...");
+			for (TimeDriven t : activeTimeDriven) {
+				stepTimeDriven(t);
+			}
+			for (TimeDriven t : dueTimeDriven) {
+				if (t instanceof EventDriven)
+					stepTimeDriven(t);
+			}
+
+			eventBus.publish(new ParticipantsComplete(time.clone()));
+			logger.debug("Executing Environment...");
+			try {
+				this.scenario.getEnvironment().incrementTime();
+			} catch (Exception e) {
+				logger.warn(
+						"Exception thrown by Environment "
+								+ this.scenario.getEnvironment()
+								+ " on execution.", e);
+			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.ENVIRONMENT);
+
+			logger.debug("Executing Plugins...");
+			for (Plugin pl : activePlugins) {
+				stepPlugin(pl, prof);
+			}
+			for (Plugin pl : duePlugins) {
+				if (pl instanceof EventDriven)
+					stepPlugin(pl, prof);
+			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PLUGINS);
+
+			eventBus.publish(new EndOfTimeCycle(time.clone()));
+			if (prof != null)
+				prof.endCycle();
+
+			dueParticipants.clear();
+			dueTimeDriven.clear();
+			duePlugins.clear();
+			advance(everyCycle);
+			cycleComplete();
+		}
+
+		logger.info("Simulation cycle complete.");
+	}
+
+	/**
+	 * Take the wake-ups for the current time from the calendar.
+	 */
+	private synchronized void takeDue(Set<Participant> participants,
+			Set<TimeDriven> timedriven, Set<Plugin> plugins) {
+		WakeUp w;
+		while ((w = calendar.peek()) != null && !w.time.greaterThan(time)) {
+			calendar.poll();
+			if (w.target instanceof Participant)
+				participants.add((Participant) w.target);
+			else if (w.target instanceof Plugin)
+				plugins.add((Plugin) w.target);
+			else
+				timedriven.add(w.target);
+		}
+		cycleStarted = true;
+	}
+
+	/**
+	 * Move the simulation time on to the next cycle to run.
+	 * 
+	 * @param everyCycle
+	 *            if there are components which must be stepped every cycle.
+	 */
+	private synchronized void advance(boolean everyCycle) {
+		cycleStarted = false;
+		if (everyCycle) {
+			time.increment();
+			return;
+		}
+		final Time finish = this.scenario.getFinishTime();
+		final WakeUp next = calendar.peek();
+		if (next == null || !finish.greaterThan(next.time)) {
+			logger.debug("No wake-ups before finish time " + finish);
+			time.setTime(finish);
+		} else {
+			time.increment();
+			if (next.time.greaterThan(time)) {
+				if (logger.isDebugEnabled())
+					logger.debug("Skipping to time " + next.time);
+				time.setTime(next.time);
+			}
+		}
+	}
+
+	private void stepParticipant(Participant p, CycleProfiler prof) {
+		final boolean deterministic = DeterministicExecution.isEnabled();
+		if (deterministic)
+			DeterministicExecution.enter(p.getID());
+		final long start = prof != null ? System.nanoTime() : 0L;
+		try {
+			p.incrementTime();
+		} catch (Exception e) {
+			logger.warn("Exception thrown by participant " + p.getName()
+					+ " on execution.", e);
+		} finally {
+			if (prof != null)
+				prof.participant(p, start);
+			if (deterministic)
+				DeterministicExecution.exit();
+		}
+	}
+
+	private void stepTimeDriven(TimeDriven t) {
+		try {
+			t.incrementTime();
+		} catch (Exception e) {
+			logger.warn("Exception thrown by TimeDriven " + t
+					+ " on execution.", e);
+		}
+	}
+
+	private void stepPlugin(Plugin pl, CycleProfiler prof) {
+		final long start = prof != null ? System.nanoTime() : 0L;
+		try {
+			pl.incrementTime();
+		} catch (Exception e) {
+			logger.warn("Exception thrown by Plugin " + pl + " on execution.",
+					e);
+		} finally {
+			if (prof != null)
+				prof.plugin(pl, start);
+		}
+	}
+
+}
@@ -0,0 +1,43 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+/**
+ * <p>
+ * A {@link TimeDriven} which only needs to be stepped when it has something to
+ * do.
+ * </p>
+ * 
+ * <p>
+ * The {@link DiscreteEventSimulator} steps an EventDriven {@link Participant},
+ * {@link Plugin} or {@link TimeDriven} in the first time cycle, and then only
+ * at the times it asks to be woken at via the {@link EventScheduler}. Other
+ * simulators step it every cycle as normal.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface EventDriven extends TimeDriven {
+
+}
@@ -0,0 +1,53 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+
+/**
+ * Calendar of future wake-ups for {@link EventDriven} simulation components.
+ * Other components may schedule wake-ups to make sure a time cycle is run,
+ * but are not stepped twice in it.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface EventScheduler {
+
+	/**
+	 * Schedule <code>target</code> to be stepped at time <code>t</code>. If
+	 * <code>t</code> is not after the current time cycle the target will be
+	 * stepped in the next cycle.
+	 * 
+	 * @param target
+	 * @param t
+	 */
+	public void scheduleAt(TimeDriven target, Time t);
+
+	/**
+	 * Schedule <code>target</code> to be stepped <code>ticks</code> time cycles
+	 * after the current one.
+	 * 
+	 * @param target
+	 * @param ticks
+	 */
+	public void scheduleIn(TimeDriven target, int ticks);
+
+}
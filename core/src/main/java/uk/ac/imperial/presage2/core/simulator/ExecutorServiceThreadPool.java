@@ -26,10 +26,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
-public class ExecutorServiceThreadPool implements ThreadPool {
+public class ExecutorServiceThreadPool implements MeasuredThreadPool {
 
 	private final Logger logger = Logger
 			.getLogger(ExecutorServiceThreadPool.class);
@@ -40,6 +41,10 @@ public class ExecutorServiceThreadPool implements ThreadPool {
 
 	private final int threads;
 
+	private final AtomicLong busyNanos = new AtomicLong(0);
+
+	private volatile CycleProfiler profiler = null;
+
 	ExecutorServiceThreadPool(final int threads) {
 		super();
 		this.threads = threads;
@@ -51,12 +56,49 @@ public class ExecutorServiceThreadPool implements ThreadPool {
 
 	@Override
 	public void submitScheduled(Runnable s, WaitCondition condition) {
-		futures.get(condition).add(threadPool.submit(s));
+		futures.get(condition).add(
+				threadPool.submit(new TimedTask(s, condition)));
 	}
 
 	@Override
 	public void submit(Runnable s) {
-		threadPool.submit(s);
+		threadPool.submit(new TimedTask(s, null));
+	}
+
+	private class TimedTask implements Runnable {
+
+		private final Runnable task;
+		private final WaitCondition condition;
+		private final CycleProfiler prof = profiler;
+		private final long submitted = prof != null ? System.nanoTime() : 0L;
+
+		TimedTask(Runnable task, WaitCondition condition) {
+			super();
+			this.task = task;
+			this.condition = condition;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				task.run();
+			} finally {
+				busyNanos.addAndGet(System.nanoTime() - start);
+				if (prof != null)
+					prof.poolTask(condition, submitted, start);
+			}
+		}
+	}
+
+	@Override
+	public long getBusyNanos() {
+		return busyNanos.get();
+	}
+
+	@Override
+	public void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
 	}
 
 	@Override
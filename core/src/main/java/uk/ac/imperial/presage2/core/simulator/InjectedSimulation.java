@@ -25,6 +25,7 @@ import java.util.Set;
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.db.StorageService;
+import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
 import uk.ac.imperial.presage2.core.event.EventBus;
 
 import com.google.inject.AbstractModule;
@@ -157,4 +158,10 @@ public abstract class InjectedSimulation extends RunnableSimulation {
 		super.setEventBus(e);
 	}
 
+	@Override
+	@Inject(optional = true)
+	protected void setSharedState(SharedStateStorage sharedState) {
+		super.setSharedState(sharedState);
+	}
+
 }
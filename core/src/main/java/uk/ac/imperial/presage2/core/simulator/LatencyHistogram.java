@@ -0,0 +1,119 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free histogram of non-negative values, such as latencies in
+ * nanoseconds, in power of two buckets.
+ * </p>
+ * 
+ * <p>
+ * Recording a value is a handful of atomic increments, so histograms may be
+ * shared between threads. Percentiles are approximate to within a factor of
+ * two.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of buckets. Bucket <code>b</code> holds values in
+	 * [2<sup>b-1</sup>, 2<sup>b</sup>), with 0 in bucket 0. Values of
+	 * 2<sup>BUCKETS-2</sup> and over all go in the last bucket.
+	 */
+	static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong(0);
+	private final AtomicLong total = new AtomicLong(0);
+	private final AtomicLong max = new AtomicLong(0);
+
+	/**
+	 * Record a value. Negative values are recorded as 0.
+	 * 
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		buckets.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value))
+			;
+	}
+
+	static int bucket(long value) {
+		final int b = 64 - Long.numberOfLeadingZeros(value);
+		return b < BUCKETS ? b : BUCKETS - 1;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getTotal() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		final long n = count.get();
+		return n == 0 ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * Get an upper bound on the <code>q</code>th quantile of the recorded
+	 * values.
+	 * 
+	 * @param q
+	 *            quantile between 0 and 1.
+	 * @return upper bound of the bucket the quantile falls in, or the maximum
+	 *         value if that is lower.
+	 */
+	public long getPercentile(double q) {
+		final long n = count.get();
+		if (n == 0)
+			return 0;
+		final long target = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += buckets.get(b);
+			if (seen >= target) {
+				if (b == 0)
+					return 0;
+				else if (b == BUCKETS - 1)
+					return max.get();
+				return Math.min((1L << b) - 1, max.get());
+			}
+		}
+		return max.get();
+	}
+
+}
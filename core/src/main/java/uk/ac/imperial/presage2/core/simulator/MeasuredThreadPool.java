@@ -0,0 +1,48 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+/**
+ * A {@link ThreadPool} which keeps a running total of the time its threads
+ * have spent executing tasks, and can record its tasks to a
+ * {@link CycleProfiler}.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+interface MeasuredThreadPool extends ThreadPool {
+
+	/**
+	 * Get the total time spent running tasks in this pool so far, summed over
+	 * all threads.
+	 * 
+	 * @return busy time in nanoseconds.
+	 */
+	long getBusyNanos();
+
+	/**
+	 * Record how long each task waits to start and runs for to
+	 * <code>profiler</code>.
+	 * 
+	 * @param profiler
+	 *            profiler to record to, or null to stop recording.
+	 */
+	void setProfiler(CycleProfiler profiler);
+
+}
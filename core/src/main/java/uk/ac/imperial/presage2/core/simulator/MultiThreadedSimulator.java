@@ -18,15 +18,21 @@
  */
 package uk.ac.imperial.presage2.core.simulator;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshotSource;
 import uk.ac.imperial.presage2.core.event.Event;
 import uk.ac.imperial.presage2.core.event.EventBus;
 import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.ObserverPlugin;
 import uk.ac.imperial.presage2.core.plugin.Plugin;
 
 import com.google.inject.Inject;
@@ -44,12 +50,29 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 
 	private final int threads;
 
-	private final ExecutorServiceThreadPool threadPool;
+	private final ThreadPool threadPool;
+
+	/**
+	 * Set when participants are executed in chunks rather than as one task
+	 * each.
+	 */
+	private ChunkedParticipantExecutor chunkedExecutor = null;
+
+	/**
+	 * How many cycles we may run ahead of {@link ObserverPlugin}s, 0 to run
+	 * them in their own cycle.
+	 */
+	private int pipelineDepth = 0;
+
+	private SharedStateSnapshotSource snapshots = null;
+
+	private ObserverPipeline pipeline = null;
 
 	/**
 	 * Constructor for use by Guice. Uses an injected {@link ThreadsValue}
-	 * parameter to get a {@link Threads} value to pass to
-	 * {@link #MultiThreadedSimulator(Scenario, Time, EventBus, int)}.
+	 * parameter to get a {@link Threads} value and {@link PoolType} to create
+	 * the {@link ThreadPool} passed to
+	 * {@link #MultiThreadedSimulator(Scenario, Time, EventBus, ThreadPool)}.
 	 * 
 	 * @param scenario
 	 * @param t
@@ -59,7 +82,9 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 	@Inject
 	public MultiThreadedSimulator(Scenario scenario, Time t, EventBus eventBus,
 			ThreadsValue threads) {
-		this(scenario, t, eventBus, threads.value);
+		this(scenario, t, eventBus, threads.createThreadPool());
+		setChunkedExecution(threads.execution == ParticipantExecution.CHUNKED);
+		setPipelineDepth(threads.pipelineDepth);
 	}
 
 	/**
@@ -74,14 +99,64 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 	 */
 	public MultiThreadedSimulator(Scenario scenario, Time t, EventBus eventBus,
 			int threads) {
+		this(scenario, t, eventBus, new ExecutorServiceThreadPool(threads));
+	}
+
+	/**
+	 * Create a multi threaded simulator for a given {@link Scenario} which
+	 * executes using the given {@link ThreadPool}.
+	 * 
+	 * @param scenario
+	 *            {@link Scenario} to simulate
+	 * @param t
+	 *            {@link Time} start time
+	 * @param threadPool
+	 *            {@link ThreadPool} to run tasks in.
+	 */
+	public MultiThreadedSimulator(Scenario scenario, Time t, EventBus eventBus,
+			ThreadPool threadPool) {
 		super(scenario, t, eventBus);
-		this.threads = threads;
-		this.threadPool = new ExecutorServiceThreadPool(this.threads);
+		this.threads = threadPool.getThreadCount();
+		this.threadPool = threadPool;
+	}
+
+	/**
+	 * {@link ThreadPool} implementations the simulator can be bound to use.
+	 */
+	enum PoolType {
+		/**
+		 * {@link ExecutorServiceThreadPool}, waits on a {@link Future} per
+		 * task.
+		 */
+		FUTURES,
+		/**
+		 * {@link BarrierThreadPool}, waits on a single barrier per
+		 * {@link WaitCondition}.
+		 */
+		BARRIER
+	}
+
+	/**
+	 * How participants are handed to the {@link ThreadPool} each cycle.
+	 */
+	enum ParticipantExecution {
+		/**
+		 * One task per participant.
+		 */
+		PER_PARTICIPANT,
+		/**
+		 * One task per thread, each claiming adaptively sized chunks of
+		 * participants. See {@link ChunkedParticipantExecutor}.
+		 */
+		CHUNKED
 	}
 
 	/**
 	 * Holder to allow optional injection of a {@link Threads} value, otherwise
-	 * use a default value of 4.
+	 * use a default value of 4, a {@link PoolType}, otherwise use
+	 * {@link PoolType#FUTURES}, a {@link ParticipantExecution}, otherwise use
+	 * {@link ParticipantExecution#PER_PARTICIPANT}, and a
+	 * {@link PipelineDepth}, otherwise 0.
 	 * 
 	 * @author Sam Macbeth
 	 * 
@@ -90,6 +165,87 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 		@Inject(optional = true)
 		@Threads
 		int value = 4;
+
+		@Inject(optional = true)
+		@Threads
+		PoolType pool = PoolType.FUTURES;
+
+		@Inject(optional = true)
+		@Threads
+		ParticipantExecution execution = ParticipantExecution.PER_PARTICIPANT;
+
+		@Inject(optional = true)
+		@PipelineDepth
+		int pipelineDepth = 0;
+
+		ThreadPool createThreadPool() {
+			switch (pool) {
+			case BARRIER:
+				return new BarrierThreadPool(value);
+			default:
+				return new ExecutorServiceThreadPool(value);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Set whether participants should be executed in chunks.
+	 * </p>
+	 * 
+	 * <p>
+	 * When enabled each cycle submits one task per thread which claims chunks
+	 * of participants from the cycle's participant set, instead of one task per
+	 * participant. Idle threads take over chunks which would otherwise wait
+	 * behind a busy one, and chunk sizes adapt to the per-participant cost
+	 * measured in earlier cycles. This greatly reduces scheduling overhead
+	 * when participants do little work each cycle.
+	 * </p>
+	 * 
+	 * @param chunked
+	 */
+	public void setChunkedExecution(boolean chunked) {
+		if (chunked && chunkedExecutor == null)
+			chunkedExecutor = new ChunkedParticipantExecutor(threads);
+		else if (!chunked)
+			chunkedExecutor = null;
+	}
+
+	/**
+	 * <p>
+	 * Set how many time cycles the simulator may run ahead of its
+	 * {@link ObserverPlugin}s.
+	 * </p>
+	 * 
+	 * <p>
+	 * With a depth greater than 0, and a shared state which can take
+	 * {@link SharedStateSnapshotSource snapshots}, observers are given a
+	 * snapshot of the shared state, taken once the other plugins have run and
+	 * before the environment, and run on their own thread while the following
+	 * cycles are simulated. Once they fall
+	 * <code>depth</code> cycles behind the simulator waits for them to catch
+	 * up. With a depth of 0 observers are run with the other plugins.
+	 * </p>
+	 * 
+	 * @param depth
+	 */
+	public void setPipelineDepth(int depth) {
+		if (depth < 0)
+			throw new IllegalArgumentException(
+					"Pipeline depth cannot be negative.");
+		this.pipelineDepth = depth;
+	}
+
+	/**
+	 * Use the environment's shared state for snapshots for pipelined
+	 * {@link ObserverPlugin}s, if it is able to take them.
+	 * 
+	 * @param sharedState
+	 */
+	@Inject(optional = true)
+	public void setSharedState(EnvironmentSharedStateAccess sharedState) {
+		if (sharedState instanceof SharedStateSnapshotSource)
+			this.snapshots = (SharedStateSnapshotSource) sharedState;
 	}
 
 	/**
@@ -108,11 +264,17 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 
 		@Override
 		public void run() {
+			final boolean deterministic = DeterministicExecution.isEnabled();
+			if (deterministic)
+				DeterministicExecution.enter(p.getID());
 			try {
 				p.initialise();
 			} catch (Exception e) {
 				logger.warn("Exception thrown by participant " + p.getName()
 						+ " on initialisation.", e);
+			} finally {
+				if (deterministic)
+					DeterministicExecution.exit();
 			}
 		}
 
@@ -148,6 +310,9 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 
 		// init Participants
 		logger.info("Initialising Participants..");
+		trackParticipants();
+		findProfiler();
+		findCheckpointer();
 		for (Participant p : this.scenario.getParticipants()) {
 			submitScheduled(new ParticipantInitialisor(p),
 					WaitCondition.END_OF_INITIALISE);
@@ -183,6 +348,69 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 		}
 	}
 
+	/**
+	 * <p>
+	 * Wrapper for a call to {@link Participant#incrementTime()} as a
+	 * {@link Runnable} for use with the {@link ExecutorService}.
+	 * </p>
+	 */
+	private class ParticipantIncrementor implements Runnable {
+
+		private final Participant p;
+		private final CycleProfiler prof;
+
+		public ParticipantIncrementor(Participant p, CycleProfiler prof) {
+			this.p = p;
+			this.prof = prof;
+		}
+
+		@Override
+		public void run() {
+			final boolean deterministic = DeterministicExecution.isEnabled();
+			if (deterministic)
+				DeterministicExecution.enter(p.getID());
+			final long start = prof != null ? System.nanoTime() : 0L;
+			try {
+				p.incrementTime();
+			} catch (Exception e) {
+				logger.warn("Exception thrown by participant " + p.getName()
+						+ " on execution.", e);
+			} finally {
+				if (prof != null)
+					prof.participant(p, start);
+				if (deterministic)
+					DeterministicExecution.exit();
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Wrapper for a call to {@link Plugin#incrementTime()} which records its
+	 * latency with the {@link CycleProfiler}.
+	 * </p>
+	 */
+	private static class PluginIncrementor implements Runnable {
+
+		private final Plugin p;
+		private final CycleProfiler prof;
+
+		public PluginIncrementor(Plugin p, CycleProfiler prof) {
+			this.p = p;
+			this.prof = prof;
+		}
+
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				p.incrementTime();
+			} finally {
+				prof.plugin(p, start);
+			}
+		}
+	}
+
 	private class EventBusPublisher implements Runnable {
 
 		private final Event e;
@@ -207,19 +435,44 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 	@Override
 	public void run() {
 
+		if (pipelineDepth > 0 && snapshots != null && pipeline == null) {
+			final List<ObserverPlugin> observers = new ArrayList<ObserverPlugin>();
+			for (Plugin pl : this.scenario.getPlugins()) {
+				if (pl instanceof ObserverPlugin)
+					observers.add((ObserverPlugin) pl);
+			}
+			if (!observers.isEmpty()) {
+				logger.info("Pipelining " + observers.size()
+						+ " observer plugins, up to " + pipelineDepth
+						+ " cycles behind.");
+				pipeline = new ObserverPipeline(pipelineDepth, observers);
+			}
+		}
+
 		while (this.scenario.getFinishTime().greaterThan(time)) {
 
 			logger.info("Time: " + time.toString());
+			final CycleProfiler prof = profiling();
+			if (prof != null)
+				prof.startCycle();
+			if (threadPool instanceof MeasuredThreadPool)
+				((MeasuredThreadPool) threadPool).setProfiler(prof);
 
 			logger.info("Executing Participants...");
-			for (Participant p : this.scenario.getParticipants()) {
-				try {
-					submitScheduled(new TimeIncrementor(p),
-							WaitCondition.BEFORE_ENVIRONMENT);
-				} catch (Exception e) {
-					logger.warn(
-							"Exception thrown by participant " + p.getName()
-									+ " on execution.", e);
+			if (chunkedExecutor != null) {
+				chunkedExecutor.setProfiler(prof);
+				chunkedExecutor.execute(this, getAwakeParticipants(),
+						WaitCondition.AFTER_AGENTS);
+			} else {
+				for (Participant p : getAwakeParticipants()) {
+					try {
+						submitScheduled(new ParticipantIncrementor(p, prof),
+								WaitCondition.AFTER_AGENTS);
+					} catch (Exception e) {
+						logger.warn(
+								"Exception thrown by participant "
+										+ p.getName() + " on execution.", e);
+					}
 				}
 			}
 
@@ -235,6 +488,8 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 			}
 			// wait for Participants to finish
 			waitFor(WaitCondition.AFTER_AGENTS);
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PARTICIPANTS);
 
 			try {
 				submitScheduled(new EventBusPublisher(new ParticipantsComplete(
@@ -245,8 +500,11 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 
 			logger.info("Executing Plugins...");
 			for (Plugin pl : this.scenario.getPlugins()) {
+				if (pipeline != null && pl instanceof ObserverPlugin)
+					continue;
 				try {
-					submitScheduled(new TimeIncrementor(pl),
+					submitScheduled(prof != null ? new PluginIncrementor(pl,
+							prof) : new TimeIncrementor(pl),
 							WaitCondition.BEFORE_ENVIRONMENT);
 				} catch (Exception e) {
 					logger.warn("Exception thrown by Plugin " + pl
@@ -255,6 +513,14 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 			}
 
 			waitFor(WaitCondition.BEFORE_ENVIRONMENT);
+			if (pipeline != null) {
+				// plugins and ParticipantsComplete listeners have finished and
+				// the environment has not started, so nothing is writing to
+				// shared state while we copy it.
+				pipeline.submit(snapshots.snapshot(time.clone()));
+			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PLUGINS);
 
 			try {
 				submitScheduled(
@@ -268,9 +534,14 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 			}
 
 			waitFor(WaitCondition.END_OF_TIME_CYCLE);
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.ENVIRONMENT);
 			eventBus.publish(new EndOfTimeCycle(time.clone()));
+			if (prof != null)
+				prof.endCycle();
 
 			time.increment();
+			cycleComplete();
 
 		}
 
@@ -279,6 +550,11 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 	@Override
 	public void complete() {
 		logger.info("Running simulation completion tasks...");
+		if (pipeline != null) {
+			logger.info("Waiting for observer plugins to finish.");
+			pipeline.shutdown();
+			pipeline = null;
+		}
 		for (Plugin pl : this.scenario.getPlugins()) {
 			try {
 				pl.onSimulationComplete();
@@ -315,4 +591,16 @@ public class MultiThreadedSimulator extends Simulator implements ThreadPool {
 		return this.threads;
 	}
 
+	/**
+	 * Get the total time the worker threads have spent running tasks.
+	 * 
+	 * @return busy time in nanoseconds, or -1 if the {@link ThreadPool} does
+	 *         not measure it.
+	 */
+	long getBusyNanos() {
+		if (threadPool instanceof MeasuredThreadPool)
+			return ((MeasuredThreadPool) threadPool).getBusyNanos();
+		return -1;
+	}
+
 }
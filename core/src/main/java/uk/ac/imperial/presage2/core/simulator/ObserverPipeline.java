@@ -0,0 +1,144 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+import uk.ac.imperial.presage2.core.plugin.ObserverPlugin;
+
+/**
+ * <p>
+ * Runs {@link ObserverPlugin}s on their own thread so that observing one time
+ * cycle overlaps with simulating the next.
+ * </p>
+ * 
+ * <p>
+ * Each cycle's {@link SharedStateSnapshot} is observed in order. At most
+ * <code>depth</code> cycles may be waiting to be observed; after that
+ * {@link #submit(SharedStateSnapshot)} blocks until the observers catch up.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class ObserverPipeline {
+
+	private final Logger logger = Logger.getLogger(ObserverPipeline.class);
+
+	private final int depth;
+
+	private final List<ObserverPlugin> observers;
+
+	private final LinkedList<Future<?>> inFlight = new LinkedList<Future<?>>();
+
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "observer-pipeline");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	ObserverPipeline(int depth, Collection<ObserverPlugin> observers) {
+		super();
+		this.depth = depth;
+		this.observers = new ArrayList<ObserverPlugin>(observers);
+	}
+
+	private class Observation implements Runnable {
+
+		private final SharedStateSnapshot state;
+
+		Observation(SharedStateSnapshot state) {
+			super();
+			this.state = state;
+		}
+
+		@Override
+		public void run() {
+			for (ObserverPlugin o : observers) {
+				try {
+					o.observe(state);
+				} catch (Exception e) {
+					logger.warn("Exception thrown by Plugin " + o
+							+ " on observation.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hand a cycle's state to the observers.
+	 * 
+	 * @param state
+	 */
+	void submit(SharedStateSnapshot state) {
+		while (!inFlight.isEmpty() && inFlight.getFirst().isDone()) {
+			await(inFlight.removeFirst());
+		}
+		if (inFlight.size() >= depth) {
+			logger.debug("Waiting for observers to catch up.");
+			while (inFlight.size() >= depth) {
+				await(inFlight.removeFirst());
+			}
+		}
+		inFlight.add(executor.submit(new Observation(state)));
+	}
+
+	/**
+	 * Wait for all submitted cycles to be observed.
+	 */
+	void drain() {
+		while (!inFlight.isEmpty()) {
+			await(inFlight.removeFirst());
+		}
+	}
+
+	/**
+	 * Wait for the observers to finish and stop the observer thread.
+	 */
+	void shutdown() {
+		drain();
+		executor.shutdown();
+	}
+
+	private void await(Future<?> f) {
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			logger.warn("Observation failed", e.getCause());
+		}
+	}
+
+}
@@ -18,6 +18,8 @@
  */
 package uk.ac.imperial.presage2.core.simulator;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
@@ -36,9 +38,11 @@ import uk.ac.imperial.presage2.core.db.DatabaseModule;
 import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.db.StorageService;
 import uk.ac.imperial.presage2.core.db.persistent.PersistentSimulation;
+import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
 import uk.ac.imperial.presage2.core.event.EventBus;
 import uk.ac.imperial.presage2.core.event.EventBusModule;
 import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.util.random.Random;
 
 import com.google.inject.AbstractModule;
 
@@ -69,6 +73,14 @@ public abstract class RunnableSimulation implements Runnable {
 	protected StorageService graphDb;
 	protected PersistentSimulation simPersist;
 
+	protected SharedStateStorage sharedState;
+
+	protected final SimulationMonitor monitor = new SimulationMonitor(this);
+
+	protected File restoreFrom = null;
+
+	protected Checkpoint restoreCheckpoint = null;
+
 	private Map<String, Field> fieldParameters = new HashMap<String, Field>();
 
 	private Map<String, Method> methodParameters = new HashMap<String, Method>();
@@ -187,6 +199,7 @@ public abstract class RunnableSimulation implements Runnable {
 
 	@EventListener
 	public void onNewTimeCycle(EndOfTimeCycle e) {
+		monitor.onCycle();
 		updateDatabase();
 	}
 
@@ -299,6 +312,33 @@ public abstract class RunnableSimulation implements Runnable {
 		e.subscribe(this);
 	}
 
+	protected void setSharedState(SharedStateStorage sharedState) {
+		this.sharedState = sharedState;
+	}
+
+	/**
+	 * Resume this simulation from a {@link Checkpoint} rather than from the
+	 * start. The simulation is initialised as normal and then restored before
+	 * it is run.
+	 * 
+	 * @param checkpoint
+	 *            checkpoint file written by a {@link Checkpointer}.
+	 */
+	public void setRestoreCheckpoint(File checkpoint) {
+		this.restoreFrom = checkpoint;
+	}
+
+	/**
+	 * Resume this simulation from a {@link Checkpoint} already in memory, such
+	 * as one returned by {@link #runToCheckpoint()}. Several simulations may be
+	 * restored from the same checkpoint.
+	 * 
+	 * @param checkpoint
+	 */
+	public void setRestoreCheckpoint(Checkpoint checkpoint) {
+		this.restoreCheckpoint = checkpoint;
+	}
+
 	/**
 	 * <p>
 	 * Create a new {@link RunnableSimulation} from a provided string
@@ -377,29 +417,69 @@ public abstract class RunnableSimulation implements Runnable {
 	}
 
 	/**
-	 * Run this simulation.
+	 * Run this simulation. A {@link SimulationMonitor} is registered with the
+	 * platform MBean server while it runs.
 	 */
 	@Override
 	public void run() {
+		execute(false);
+	}
 
-		this.state = SimulationState.INITIALISING;
-		updateDatabase();
-		this.simulator.initialise();
+	/**
+	 * Run this simulation and take a {@link Checkpoint} once it reaches its
+	 * finish time, before it is completed. Used to run a warm-up period which
+	 * other simulations are then forked from.
+	 * 
+	 * @return {@link Checkpoint} at the simulation's finish time.
+	 */
+	public Checkpoint runToCheckpoint() {
+		return execute(true);
+	}
 
-		this.state = SimulationState.RUNNING;
-		updateDatabase();
-		this.simulator.run();
+	private Checkpoint execute(boolean checkpointAtEnd) {
+		Checkpoint end = null;
+		monitor.register();
+		try {
+			this.state = SimulationState.INITIALISING;
+			updateDatabase();
+			this.simulator.initialise();
+			try {
+				if (this.restoreCheckpoint != null)
+					this.simulator.restore(this.restoreCheckpoint);
+				else if (this.restoreFrom != null)
+					this.simulator.restore(Checkpoint.read(this.restoreFrom));
+			} catch (IOException e) {
+				throw new RuntimeException("Could not restore checkpoint", e);
+			}
 
-		this.state = SimulationState.FINISHING;
-		updateDatabase();
-		this.simulator.complete();
-		this.state = SimulationState.COMPLETE;
-		updateDatabase();
+			this.state = SimulationState.RUNNING;
+			updateDatabase();
+			this.simulator.run();
+			if (checkpointAtEnd) {
+				try {
+					end = this.simulator.checkpoint();
+				} catch (IOException e) {
+					throw new RuntimeException("Could not checkpoint simulation", e);
+				}
+			}
 
-		if (this.database != null) {
-			this.database.stop();
+			this.state = SimulationState.FINISHING;
+			updateDatabase();
+			this.simulator.complete();
+			this.state = SimulationState.COMPLETE;
+			updateDatabase();
+
+			if (this.database != null) {
+				this.database.stop();
+			}
+			this.simulator.shutdown();
+		} catch (RuntimeException e) {
+			this.simulator.shutdown();
+			throw e;
+		} finally {
+			monitor.unregister();
 		}
-		this.simulator.shutdown();
+		return end;
 	}
 
 	/**
@@ -420,6 +500,11 @@ public abstract class RunnableSimulation implements Runnable {
 	 * inside the annotations. These fields and methods must be public in order
 	 * for use to insert the provided values in.
 	 * </p>
+	 * <p>
+	 * <code>--checkpoint=cycles,file</code> writes a {@link Checkpoint} to
+	 * <code>file</code> every <code>cycles</code> time cycles, and
+	 * <code>--restore=file</code> resumes the simulation from one.
+	 * </p>
 	 * 
 	 * @param args
 	 * @throws ClassNotFoundException
@@ -428,6 +513,10 @@ public abstract class RunnableSimulation implements Runnable {
 	 * @throws InstantiationException
 	 * @throws IllegalAccessException
 	 */
+	final static String CHECKPOINT_ARG = "--checkpoint=";
+
+	final static String RESTORE_ARG = "--restore=";
+
 	final public static void main(String[] args) throws ClassNotFoundException,
 			NoSuchMethodException, InvocationTargetException, InstantiationException,
 			IllegalAccessException {
@@ -453,6 +542,25 @@ public abstract class RunnableSimulation implements Runnable {
 		AbstractModule dbModule = DatabaseModule.load();
 		if (dbModule != null)
 			additionalModules.add(dbModule);
+		// checkpointing
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].startsWith(CHECKPOINT_ARG)) {
+				String[] pieces = args[i].substring(CHECKPOINT_ARG.length()).split(",", 2);
+				int cycles = 0;
+				if (pieces.length == 2) {
+					try {
+						cycles = Integer.parseInt(pieces[0]);
+					} catch (NumberFormatException e) {
+						cycles = 0;
+					}
+				}
+				if (cycles <= 0) {
+					System.err.println("Expected " + CHECKPOINT_ARG + "cycles,file");
+					return;
+				}
+				additionalModules.add(new CheckpointModule(pieces[1], cycles));
+			}
+		}
 
 		// Create the runnable simulation assuming it's an InjectedSimulation
 		RunnableSimulation sim = newFromClassName(args[0], additionalModules);
@@ -461,8 +569,11 @@ public abstract class RunnableSimulation implements Runnable {
 
 		// check for parameters in args
 		Map<String, String> providedParams = new HashMap<String, String>();
+		File restore = null;
 		for (int i = 1; i < args.length; i++) {
-			if (Pattern.matches("([a-zA-Z0-9_]+)=([a-zA-Z0-9_.])+$", args[i])) {
+			if (args[i].startsWith(RESTORE_ARG)) {
+				restore = new File(args[i].substring(RESTORE_ARG.length()));
+			} else if (Pattern.matches("([a-zA-Z0-9_]+)=([a-zA-Z0-9_.])+$", args[i])) {
 				String[] pieces = args[i].split("=", 2);
 				providedParams.put(pieces[0], pieces[1]);
 			}
@@ -478,6 +589,7 @@ public abstract class RunnableSimulation implements Runnable {
 		}
 
 		// go!
+		sim.setRestoreCheckpoint(restore);
 		sim.load();
 		sim.run();
 
@@ -486,9 +598,41 @@ public abstract class RunnableSimulation implements Runnable {
 	final public static void runSimulationID(final DatabaseService db, final StorageService sto,
 			long simID, int threads) throws ClassNotFoundException, NoSuchMethodException,
 			InvocationTargetException, InstantiationException, IllegalAccessException {
+		runSimulationID(db, sto, simID, threads, null, 0, null);
+	}
+
+	/**
+	 * Run the simulation with the given ID from storage.
+	 * 
+	 * @param db
+	 * @param sto
+	 * @param simID
+	 * @param threads
+	 *            number of threads to run the simulator with.
+	 * @param checkpoint
+	 *            file to write checkpoints to, or null for no checkpoints.
+	 * @param checkpointInterval
+	 *            number of cycles between checkpoints.
+	 * @param restore
+	 *            checkpoint to resume the simulation from, or null to start
+	 *            from the beginning. A simulation which has already been
+	 *            started may only be run again from a checkpoint.
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws InvocationTargetException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	final public static void runSimulationID(final DatabaseService db, final StorageService sto,
+			long simID, int threads, File checkpoint, int checkpointInterval, File restore)
+			throws ClassNotFoundException, NoSuchMethodException, InvocationTargetException,
+			InstantiationException, IllegalAccessException {
 		// Additional modules we want for this simulation run
 		Set<AbstractModule> additionalModules = new HashSet<AbstractModule>();
-		additionalModules.add(SimulatorModule.multiThreadedSimulator(threads));
+		SimulatorModule simulatorModule = SimulatorModule.multiThreadedSimulator(threads);
+		if (checkpoint != null)
+			simulatorModule.checkpoint(checkpoint.getPath(), checkpointInterval);
+		additionalModules.add(simulatorModule);
 		additionalModules.add(new EventBusModule());
 		// wrap db bindings into a new module as they were already created from
 		// elsewhere.
@@ -507,7 +651,8 @@ public abstract class RunnableSimulation implements Runnable {
 			db.stop();
 			return;
 		}
-		if (!sim.getState().equalsIgnoreCase("NOT STARTED") && !sim.getState().equalsIgnoreCase("AUTO START")) {
+		if (restore == null && !sim.getState().equalsIgnoreCase("NOT STARTED")
+				&& !sim.getState().equalsIgnoreCase("AUTO START")) {
 			System.err.println("Simulation " + simID + " has already been started. Aborting.");
 			db.stop();
 			return;
@@ -533,12 +678,174 @@ public abstract class RunnableSimulation implements Runnable {
 		}
 
 		run.simPersist = sim;
+		run.setRestoreCheckpoint(restore);
 
 		// now run
 		run.load();
 		run.run();
 	}
 
+	/**
+	 * <p>
+	 * Run the children of the simulation with ID <code>parentID</code> from a
+	 * shared warm-up period.
+	 * </p>
+	 * <p>
+	 * The parent is run in memory, without storage, up to time
+	 * <code>warmUp</code> and checkpointed. Each child which has not yet been
+	 * started is then restored from that checkpoint and run to its own finish
+	 * time with its own parameters. Children run one after another, as
+	 * {@link Random} is shared by the whole process. The restored shared state
+	 * is held copy-on-write, so children only copy the parts they change.
+	 * </p>
+	 * <p>
+	 * A child's state can only be restored if it creates the same
+	 * participants, with the same IDs, as the warm-up. Participant IDs are
+	 * only repeatable under {@link DeterministicExecution}, so the warm-up and
+	 * children are run with a
+	 * {@link SimulatorModule#multiThreadedSimulator(int)} in deterministic
+	 * mode with the given seed. A child whose participants are not all in the
+	 * checkpoint is marked as failed. Only parameters which do not affect the
+	 * warm-up should differ between the parent and its children.
+	 * </p>
+	 * 
+	 * @param sto
+	 * @param parentID
+	 *            simulation whose children to run.
+	 * @param warmUp
+	 *            time to run the parent to.
+	 * @param threads
+	 *            number of threads to run the simulator with.
+	 * @param seed
+	 *            random seed, must be greater than 0.
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws InvocationTargetException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	final public static void runForked(final StorageService sto, long parentID, int warmUp,
+			int threads, long seed) throws ClassNotFoundException, NoSuchMethodException,
+			InvocationTargetException, InstantiationException, IllegalAccessException {
+		runForked(sto, parentID, warmUp,
+				SimulatorModule.multiThreadedSimulator(threads).deterministic(seed));
+	}
+
+	/**
+	 * Run the children of the simulation with ID <code>parentID</code> from a
+	 * shared warm-up period, as
+	 * {@link #runForked(StorageService, long, int, int, long)}, with the
+	 * warm-up and each child using <code>simulator</code>, which must be in
+	 * deterministic mode.
+	 * 
+	 * @param sto
+	 * @param parentID
+	 *            simulation whose children to run.
+	 * @param warmUp
+	 *            time to run the parent to.
+	 * @param simulator
+	 *            simulator configuration to run with. It should not write
+	 *            checkpoints, as every run would write to the same file.
+	 * @throws IllegalArgumentException
+	 *             if <code>simulator</code> is not deterministic.
+	 * @throws ClassNotFoundException
+	 * @throws NoSuchMethodException
+	 * @throws InvocationTargetException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	final public static void runForked(final StorageService sto, long parentID, int warmUp,
+			SimulatorModule simulator) throws ClassNotFoundException, NoSuchMethodException,
+			InvocationTargetException, InstantiationException, IllegalAccessException {
+		if (!simulator.isDeterministic())
+			throw new IllegalArgumentException(
+					"Forked simulations must be run in deterministic mode.");
+		PersistentSimulation parent = sto.getSimulationById(parentID);
+		if (parent == null) {
+			System.err.println("Simulation with ID " + parentID + " not found in storage. Aborting.");
+			return;
+		}
+
+		// run the warm-up without storage
+		Set<AbstractModule> warmUpModules = new HashSet<AbstractModule>();
+		warmUpModules.add(simulator);
+		warmUpModules.add(new EventBusModule());
+		RunnableSimulation warm = newFromClassName(parent.getClassName(), warmUpModules);
+		Map<String, String> warmUpParams = new HashMap<String, String>(parent.getParameters());
+		warmUpParams.put("finishTime", Integer.toString(warmUp));
+		if (!warm.setParameters(warmUpParams))
+			return;
+		warm.load();
+		Checkpoint checkpoint = warm.runToCheckpoint();
+
+		for (Long childID : parent.getChildren()) {
+			PersistentSimulation child = sto.getSimulationById(childID);
+			if (!child.getState().equalsIgnoreCase("NOT STARTED")
+					&& !child.getState().equalsIgnoreCase("AUTO START")) {
+				System.err.println("Simulation " + childID + " has already been started. Skipping.");
+				continue;
+			}
+			if (child.getFinishTime() <= warmUp) {
+				System.err.println("Simulation " + childID + " finishes before time " + warmUp
+						+ ". Skipping.");
+				continue;
+			}
+			child.setState(SimulationState.LOADING.name());
+			sto.setSimulation(child);
+
+			// the database is shared by all children, so only give them
+			// storage, which they will not stop.
+			Set<AbstractModule> childModules = new HashSet<AbstractModule>();
+			childModules.add(simulator);
+			childModules.add(new EventBusModule());
+			childModules.add(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bind(StorageService.class).toInstance(sto);
+				}
+			});
+			RunnableSimulation run = newFromClassName(child.getClassName(), childModules);
+			run.setGraphDB(sto);
+			if (!run.setParameters(child.getParameters())) {
+				child.setState("FAILED");
+				sto.setSimulation(child);
+				continue;
+			}
+			run.simPersist = child;
+			run.setRestoreCheckpoint(checkpoint);
+
+			run.load();
+			try {
+				run.run();
+			} catch (RuntimeException e) {
+				System.err.println("Simulation " + childID + " failed: " + e.getMessage());
+				child.setState("FAILED");
+				sto.setSimulation(child);
+			}
+		}
+	}
+
+	/**
+	 * Set all of this simulation's {@link Parameter}s from the given values.
+	 * 
+	 * @param values
+	 * @return false if a value is missing for any parameter.
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	private boolean setParameters(Map<String, String> values) throws IllegalAccessException,
+			InvocationTargetException {
+		for (Map.Entry<String, Class<?>> entry : getParameters().entrySet()) {
+			if (!values.containsKey(entry.getKey())) {
+				System.err.println("No value provided for " + entry.getKey()
+						+ " parameter. Aborting.");
+				return false;
+			}
+			setParameter(entry.getKey(), values.get(entry.getKey()));
+		}
+		return true;
+	}
+
 	private static class ObjectFactory {
 
 		@SuppressWarnings("unchecked")
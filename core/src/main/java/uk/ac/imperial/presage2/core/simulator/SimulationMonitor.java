@@ -0,0 +1,237 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.environment.PendingStateChanges;
+import uk.ac.imperial.presage2.core.network.NetworkController;
+
+/**
+ * <p>
+ * Exposes live telemetry of a {@link RunnableSimulation} as a JMX MBean.
+ * </p>
+ * 
+ * <p>
+ * {@link RunnableSimulation#run()} registers a monitor with the platform
+ * MBean server under
+ * <code>uk.ac.imperial.presage2:type=Simulation,name=&lt;class&gt;,id=&lt;n&gt;</code>
+ * for as long as the simulation is running. Apart from the cycle rate, which
+ * is updated once per time cycle, attributes are computed when they are read
+ * so the monitor costs nothing while no one is watching.
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class SimulationMonitor implements SimulationMonitorMBean {
+
+	private final static Logger logger = Logger
+			.getLogger(SimulationMonitor.class);
+
+	/**
+	 * Weight of the latest cycle in the smoothed cycle rate.
+	 */
+	final static double SMOOTHING = 0.2;
+
+	private final static AtomicInteger ids = new AtomicInteger(0);
+
+	private final RunnableSimulation sim;
+
+	private ObjectName name;
+
+	private volatile long startNanos = 0;
+	private volatile long lastCycleNanos = 0;
+	private volatile long cycles = 0;
+	private volatile double meanCycleNanos = 0;
+
+	private long lastBusyNanos = 0;
+	private long lastReadNanos = 0;
+
+	public SimulationMonitor(RunnableSimulation sim) {
+		super();
+		this.sim = sim;
+	}
+
+	/**
+	 * Register this monitor with the platform MBean server. Failure to
+	 * register is logged and otherwise ignored.
+	 */
+	public void register() {
+		try {
+			name = new ObjectName("uk.ac.imperial.presage2:type=Simulation,name="
+					+ ObjectName.quote(sim.getClass().getSimpleName()) + ",id="
+					+ ids.incrementAndGet());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			logger.warn("Could not register simulation MBean", e);
+			name = null;
+		}
+	}
+
+	/**
+	 * Remove this monitor from the platform MBean server if it was registered.
+	 */
+	public void unregister() {
+		if (name == null)
+			return;
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+		} catch (JMException e) {
+			logger.warn("Could not unregister simulation MBean " + name, e);
+		}
+		name = null;
+	}
+
+	/**
+	 * @return the name this monitor is registered under, or null if it is not
+	 *         registered.
+	 */
+	public ObjectName getObjectName() {
+		return name;
+	}
+
+	/**
+	 * Record the end of a time cycle. Should only be called from the
+	 * simulation thread.
+	 */
+	void onCycle() {
+		final long now = System.nanoTime();
+		if (startNanos == 0) {
+			startNanos = now;
+		} else {
+			final long interval = now - lastCycleNanos;
+			meanCycleNanos = meanCycleNanos == 0 ? interval : SMOOTHING
+					* interval + (1 - SMOOTHING) * meanCycleNanos;
+			cycles++;
+		}
+		lastCycleNanos = now;
+	}
+
+	@Override
+	public String getState() {
+		return sim.getState().name();
+	}
+
+	@Override
+	public int getCurrentTime() {
+		final Time t = sim.getCurrentSimulationTime();
+		return t == null ? -1 : t.intValue();
+	}
+
+	@Override
+	public int getFinishTime() {
+		final Time t = sim.getSimulationFinishTime();
+		return t == null ? -1 : t.intValue();
+	}
+
+	@Override
+	public int getPercentComplete() {
+		return sim.getSimluationPercentComplete();
+	}
+
+	@Override
+	public double getCyclesPerSecond() {
+		final double mean = meanCycleNanos;
+		return mean == 0 ? 0 : 1e9 / mean;
+	}
+
+	@Override
+	public double getAverageCyclesPerSecond() {
+		final long n = cycles;
+		final long elapsed = lastCycleNanos - startNanos;
+		return n == 0 || elapsed <= 0 ? 0 : n * 1e9 / elapsed;
+	}
+
+	@Override
+	public int getParticipantCount() {
+		final Scenario s = sim.getScenario();
+		return s == null ? 0 : s.getParticipants().size();
+	}
+
+	private NetworkController getNetwork() {
+		final Scenario s = sim.getScenario();
+		if (s != null) {
+			for (TimeDriven t : s.getTimeDriven()) {
+				if (t instanceof NetworkController)
+					return (NetworkController) t;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int getNetworkToDeliver() {
+		final NetworkController network = getNetwork();
+		return network == null ? -1 : network.getToDeliverCount();
+	}
+
+	@Override
+	public int getNetworkAwaitingDelivery() {
+		final NetworkController network = getNetwork();
+		return network == null ? -1 : network.getAwaitingDeliveryCount();
+	}
+
+	@Override
+	public int getPendingStateChanges() {
+		if (sim.sharedState instanceof PendingStateChanges)
+			return ((PendingStateChanges) sim.sharedState)
+					.getPendingChangeCount();
+		return -1;
+	}
+
+	@Override
+	public synchronized double getThreadPoolUtilisation() {
+		if (!(sim.getSimulator() instanceof MultiThreadedSimulator))
+			return -1;
+		final MultiThreadedSimulator mts = (MultiThreadedSimulator) sim
+				.getSimulator();
+		final long busy = mts.getBusyNanos();
+		if (busy < 0)
+			return -1;
+		final long now = System.nanoTime();
+		double utilisation = 0;
+		if (lastReadNanos > 0 && now > lastReadNanos) {
+			utilisation = (double) (busy - lastBusyNanos)
+					/ ((now - lastReadNanos) * (double) mts.getThreadCount());
+		}
+		lastBusyNanos = busy;
+		lastReadNanos = now;
+		return Math.min(1, utilisation);
+	}
+
+	@Override
+	public long getHeapUsedPerAgent() {
+		final Runtime rt = Runtime.getRuntime();
+		final long used = rt.totalMemory() - rt.freeMemory();
+		return used / Math.max(1, getParticipantCount());
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+/**
+ * JMX management interface for a running {@link RunnableSimulation}. All
+ * attributes are read only so that they can be sampled from tools such as
+ * JConsole while the simulation runs.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public interface SimulationMonitorMBean {
+
+	/**
+	 * @return the name of the simulation's current
+	 *         {@link RunnableSimulation.SimulationState}.
+	 */
+	public String getState();
+
+	/**
+	 * @return current simulation time, or -1 if the simulation has not been
+	 *         loaded.
+	 */
+	public int getCurrentTime();
+
+	/**
+	 * @return time the simulation will finish at, or -1 if the simulation has
+	 *         not been loaded.
+	 */
+	public int getFinishTime();
+
+	/**
+	 * @return percentage of the simulation completed.
+	 */
+	public int getPercentComplete();
+
+	/**
+	 * @return recent rate of time cycles per second, smoothed over the last
+	 *         few cycles.
+	 */
+	public double getCyclesPerSecond();
+
+	/**
+	 * @return mean rate of time cycles per second since the simulation
+	 *         started running.
+	 */
+	public double getAverageCyclesPerSecond();
+
+	/**
+	 * @return number of participants in the scenario.
+	 */
+	public int getParticipantCount();
+
+	/**
+	 * @return messages waiting to be processed by the network, or -1 if there
+	 *         is no network controller.
+	 */
+	public int getNetworkToDeliver();
+
+	/**
+	 * @return processed messages waiting to be delivered to participants, or
+	 *         -1 if there is no network controller.
+	 */
+	public int getNetworkAwaitingDelivery();
+
+	/**
+	 * @return shared state changes queued to be applied at the end of the
+	 *         cycle, or -1 if the shared state storage does not report them.
+	 */
+	public int getPendingStateChanges();
+
+	/**
+	 * @return fraction of the simulator's worker threads' time spent running
+	 *         tasks since the previous read, or -1 if this is not measured.
+	 */
+	public double getThreadPoolUtilisation();
+
+	/**
+	 * @return heap currently in use divided by the number of participants.
+	 */
+	public long getHeapUsedPerAgent();
+
+}
@@ -19,9 +19,26 @@
 
 package uk.ac.imperial.presage2.core.simulator;
 
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
 import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
 import uk.ac.imperial.presage2.core.db.DatabaseService;
 import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.participant.ParticipantActivity;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+import uk.ac.imperial.presage2.core.util.random.Random;
+import uk.ac.imperial.presage2.core.util.random.RandomSeed;
 
 import com.google.inject.ImplementedBy;
 import com.google.inject.Inject;
@@ -33,6 +50,8 @@ import com.google.inject.Inject;
 @ImplementedBy(MultiThreadedSimulator.class)
 public abstract class Simulator implements ThreadPool {
 
+	private final Logger logger = Logger.getLogger(Simulator.class);
+
 	/**
 	 * The Scenario to simulate
 	 */
@@ -41,6 +60,9 @@ public abstract class Simulator implements ThreadPool {
 	protected final SimTime simTime;
 	protected DatabaseService database;
 	protected EventBus eventBus;
+	protected ParticipantActivity activity = null;
+	protected CycleProfiler profiler = null;
+	protected Checkpointer checkpointer = null;
 
 	@Inject
 	public Simulator(Scenario scenario, Time t, EventBus eventBus) {
@@ -55,6 +77,52 @@ public abstract class Simulator implements ThreadPool {
 		database = db;
 	}
 
+	/**
+	 * Track which participants are awake and only step those each cycle.
+	 * 
+	 * @param activity
+	 */
+	@Inject(optional = true)
+	public void setParticipantActivity(ParticipantActivity activity) {
+		this.activity = activity;
+	}
+
+	/**
+	 * Record where time goes in each cycle once the {@link CycleProfiler} is
+	 * enabled.
+	 * 
+	 * @param profiler
+	 */
+	@Inject(optional = true)
+	public void setProfiler(CycleProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Set the seed for {@link Random}.
+	 * 
+	 * @param seed
+	 */
+	@Inject(optional = true)
+	public void setRandomSeed(@RandomSeed long seed) {
+		Random.seed = seed;
+		Random.reset();
+	}
+
+	/**
+	 * Enable or disable {@link DeterministicExecution}. With a
+	 * {@link RandomSeed} set, a deterministic simulation gives the same
+	 * results regardless of the number of threads it is run with.
+	 * {@link SimulatorModule} always binds this, so the flag is reset for each
+	 * simulation it creates.
+	 * 
+	 * @param deterministic
+	 */
+	@Inject(optional = true)
+	public void setDeterministic(@Deterministic boolean deterministic) {
+		DeterministicExecution.setEnabled(deterministic);
+	}
+
 	/**
 	 * <p>
 	 * Start running this simulation.
@@ -86,6 +154,190 @@ public abstract class Simulator implements ThreadPool {
 	 */
 	public abstract void complete();
 
+	/**
+	 * Start tracking the activity of the scenario's participants, if a
+	 * {@link ParticipantActivity} is set. Should be called before participants
+	 * are initialised so they may go to sleep during initialisation.
+	 */
+	protected void trackParticipants() {
+		if (activity != null)
+			activity.track(this.scenario.getParticipants());
+	}
+
+	/**
+	 * Use a {@link CycleProfiler} which has been added to the scenario as a
+	 * plugin instance rather than injected.
+	 */
+	protected void findProfiler() {
+		for (Plugin pl : this.scenario.getPlugins()) {
+			if (pl instanceof CycleProfiler)
+				this.profiler = (CycleProfiler) pl;
+		}
+	}
+
+	/**
+	 * Use a {@link Checkpointer} which has been added to the scenario as a
+	 * plugin to write checkpoints as the simulation runs.
+	 */
+	protected void findCheckpointer() {
+		for (Plugin pl : this.scenario.getPlugins()) {
+			if (pl instanceof Checkpointer)
+				this.checkpointer = (Checkpointer) pl;
+		}
+	}
+
+	/**
+	 * Called once the time has been moved on to the next cycle to run.
+	 * Informs the {@link Checkpointer}, if there is one.
+	 */
+	protected void cycleComplete() {
+		if (checkpointer != null)
+			checkpointer.cycleComplete(this);
+	}
+
+	/**
+	 * Get the {@link CycleProfiler} if profiling is enabled.
+	 * 
+	 * @return the profiler, or null if we are not profiling.
+	 */
+	protected CycleProfiler profiling() {
+		return profiler != null && profiler.isEnabled() ? profiler : null;
+	}
+
+	/**
+	 * Get the participants to step in the current time cycle. This is only the
+	 * ones which are awake if a {@link ParticipantActivity} is set.
+	 * 
+	 * @return participants to step.
+	 */
+	protected Collection<Participant> getAwakeParticipants() {
+		if (activity == null)
+			return this.scenario.getParticipants();
+		return activity.getAwake(time);
+	}
+
+	/**
+	 * Get the {@link Checkpointable} components of this simulation by the
+	 * name of the {@link Checkpoint} section they are saved in.
+	 * 
+	 * @return checkpointable components.
+	 */
+	protected Map<String, Checkpointable> getCheckpointables() {
+		final Map<String, Checkpointable> components = new LinkedHashMap<String, Checkpointable>();
+		if (activity != null)
+			components.put("activity", activity);
+		if (scenario.getEnvironment() instanceof Checkpointable)
+			components.put("environment",
+					(Checkpointable) scenario.getEnvironment());
+		for (TimeDriven t : scenario.getTimeDriven()) {
+			addCheckpointable(components, "timedriven/"
+					+ t.getClass().getName(), t);
+		}
+		for (Plugin pl : scenario.getPlugins()) {
+			addCheckpointable(components, "plugin/" + pl.getClass().getName(),
+					pl);
+		}
+		for (Participant p : scenario.getParticipants()) {
+			addCheckpointable(components, "participant/" + p.getID(), p);
+		}
+		return components;
+	}
+
+	private void addCheckpointable(Map<String, Checkpointable> components,
+			String name, Object o) {
+		if (!(o instanceof Checkpointable))
+			return;
+		if (components.containsKey(name)) {
+			logger.warn("More than one " + name
+					+ " in the scenario, only the first will be checkpointed.");
+			return;
+		}
+		components.put(name, (Checkpointable) o);
+	}
+
+	/**
+	 * <p>
+	 * Save the state of the simulation. This should be called between time
+	 * cycles; the checkpoint will resume from the current time.
+	 * </p>
+	 * 
+	 * <p>
+	 * The state of every {@link Checkpointable} component and of
+	 * {@link Random} is serialised before returning, so the simulation may
+	 * carry on while the checkpoint is written out.
+	 * </p>
+	 * 
+	 * @return {@link Checkpoint}
+	 * @throws IOException
+	 *             if some state cannot be serialised.
+	 */
+	public Checkpoint checkpoint() throws IOException {
+		final Checkpoint c = captureCheckpoint();
+		c.serialiseCaptured();
+		return c;
+	}
+
+	/**
+	 * Save the state of the simulation without serialising the state of its
+	 * {@link Checkpointable} components, which is left to
+	 * {@link Checkpoint#serialiseCaptured()}. As components return copies of
+	 * their state this may be done while the simulation carries on.
+	 * {@link Random} is serialised now, as its generators are still in use.
+	 * 
+	 * @return {@link Checkpoint} with captured states.
+	 * @throws IOException
+	 *             if the state of {@link Random} cannot be serialised.
+	 */
+	Checkpoint captureCheckpoint() throws IOException {
+		final Checkpoint c = new Checkpoint(time.intValue());
+		c.put("random", Random.saveState());
+		for (Map.Entry<String, Checkpointable> component : getCheckpointables()
+				.entrySet()) {
+			c.capture(component.getKey(), component.getValue().checkpoint());
+		}
+		return c;
+	}
+
+	/**
+	 * Restore the simulation from a {@link Checkpoint}. Must be called after
+	 * {@link #initialise()} and before {@link #run()}. Components which have no
+	 * section in the checkpoint are left as they were initialised, except
+	 * participants: the rest of the state refers to participants by ID, so if
+	 * any are missing the checkpoint cannot be restored.
+	 * 
+	 * @param c
+	 * @throws IOException
+	 *             if some state cannot be deserialised, or a participant has
+	 *             no state in the checkpoint.
+	 */
+	public void restore(Checkpoint c) throws IOException {
+		logger.info("Restoring simulation at time " + c.getTime());
+		final Map<String, Checkpointable> components = getCheckpointables();
+		final List<String> missing = new ArrayList<String>();
+		for (String name : components.keySet()) {
+			if (name.startsWith("participant/") && !c.has(name))
+				missing.add(name);
+		}
+		if (!missing.isEmpty())
+			throw new IOException("No checkpoint of " + missing.size()
+					+ " participants, including " + missing.get(0)
+					+ ". Participants must have the same IDs as when the checkpoint was taken.");
+		final Serializable random = c.get("random");
+		if (random != null)
+			Random.restoreState(random);
+		for (Map.Entry<String, Checkpointable> component : components
+				.entrySet()) {
+			final Serializable state = c.get(component.getKey());
+			if (state != null)
+				component.getValue().restore(state);
+			else
+				logger.warn("No checkpoint of " + component.getKey());
+		}
+		time.setTime(new IntegerTime(c.getTime()));
+		if (checkpointer != null)
+			checkpointer.restored(c.getTime());
+	}
+
 	public Time getCurrentSimulationTime() {
 		return time.clone();
 	}
@@ -19,6 +19,11 @@
 
 package uk.ac.imperial.presage2.core.simulator;
 
+import uk.ac.imperial.presage2.core.participant.ParticipantActivity;
+import uk.ac.imperial.presage2.core.participant.ParticipantActivityTracker;
+import uk.ac.imperial.presage2.core.plugin.ObserverPlugin;
+import uk.ac.imperial.presage2.core.util.random.RandomSeed;
+
 import com.google.inject.AbstractModule;
 import com.google.inject.Singleton;
 
@@ -35,6 +40,12 @@ public class SimulatorModule extends AbstractModule {
 
 	final private Class<? extends Simulator> simulatorImplementation;
 
+	private Long seed = null;
+
+	private CheckpointModule checkpoint = null;
+
+	private boolean trackActivity = false;
+
 	private SimulatorModule(Class<? extends Simulator> simulatorImplementation) {
 		super();
 		this.simulatorImplementation = simulatorImplementation;
@@ -44,6 +55,75 @@ public class SimulatorModule extends AbstractModule {
 	protected void configure() {
 		bind(Simulator.class).to(simulatorImplementation).in(Singleton.class);
 		bind(ThreadPool.class).to(Simulator.class);
+		if (seed != null)
+			bind(Long.class).annotatedWith(RandomSeed.class).toInstance(seed);
+		// always bound so a simulation does not inherit deterministic mode
+		// from an earlier one in the same JVM.
+		bind(Boolean.class).annotatedWith(Deterministic.class).toInstance(
+				seed != null);
+		if (checkpoint != null)
+			install(checkpoint);
+		if (trackActivity)
+			bind(ParticipantActivity.class).to(ParticipantActivityTracker.class)
+					.in(Singleton.class);
+	}
+
+	/**
+	 * <p>
+	 * Run the simulator in deterministic mode with the given random seed.
+	 * </p>
+	 * 
+	 * <p>
+	 * Each participant gets its own random stream derived from the seed, and
+	 * message delivery and shared state changes are put into a canonical order,
+	 * so the simulation gives the same results with any number of threads. See
+	 * {@link DeterministicExecution}.
+	 * </p>
+	 * 
+	 * @param seed
+	 *            random seed, must be greater than 0.
+	 * @return this module.
+	 */
+	public SimulatorModule deterministic(long seed) {
+		if (seed <= 0)
+			throw new IllegalArgumentException(
+					"Deterministic simulation requires a seed greater than 0.");
+		this.seed = seed;
+		return this;
+	}
+
+	/**
+	 * @return true if {@link #deterministic(long)} has been set.
+	 */
+	public boolean isDeterministic() {
+		return seed != null;
+	}
+
+	/**
+	 * Write a {@link Checkpoint} of the simulation to <code>file</code> every
+	 * <code>interval</code> time cycles. See {@link CheckpointModule}.
+	 * 
+	 * @param file
+	 *            file to write checkpoints to.
+	 * @param interval
+	 *            number of cycles between checkpoints, must be greater than 0.
+	 * @return this module.
+	 */
+	public SimulatorModule checkpoint(String file, int interval) {
+		this.checkpoint = new CheckpointModule(file, interval);
+		return this;
+	}
+
+	/**
+	 * Track which participants are asleep and only step those which are awake.
+	 * See {@link ParticipantActivity}. Without this every participant is
+	 * stepped every cycle.
+	 * 
+	 * @return this module.
+	 */
+	public SimulatorModule trackActivity() {
+		this.trackActivity = true;
+		return this;
 	}
 
 	public static SimulatorModule singleThreadedSimulator() {
@@ -61,4 +141,99 @@ public class SimulatorModule extends AbstractModule {
 		};
 	}
 
+	/**
+	 * Single threaded simulator which skips time cycles in which no
+	 * {@link EventDriven} components are due to be woken. The simulator is also
+	 * bound as the {@link EventScheduler}.
+	 * 
+	 * @return {@link SimulatorModule}
+	 */
+	public static SimulatorModule discreteEventSimulator() {
+		return new SimulatorModule(DiscreteEventSimulator.class) {
+			@Override
+			protected void configure() {
+				super.configure();
+				bind(EventScheduler.class).to(DiscreteEventSimulator.class);
+			}
+		};
+	}
+
+	/**
+	 * Multi threaded simulator which runs {@link ObserverPlugin}s alongside
+	 * later time cycles, up to <code>depth</code> cycles behind. See
+	 * {@link MultiThreadedSimulator#setPipelineDepth(int)}.
+	 * 
+	 * @param threads
+	 *            number of threads to use.
+	 * @param depth
+	 *            maximum number of cycles observers may fall behind.
+	 * @return {@link SimulatorModule}
+	 */
+	public static SimulatorModule pipelinedMultiThreadedSimulator(
+			final int threads, final int depth) {
+		return new SimulatorModule(MultiThreadedSimulator.class) {
+			@Override
+			protected void configure() {
+				super.configure();
+				bind(Integer.class).annotatedWith(Threads.class).toInstance(
+						threads);
+				bind(Integer.class).annotatedWith(PipelineDepth.class)
+						.toInstance(depth);
+			}
+		};
+	}
+
+	/**
+	 * Multi threaded simulator which runs on a {@link BarrierThreadPool}. Each
+	 * {@link ThreadPool.WaitCondition} is waited on with a single counted
+	 * barrier rather than a blocking wait per scheduled task, so the overhead of
+	 * a cycle does not grow with the number of participants.
+	 * 
+	 * @param threads
+	 *            number of threads to use.
+	 * @return {@link SimulatorModule}
+	 */
+	public static SimulatorModule barrierMultiThreadedSimulator(final int threads) {
+		return new SimulatorModule(MultiThreadedSimulator.class) {
+			@Override
+			protected void configure() {
+				super.configure();
+				bind(Integer.class).annotatedWith(Threads.class).toInstance(
+						threads);
+				bind(MultiThreadedSimulator.PoolType.class)
+						.annotatedWith(Threads.class)
+						.toInstance(MultiThreadedSimulator.PoolType.BARRIER);
+			}
+		};
+	}
+
+	/**
+	 * Multi threaded simulator which runs on a {@link BarrierThreadPool} and
+	 * executes participants in adaptively sized chunks, one task per thread,
+	 * rather than one task per participant. Suited to scenarios with a large
+	 * number of participants which each do little work per cycle.
+	 * 
+	 * @param threads
+	 *            number of threads to use.
+	 * @return {@link SimulatorModule}
+	 */
+	public static SimulatorModule chunkedMultiThreadedSimulator(
+			final int threads) {
+		return new SimulatorModule(MultiThreadedSimulator.class) {
+			@Override
+			protected void configure() {
+				super.configure();
+				bind(Integer.class).annotatedWith(Threads.class).toInstance(
+						threads);
+				bind(MultiThreadedSimulator.PoolType.class)
+						.annotatedWith(Threads.class)
+						.toInstance(MultiThreadedSimulator.PoolType.BARRIER);
+				bind(MultiThreadedSimulator.ParticipantExecution.class)
+						.annotatedWith(Threads.class)
+						.toInstance(
+								MultiThreadedSimulator.ParticipantExecution.CHUNKED);
+			}
+		};
+	}
+
 }
@@ -53,12 +53,21 @@ public class SingleThreadedSimulator extends Simulator implements ThreadPool {
 	public void initialise() {
 		// init Participants
 		logger.info("Initialising Participants..");
+		trackParticipants();
+		findProfiler();
+		findCheckpointer();
+		final boolean deterministic = DeterministicExecution.isEnabled();
 		for (Participant p : this.scenario.getParticipants()) {
+			if (deterministic)
+				DeterministicExecution.enter(p.getID());
 			try {
 				p.initialise();
 			} catch (Exception e) {
 				logger.warn("Exception thrown by participant " + p.getName()
 						+ " on initialisation.", e);
+			} finally {
+				if (deterministic)
+					DeterministicExecution.exit();
 			}
 		}
 		// init Plugins
@@ -80,17 +89,31 @@ public class SingleThreadedSimulator extends Simulator implements ThreadPool {
 		while (this.scenario.getFinishTime().greaterThan(time)) {
 
 			logger.info("Time: " + time.toString());
+			final CycleProfiler prof = profiling();
+			if (prof != null)
+				prof.startCycle();
 
 			logger.debug("Executing Participants...");
-			for (Participant p : this.scenario.getParticipants()) {
+			final boolean deterministic = DeterministicExecution.isEnabled();
+			for (Participant p : getAwakeParticipants()) {
+				if (deterministic)
+					DeterministicExecution.enter(p.getID());
+				final long start = prof != null ? System.nanoTime() : 0L;
 				try {
 					p.incrementTime();
 				} catch (Exception e) {
 					logger.warn(
 							"Exception thrown by participant " + p.getName()
 									+ " on execution.", e);
+				} finally {
+					if (prof != null)
+						prof.participant(p, start);
+					if (deterministic)
+						DeterministicExecution.exit();
 				}
 			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PARTICIPANTS);
 
 			logger.debug("Executing TimeDriven...");
 			for (TimeDriven t : this.scenario.getTimeDriven()) {
@@ -112,19 +135,30 @@ public class SingleThreadedSimulator extends Simulator implements ThreadPool {
 								+ this.scenario.getEnvironment()
 								+ " on execution.", e);
 			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.ENVIRONMENT);
 
 			logger.debug("Executing Plugins...");
 			for (Plugin pl : this.scenario.getPlugins()) {
+				final long start = prof != null ? System.nanoTime() : 0L;
 				try {
 					pl.incrementTime();
 				} catch (Exception e) {
 					logger.warn("Exception thrown by Plugin " + pl
 							+ " on execution.", e);
+				} finally {
+					if (prof != null)
+						prof.plugin(pl, start);
 				}
 			}
+			if (prof != null)
+				prof.endPhase(CycleProfiler.Phase.PLUGINS);
 
 			eventBus.publish(new EndOfTimeCycle(time.clone()));
+			if (prof != null)
+				prof.endCycle();
 			time.increment();
+			cycleComplete();
 
 		}
 
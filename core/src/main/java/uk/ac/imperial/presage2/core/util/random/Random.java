@@ -19,7 +19,19 @@
 
 package uk.ac.imperial.presage2.core.util.random;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import uk.ac.imperial.presage2.core.simulator.DeterministicExecution;
 
 import com.google.inject.Singleton;
 
@@ -40,6 +52,11 @@ public class Random extends java.util.Random {
 
 	private static Random INSTANCE = null;
 
+	/**
+	 * Per participant streams used under {@link DeterministicExecution}.
+	 */
+	private static final ConcurrentMap<UUID, Random> streams = new ConcurrentHashMap<UUID, Random>();
+
 	protected Random(long seed) {
 		super(seed);
 	}
@@ -49,11 +66,27 @@ public class Random extends java.util.Random {
 	}
 
 	/**
+	 * <p>
 	 * Get the instance of {@link Random}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Under {@link DeterministicExecution}, when called while executing a
+	 * participant this returns that participant's own stream, see
+	 * {@link #getInstance(UUID)}.
+	 * </p>
 	 * 
 	 * @return
 	 */
-	public static synchronized Random getInstance() {
+	public static Random getInstance() {
+		final UUID participant = DeterministicExecution.currentParticipant();
+		if (participant != null) {
+			return getInstance(participant);
+		}
+		return getSharedInstance();
+	}
+
+	private static synchronized Random getSharedInstance() {
 		if (INSTANCE == null) {
 			INSTANCE = RandomFactory.create();
 		}
@@ -61,11 +94,120 @@ public class Random extends java.util.Random {
 	}
 
 	/**
-	 * Wrapper for {@link UUID#randomUUID()}
+	 * Get the stream of random numbers for the given ID. The stream is seeded
+	 * from {@link #seed} and the ID, so it produces the same sequence in every
+	 * run with the same seed regardless of what other streams are used.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public static Random getInstance(UUID id) {
+		Random stream = streams.get(id);
+		if (stream == null) {
+			stream = RandomFactory.create(id);
+			final Random existing = streams.putIfAbsent(id, stream);
+			if (existing != null)
+				stream = existing;
+		}
+		return stream;
+	}
+
+	/**
+	 * Discard the current instance and all per ID streams so that they will be
+	 * recreated from the current {@link #seed}.
+	 */
+	public static synchronized void reset() {
+		INSTANCE = null;
+		streams.clear();
+	}
+
+	/**
+	 * Saved state of all random streams.
+	 */
+	static class State implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final long seed;
+		final Random instance;
+		final HashMap<UUID, Random> streams;
+
+		State(long seed, Random instance, HashMap<UUID, Random> streams) {
+			super();
+			this.seed = seed;
+			this.instance = instance;
+			this.streams = streams;
+		}
+	}
+
+	/**
+	 * Get the current state of the shared instance and all per ID streams.
+	 * The state refers to the live streams, so it should be serialised before
+	 * they are used again.
+	 * 
+	 * @return state
+	 */
+	public static synchronized Serializable saveState() {
+		return new State(seed, INSTANCE, new HashMap<UUID, Random>(streams));
+	}
+
+	/**
+	 * Restore state returned from {@link #saveState()} and deserialised, so
+	 * that every stream continues from where it was saved. The state is
+	 * copied, so may be restored more than once.
+	 * 
+	 * @param state
+	 */
+	public static synchronized void restoreState(Serializable state) {
+		final State s = (State) state;
+		seed = s.seed;
+		INSTANCE = s.instance == null ? null : copy(s.instance);
+		streams.clear();
+		for (Map.Entry<UUID, Random> stream : s.streams.entrySet()) {
+			streams.put(stream.getKey(), copy(stream.getValue()));
+		}
+	}
+
+	/**
+	 * Copy a stream along with its position by serialising it.
+	 */
+	private static Random copy(Random r) {
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(r);
+			out.close();
+			return (Random) new ObjectInputStream(new ByteArrayInputStream(
+					bytes.toByteArray())).readObject();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Wrapper for {@link UUID#randomUUID()}.
+	 * </p>
+	 * 
+	 * <p>
+	 * Under {@link DeterministicExecution} the UUID is instead generated from
+	 * {@link #getInstance()}, so that IDs are reproducible between runs.
+	 * Seeded runs which are not deterministic keep using
+	 * {@link UUID#randomUUID()}, so their random streams are unchanged.
+	 * </p>
 	 * 
 	 * @return
 	 */
 	public static UUID randomUUID() {
+		if (seed > 0 && DeterministicExecution.isEnabled()) {
+			final Random r = getInstance();
+			// set version 4 and IETF variant as in UUID.randomUUID()
+			final long msb = (r.nextLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+			final long lsb = (r.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+			return new UUID(msb, lsb);
+		}
 		return UUID.randomUUID();
 	}
 
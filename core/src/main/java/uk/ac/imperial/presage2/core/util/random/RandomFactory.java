@@ -19,6 +19,8 @@
 
 package uk.ac.imperial.presage2.core.util.random;
 
+import java.util.UUID;
+
 /**
  * Factory Constructor for {@link Random}.
  * 
@@ -45,4 +47,29 @@ class RandomFactory {
 			return new Random();
 	}
 
+	/**
+	 * Creates an instance of {@link Random} for a given ID. The seed is mixed
+	 * from the global seed and the ID so that streams for different IDs are
+	 * independent.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	protected static Random create(UUID id) {
+		long s = Random.seed;
+		s = mix(s ^ mix(id.getMostSignificantBits()));
+		s = mix(s ^ id.getLeastSignificantBits());
+		return new Random(s);
+	}
+
+	/**
+	 * 64 bit finaliser from SplitMix64.
+	 */
+	private static long mix(long z) {
+		z += 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
 }
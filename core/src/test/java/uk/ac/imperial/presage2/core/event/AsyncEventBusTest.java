@@ -0,0 +1,190 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class AsyncEventBusTest {
+
+	static class NumberedEvent implements Event {
+		final int n;
+
+		NumberedEvent(int n) {
+			super();
+			this.n = n;
+		}
+	}
+
+	static class SlowListener {
+		final List<Integer> heard = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final List<Thread> threads = Collections
+				.synchronizedList(new ArrayList<Thread>());
+
+		@EventListener(async = true)
+		public void hear(NumberedEvent e) throws InterruptedException {
+			threads.add(Thread.currentThread());
+			Thread.sleep(Random.randomInt(3));
+			heard.add(e.n);
+		}
+	}
+
+	@Test
+	public void testOrderAndFlush() {
+		final AsyncEventBus bus = new AsyncEventBus(4, 8);
+		final int events = 100;
+		final List<SlowListener> listeners = new ArrayList<SlowListener>();
+		for (int i = 0; i < 5; i++) {
+			SlowListener l = new SlowListener();
+			listeners.add(l);
+			bus.subscribe(l);
+		}
+		final List<Integer> sync = new ArrayList<Integer>();
+		// the bus only holds weak references to listeners
+		final Object syncListener = new Object() {
+			@EventListener
+			public void hear(NumberedEvent e) {
+				sync.add(e.n);
+			}
+		};
+		bus.subscribe(syncListener);
+
+		for (int i = 0; i < events; i++) {
+			bus.publish(new NumberedEvent(i));
+		}
+		// synchronous listeners are done once publish returns
+		assertEquals(events, sync.size());
+
+		// as on EndOfTimeCycle
+		bus.flush();
+		for (SlowListener l : listeners) {
+			assertEquals(events, l.heard.size());
+			for (int i = 0; i < events; i++) {
+				assertEquals(Integer.valueOf(i), l.heard.get(i));
+			}
+			assertFalse(l.threads.contains(Thread.currentThread()));
+		}
+		bus.unsubscribe(syncListener);
+	}
+
+	@Test
+	public void testPublisherNotBlocked() throws InterruptedException {
+		final AsyncEventBus bus = new AsyncEventBus(1, 4);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Object listener = new Object() {
+			@EventListener(async = true)
+			public void hear(NumberedEvent e) throws InterruptedException {
+				release.await();
+				done.countDown();
+			}
+		};
+		bus.subscribe(listener);
+		// returns while the listener is still waiting.
+		bus.publish(new NumberedEvent(0));
+		assertEquals(1, done.getCount());
+		release.countDown();
+		// as on EndOfTimeCycle
+		bus.flush();
+		assertTrue(done.getCount() == 0);
+		bus.unsubscribe(listener);
+	}
+
+	/**
+	 * Listener which records whether it is ever invoked by two workers at
+	 * once.
+	 */
+	static class ExclusiveListener {
+		final AtomicInteger inside = new AtomicInteger();
+		volatile boolean overlapped = false;
+		final List<Integer> heard = Collections
+				.synchronizedList(new ArrayList<Integer>());
+
+		@EventListener(async = true)
+		public void hear(NumberedEvent e) throws InterruptedException {
+			if (inside.incrementAndGet() > 1)
+				overlapped = true;
+			Thread.sleep(Random.randomInt(2));
+			heard.add(e.n);
+			inside.decrementAndGet();
+		}
+	}
+
+	static final EventKey<NumberedEvent> PARITY = new EventKey<NumberedEvent>(
+			NumberedEvent.class) {
+		@Override
+		public Object keyOf(NumberedEvent event) {
+			return event.n % 2;
+		}
+	};
+
+	@Test
+	public void testKeyedSubscriptionsShareQueue() {
+		final AsyncEventBus bus = new AsyncEventBus(4, 8);
+		final ExclusiveListener listener = new ExclusiveListener();
+		bus.subscribe(listener);
+		bus.subscribe(listener, PARITY, 0);
+		bus.subscribe(listener, PARITY, 1);
+
+		final int events = 50;
+		for (int i = 0; i < events; i++) {
+			bus.publish(new NumberedEvent(i));
+		}
+		bus.flush();
+		assertFalse(listener.overlapped);
+		assertEquals(1, bus.getQueueCount());
+		// each event is heard once plain and once keyed, in order.
+		assertEquals(2 * events, listener.heard.size());
+		for (int i = 0; i < events; i++) {
+			assertEquals(Integer.valueOf(i), listener.heard.get(2 * i));
+			assertEquals(Integer.valueOf(i), listener.heard.get(2 * i + 1));
+		}
+
+		// the queue is kept while the listener has any subscription.
+		bus.unsubscribe(listener, PARITY, 0);
+		bus.unsubscribe(listener, PARITY, 1);
+		assertEquals(1, bus.getQueueCount());
+		bus.unsubscribe(listener);
+		assertEquals(0, bus.getQueueCount());
+
+		bus.subscribe(listener, PARITY, 0);
+		bus.publish(new NumberedEvent(0));
+		bus.flush();
+		assertEquals(1, bus.getQueueCount());
+		bus.unsubscribe(listener, PARITY, 0);
+		assertEquals(0, bus.getQueueCount());
+	}
+
+}
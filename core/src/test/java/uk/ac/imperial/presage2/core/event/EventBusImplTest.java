@@ -20,6 +20,10 @@ package uk.ac.imperial.presage2.core.event;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Test;
 
 import org.jmock.Mockery;
@@ -34,8 +38,45 @@ public class EventBusImplTest {
 		}
 	}
 
+	static class SubMockEvent extends MockEvent {
+	}
+
+	interface Tagged extends Event {
+	}
+
+	static class TaggedEvent extends SubMockEvent implements Tagged {
+	}
+
+	static class KeyedEvent extends SubMockEvent {
+		final int key;
+
+		KeyedEvent(int key) {
+			super();
+			this.key = key;
+		}
+	}
+
+	static final EventKey<KeyedEvent> KEY = new EventKey<KeyedEvent>(
+			KeyedEvent.class) {
+		@Override
+		public Object keyOf(KeyedEvent event) {
+			return event.key;
+		}
+	};
+
+	static class KeyedListener {
+		int heard = 0;
+
+		@EventListener
+		public void hear(MockEvent e) {
+			heard++;
+		}
+	}
+
 	private int invocationCount = 0;
 
+	private int subInvocationCount = 0;
+
 	class MockEventListener {
 
 		@EventListener
@@ -45,6 +86,15 @@ public class EventBusImplTest {
 
 	}
 
+	class SubMockEventListener {
+
+		@EventListener
+		public void hearSubMockEvent(SubMockEvent e) {
+			subInvocationCount++;
+		}
+
+	}
+
 	@Test
 	public void testEventBusImpl() {
 
@@ -79,4 +129,156 @@ public class EventBusImplTest {
 		assertEquals(2, invocationCount);
 	}
 
+	@Test
+	public void testDispatchToSuperclassListeners() {
+		EventBus eventBus = new EventBusImpl();
+		MockEventListener listener = new MockEventListener();
+		eventBus.subscribe(listener);
+
+		// subclass events reach superclass listeners
+		eventBus.publish(new SubMockEvent());
+		assertEquals(1, invocationCount);
+		assertEquals(0, subInvocationCount);
+
+		// cached dispatch is updated on a new subscription
+		SubMockEventListener subListener = new SubMockEventListener();
+		eventBus.subscribe(subListener);
+		eventBus.publish(new SubMockEvent());
+		assertEquals(2, invocationCount);
+		assertEquals(1, subInvocationCount);
+
+		// superclass events do not reach subclass listeners
+		eventBus.publish(new MockEvent());
+		assertEquals(3, invocationCount);
+		assertEquals(1, subInvocationCount);
+
+		eventBus.unsubscribe(listener);
+		eventBus.publish(new SubMockEvent());
+		assertEquals(3, invocationCount);
+		assertEquals(2, subInvocationCount);
+	}
+
+	@Test
+	public void testDispatchToInterfaceListeners() {
+		EventBus eventBus = new EventBusImpl();
+		final AtomicInteger tagged = new AtomicInteger();
+		final AtomicInteger all = new AtomicInteger();
+		Object listener = new Object() {
+			@EventListener
+			public void hearTagged(Tagged e) {
+				tagged.incrementAndGet();
+			}
+
+			@EventListener
+			public void hearAll(Event e) {
+				all.incrementAndGet();
+			}
+		};
+		eventBus.subscribe(listener);
+		MockEventListener mockListener = new MockEventListener();
+		eventBus.subscribe(mockListener);
+
+		eventBus.publish(new TaggedEvent());
+		assertEquals(1, tagged.get());
+		assertEquals(1, all.get());
+		assertEquals(1, invocationCount);
+
+		eventBus.publish(new MockEvent());
+		assertEquals(1, tagged.get());
+		assertEquals(2, all.get());
+		assertEquals(2, invocationCount);
+		eventBus.unsubscribe(listener);
+		eventBus.unsubscribe(mockListener);
+	}
+
+	@Test
+	public void testSubscribeWhilePublishing() throws Exception {
+		final EventBus eventBus = new EventBusImpl();
+		final AtomicInteger heard = new AtomicInteger();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		final List<Object> listeners = new ArrayList<Object>();
+		final int count = 200;
+
+		Thread publisher = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 20000; i++) {
+						eventBus.publish(new SubMockEvent());
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			}
+		};
+		publisher.start();
+		for (int i = 0; i < count; i++) {
+			Object l = new Object() {
+				@EventListener
+				public void hear(MockEvent e) {
+					heard.incrementAndGet();
+				}
+			};
+			listeners.add(l);
+			eventBus.subscribe(l);
+			if (i % 2 == 0)
+				eventBus.unsubscribe(l);
+		}
+		publisher.join();
+		assertTrue(errors.toString(), errors.isEmpty());
+
+		heard.set(0);
+		eventBus.publish(new MockEvent());
+		assertEquals(count / 2, heard.get());
+	}
+
+	@Test
+	public void testKeyedSubscription() {
+		EventBus eventBus = new EventBusImpl();
+		final int count = 100;
+		List<KeyedListener> listeners = new ArrayList<KeyedListener>();
+		for (int i = 0; i < count; i++) {
+			KeyedListener l = new KeyedListener();
+			listeners.add(l);
+			eventBus.subscribe(l, KEY, i);
+		}
+		MockEventListener unkeyed = new MockEventListener();
+		eventBus.subscribe(unkeyed);
+
+		// only the listener with a matching key hears the event
+		eventBus.publish(new KeyedEvent(5));
+		assertEquals(1, invocationCount);
+		for (int i = 0; i < count; i++) {
+			assertEquals(i == 5 ? 1 : 0, listeners.get(i).heard);
+		}
+
+		// events of other types are not delivered to keyed subscriptions
+		eventBus.publish(new SubMockEvent());
+		assertEquals(2, invocationCount);
+		assertEquals(1, listeners.get(5).heard);
+
+		// a listener may subscribe with several values
+		eventBus.subscribe(listeners.get(5), KEY, count);
+		eventBus.publish(new KeyedEvent(count));
+		assertEquals(2, listeners.get(5).heard);
+
+		// remove one subscription
+		eventBus.unsubscribe(listeners.get(5), KEY, 5);
+		eventBus.publish(new KeyedEvent(5));
+		eventBus.publish(new KeyedEvent(count));
+		assertEquals(3, listeners.get(5).heard);
+
+		// unsubscribe removes keyed subscriptions too
+		eventBus.unsubscribe(listeners.get(5));
+		eventBus.publish(new KeyedEvent(count));
+		assertEquals(3, listeners.get(5).heard);
+
+		eventBus.publish(new KeyedEvent(7));
+		assertEquals(1, listeners.get(7).heard);
+		assertEquals(7, invocationCount);
+		eventBus.unsubscribe(unkeyed);
+	}
+
 }
@@ -0,0 +1,102 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class EventBusMetricsTest {
+
+	static class TestEvent implements Event {
+	}
+
+	public static class TestListener {
+		int heard = 0;
+
+		@EventListener
+		public void first(TestEvent e) {
+			heard++;
+		}
+
+		@EventListener
+		public void second(TestEvent e) {
+			heard++;
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		Injector injector = Guice.createInjector(new EventBusModule()
+				.withMetrics());
+		EventBus eventBus = injector.getInstance(EventBus.class);
+		EventBusMetrics metrics = injector.getInstance(EventBusMetrics.class);
+
+		TestListener listener = new TestListener();
+		eventBus.subscribe(listener);
+		for (int i = 0; i < 10; i++) {
+			eventBus.publish(new TestEvent());
+		}
+		assertEquals(20, listener.heard);
+		assertEquals(10, metrics.getPublishCount(TestEvent.class));
+		assertEquals(2, metrics.getFanOut(TestEvent.class).getMax());
+		assertEquals(10, metrics.getListenerLatency(
+				TestListener.class.getMethod("first", TestEvent.class))
+				.getCount());
+		assertEquals(2, metrics.getListenerLatencies().size());
+		assertTrue(metrics.report().contains("TestListener.second"));
+
+		// a listener which is collected without unsubscribing
+		TestListener dead = new TestListener();
+		eventBus.subscribe(dead);
+		WeakReference<Object> ref = new WeakReference<Object>(dead);
+		dead = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		if (ref.get() == null) {
+			eventBus.publish(new TestEvent());
+			assertEquals(2, metrics.getDeadReferencesCollected());
+		}
+		eventBus.unsubscribe(listener);
+	}
+
+	@Test
+	public void testNoMetricsByDefault() {
+		Injector injector = Guice.createInjector(new EventBusModule());
+		EventBus eventBus = injector.getInstance(EventBus.class);
+		EventBusMetrics metrics = injector.getInstance(EventBusMetrics.class);
+		assertFalse(metrics.isEnabled());
+		eventBus.publish(new TestEvent());
+		assertEquals(0, metrics.getPublishCount(TestEvent.class));
+	}
+
+}
@@ -0,0 +1,228 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.event.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventBusModule;
+import uk.ac.imperial.presage2.core.event.EventListener;
+
+import com.google.inject.Guice;
+import com.google.inject.Provider;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class EventJournalTest {
+
+	static class CountEvent implements Event {
+		final int count;
+		final String label;
+
+		CountEvent(int count, String label) {
+			super();
+			this.count = count;
+			this.label = label;
+		}
+	}
+
+	static class SerializedEvent implements Event, Serializable {
+		private static final long serialVersionUID = 1L;
+		final int value;
+
+		SerializedEvent(int value) {
+			super();
+			this.value = value;
+		}
+	}
+
+	static class IgnoredEvent implements Event {
+	}
+
+	static final JournalCodec<CountEvent> codec = new JournalCodec<CountEvent>() {
+		@Override
+		public void write(CountEvent event, ByteBuffer out) {
+			out.putInt(event.count);
+			JournalData.putString(out, event.label);
+		}
+
+		@Override
+		public CountEvent read(int time, ByteBuffer in) {
+			return new CountEvent(in.getInt(), JournalData.getString(in));
+		}
+	};
+
+	public static class Counter {
+		int events = 0;
+		long sum = 0;
+
+		@EventListener
+		public void onCount(CountEvent e) {
+			events++;
+			sum += e.count;
+		}
+	}
+
+	File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File f : files)
+				f.delete();
+		}
+		directory.delete();
+	}
+
+	@SuppressWarnings("unchecked")
+	private JournalCodecs journalCounts(int cycles) {
+		final EventBus eventBus = Guice.createInjector(new EventBusModule())
+				.getInstance(EventBus.class);
+		final IntegerTime time = new IntegerTime(0);
+		final JournalCodecs codecs = new JournalCodecs().register(
+				CountEvent.class, codec);
+		final EventJournal journal = new EventJournal(directory, 4096,
+				new HashSet<Class<? extends Event>>(
+						Arrays.<Class<? extends Event>> asList(CountEvent.class)),
+				codecs);
+		journal.setEventBus(eventBus);
+		journal.setTime(time);
+		journal.initialise();
+		for (int t = 0; t < cycles; t++) {
+			for (int i = 0; i < 10; i++) {
+				eventBus.publish(new CountEvent(t, "e"));
+			}
+			time.increment();
+		}
+		journal.onSimulationComplete();
+		return codecs;
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		final JournalCodecs codecs = journalCounts(100);
+
+		Counter all = new Counter();
+		assertEquals(1000, new JournalReplay(directory, codecs).replay(all));
+		assertEquals(1000, all.events);
+		assertEquals(10 * 99 * 100 / 2, all.sum);
+
+		Counter range = new Counter();
+		assertEquals(30, new JournalReplay(directory, codecs).from(40).to(42)
+				.replay(range));
+		assertEquals(10 * (40 + 41 + 42), range.sum);
+
+		// each segment replayed separately adds up to the whole journal
+		List<Counter> segments = new JournalReplay(directory, codecs)
+				.replayParallel(4, new Provider<Counter>() {
+					@Override
+					public Counter get() {
+						return new Counter();
+					}
+				});
+		assertTrue(segments.size() > 1);
+		int events = 0;
+		long sum = 0;
+		for (Counter c : segments) {
+			events += c.events;
+			sum += c.sum;
+		}
+		assertEquals(1000, events);
+		assertEquals(all.sum, sum);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testJournalAndRead() throws Exception {
+		final EventBus eventBus = Guice.createInjector(new EventBusModule())
+				.getInstance(EventBus.class);
+		final IntegerTime time = new IntegerTime(0);
+		final JournalCodecs codecs = new JournalCodecs().register(
+				CountEvent.class, codec);
+		final EventJournal journal = new EventJournal(directory, 4096,
+				new HashSet<Class<? extends Event>>(Arrays.asList(
+						CountEvent.class, SerializedEvent.class)), codecs);
+		journal.setEventBus(eventBus);
+		journal.setTime(time);
+		journal.initialise();
+
+		final int cycles = 50;
+		for (int t = 0; t < cycles; t++) {
+			for (int i = 0; i < 10; i++) {
+				eventBus.publish(new CountEvent(t * 10 + i, "event " + i));
+				eventBus.publish(new IgnoredEvent());
+			}
+			eventBus.publish(new SerializedEvent(t));
+			time.increment();
+		}
+		journal.onSimulationComplete();
+		assertEquals(cycles * 11, journal.getRecordCount());
+
+		JournalReader reader = new JournalReader(directory, codecs);
+		assertTrue(reader.getSegmentCount() > 1);
+		for (int t = 0; t < cycles; t++) {
+			for (int i = 0; i < 10; i++) {
+				assertTrue(reader.next());
+				CountEvent e = (CountEvent) reader.getEvent();
+				assertEquals(t, reader.getTime());
+				assertEquals(t * 10 + i, e.count);
+				assertEquals("event " + i, e.label);
+			}
+			assertTrue(reader.next());
+			assertEquals(t, ((SerializedEvent) reader.getEvent()).value);
+		}
+		assertFalse(reader.next());
+
+		// seek to a time in a later segment
+		reader.seek(37);
+		assertTrue(reader.next());
+		assertEquals(37, reader.getTime());
+		assertEquals(370, ((CountEvent) reader.getEvent()).count);
+		assertTrue(reader.getSegment() > 0);
+
+		reader.seek(cycles);
+		assertFalse(reader.next());
+		reader.close();
+	}
+
+}
@@ -0,0 +1,98 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.jmock.Mockery;
+import org.junit.Test;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class AddressRegistryTest {
+
+	final Mockery context = new Mockery();
+
+	final NetworkChannel link1 = context.mock(NetworkChannel.class, "link1");
+	final NetworkChannel link2 = context.mock(NetworkChannel.class, "link2");
+
+	@Test
+	public void testDenseIndices() {
+		AddressRegistry registry = new AddressRegistry();
+		NetworkAddress[] addresses = new NetworkAddress[100];
+		for (int i = 0; i < addresses.length; i++) {
+			addresses[i] = new NetworkAddress(UUID.randomUUID());
+			assertEquals(i, registry.register(addresses[i], i % 2 == 0 ? link1
+					: link2));
+		}
+		assertEquals(addresses.length, registry.size());
+		assertEquals(Arrays.asList(addresses), registry.getAddresses());
+		for (int i = 0; i < addresses.length; i++) {
+			assertEquals(i, registry.indexOf(addresses[i]));
+			assertSame(addresses[i], registry.getAddress(i));
+			assertSame(i % 2 == 0 ? link1 : link2, registry.getLink(i));
+		}
+	}
+
+	@Test
+	public void testValueSemantics() {
+		AddressRegistry registry = new AddressRegistry();
+		UUID id = UUID.randomUUID();
+		NetworkAddress registered = new NetworkAddress(id);
+		registry.register(registered, link1);
+
+		// an equal but distinct address resolves to the same device
+		NetworkAddress copy = new NetworkAddress(id);
+		assertEquals(0, registry.indexOf(copy));
+		assertSame(link1, registry.getLink(copy));
+
+		// registering an equal address replaces the link
+		assertEquals(0, registry.register(copy, link2));
+		assertEquals(1, registry.size());
+		assertSame(link2, registry.getLink(registered));
+
+		assertEquals(-1, registry.indexOf(new NetworkAddress(UUID.randomUUID())));
+		assertNull(registry.getLink(new NetworkAddress(UUID.randomUUID())));
+	}
+
+	@Test
+	public void testSeparateRegistries() {
+		AddressRegistry first = new AddressRegistry();
+		AddressRegistry second = new AddressRegistry();
+		NetworkAddress a = new NetworkAddress(UUID.randomUUID());
+		NetworkAddress b = new NetworkAddress(UUID.randomUUID());
+		first.register(a, link1);
+		first.register(b, link2);
+		second.register(b, link1);
+
+		// the index cached on an address is only used by its own registry
+		assertEquals(1, first.indexOf(b));
+		assertEquals(0, second.indexOf(b));
+		assertEquals(1, first.indexOf(b));
+		assertEquals(-1, second.indexOf(a));
+	}
+
+}
@@ -19,6 +19,7 @@
 
 package uk.ac.imperial.presage2.core.network;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -59,4 +60,34 @@ public class BasicNetworkConnectorTest extends NetworkConnectorTest {
 		assertTrue(messages2.size() == 0);
 	}
 
+	@Test
+	public void testConcurrentDelivery() throws Exception {
+		final int threads = 4;
+		final int perThread = 5000;
+		final BasicNetworkConnector connector = (BasicNetworkConnector) testConnector;
+		List<Thread> senders = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			Thread sender = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						connector.deliverMessage(new UnicastMessage<Object>(
+								Performative.INFORM, testAddr, testAddr, time));
+					}
+				}
+			};
+			senders.add(sender);
+			sender.start();
+		}
+		// drain while messages are still arriving
+		List<Message<?>> received = new ArrayList<Message<?>>();
+		for (Thread sender : senders) {
+			connector.drainMessages(received);
+			sender.join();
+		}
+		connector.drainMessages(received);
+		assertEquals(threads * perThread, received.size());
+		assertTrue(connector.getMessages().isEmpty());
+	}
+
 }
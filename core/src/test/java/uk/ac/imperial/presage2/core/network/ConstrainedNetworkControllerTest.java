@@ -0,0 +1,219 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class ConstrainedNetworkControllerTest {
+
+	final Mockery context = new Mockery();
+	final Time time = context.mock(Time.class);
+	final EnvironmentSharedStateAccess env = context
+			.mock(EnvironmentSharedStateAccess.class);
+	final Scenario scenario = context.mock(Scenario.class);
+
+	final NetworkChannel channel1 = context.mock(NetworkChannel.class,
+			"networkchannel1");
+	final NetworkChannel channel2 = context.mock(NetworkChannel.class,
+			"networkchannel2");
+	final NetworkChannel channel3 = context.mock(NetworkChannel.class,
+			"networkchannel3");
+
+	final NetworkAddress address1 = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress address2 = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress address3 = new NetworkAddress(UUID.randomUUID());
+
+	ConstrainedNetworkController controller;
+
+	/**
+	 * Blocks messages to address3, counting how many times it is asked.
+	 */
+	class CountingConstraint implements NetworkConstraint {
+		int checks = 0;
+
+		@Override
+		public Message<?> constrainMessage(Message<?> m) {
+			return m;
+		}
+
+		@Override
+		public boolean blockMessageDelivery(NetworkAddress to, Message<?> m) {
+			checks++;
+			return to.equals(address3);
+		}
+	}
+
+	class CountingLinkConstraint extends CountingConstraint implements
+			LinkConstraint {
+	}
+
+	@Before
+	public void setUp() {
+		context.checking(new Expectations() {
+			{
+				allowing(time).clone();
+				will(returnValue(time));
+				allowing(time).increment();
+				one(scenario).addTimeDriven(
+						with(any(ConstrainedNetworkController.class)));
+			}
+		});
+		controller = new ConstrainedNetworkController(time, env, scenario);
+		controller.register(new NetworkRegistrationRequest(address1, channel1));
+		controller.register(new NetworkRegistrationRequest(address2, channel2));
+		controller.register(new NetworkRegistrationRequest(address3, channel3));
+	}
+
+	private void sendUnicasts(int count) {
+		for (int i = 0; i < count; i++) {
+			final Message<?> m = new UnicastMessage<Object>(
+					Performative.INFORM, address1, address2, time);
+			final Message<?> blocked = new UnicastMessage<Object>(
+					Performative.INFORM, address1, address3, time);
+			context.checking(new Expectations() {
+				{
+					one(channel2).deliverMessage(m);
+					never(channel3).deliverMessage(blocked);
+				}
+			});
+			controller.deliverMessage(m);
+			controller.deliverMessage(blocked);
+		}
+	}
+
+	@Test
+	public void testLinkDecisionsCachedPerCycle() {
+		final CountingLinkConstraint links = new CountingLinkConstraint();
+		final CountingConstraint messages = new CountingConstraint();
+		controller.addConstraint(links);
+		controller.addConstraint(messages);
+
+		sendUnicasts(5);
+		controller.incrementTime();
+		context.assertIsSatisfied();
+
+		// constraints which depend on the message are asked for every
+		// delivery, the link constraint once for each recipient they do not
+		// block.
+		assertEquals(10, messages.checks);
+		assertEquals(1, links.checks);
+
+		// decisions are made again the next cycle
+		sendUnicasts(5);
+		controller.incrementTime();
+		context.assertIsSatisfied();
+		assertEquals(2, links.checks);
+	}
+
+	/**
+	 * With a thread pool incrementTime runs in the same phase as the routers,
+	 * in either order, so it must not decide when link decisions are
+	 * forgotten.
+	 */
+	@Test
+	public void testLinkDecisionsWithThreadPool() {
+		final List<Runnable> scheduled = new ArrayList<Runnable>();
+		controller.setThreadPool(new ThreadPool() {
+			@Override
+			public void submitScheduled(Runnable s, WaitCondition condition) {
+				scheduled.add(s);
+			}
+
+			@Override
+			public void submit(Runnable s) {
+				s.run();
+			}
+
+			@Override
+			public void waitFor(WaitCondition condition) {
+			}
+
+			@Override
+			public int getThreadCount() {
+				return 2;
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+		final CountingLinkConstraint links = new CountingLinkConstraint();
+		controller.addConstraint(links);
+
+		// time is incremented before the routers run
+		sendUnicasts(5);
+		controller.routeMessages();
+		controller.incrementTime();
+		while (!scheduled.isEmpty()) {
+			scheduled.remove(0).run();
+		}
+		context.assertIsSatisfied();
+		// once for each recipient
+		assertEquals(2, links.checks);
+
+		// and after them the next cycle
+		sendUnicasts(5);
+		controller.routeMessages();
+		while (!scheduled.isEmpty()) {
+			scheduled.remove(0).run();
+		}
+		controller.incrementTime();
+		context.assertIsSatisfied();
+		assertEquals(4, links.checks);
+	}
+
+	@Test
+	public void testPongUsesLinkDecisions() {
+		final CountingLinkConstraint links = new CountingLinkConstraint();
+		controller.addConstraint(links);
+
+		Set<NetworkAddress> expected = new HashSet<NetworkAddress>();
+		expected.add(address1);
+		expected.add(address2);
+		assertEquals(expected, controller.getPong(new Ping(address1, time))
+				.getLinks());
+		assertEquals(3, links.checks);
+
+		assertEquals(expected, controller.getPong(new Ping(address1, time))
+				.getLinks());
+		assertEquals(3, links.checks);
+	}
+
+}
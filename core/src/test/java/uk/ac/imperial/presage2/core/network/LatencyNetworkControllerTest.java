@@ -0,0 +1,301 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class LatencyNetworkControllerTest {
+
+	final Mockery context = new Mockery();
+	final Time time = new IntegerTime(0);
+	final EnvironmentSharedStateAccess env = context
+			.mock(EnvironmentSharedStateAccess.class);
+	final Scenario scenario = context.mock(Scenario.class);
+
+	final int devices = 4;
+	final NetworkAddress[] addresses = new NetworkAddress[devices];
+	final List<List<Message<?>>> received = new ArrayList<List<Message<?>>>();
+
+	LatencyNetworkController controller;
+
+	@Before
+	public void setUp() {
+		context.checking(new Expectations() {
+			{
+				one(scenario).addTimeDriven(
+						with(any(LatencyNetworkController.class)));
+			}
+		});
+		controller = new LatencyNetworkController(time, env, scenario);
+		for (int i = 0; i < devices; i++) {
+			final List<Message<?>> inbox = new ArrayList<Message<?>>();
+			received.add(inbox);
+			addresses[i] = new NetworkAddress(UUID.randomUUID());
+			controller.register(new NetworkRegistrationRequest(addresses[i],
+					new NetworkChannel() {
+						@Override
+						public void deliverMessage(Message<?> m) {
+							inbox.add(m);
+						}
+					}));
+		}
+	}
+
+	private int indexOf(NetworkAddress a) {
+		for (int i = 0; i < devices; i++) {
+			if (addresses[i].equals(a))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Step the controller to the end of the current cycle and return the
+	 * number of messages each device received in it.
+	 */
+	private int[] step() {
+		for (List<Message<?>> inbox : received) {
+			inbox.clear();
+		}
+		controller.incrementTime();
+		final int[] counts = new int[devices];
+		for (int i = 0; i < devices; i++) {
+			counts[i] = received.get(i).size();
+		}
+		return counts;
+	}
+
+	@Test
+	public void testNoModelsDeliversInCycle() {
+		controller.deliverMessage(new UnicastMessage<Object>(
+				Performative.INFORM, addresses[0], addresses[1], time));
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+		assertEquals("[0, 2, 1, 1]", Arrays.toString(step()));
+		assertEquals(0, controller.getDelayedCount());
+	}
+
+	@Test
+	public void testLatency() {
+		// latency is the recipient's index
+		controller.setLatencyModel(new LatencyModel() {
+			@Override
+			public int getLatency(NetworkAddress to, Message<?> m) {
+				return indexOf(to);
+			}
+		});
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+		controller.deliverMessage(new UnicastMessage<Object>(
+				Performative.INFORM, addresses[0], addresses[3], time));
+		assertEquals("[0, 0, 0, 0]", Arrays.toString(step()));
+		assertEquals(4, controller.getDelayedCount());
+		assertEquals("[0, 1, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 0, 1, 0]", Arrays.toString(step()));
+		assertEquals("[0, 0, 0, 2]", Arrays.toString(step()));
+		assertEquals(0, controller.getDelayedCount());
+	}
+
+	@Test
+	public void testLoss() {
+		controller.setLossModel(new LossModel() {
+			@Override
+			public boolean isLost(NetworkAddress to, Message<?> m) {
+				return to.equals(addresses[2]);
+			}
+		});
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+		controller.deliverMessage(new UnicastMessage<Object>(
+				Performative.INFORM, addresses[0], addresses[2], time));
+		assertEquals("[0, 1, 0, 1]", Arrays.toString(step()));
+	}
+
+	@Test
+	public void testBandwidth() {
+		controller.setBandwidthModel(new BandwidthModel() {
+			@Override
+			public int getCapacity(NetworkAddress from, NetworkAddress to) {
+				return 2;
+			}
+		});
+		for (int i = 0; i < 5; i++) {
+			controller.deliverMessage(new UnicastMessage<Object>(
+					Performative.INFORM, addresses[0], addresses[1], time));
+		}
+		controller.deliverMessage(new UnicastMessage<Object>(
+				Performative.INFORM, addresses[0], addresses[2], time));
+		assertEquals("[0, 2, 1, 0]", Arrays.toString(step()));
+		assertEquals("[0, 2, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 1, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 0, 0, 0]", Arrays.toString(step()));
+	}
+
+	@Test
+	public void testCheckpointDelayed() {
+		controller.setLatencyModel(new LatencyModel() {
+			@Override
+			public int getLatency(NetworkAddress to, Message<?> m) {
+				return 2;
+			}
+		});
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+		step();
+		final Serializable state = controller.checkpoint();
+		assertEquals("[0, 0, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 1, 1, 1]", Arrays.toString(step()));
+
+		controller.restore(state);
+		assertEquals(1, controller.getDelayedCount());
+		assertEquals("[0, 0, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 1, 1, 1]", Arrays.toString(step()));
+	}
+
+	/**
+	 * Devices may register in a different order in a restored simulation, so
+	 * delayed fan-outs must go to the same addresses, not the same indices.
+	 */
+	@Test
+	public void testRestoreWithDevicesReordered() {
+		final LatencyModel latency = new LatencyModel() {
+			@Override
+			public int getLatency(NetworkAddress to, Message<?> m) {
+				return to.equals(addresses[1]) || to.equals(addresses[3]) ? 2
+						: 0;
+			}
+		};
+		controller.setLatencyModel(latency);
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+		assertEquals("[0, 0, 1, 0]", Arrays.toString(step()));
+		final Serializable state = controller.checkpoint();
+
+		context.checking(new Expectations() {
+			{
+				one(scenario).addTimeDriven(
+						with(any(LatencyNetworkController.class)));
+			}
+		});
+		final LatencyNetworkController restored = new LatencyNetworkController(
+				new IntegerTime(0), env, scenario);
+		restored.setLatencyModel(latency);
+		for (int i = devices - 1; i >= 0; i--) {
+			final List<Message<?>> inbox = received.get(i);
+			restored.register(new NetworkRegistrationRequest(addresses[i],
+					new NetworkChannel() {
+						@Override
+						public void deliverMessage(Message<?> m) {
+							inbox.add(m);
+						}
+					}));
+		}
+		restored.restore(state);
+		controller = restored;
+		assertEquals("[0, 0, 0, 0]", Arrays.toString(step()));
+		assertEquals("[0, 1, 0, 1]", Arrays.toString(step()));
+		assertEquals(0, controller.getDelayedCount());
+	}
+
+	/**
+	 * With a thread pool time is incremented in the same phase as the routers
+	 * run, so it may move on before they do. Delivery cycles must still be
+	 * counted from the cycle being routed.
+	 */
+	@Test
+	public void testLatencyWithThreadPool() {
+		final List<Runnable> scheduled = new ArrayList<Runnable>();
+		controller.setThreadPool(new ThreadPool() {
+			@Override
+			public void submitScheduled(Runnable s, WaitCondition condition) {
+				assertEquals(WaitCondition.END_OF_TIME_CYCLE, condition);
+				scheduled.add(s);
+			}
+
+			@Override
+			public void submit(Runnable s) {
+				s.run();
+			}
+
+			@Override
+			public void waitFor(WaitCondition condition) {
+			}
+
+			@Override
+			public int getThreadCount() {
+				return 2;
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+		controller.setLatencyModel(new LatencyModel() {
+			@Override
+			public int getLatency(NetworkAddress to, Message<?> m) {
+				return indexOf(to);
+			}
+		});
+		controller.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[0], time));
+
+		final String[] expected = { "[0, 0, 0, 0]", "[0, 1, 0, 0]",
+				"[0, 0, 1, 0]", "[0, 0, 0, 1]" };
+		for (String counts : expected) {
+			for (List<Message<?>> inbox : received) {
+				inbox.clear();
+			}
+			controller.routeMessages();
+			// time moves on before the routers get to run
+			controller.incrementTime();
+			while (!scheduled.isEmpty()) {
+				scheduled.remove(0).run();
+			}
+			final int[] got = new int[devices];
+			for (int i = 0; i < devices; i++) {
+				got[i] = received.get(i).size();
+			}
+			assertEquals(counts, Arrays.toString(got));
+		}
+		assertEquals(0, controller.getDelayedCount());
+	}
+
+}
@@ -0,0 +1,147 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CyclicBarrier;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * <p>
+ * Throughput of {@link Mailbox} against a synchronized {@link LinkedList} for
+ * hub-and-spoke traffic: several sender threads deliver to a single hub, which
+ * drains its messages once all of them have been sent, as a participant would
+ * each time step.
+ * </p>
+ * 
+ * <p>
+ * Run with
+ * <code>java -cp ... uk.ac.imperial.presage2.core.network.MailboxBenchmark [threads] [messages per cycle] [cycles]</code>
+ * </p>
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class MailboxBenchmark {
+
+	interface Inbox {
+		void deliver(Message<?> m);
+
+		int drain(List<Message<?>> to);
+	}
+
+	static class LockedInbox implements Inbox {
+		private List<Message<?>> messages = new LinkedList<Message<?>>();
+
+		@Override
+		public synchronized void deliver(Message<?> m) {
+			messages.add(m);
+		}
+
+		@Override
+		public synchronized int drain(List<Message<?>> to) {
+			to.addAll(messages);
+			int n = messages.size();
+			messages = new LinkedList<Message<?>>();
+			return n;
+		}
+	}
+
+	static class MailboxInbox implements Inbox {
+		private final Mailbox mailbox = new Mailbox();
+
+		@Override
+		public void deliver(Message<?> m) {
+			mailbox.offer(m);
+		}
+
+		@Override
+		public int drain(List<Message<?>> to) {
+			return mailbox.drainTo(to);
+		}
+	}
+
+	/**
+	 * @return messages per second delivered and drained.
+	 */
+	static double run(final Inbox hub, final int threads,
+			final int perCycle, final int cycles) throws Exception {
+		final Message<?> m = new BroadcastMessage<Object>(Performative.INFORM,
+				new NetworkAddress(UUID.randomUUID()), new IntegerTime(0));
+		final CyclicBarrier start = new CyclicBarrier(threads + 1);
+		final CyclicBarrier end = new CyclicBarrier(threads + 1);
+		final int perThread = perCycle / threads;
+		for (int t = 0; t < threads; t++) {
+			Thread sender = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int c = 0; c < cycles; c++) {
+							start.await();
+							for (int i = 0; i < perThread; i++)
+								hub.deliver(m);
+							end.await();
+						}
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		final List<Message<?>> buffer = new ArrayList<Message<?>>(perCycle);
+		long total = 0;
+		final long begin = System.nanoTime();
+		for (int c = 0; c < cycles; c++) {
+			start.await();
+			end.await();
+			buffer.clear();
+			total += hub.drain(buffer);
+		}
+		final long elapsed = System.nanoTime() - begin;
+		return total / (elapsed / 1e9);
+	}
+
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+				.getRuntime().availableProcessors();
+		final int perCycle = args.length > 1 ? Integer.parseInt(args[1])
+				: 50000;
+		final int cycles = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+		System.out.println("Hub-and-spoke: " + threads + " senders, "
+				+ perCycle + " messages per cycle, " + cycles + " cycles");
+		for (int round = 0; round < 3; round++) {
+			// first rounds warm up the JIT
+			double locked = run(new LockedInbox(), threads, perCycle, cycles);
+			double lockFree = run(new MailboxInbox(), threads, perCycle, cycles);
+			System.out.println(String.format(
+					"round %d: synchronized list %.0f msg/s, mailbox %.0f msg/s",
+					round, locked, lockFree));
+		}
+	}
+
+}
@@ -0,0 +1,118 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class MailboxTest {
+
+	final NetworkAddress from = new NetworkAddress(UUID.randomUUID());
+
+	private Message<?> message(int i) {
+		return new BroadcastMessage<Integer>(Performative.INFORM, "test",
+				new IntegerTime(0), from, i);
+	}
+
+	@Test
+	public void testDrainInOrder() {
+		Mailbox mailbox = new Mailbox();
+		assertTrue(mailbox.isEmpty());
+		List<Message<?>> sent = new ArrayList<Message<?>>();
+		for (int i = 0; i < 10; i++) {
+			Message<?> m = message(i);
+			sent.add(m);
+			mailbox.offer(m);
+		}
+		assertFalse(mailbox.isEmpty());
+
+		List<Message<?>> buffer = new ArrayList<Message<?>>();
+		assertEquals(10, mailbox.drainTo(buffer));
+		assertTrue(mailbox.isEmpty());
+		assertEquals(sent, buffer);
+
+		// buffer can be reused
+		buffer.clear();
+		Message<?> m = message(10);
+		mailbox.offer(m);
+		assertEquals(1, mailbox.drainTo(buffer));
+		assertSame(m, buffer.get(0));
+		assertEquals(0, mailbox.drainTo(buffer));
+	}
+
+	@Test
+	public void testManyProducers() throws Exception {
+		final Mailbox mailbox = new Mailbox();
+		final int producers = 8;
+		final int perProducer = 10000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < producers; p++) {
+			final int offset = p * perProducer;
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						mailbox.offer(message(offset + i));
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+
+		List<Message<?>> received = new ArrayList<Message<?>>();
+		for (Thread t : threads) {
+			mailbox.drainTo(received);
+			t.join();
+		}
+		mailbox.drainTo(received);
+		assertEquals(producers * perProducer, received.size());
+
+		// every message is received once, and each producer's messages stay
+		// in the order they were sent.
+		int[] last = new int[producers];
+		boolean[] seen = new boolean[producers * perProducer];
+		for (int p = 0; p < producers; p++)
+			last[p] = -1;
+		for (Message<?> m : received) {
+			int i = (Integer) m.getData();
+			assertFalse(seen[i]);
+			seen[i] = true;
+			int p = i / perProducer;
+			assertTrue(i > last[p]);
+			last[p] = i;
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class MessageBatchBuilderTest {
+
+	final NetworkAddress a = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress b = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress c = new NetworkAddress(UUID.randomUUID());
+
+	@Test
+	public void testEmptyBatch() {
+		MessageBatchBuilder builder = new MessageBatchBuilder();
+		assertNull(builder.buildDeliveryBatch(new IntegerTime(0)));
+		assertNull(builder.buildBlockedBatch(new IntegerTime(0)));
+	}
+
+	@Test
+	public void testBuildDeliveryBatch() {
+		MessageBatchBuilder builder = new MessageBatchBuilder();
+		final int n = 200;
+		for (int i = 0; i < n; i++) {
+			Message<?> m;
+			if (i % 2 == 0)
+				m = new UnicastMessage<Object>(Performative.INFORM, "even",
+						new IntegerTime(1), a, b);
+			else
+				m = new BroadcastMessage<Object>(Performative.REQUEST, "odd",
+						new IntegerTime(1), a);
+			builder.add(m, i % 2 == 0 ? b : c);
+		}
+		assertEquals(n, builder.size());
+
+		MessageDeliveryBatch batch = builder.buildDeliveryBatch(new IntegerTime(1));
+		assertEquals(0, builder.size());
+		assertEquals(n, batch.size());
+		assertEquals(1, batch.getTime().intValue());
+		for (int i = 0; i < n; i++) {
+			assertEquals(a.getId(), batch.getFrom(i));
+			if (i % 2 == 0) {
+				assertEquals(b.getId(), batch.getTo(i));
+				assertTrue(batch.isTo(i, b.getId()));
+				assertFalse(batch.isTo(i, c.getId()));
+				assertEquals(Performative.INFORM, batch.getPerformative(i));
+				assertEquals("even", batch.getType(i));
+				assertSame(UnicastMessage.class, batch.getMessage(i).getClass());
+			} else {
+				assertEquals(c.getId(), batch.getTo(i));
+				assertEquals(Performative.REQUEST, batch.getPerformative(i));
+				assertEquals("odd", batch.getType(i));
+			}
+		}
+	}
+
+	@Test
+	public void testBuilderResets() {
+		MessageBatchBuilder builder = new MessageBatchBuilder();
+		builder.add(new UnicastMessage<Object>(Performative.INFORM, "first",
+				new IntegerTime(0), a, b), b);
+		MessageDeliveryBatch first = builder.buildDeliveryBatch(new IntegerTime(0));
+
+		builder.add(new UnicastMessage<Object>(null, "second",
+				new IntegerTime(1), null, c), c);
+		MessageBlockedBatch second = builder.buildBlockedBatch(new IntegerTime(1));
+
+		assertEquals(1, first.size());
+		assertEquals("first", first.getType(0));
+		assertEquals(b.getId(), first.getTo(0));
+		assertEquals(1, second.size());
+		assertEquals("second", second.getType(0));
+		assertNull(second.getFrom(0));
+		assertNull(second.getPerformative(0));
+	}
+
+	@Test
+	public void testMergeBuilders() {
+		MessageBatchBuilder[] builders = { new MessageBatchBuilder(),
+				new MessageBatchBuilder(), new MessageBatchBuilder() };
+		builders[0].add(new UnicastMessage<Object>(Performative.INFORM,
+				"first", new IntegerTime(2), a, b), b);
+		builders[2].add(new UnicastMessage<Object>(Performative.INFORM,
+				"first", new IntegerTime(2), c, a), a);
+		builders[2].add(new UnicastMessage<Object>(null, "second",
+				new IntegerTime(2), null, c), c);
+
+		MessageDeliveryBatch batch = MessageBatchBuilder.buildDeliveryBatch(
+				new IntegerTime(2), builders);
+		assertEquals(3, batch.size());
+		assertEquals("first", batch.getType(0));
+		assertEquals(b.getId(), batch.getTo(0));
+		assertEquals("first", batch.getType(1));
+		assertEquals(c.getId(), batch.getFrom(1));
+		assertEquals("second", batch.getType(2));
+		assertNull(batch.getFrom(2));
+		assertNull(batch.getPerformative(2));
+		for (MessageBatchBuilder builder : builders) {
+			assertEquals(0, builder.size());
+		}
+
+		// drained builders keep their arrays, so an entry without a sender
+		// must not pick up the sender of the entry it replaces.
+		builders[2].add(new UnicastMessage<Object>(null, "third",
+				new IntegerTime(3), null, b), b);
+		MessageBlockedBatch blocked = MessageBatchBuilder.buildBlockedBatch(
+				new IntegerTime(3), builders);
+		assertEquals(1, blocked.size());
+		assertEquals("third", blocked.getType(0));
+		assertNull(blocked.getFrom(0));
+		assertNull(MessageBatchBuilder.buildBlockedBatch(new IntegerTime(4),
+				builders));
+	}
+
+}
@@ -68,15 +68,15 @@ abstract public class NetworkConnectorTest {
 	NetworkConnector testConnector;
 
 	/**
-	 * Instantiate this.testConnector with the network connector to test.
+	 * Instantiate this.testConnector with the network connector to test. Called
+	 * once the mock expectations are in place.
 	 * 
 	 * @throws java.lang.Exception
 	 */
-	@Before
 	abstract public void setUp() throws Exception;
 
 	@Before
-	public void mockExpectations() {
+	public void mockExpectations() throws Exception {
 		context.checking(new Expectations() {
 			{
 				allowing(time).clone();
@@ -85,6 +85,9 @@ abstract public class NetworkConnectorTest {
 				will(returnValue(testAddr));
 			}
 		});
+		// the order @Before methods run in is not defined, so set up the
+		// connector here.
+		setUp();
 	}
 
 	/**
@@ -19,9 +19,12 @@
 
 package uk.ac.imperial.presage2.core.network;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.jmock.Expectations;
@@ -34,6 +37,7 @@ import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.messaging.Performative;
 import uk.ac.imperial.presage2.core.simulator.Scenario;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool;
 import uk.ac.imperial.presage2.core.util.random.Random;
 
 public class NetworkControllerTest {
@@ -299,6 +303,166 @@ public class NetworkControllerTest {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testBroadCastFromEqualAddress() {
+
+		// sender address is equal to, but not the same object as, channel1's
+		final Message<?> message = new BroadcastMessage<Object>(
+				Performative.INFORM, new NetworkAddress(channel1Address.getId()),
+				time);
+
+		context.checking(new Expectations() {
+			{
+				one(time).increment();
+				never(channel1).deliverMessage(message);
+				one(channel2).deliverMessage(message);
+			}
+		});
+
+		testController.register(regRequest1);
+		testController.register(regRequest2);
+		testController.deliverMessage(message);
+		testController.incrementTime();
+
+		context.assertIsSatisfied();
+	}
+
+	/**
+	 * With a threadpool which runs tasks as they are submitted, like the
+	 * single threaded simulator, messages are delivered when participants
+	 * complete rather than blocking incrementTime.
+	 */
+	@Test
+	public void testShardedDeliveryWithThreadPool() {
+		final int[] scheduled = { 0 };
+		testController.setThreadPool(new ThreadPool() {
+			@Override
+			public void submitScheduled(Runnable s, WaitCondition condition) {
+				assertEquals(WaitCondition.END_OF_TIME_CYCLE, condition);
+				scheduled[0]++;
+				s.run();
+			}
+
+			@Override
+			public void submit(Runnable s) {
+				s.run();
+			}
+
+			@Override
+			public void waitFor(WaitCondition condition) {
+			}
+
+			@Override
+			public int getThreadCount() {
+				return 4;
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+
+		final Message<?> message = new BroadcastMessage<Object>(
+				Performative.INFORM, channel1Address, time);
+
+		context.checking(new Expectations() {
+			{
+				one(time).increment();
+			}
+		});
+
+		testController.register(regRequest1);
+		testController.register(regRequest2);
+		testController.register(regRequest3);
+		testController.deliverMessage(message);
+		testController.incrementTime();
+		context.assertIsSatisfied();
+		assertEquals(0, scheduled[0]);
+
+		context.checking(new Expectations() {
+			{
+				never(channel1).deliverMessage(message);
+				one(channel2).deliverMessage(message);
+				one(channel3).deliverMessage(message);
+			}
+		});
+		testController.routeMessages();
+		context.assertIsSatisfied();
+		// 4 routers then 4 delivery shards
+		assertEquals(8, scheduled[0]);
+		assertEquals(0, testController.getAwaitingDeliveryCount());
+	}
+
+	/**
+	 * A broadcast is queued once per delivery shard rather than once per
+	 * recipient, and each shard delivers to its own recipients.
+	 */
+	@Test
+	public void testBroadcastFanOut() {
+		final List<Runnable> scheduled = new ArrayList<Runnable>();
+		testController.setThreadPool(new ThreadPool() {
+			@Override
+			public void submitScheduled(Runnable s, WaitCondition condition) {
+				scheduled.add(s);
+			}
+
+			@Override
+			public void submit(Runnable s) {
+				s.run();
+			}
+
+			@Override
+			public void waitFor(WaitCondition condition) {
+			}
+
+			@Override
+			public int getThreadCount() {
+				return 4;
+			}
+
+			@Override
+			public void shutdown() {
+			}
+		});
+
+		final int devices = 40;
+		final int[] received = new int[devices];
+		final NetworkAddress[] addresses = new NetworkAddress[devices];
+		for (int i = 0; i < devices; i++) {
+			final int n = i;
+			addresses[i] = new NetworkAddress(new UUID(rand.nextLong(),
+					rand.nextLong()));
+			testController.register(new NetworkRegistrationRequest(
+					addresses[i], new NetworkChannel() {
+						@Override
+						public void deliverMessage(Message<?> m) {
+							received[n]++;
+						}
+					}));
+		}
+
+		testController.deliverMessage(new BroadcastMessage<Object>(
+				Performative.INFORM, addresses[7], time));
+		testController.routeMessages();
+		// run the routers
+		final List<Runnable> routers = new ArrayList<Runnable>(scheduled);
+		scheduled.clear();
+		for (Runnable r : routers) {
+			r.run();
+		}
+		assertEquals(4, testController.getAwaitingDeliveryCount());
+
+		// run the shards
+		assertEquals(4, scheduled.size());
+		for (Runnable r : scheduled) {
+			r.run();
+		}
+		assertEquals(0, testController.getAwaitingDeliveryCount());
+		for (int i = 0; i < devices; i++) {
+			assertEquals(i == 7 ? 0 : 1, received[i]);
+		}
+	}
+
 	@Test
 	public void testRegisterFailure() {
 
@@ -0,0 +1,85 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class NetworkEventCodecsTest {
+
+	final NetworkAddress a = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress b = new NetworkAddress(UUID.randomUUID());
+	final NetworkAddress c = new NetworkAddress(UUID.randomUUID());
+
+	private MessageDeliveryEvent roundTrip(Message<?> m, NetworkAddress to) {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		NetworkEventCodecs.DELIVERY.write(new MessageDeliveryEvent(new IntegerTime(3), m, to), buf);
+		buf.flip();
+		MessageDeliveryEvent e = NetworkEventCodecs.DELIVERY.read(3, buf);
+		assertEquals(0, buf.remaining());
+		assertEquals(3, e.getTime().intValue());
+		assertEquals(to, e.getRecipient());
+		assertEquals(m.getClass(), e.getMessage().getClass());
+		assertEquals(m.getPerformative(), e.getMessage().getPerformative());
+		assertEquals(m.getType(), e.getMessage().getType());
+		assertEquals(m.getFrom(), e.getMessage().getFrom());
+		assertEquals(m.getData(), e.getMessage().getData());
+		assertEquals(m.getConversationKey(), e.getMessage().getConversationKey());
+		assertEquals(m.getTimestamp().intValue(), e.getMessage().getTimestamp().intValue());
+		return e;
+	}
+
+	@Test
+	public void testUnicast() {
+		UnicastMessage<String> m = new UnicastMessage<String>(Performative.INFORM, "test",
+				new IntegerTime(2), a, b, "hello");
+		m.setConversationKey(UUID.randomUUID());
+		UnicastMessage<?> read = (UnicastMessage<?>) roundTrip(m, b).getMessage();
+		assertEquals(b, read.getTo());
+	}
+
+	@Test
+	public void testBroadcast() {
+		roundTrip(new BroadcastMessage<Integer>(Performative.PROPOSE, "bc", new IntegerTime(1),
+				a, 42), c);
+	}
+
+	@Test
+	public void testMulticast() {
+		MulticastMessage<Object> m = new MulticastMessage<Object>(Performative.REQUEST, "mc",
+				new IntegerTime(0), a, Arrays.asList(b, c));
+		MulticastMessage<?> read = (MulticastMessage<?>) roundTrip(m, b).getMessage();
+		assertEquals(2, read.getTo().size());
+		assertTrue(read.getTo().contains(c));
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class TimingWheelTest {
+
+	final Random rand = Random.getInstance();
+
+	@Test
+	public void testExpiresInCycle() {
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+		final int[] cycles = { 0, 1, 63, 64, 65, 4095, 4096, 5000, 300000 };
+		for (int c : cycles) {
+			wheel.schedule(c, c);
+		}
+		assertEquals(cycles.length, wheel.size());
+
+		final List<Integer> expired = new ArrayList<Integer>();
+		for (int now = 0; now <= 300000; now++) {
+			wheel.expire(now, expired);
+			for (Integer e : expired) {
+				assertEquals(now, e.intValue());
+			}
+			expired.clear();
+		}
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void testRandomSchedule() {
+		final int start = rand.nextInt(10000);
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(start);
+		final List<Integer> expected = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++) {
+			final int c = start + rand.nextInt(20000);
+			wheel.schedule(c, c);
+			expected.add(c);
+		}
+		final List<Integer> expired = new ArrayList<Integer>();
+		int now = start;
+		while (now < start + 20000) {
+			// skip a varying number of cycles at a time
+			now += rand.nextInt(100);
+			final int before = expired.size();
+			wheel.expire(now, expired);
+			for (Integer e : expired.subList(before, expired.size())) {
+				assertTrue(e <= now);
+				assertTrue(e > now - 100);
+			}
+		}
+		Collections.sort(expected);
+		Collections.sort(expired);
+		assertEquals(expected, expired);
+	}
+
+	@Test
+	public void testPastCycleExpiresNext() {
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+		final List<Integer> expired = new ArrayList<Integer>();
+		wheel.expire(10, expired);
+		wheel.schedule(5, 5);
+		wheel.expire(11, expired);
+		assertEquals(Collections.singletonList(5), expired);
+	}
+
+	@Test
+	public void testCopyAndClear() {
+		final TimingWheel<Integer> wheel = new TimingWheel<Integer>(0);
+		wheel.schedule(3, 3);
+		wheel.schedule(100, 100);
+		wheel.schedule(100000, 100000);
+		final List<Integer> copy = new ArrayList<Integer>();
+		wheel.copyTo(copy);
+		Collections.sort(copy);
+		assertEquals(3, copy.size());
+		assertEquals(100000, copy.get(2).intValue());
+		assertEquals(3, wheel.size());
+
+		wheel.clear(50);
+		assertEquals(0, wheel.size());
+		final List<Integer> expired = new ArrayList<Integer>();
+		wheel.expire(200000, expired);
+		assertTrue(expired.isEmpty());
+	}
+
+}
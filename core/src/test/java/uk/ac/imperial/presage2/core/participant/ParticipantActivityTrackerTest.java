@@ -0,0 +1,177 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.participant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.simulator.SimulatorModule;
+
+import com.google.inject.Binding;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class ParticipantActivityTrackerTest {
+
+	final Mockery context = new Mockery();
+
+	final List<Participant> participants = new ArrayList<Participant>();
+
+	final List<Time> times = new ArrayList<Time>();
+
+	ParticipantActivity activity;
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 3; i++) {
+			final Participant p = context.mock(Participant.class, "p" + i);
+			final UUID id = UUID.randomUUID();
+			final Time t = new IntegerTime(0);
+			context.checking(new Expectations() {
+				{
+					allowing(p).getID();
+					will(returnValue(id));
+					allowing(p).getTime();
+					will(returnValue(t));
+				}
+			});
+			participants.add(p);
+			times.add(t);
+		}
+		activity = new ParticipantActivityTracker();
+		activity.track(participants);
+	}
+
+	@Test
+	public void testAllAwake() {
+		assertEquals(participants, activity.getAwake(new IntegerTime(0)));
+		assertEquals(participants, activity.getAwake(new IntegerTime(1)));
+	}
+
+	@Test
+	public void testSleepUntil() {
+		final Participant p = participants.get(1);
+		activity.sleepUntil(p, new IntegerTime(5));
+		assertTrue(activity.isAsleep(p.getID()));
+		for (int t = 1; t < 5; t++) {
+			assertFalse(activity.getAwake(new IntegerTime(t)).contains(p));
+		}
+		assertTrue(activity.getAwake(new IntegerTime(5)).contains(p));
+		assertFalse(activity.isAsleep(p.getID()));
+		// time is moved on to when we were woken
+		assertEquals(5, times.get(1).intValue());
+	}
+
+	@Test
+	public void testWakeOnMessage() {
+		final Participant p = participants.get(0);
+		activity.sleepUntilMessage(p);
+		assertEquals(2, activity.getAwake(new IntegerTime(1)).size());
+		assertEquals(2, activity.getAwake(new IntegerTime(2)).size());
+		activity.wake(p.getID());
+		assertTrue(activity.getAwake(new IntegerTime(3)).contains(p));
+		assertEquals(3, times.get(0).intValue());
+	}
+
+	@Test
+	public void testStaleAlarm() {
+		final Participant p = participants.get(2);
+		activity.sleepUntil(p, new IntegerTime(3));
+		// woken early, then sleeps again until a message.
+		activity.wake(p.getID());
+		activity.getAwake(new IntegerTime(1));
+		activity.sleepUntilMessage(p);
+		// earlier alarm should not wake us.
+		assertFalse(activity.getAwake(new IntegerTime(3)).contains(p));
+		assertFalse(activity.getAwake(new IntegerTime(4)).contains(p));
+		assertTrue(activity.isAsleep(p.getID()));
+	}
+
+	/**
+	 * Deliveries wake recipients from many threads at once, and most of them
+	 * are not asleep.
+	 */
+	@Test
+	public void testConcurrentWake() throws InterruptedException {
+		activity.sleepUntilMessage(participants.get(0));
+		activity.sleepUntil(participants.get(2), new IntegerTime(10));
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					for (int n = 0; n < 1000; n++) {
+						activity.wake(UUID.randomUUID());
+						for (Participant p : participants) {
+							activity.wake(p.getID());
+						}
+					}
+				}
+			});
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		final List<Participant> awake = activity.getAwake(new IntegerTime(1));
+		assertEquals(3, awake.size());
+		assertTrue(awake.containsAll(participants));
+		for (Participant p : participants) {
+			assertFalse(activity.isAsleep(p.getID()));
+		}
+	}
+
+	private static boolean bindsActivity(Module module) {
+		for (Element e : Elements.getElements(module)) {
+			if (e instanceof Binding<?>
+					&& ((Binding<?>) e).getKey().equals(
+							Key.get(ParticipantActivity.class)))
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testOnlyBoundWhenEnabled() {
+		assertFalse(bindsActivity(SimulatorModule.singleThreadedSimulator()));
+		assertTrue(bindsActivity(SimulatorModule.singleThreadedSimulator()
+				.trackActivity()));
+	}
+
+}
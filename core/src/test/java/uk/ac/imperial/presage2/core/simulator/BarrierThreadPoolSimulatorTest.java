@@ -0,0 +1,70 @@
+/**
+ * 	Copyright (C) 2011 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class BarrierThreadPoolSimulatorTest extends SimulatorTest {
+
+	@Override
+	public void setUp() throws Exception {
+		this.simulatorUnderTest = new MultiThreadedSimulator(scenario, time,
+				eventBus, new BarrierThreadPool(new Random().nextInt(5) + 1));
+	}
+
+	/**
+	 * Unscheduled tasks count towards the pool's busy time, with or without a
+	 * profiler.
+	 */
+	@Test
+	public void testUnscheduledBusyTime() {
+		final BarrierThreadPool pool = new BarrierThreadPool(1);
+		try {
+			pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(20);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			// with one thread this runs after the unscheduled task completes.
+			pool.submitScheduled(new Runnable() {
+				@Override
+				public void run() {
+				}
+			}, ThreadPool.WaitCondition.END_OF_TIME_CYCLE);
+			pool.waitFor(ThreadPool.WaitCondition.END_OF_TIME_CYCLE);
+			assertTrue(pool.getBusyNanos() >= 20000000L);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
@@ -0,0 +1,262 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.messaging.Input;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class CheckpointTest {
+
+	final Mockery context = new Mockery();
+
+	static class Counter implements TimeDriven, Checkpointable {
+
+		int count = 0;
+
+		@Override
+		public void incrementTime() {
+			count++;
+		}
+
+		@Override
+		public Serializable checkpoint() {
+			return count;
+		}
+
+		@Override
+		public void restore(Serializable state) {
+			count = (Integer) state;
+		}
+	}
+
+	static class CountingParticipant extends Counter implements Participant {
+
+		final UUID id;
+
+		CountingParticipant(UUID id) {
+			super();
+			this.id = id;
+		}
+
+		@Override
+		public UUID getID() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return id.toString();
+		}
+
+		@Override
+		public Time getTime() {
+			return null;
+		}
+
+		@Override
+		public void initialise() {
+		}
+
+		@Override
+		public void execute() {
+		}
+
+		@Override
+		public void onSimulationComplete() {
+		}
+
+		@Override
+		public void enqueueInput(Input input) {
+		}
+
+		@Override
+		public void enqueueInput(Collection<? extends Input> inputs) {
+		}
+	}
+
+	@Test
+	public void testReadWrite() throws Exception {
+		final Checkpoint c = new Checkpoint(42);
+		c.put("a", "hello");
+		c.put("b", 7);
+		c.put("c", null);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		c.write(out);
+		final Checkpoint read = Checkpoint.read(new ByteArrayInputStream(out
+				.toByteArray()));
+		assertEquals(42, read.getTime());
+		assertEquals(2, read.getSections().size());
+		assertEquals("hello", read.get("a"));
+		assertEquals(7, read.get("b"));
+		assertEquals(null, read.get("c"));
+
+		try {
+			final ByteArrayOutputStream bad = new ByteArrayOutputStream();
+			new java.util.zip.GZIPOutputStream(bad).close();
+			Checkpoint.read(new ByteArrayInputStream(bad.toByteArray()));
+			fail("Read an empty checkpoint");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testRandomState() throws Exception {
+		Random.seed = 1234;
+		Random.reset();
+		Random.randomInt();
+		final Checkpoint c = new Checkpoint(0);
+		c.put("random", Random.saveState());
+		final int[] expected = new int[10];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = Random.randomInt();
+		}
+		Random.restoreState(c.get("random"));
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], Random.randomInt());
+		}
+		Random.seed = 0;
+		Random.reset();
+	}
+
+	private Simulator simulator(final Counter counter,
+			final Set<Plugin> plugins) {
+		return simulator(counter, plugins, Collections.<Participant> emptySet());
+	}
+
+	private Simulator simulator(final Counter counter,
+			final Set<Plugin> plugins, final Set<Participant> participants) {
+		final Scenario scenario = context.mock(Scenario.class, "scenario"
+				+ System.identityHashCode(counter));
+		final EventBus eventBus = context.mock(EventBus.class, "eventBus"
+				+ System.identityHashCode(counter));
+		final Set<TimeDriven> timeDriven = new HashSet<TimeDriven>();
+		timeDriven.add(counter);
+		context.checking(new Expectations() {
+			{
+				allowing(scenario).getParticipants();
+				will(returnValue(participants));
+				allowing(scenario).getTimeDriven();
+				will(returnValue(timeDriven));
+				allowing(scenario).getPlugins();
+				will(returnValue(plugins));
+				allowing(scenario).getEnvironment();
+				will(returnValue(new Counter()));
+				allowing(scenario).getFinishTime();
+				will(returnValue(new IntegerTime(10)));
+				allowing(eventBus).publish(with(any(Event.class)));
+			}
+		});
+		return new SingleThreadedSimulator(scenario, new IntegerTime(0),
+				eventBus);
+	}
+
+	@Test
+	public void testCheckpointAndRestore() throws Exception {
+		final File file = File.createTempFile("presage2", ".checkpoint");
+		file.delete();
+		file.deleteOnExit();
+
+		final Counter counter = new Counter();
+		final Set<Plugin> plugins = new HashSet<Plugin>();
+		plugins.add(new Checkpointer(file, 4));
+		final Simulator sim = simulator(counter, plugins);
+		sim.start();
+		assertEquals(10, counter.count);
+		assertTrue(file.isFile());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		// last checkpoint was taken at the start of cycle 8
+		final Checkpoint c = Checkpoint.read(file);
+		assertEquals(8, c.getTime());
+		assertTrue(c.getSections().contains(
+				"timedriven/" + Counter.class.getName()));
+
+		final Counter resumed = new Counter();
+		final Simulator sim2 = simulator(resumed, new HashSet<Plugin>());
+		sim2.initialise();
+		sim2.restore(c);
+		assertEquals(8, resumed.count);
+		assertEquals(8, sim2.getCurrentSimulationTime().intValue());
+		sim2.run();
+		sim2.complete();
+		assertEquals(10, resumed.count);
+	}
+
+	/**
+	 * The rest of the state refers to participants by ID, so a checkpoint
+	 * which does not have every participant cannot be restored.
+	 */
+	@Test
+	public void testRestoreMissingParticipant() throws Exception {
+		final Set<Participant> participants = new HashSet<Participant>();
+		participants.add(new CountingParticipant(UUID.randomUUID()));
+		final Simulator sim = simulator(new Counter(), new HashSet<Plugin>(),
+				participants);
+		sim.initialise();
+		final Checkpoint c = sim.checkpoint();
+
+		final Set<Participant> others = new HashSet<Participant>();
+		others.add(new CountingParticipant(UUID.randomUUID()));
+		final Counter resumed = new Counter();
+		resumed.count = 3;
+		final Simulator sim2 = simulator(resumed, new HashSet<Plugin>(),
+				others);
+		sim2.initialise();
+		try {
+			sim2.restore(c);
+			fail("Restored a checkpoint without the simulation's participants");
+		} catch (IOException e) {
+		}
+		// nothing is restored
+		assertEquals(3, resumed.count);
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import java.util.Random;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class ChunkedMultiThreadedSimulatorTest extends SimulatorTest {
+
+	@Override
+	public void setUp() throws Exception {
+		MultiThreadedSimulator sim = new MultiThreadedSimulator(scenario, time,
+				eventBus, new BarrierThreadPool(new Random().nextInt(5) + 1));
+		sim.setChunkedExecution(true);
+		this.simulatorUnderTest = sim;
+	}
+
+}
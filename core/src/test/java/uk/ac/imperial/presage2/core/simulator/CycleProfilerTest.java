@@ -0,0 +1,120 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.simulator.ThreadPool.WaitCondition;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class CycleProfilerTest {
+
+	final Mockery context = new Mockery();
+
+	@Test
+	public void testHistogram() {
+		final LatencyHistogram h = new LatencyHistogram();
+		assertEquals(0, h.getPercentile(0.5));
+		for (int i = 1; i <= 100; i++) {
+			h.record(i);
+		}
+		assertEquals(100, h.getCount());
+		assertEquals(5050, h.getTotal());
+		assertEquals(100, h.getMax());
+		assertEquals(50.5, h.getMean(), 0.0001);
+		// percentiles are upper bounds within a factor of 2
+		final long p50 = h.getPercentile(0.5);
+		assertTrue(p50 >= 50 && p50 < 100);
+		assertEquals(100, h.getPercentile(0.99));
+		h.record(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, h.getPercentile(1));
+	}
+
+	private Participant participant(final String name) {
+		final Participant p = context.mock(Participant.class, name);
+		final UUID id = UUID.randomUUID();
+		context.checking(new Expectations() {
+			{
+				allowing(p).getID();
+				will(returnValue(id));
+				allowing(p).getName();
+				will(returnValue(name));
+			}
+		});
+		return p;
+	}
+
+	@Test
+	public void testReport() throws Exception {
+		final CycleProfiler profiler = new CycleProfiler();
+		profiler.initialise();
+		assertTrue(profiler.isEnabled());
+
+		final Participant fast = participant("fast");
+		final Participant slow = participant("slow");
+		for (int i = 0; i < 10; i++) {
+			profiler.startCycle();
+			final long now = System.nanoTime();
+			profiler.participant(fast, now);
+			profiler.participant(slow, now - 1000000);
+			profiler.endPhase(CycleProfiler.Phase.PARTICIPANTS);
+			profiler.queueDepth("queue", i);
+			profiler.poolTask(WaitCondition.AFTER_AGENTS, now - 1000, now);
+			profiler.endCycle();
+		}
+
+		final StringWriter csv = new StringWriter();
+		profiler.writeCsv(csv);
+		final String[] lines = csv.toString().split("\n");
+		assertEquals("type,name,unit,count,total,mean,p50,p99,max",
+				lines[0].trim());
+		// slowest participant listed first
+		final int slowLine = csv.toString().indexOf("slow (");
+		final int fastLine = csv.toString().indexOf("fast (");
+		assertTrue(slowLine > 0 && slowLine < fastLine);
+		assertTrue(csv.toString().contains("queue,queue,items,10,45,"));
+		assertTrue(csv.toString().contains("pool,AFTER_AGENTS wait,ns,10,"));
+		assertTrue(csv.toString().contains("pool,AFTER_AGENTS run,ns,10,"));
+		// pool conditions which recorded nothing are left out
+		assertTrue(!csv.toString().contains("END_OF_TIME_CYCLE wait"));
+
+		final StringWriter json = new StringWriter();
+		profiler.writeJson(json);
+		final JSONArray rows = new JSONArray(json.toString());
+		assertEquals(lines.length - 1, rows.length());
+		final JSONObject cycle = rows.getJSONObject(0);
+		assertEquals("cycle", cycle.getString("type"));
+		assertEquals(10, cycle.getLong("count"));
+	}
+
+}
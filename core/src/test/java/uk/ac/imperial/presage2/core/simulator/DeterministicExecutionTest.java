@@ -0,0 +1,265 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventBusModule;
+import uk.ac.imperial.presage2.core.messaging.Input;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.network.BasicNetworkConnector;
+import uk.ac.imperial.presage2.core.network.Message;
+import uk.ac.imperial.presage2.core.network.NetworkAddress;
+import uk.ac.imperial.presage2.core.network.NetworkController;
+import uk.ac.imperial.presage2.core.network.UnicastMessage;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.util.random.Random;
+
+import com.google.inject.Guice;
+import com.google.inject.Key;
+import com.google.inject.spi.Element;
+import com.google.inject.spi.Elements;
+import com.google.inject.spi.InstanceBinding;
+
+/**
+ * Checks that a seeded simulation under {@link DeterministicExecution} gives
+ * identical results with different numbers of threads.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class DeterministicExecutionTest {
+
+	final static int PARTICIPANTS = 40;
+	final static int CYCLES = 10;
+	final static long SEED = 1234;
+
+	final long originalSeed = Random.seed;
+
+	@After
+	public void tearDown() {
+		DeterministicExecution.setEnabled(false);
+		Random.seed = originalSeed;
+		Random.reset();
+	}
+
+	/**
+	 * Participant which each cycle draws from the random number generator,
+	 * sends messages to randomly chosen peers and records what it receives.
+	 */
+	static class TraceParticipant implements Participant {
+
+		final UUID id;
+		final Time time = new IntegerTime(0);
+		final List<String> trace = new ArrayList<String>();
+		BasicNetworkConnector network;
+		List<NetworkAddress> peers;
+
+		TraceParticipant(UUID id) {
+			this.id = id;
+		}
+
+		@Override
+		public void incrementTime() {
+			for (Message<?> m : network.getMessages()) {
+				trace.add(time + ":" + m.getFrom().getId() + ":" + m.getData());
+			}
+			final int sends = Random.randomInt(4);
+			for (int i = 0; i < sends; i++) {
+				final int draw = Random.randomInt();
+				trace.add(time + ":draw:" + draw);
+				network.sendMessage(new UnicastMessage<Integer>(
+						Performative.INFORM, "trace", time, network
+								.getAddress(), peers.get(Random
+								.randomInt(peers.size())), draw));
+			}
+			time.increment();
+		}
+
+		@Override
+		public UUID getID() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return id.toString();
+		}
+
+		@Override
+		public Time getTime() {
+			return time;
+		}
+
+		@Override
+		public void initialise() {
+		}
+
+		@Override
+		public void execute() {
+		}
+
+		@Override
+		public void onSimulationComplete() {
+		}
+
+		@Override
+		public void enqueueInput(Input input) {
+		}
+
+		@Override
+		public void enqueueInput(Collection<? extends Input> inputs) {
+		}
+
+	}
+
+	/**
+	 * Run the trace scenario.
+	 * 
+	 * @param threads
+	 *            number of threads to use, or 0 to use a
+	 *            {@link SingleThreadedSimulator}
+	 * @return trace of each participant.
+	 */
+	Map<UUID, List<String>> runScenario(int threads) {
+		Random.seed = SEED;
+		DeterministicExecution.setEnabled(true);
+
+		final EventBus eventBus = Guice.createInjector(new EventBusModule())
+				.getInstance(EventBus.class);
+		final ScenarioBuilder scenario = new ScenarioBuilder(null);
+		scenario.initialiseFinishTime(new IntegerTime(CYCLES));
+		scenario.addEnvironment(new TimeDriven() {
+			@Override
+			public void incrementTime() {
+			}
+		});
+		final Time time = new IntegerTime(0);
+		final Simulator sim = threads > 0 ? new MultiThreadedSimulator(
+				scenario, time, eventBus, threads)
+				: new SingleThreadedSimulator(scenario, time, eventBus);
+
+		final NetworkController controller = new NetworkController(
+				new IntegerTime(0), null, scenario);
+		controller.setEventBus(eventBus);
+		if (threads > 0) {
+			// single threaded delivers synchronously without a pool.
+			controller.setThreadPool(sim);
+		}
+
+		final List<TraceParticipant> participants = new ArrayList<TraceParticipant>();
+		final List<NetworkAddress> addresses = new ArrayList<NetworkAddress>();
+		for (int i = 0; i < PARTICIPANTS; i++) {
+			TraceParticipant p = new TraceParticipant(Random.randomUUID());
+			p.network = new BasicNetworkConnector(controller,
+					new NetworkAddress(p.getID()));
+			p.peers = addresses;
+			addresses.add(p.network.getAddress());
+			participants.add(p);
+			scenario.addParticipant(p);
+		}
+
+		sim.start();
+		sim.shutdown();
+
+		final Map<UUID, List<String>> traces = new HashMap<UUID, List<String>>();
+		for (TraceParticipant p : participants) {
+			traces.put(p.getID(), p.trace);
+		}
+		DeterministicExecution.setEnabled(false);
+		return traces;
+	}
+
+	@Test
+	public void testSameResultsForAnyThreadCount() {
+		final Map<UUID, List<String>> single = runScenario(0);
+		assertEquals(PARTICIPANTS, single.size());
+		boolean received = false;
+		for (List<String> trace : single.values()) {
+			for (String s : trace) {
+				received |= !s.contains(":draw:");
+			}
+		}
+		assertTrue(received);
+
+		for (int threads : new int[] { 2, 3, 8 }) {
+			assertEquals("Results differ with " + threads + " threads", single,
+					runScenario(threads));
+		}
+	}
+
+	/**
+	 * Seeded runs which are not deterministic generate UUIDs as before, without
+	 * drawing from the shared random stream.
+	 */
+	@Test
+	public void testSeededUUIDsOnlyWhenDeterministic() {
+		Random.seed = SEED;
+		Random.reset();
+		final int expected = Random.randomInt();
+
+		Random.reset();
+		Random.randomUUID();
+		assertEquals(expected, Random.randomInt());
+
+		DeterministicExecution.setEnabled(true);
+		final UUID id = Random.randomUUID();
+		DeterministicExecution.setEnabled(true);
+		assertEquals(id, Random.randomUUID());
+	}
+
+	static Object boundDeterministic(SimulatorModule module) {
+		for (Element e : Elements.getElements(module)) {
+			if (e instanceof InstanceBinding<?>
+					&& ((InstanceBinding<?>) e).getKey().equals(
+							Key.get(Boolean.class, Deterministic.class)))
+				return ((InstanceBinding<?>) e).getInstance();
+		}
+		return null;
+	}
+
+	/**
+	 * An unseeded simulation must switch deterministic mode off, otherwise it
+	 * is inherited from an earlier seeded simulation in the same JVM.
+	 */
+	@Test
+	public void testDeterministicAlwaysBound() {
+		assertEquals(Boolean.FALSE,
+				boundDeterministic(SimulatorModule.multiThreadedSimulator(4)));
+		assertEquals(Boolean.TRUE,
+				boundDeterministic(SimulatorModule.multiThreadedSimulator(4)
+						.deterministic(SEED)));
+	}
+
+}
@@ -0,0 +1,274 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventBusModule;
+import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.messaging.Input;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.network.LatencyModel;
+import uk.ac.imperial.presage2.core.network.LatencyNetworkController;
+import uk.ac.imperial.presage2.core.network.Message;
+import uk.ac.imperial.presage2.core.network.MessageDeliveryEvent;
+import uk.ac.imperial.presage2.core.network.MessageEventMode;
+import uk.ac.imperial.presage2.core.network.NetworkAddress;
+import uk.ac.imperial.presage2.core.network.NetworkChannel;
+import uk.ac.imperial.presage2.core.network.NetworkRegistrationRequest;
+import uk.ac.imperial.presage2.core.network.UnicastMessage;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class DiscreteEventSimulatorTest extends SimulatorTest {
+
+	@Override
+	public void setUp() throws Exception {
+		this.simulatorUnderTest = new DiscreteEventSimulator(scenario, time,
+				eventBus);
+	}
+
+	/**
+	 * Participant which wakes itself every <code>period</code> cycles and
+	 * records the times it was stepped at.
+	 */
+	class PeriodicParticipant implements Participant, EventDriven {
+
+		final UUID id = UUID.randomUUID();
+		final Time time = new IntegerTime();
+		final int period;
+		final EventScheduler scheduler;
+		final List<Integer> steps = new ArrayList<Integer>();
+
+		PeriodicParticipant(int period, EventScheduler scheduler) {
+			super();
+			this.period = period;
+			this.scheduler = scheduler;
+		}
+
+		@Override
+		public void incrementTime() {
+			steps.add(time.intValue());
+			scheduler.scheduleIn(this, period);
+			time.increment();
+		}
+
+		@Override
+		public UUID getID() {
+			return id;
+		}
+
+		@Override
+		public String getName() {
+			return "periodic" + period;
+		}
+
+		@Override
+		public Time getTime() {
+			return time;
+		}
+
+		@Override
+		public void initialise() {
+		}
+
+		@Override
+		@Deprecated
+		public void execute() {
+		}
+
+		@Override
+		public void onSimulationComplete() {
+		}
+
+		@Override
+		public void enqueueInput(Input input) {
+		}
+
+		@Override
+		public void enqueueInput(Collection<? extends Input> inputs) {
+		}
+
+	}
+
+	@Test
+	public void testSkipIdleCycles() {
+		final DiscreteEventSimulator sim = new DiscreteEventSimulator(
+				scenario, new IntegerTime(0), eventBus);
+		final PeriodicParticipant p5 = new PeriodicParticipant(5, sim);
+		final PeriodicParticipant p7 = new PeriodicParticipant(7, sim);
+		final Set<Participant> partSet = new HashSet<Participant>();
+		partSet.add(p5);
+		partSet.add(p7);
+		final TimeDriven env = context.mock(TimeDriven.class, "environment");
+
+		// cycles 0,5,7,10,14,15,20,21,25,28
+		final int cycles = 10;
+		context.checking(new Expectations() {
+			{
+				allowing(scenario).getParticipants();
+				will(returnValue(partSet));
+				allowing(scenario).getPlugins();
+				will(returnValue(Collections.<Plugin> emptySet()));
+				allowing(scenario).getTimeDriven();
+				will(returnValue(Collections.<TimeDriven> emptySet()));
+				allowing(scenario).getEnvironment();
+				will(returnValue(env));
+				allowing(scenario).getFinishTime();
+				will(returnValue(new IntegerTime(30)));
+				allowing(eventBus).publish(with(any(Event.class)));
+				// environment is stepped once per cycle run
+				exactly(cycles).of(env).incrementTime();
+			}
+		});
+
+		sim.initialise();
+		sim.run();
+
+		context.assertIsSatisfied();
+		assertEquals(30, sim.getCurrentSimulationTime().intValue());
+		for (int i = 0; i < p5.steps.size(); i++) {
+			assertEquals(5 * i, p5.steps.get(i).intValue());
+		}
+		assertEquals(6, p5.steps.size());
+		for (int i = 0; i < p7.steps.size(); i++) {
+			assertEquals(7 * i, p7.steps.get(i).intValue());
+		}
+		assertEquals(5, p7.steps.size());
+	}
+
+	/**
+	 * The network controller is not stepped in skipped cycles, but must keep
+	 * to the simulation time and be woken for its delayed deliveries.
+	 */
+	@Test
+	public void testNetworkWithSkippedCycles() {
+		final EventBus bus = Guice.createInjector(new EventBusModule())
+				.getInstance(EventBus.class);
+		final DiscreteEventSimulator sim = new DiscreteEventSimulator(
+				scenario, new IntegerTime(0), bus);
+		final EnvironmentSharedStateAccess access = context
+				.mock(EnvironmentSharedStateAccess.class);
+		context.checking(new Expectations() {
+			{
+				allowing(scenario).addTimeDriven(with(any(TimeDriven.class)));
+			}
+		});
+		final LatencyNetworkController network = new LatencyNetworkController(
+				new IntegerTime(0), access, scenario);
+		network.setEventBus(bus);
+		network.setThreadPool(sim);
+		network.setEventScheduler(sim);
+		network.setMessageEventMode(MessageEventMode.EACH);
+		network.setLatencyModel(new LatencyModel() {
+			@Override
+			public int getLatency(NetworkAddress to, Message<?> m) {
+				return 3;
+			}
+		});
+
+		final NetworkAddress from = new NetworkAddress(UUID.randomUUID());
+		final NetworkAddress to = new NetworkAddress(UUID.randomUUID());
+		final List<Integer> received = new ArrayList<Integer>();
+		network.register(new NetworkRegistrationRequest(from,
+				new NetworkChannel() {
+					@Override
+					public void deliverMessage(Message<?> m) {
+					}
+				}));
+		network.register(new NetworkRegistrationRequest(to,
+				new NetworkChannel() {
+					@Override
+					public void deliverMessage(Message<?> m) {
+						received.add(sim.getCurrentSimulationTime().intValue());
+					}
+				}));
+		final List<Integer> events = new ArrayList<Integer>();
+		final Object listener = new Object() {
+			@EventListener
+			public void onDelivery(MessageDeliveryEvent e) {
+				events.add(e.getTime().intValue());
+			}
+		};
+		bus.subscribe(listener);
+
+		final PeriodicParticipant sender = new PeriodicParticipant(10, sim) {
+			@Override
+			public void incrementTime() {
+				network.deliverMessage(new UnicastMessage<Object>(
+						Performative.INFORM, from, to, time.clone()));
+				super.incrementTime();
+			}
+		};
+		final Set<Participant> partSet = new HashSet<Participant>();
+		partSet.add(sender);
+		final Set<TimeDriven> tdSet = new HashSet<TimeDriven>();
+		tdSet.add(network);
+		final TimeDriven env = context.mock(TimeDriven.class, "environment");
+		context.checking(new Expectations() {
+			{
+				allowing(scenario).getParticipants();
+				will(returnValue(partSet));
+				allowing(scenario).getPlugins();
+				will(returnValue(Collections.<Plugin> emptySet()));
+				allowing(scenario).getTimeDriven();
+				will(returnValue(tdSet));
+				allowing(scenario).getEnvironment();
+				will(returnValue(env));
+				allowing(scenario).getFinishTime();
+				will(returnValue(new IntegerTime(25)));
+				// cycles 0,3,10,13,20,23
+				exactly(6).of(env).incrementTime();
+			}
+		});
+
+		sim.initialise();
+		sim.run();
+
+		context.assertIsSatisfied();
+		assertEquals("[0, 10, 20]", sender.steps.toString());
+		assertEquals("[3, 13, 23]", received.toString());
+		assertEquals("[3, 13, 23]", events.toString());
+		bus.unsubscribe(listener);
+	}
+
+}
@@ -0,0 +1,174 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.api.Invocation;
+import org.jmock.lib.action.CustomAction;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.Time;
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshotSource;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.plugin.ObserverPlugin;
+import uk.ac.imperial.presage2.core.plugin.Plugin;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class PipelinedMultiThreadedSimulatorTest extends SimulatorTest {
+
+	@Override
+	public void setUp() throws Exception {
+		MultiThreadedSimulator sim = new MultiThreadedSimulator(scenario, time,
+				eventBus, new Random().nextInt(5) + 1);
+		sim.setPipelineDepth(2);
+		this.simulatorUnderTest = sim;
+	}
+
+	interface SnapshotStorage extends EnvironmentSharedStateAccess,
+			SharedStateSnapshotSource {
+	}
+
+	/**
+	 * Observer which records the times it was given snapshots for.
+	 */
+	static class RecordingObserver implements ObserverPlugin {
+
+		final List<Integer> observed = Collections
+				.synchronizedList(new ArrayList<Integer>());
+
+		@Override
+		public void incrementTime() {
+			throw new IllegalStateException(
+					"Observer should not be stepped when pipelined.");
+		}
+
+		@Override
+		public void observe(SharedStateSnapshot state) {
+			observed.add(state.getTime().intValue());
+		}
+
+		@Override
+		public void initialise() {
+		}
+
+		@Override
+		@Deprecated
+		public void execute() {
+		}
+
+		@Override
+		public void onSimulationComplete() {
+		}
+
+	}
+
+	@Test
+	public void testObserversPipelined() {
+		final MultiThreadedSimulator sim = new MultiThreadedSimulator(scenario,
+				new IntegerTime(0), eventBus, 2);
+		sim.setPipelineDepth(3);
+
+		final SnapshotStorage storage = context.mock(SnapshotStorage.class);
+		sim.setSharedState(storage);
+
+		final RecordingObserver observer = new RecordingObserver();
+		final Plugin plugin = context.mock(Plugin.class, "plugin");
+		final Set<Plugin> plugins = new HashSet<Plugin>();
+		plugins.add(observer);
+		plugins.add(plugin);
+		final TimeDriven env = context.mock(TimeDriven.class, "environment");
+		final int cycles = 20;
+
+		context.checking(new Expectations() {
+			{
+				allowing(scenario).getParticipants();
+				will(returnValue(Collections.<Participant> emptySet()));
+				allowing(scenario).getPlugins();
+				will(returnValue(plugins));
+				allowing(scenario).getTimeDriven();
+				will(returnValue(Collections.<TimeDriven> emptySet()));
+				allowing(scenario).getEnvironment();
+				will(returnValue(env));
+				allowing(scenario).getFinishTime();
+				will(returnValue(new IntegerTime(cycles)));
+				allowing(eventBus).publish(with(any(Event.class)));
+				allowing(plugin).initialise();
+				allowing(plugin).onSimulationComplete();
+				exactly(cycles).of(plugin).incrementTime();
+				exactly(cycles).of(env).incrementTime();
+				exactly(cycles).of(storage).snapshot(with(any(Time.class)));
+				will(new CustomAction("snapshot") {
+					@Override
+					public Object invoke(Invocation invocation)
+							throws Throwable {
+						final Time t = (Time) invocation.getParameter(0);
+						return new SharedStateSnapshot() {
+							@Override
+							public Time getTime() {
+								return t;
+							}
+
+							@Override
+							public Serializable getGlobal(String name) {
+								return null;
+							}
+
+							@Override
+							public Serializable get(String name,
+									UUID participantID) {
+								return null;
+							}
+						};
+					}
+				});
+			}
+		});
+
+		sim.initialise();
+		sim.run();
+		sim.complete();
+		sim.shutdown();
+
+		context.assertIsSatisfied();
+		assertEquals(cycles, observer.observed.size());
+		for (int i = 0; i < cycles; i++) {
+			assertEquals(i, observer.observed.get(i).intValue());
+		}
+	}
+
+}
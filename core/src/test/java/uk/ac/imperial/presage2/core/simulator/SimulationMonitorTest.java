@@ -0,0 +1,102 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.core.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.TimeDriven;
+import uk.ac.imperial.presage2.core.participant.Participant;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class SimulationMonitorTest {
+
+	final Mockery context = new Mockery();
+
+	@Test
+	public void testMBean() throws Exception {
+		final Scenario mockScenario = context.mock(Scenario.class);
+		final Set<Participant> participants = new HashSet<Participant>();
+		participants.add(context.mock(Participant.class, "p1"));
+		participants.add(context.mock(Participant.class, "p2"));
+		context.checking(new Expectations() {
+			{
+				allowing(mockScenario).getParticipants();
+				will(returnValue(participants));
+				allowing(mockScenario).getTimeDriven();
+				will(returnValue(Collections.<TimeDriven> emptySet()));
+				allowing(mockScenario).getFinishTime();
+				will(returnValue(null));
+			}
+		});
+		final RunnableSimulation sim = new RunnableSimulation() {
+			@Override
+			public void load() {
+				this.scenario = mockScenario;
+			}
+		};
+		sim.load();
+
+		final SimulationMonitor monitor = sim.monitor;
+		monitor.register();
+		final ObjectName name = monitor.getObjectName();
+		assertNotNull(name);
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		assertTrue(server.isRegistered(name));
+
+		assertEquals("LOADING", server.getAttribute(name, "State"));
+		assertEquals(2, server.getAttribute(name, "ParticipantCount"));
+		assertEquals(-1, server.getAttribute(name, "CurrentTime"));
+		assertEquals(-1, server.getAttribute(name, "NetworkToDeliver"));
+		assertEquals(-1, server.getAttribute(name, "PendingStateChanges"));
+		assertEquals(-1.0, server.getAttribute(name, "ThreadPoolUtilisation"));
+		assertEquals(0.0, server.getAttribute(name, "CyclesPerSecond"));
+
+		for (int i = 0; i < 3; i++) {
+			monitor.onCycle();
+			Thread.sleep(2);
+		}
+		monitor.onCycle();
+		assertTrue((Double) server.getAttribute(name, "CyclesPerSecond") > 0);
+		assertTrue((Double) server.getAttribute(name, "AverageCyclesPerSecond") > 0);
+
+		monitor.unregister();
+		assertFalse(server.isRegistered(name));
+		assertNull(monitor.getObjectName());
+	}
+
+}
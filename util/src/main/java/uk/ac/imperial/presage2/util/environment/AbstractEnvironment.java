@@ -19,6 +19,7 @@
 
 package uk.ac.imperial.presage2.util.environment;
 
+import java.io.Serializable;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -50,6 +51,7 @@ import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.core.environment.UnregisteredParticipantException;
 import uk.ac.imperial.presage2.core.messaging.Input;
 import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.simulator.Checkpointable;
 import uk.ac.imperial.presage2.core.simulator.Scenario;
 import uk.ac.imperial.presage2.core.util.random.Random;
 
@@ -62,7 +64,7 @@ import com.google.inject.Inject;
  * 
  */
 public class AbstractEnvironment implements EnvironmentConnector,
-		EnvironmentServiceProvider, TimeDriven {
+		EnvironmentServiceProvider, TimeDriven, Checkpointable {
 
 	private final Logger logger = Logger.getLogger(AbstractEnvironment.class);
 
@@ -560,4 +562,22 @@ public class AbstractEnvironment implements EnvironmentConnector,
 		sharedState.incrementTime();
 	}
 
+	/**
+	 * Checkpoints the shared state, if its storage is {@link Checkpointable}.
+	 * Participants register again when the simulation is initialised, so
+	 * registrations are not saved.
+	 */
+	@Override
+	public Serializable checkpoint() {
+		if (sharedState instanceof Checkpointable)
+			return ((Checkpointable) sharedState).checkpoint();
+		return null;
+	}
+
+	@Override
+	public void restore(Serializable state) {
+		if (sharedState instanceof Checkpointable)
+			((Checkpointable) sharedState).restore(state);
+	}
+
 }
@@ -19,27 +19,42 @@
 package uk.ac.imperial.presage2.util.environment;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.environment.EnvironmentSharedStateAccess;
 import uk.ac.imperial.presage2.core.environment.ParticipantSharedState;
+import uk.ac.imperial.presage2.core.environment.PendingStateChanges;
 import uk.ac.imperial.presage2.core.environment.SharedState;
 import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
+import uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshotSource;
 import uk.ac.imperial.presage2.core.environment.SharedStateStorage;
 import uk.ac.imperial.presage2.core.environment.StateTransformer;
 import uk.ac.imperial.presage2.core.event.EventBus;
 import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.simulator.Checkpoint;
+import uk.ac.imperial.presage2.core.simulator.Checkpointable;
+import uk.ac.imperial.presage2.core.simulator.DeterministicExecution;
 import uk.ac.imperial.presage2.core.simulator.Events;
 
 import com.google.inject.Inject;
 
-public class MappedSharedState implements SharedStateStorage {
+public class MappedSharedState implements SharedStateStorage,
+		SharedStateSnapshotSource, PendingStateChanges, Checkpointable {
 
 	private final Logger logger = Logger.getLogger(MappedSharedState.class);
 
@@ -49,11 +64,35 @@ public class MappedSharedState implements SharedStateStorage {
 
 	Queue<StateChange> stateChange;
 
+	private EventBus eventBus = null;
+
+	/**
+	 * Whether or not to publish a {@link SharedStateChangeEvent} for every
+	 * change to the state.
+	 */
+	protected boolean STATE_CHANGE_EVENTS_ENABLED = false;
+
+	/**
+	 * Participants whose state map is still shared with the
+	 * {@link Checkpoint} it was restored from, and must be copied before it is
+	 * changed.
+	 */
+	private final Set<UUID> sharedAgentState = Collections
+			.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
+
 	class StateChange {
 		private final String key;
 		private UUID participantId = null;
 		private StateTransformer transformer = null;
 		private Serializable value = null;
+		/**
+		 * Participant which made this change and the order it was made in, used
+		 * to apply changes in canonical order under
+		 * {@link DeterministicExecution}.
+		 */
+		private final UUID origin = DeterministicExecution.currentParticipant();
+		private final long sequence = DeterministicExecution.isEnabled() ? DeterministicExecution
+				.nextSequence() : 0;
 
 		StateChange(String key, StateTransformer transformer) {
 			super();
@@ -110,9 +149,27 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Inject(optional = true)
 	public void setEventBus(EventBus e) {
+		this.eventBus = e;
 		e.subscribe(this);
 	}
 
+	/**
+	 * Publish a {@link SharedStateChangeEvent} for every change to the state,
+	 * for example so that it can be journaled and rebuilt later.
+	 * 
+	 * @param enabled
+	 */
+	public void setStateChangeEventsEnabled(boolean enabled) {
+		this.STATE_CHANGE_EVENTS_ENABLED = enabled;
+	}
+
+	private void changed(SharedStateChangeEvent.Kind kind, String key,
+			UUID participantID, Serializable value) {
+		if (eventBus != null && STATE_CHANGE_EVENTS_ENABLED)
+			eventBus.publish(new SharedStateChangeEvent(kind, key,
+					participantID, value));
+	}
+
 	protected Map<String, Serializable> initGlobalStateMap() {
 		return new HashMap<String, Serializable>();
 	}
@@ -158,6 +215,7 @@ public class MappedSharedState implements SharedStateStorage {
 	public synchronized void createGlobal(String name, Serializable value) {
 		if (!globalState.containsKey(name)) {
 			globalState.put(name, value);
+			changed(SharedStateChangeEvent.Kind.CREATE, name, null, value);
 		} else
 			throw new SharedStateAccessException("Cannot create global '" + name
 					+ "': already exists.");
@@ -166,6 +224,7 @@ public class MappedSharedState implements SharedStateStorage {
 	@Override
 	public synchronized void deleteGlobal(String name) {
 		globalState.remove(name);
+		changed(SharedStateChangeEvent.Kind.DELETE, name, null, null);
 	}
 
 	@Override
@@ -195,9 +254,11 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public synchronized void create(String name, UUID participantID, Serializable value) {
-		Map<String, Serializable> agent = agentState.get(participantID);
+		Map<String, Serializable> agent = agentStateForWrite(participantID);
 		if (!agent.containsKey(name)) {
 			agent.put(name, value);
+			changed(SharedStateChangeEvent.Kind.CREATE, name, participantID,
+					value);
 		} else {
 			throw new SharedStateAccessException("Cannot create state '" + name + "' for agent '"
 					+ participantID + "': already exists");
@@ -206,7 +267,41 @@ public class MappedSharedState implements SharedStateStorage {
 
 	@Override
 	public void delete(String name, UUID participantID) {
-		agentState.get(participantID).remove(name);
+		agentStateForWrite(participantID).remove(name);
+		changed(SharedStateChangeEvent.Kind.DELETE, name, participantID, null);
+	}
+
+	/**
+	 * Apply a change published by another {@link MappedSharedState} directly,
+	 * without waiting for the end of the time cycle. Used to rebuild state
+	 * from a journal of {@link SharedStateChangeEvent}s.
+	 * 
+	 * @param change
+	 */
+	public synchronized void apply(SharedStateChangeEvent change) {
+		final Map<String, Serializable> state = change.getParticipantID() == null ? globalState
+				: agentStateForWrite(change.getParticipantID());
+		if (change.getKind() == SharedStateChangeEvent.Kind.DELETE)
+			state.remove(change.getKey());
+		else
+			state.put(change.getKey(), change.getValue());
+	}
+
+	/**
+	 * Get a participant's state map in order to change it, first copying it if
+	 * it is still shared with a {@link Checkpoint}.
+	 * 
+	 * @param participantID
+	 * @return the participant's state map.
+	 */
+	private Map<String, Serializable> agentStateForWrite(UUID participantID) {
+		Map<String, Serializable> agent = agentState.get(participantID);
+		if (agent != null && !sharedAgentState.isEmpty()
+				&& sharedAgentState.remove(participantID)) {
+			agent = new HashMap<String, Serializable>(agent);
+			agentState.put(participantID, agent);
+		}
+		return agent;
 	}
 
 	@Override
@@ -214,26 +309,166 @@ public class MappedSharedState implements SharedStateStorage {
 		updateState();
 	}
 
+	@Override
+	public int getPendingChangeCount() {
+		return stateChange.size();
+	}
+
 	@EventListener
 	public void initialise(Events.Initialised e) {
 		updateState();
 	}
 
+	/**
+	 * Canonical order to apply {@link StateChange}s under
+	 * {@link DeterministicExecution}: by the participant which made the change,
+	 * then by the order they were made in.
+	 */
+	static final Comparator<StateChange> CHANGE_ORDER = new Comparator<StateChange>() {
+		@Override
+		public int compare(StateChange c1, StateChange c2) {
+			final int c = DeterministicExecution.compareOrigin(c1.origin, c2.origin);
+			if (c != 0)
+				return c;
+			return DeterministicExecution.compareSequence(c1.sequence, c2.sequence);
+		}
+	};
+
 	protected void updateState() {
 		logger.info("Updating state.");
+		if (DeterministicExecution.isEnabled()) {
+			List<StateChange> changes = new ArrayList<StateChange>(stateChange.size());
+			StateChange c;
+			while ((c = stateChange.poll()) != null) {
+				changes.add(c);
+			}
+			Collections.sort(changes, CHANGE_ORDER);
+			for (StateChange change : changes) {
+				applyChange(change);
+			}
+			return;
+		}
 		while (this.stateChange.peek() != null) {
-			StateChange c = stateChange.poll();
-			if (c.getParticipantId() == null)
-				globalState.put(c.getKey(), c.getChange(this));
-			else {
-				Map<String, Serializable> agent = agentState.get(c.getParticipantId());
-				if (agent == null) {
-					agent = new HashMap<String, Serializable>();
-					agentState.put(c.getParticipantId(), agent);
-				}
-				agent.put(c.getKey(), c.getChange(this));
+			applyChange(stateChange.poll());
+		}
+	}
+
+	/**
+	 * Copies the global and agent state maps. Values are shared with the live
+	 * state.
+	 */
+	@Override
+	public synchronized SharedStateSnapshot snapshot(Time t) {
+		final Map<String, Serializable> global = new HashMap<String, Serializable>(
+				globalState);
+		final Map<UUID, Map<String, Serializable>> agents = new HashMap<UUID, Map<String, Serializable>>(
+				agentState.size() * 4 / 3 + 1);
+		for (Map.Entry<UUID, Map<String, Serializable>> agent : agentState
+				.entrySet()) {
+			agents.put(agent.getKey(), new HashMap<String, Serializable>(agent
+					.getValue()));
+		}
+		return new Snapshot(t, global, agents);
+	}
+
+	/**
+	 * Saved global and agent state. State changes are applied at the end of
+	 * each time cycle, so there are none pending when we checkpoint.
+	 */
+	static class State implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final HashMap<String, Serializable> global;
+		final HashMap<UUID, HashMap<String, Serializable>> agents;
+
+		State(HashMap<String, Serializable> global,
+				HashMap<UUID, HashMap<String, Serializable>> agents) {
+			super();
+			this.global = global;
+			this.agents = agents;
+		}
+	}
+
+	@Override
+	public synchronized Serializable checkpoint() {
+		if (!stateChange.isEmpty())
+			logger.warn("Checkpointing with " + stateChange.size()
+					+ " state changes pending, they will not be saved.");
+		final HashMap<UUID, HashMap<String, Serializable>> agents = new HashMap<UUID, HashMap<String, Serializable>>();
+		for (Map.Entry<UUID, Map<String, Serializable>> agent : agentState
+				.entrySet()) {
+			agents.put(agent.getKey(), new HashMap<String, Serializable>(agent
+					.getValue()));
+		}
+		return new State(new HashMap<String, Serializable>(globalState), agents);
+	}
+
+	/**
+	 * Restores the saved state. Participants' state maps are shared with
+	 * <code>state</code> until they are first changed, so simulations forked
+	 * from the same checkpoint only hold their own copy of the state which has
+	 * diverged.
+	 */
+	@Override
+	public synchronized void restore(Serializable state) {
+		final State s = (State) state;
+		globalState.clear();
+		globalState.putAll(s.global);
+		agentState.clear();
+		sharedAgentState.clear();
+		for (Map.Entry<UUID, HashMap<String, Serializable>> agent : s.agents
+				.entrySet()) {
+			agentState.put(agent.getKey(), agent.getValue());
+			sharedAgentState.add(agent.getKey());
+		}
+	}
+
+	static class Snapshot implements SharedStateSnapshot {
+
+		private final Time time;
+		private final Map<String, Serializable> global;
+		private final Map<UUID, Map<String, Serializable>> agents;
+
+		Snapshot(Time time, Map<String, Serializable> global,
+				Map<UUID, Map<String, Serializable>> agents) {
+			super();
+			this.time = time;
+			this.global = global;
+			this.agents = agents;
+		}
+
+		@Override
+		public Time getTime() {
+			return time;
+		}
+
+		@Override
+		public Serializable getGlobal(String name) {
+			return global.get(name);
+		}
+
+		@Override
+		public Serializable get(String name, UUID participantID) {
+			final Map<String, Serializable> state = agents.get(participantID);
+			return state != null ? state.get(name) : null;
+		}
+	}
+
+	private void applyChange(StateChange c) {
+		final Serializable value = c.getChange(this);
+		if (c.getParticipantId() == null)
+			globalState.put(c.getKey(), value);
+		else {
+			Map<String, Serializable> agent = agentStateForWrite(c.getParticipantId());
+			if (agent == null) {
+				agent = new HashMap<String, Serializable>();
+				agentState.put(c.getParticipantId(), agent);
 			}
+			agent.put(c.getKey(), value);
 		}
+		changed(SharedStateChangeEvent.Kind.CHANGE, c.getKey(),
+				c.getParticipantId(), value);
 	}
 
 }
@@ -0,0 +1,73 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import java.io.File;
+import java.io.IOException;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.event.journal.EventJournal;
+import uk.ac.imperial.presage2.core.event.journal.JournalReplay;
+
+/**
+ * Rebuilds a {@link MappedSharedState} from the
+ * {@link SharedStateChangeEvent}s in an {@link EventJournal}. The simulation
+ * must have journaled these events, with
+ * {@link MappedSharedState#setStateChangeEventsEnabled(boolean)} set.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+public class SharedStateReplay {
+
+	private final MappedSharedState state = new MappedSharedState();
+
+	@EventListener
+	public void onStateChange(SharedStateChangeEvent e) {
+		state.apply(e);
+	}
+
+	/**
+	 * @return the state rebuilt from the events replayed so far.
+	 */
+	public MappedSharedState getState() {
+		return state;
+	}
+
+	/**
+	 * Rebuild the shared state as it was at the end of time cycle
+	 * <code>time</code>.
+	 * 
+	 * @param journal
+	 *            journal directory.
+	 * @param time
+	 * @return a snapshot of the state.
+	 * @throws IOException
+	 */
+	public static SharedStateSnapshot snapshotAt(File journal, int time)
+			throws IOException {
+		SharedStateReplay replay = new SharedStateReplay();
+		new JournalReplay(journal).to(time).replay(replay);
+		return replay.state.snapshot(new IntegerTime(time));
+	}
+
+}
@@ -18,6 +18,9 @@
  */
 package uk.ac.imperial.presage2.util.location;
 
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.log4j.Logger;
@@ -26,13 +29,14 @@ import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.db.StorageService;
 import uk.ac.imperial.presage2.core.db.persistent.TransientAgentState;
 import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
-import uk.ac.imperial.presage2.core.plugin.Plugin;
+import uk.ac.imperial.presage2.core.plugin.ObserverPlugin;
 import uk.ac.imperial.presage2.util.environment.EnvironmentMembersService;
 
 import com.google.inject.Inject;
 
-public class LocationStoragePlugin implements Plugin {
+public class LocationStoragePlugin implements ObserverPlugin {
 
 	private final Logger logger = Logger.getLogger(LocationStoragePlugin.class);
 
@@ -82,16 +86,39 @@ public class LocationStoragePlugin implements Plugin {
 				if (l == null)
 					continue;
 
-				TransientAgentState state = this.storage.getAgentState(pid,
-						time.intValue());
-				state.setProperty("x", Double.toString(l.getX()));
-				state.setProperty("y", Double.toString(l.getY()));
-				state.setProperty("z", Double.toString(l.getZ()));
+				storeLocation(pid, l, time.intValue());
 			}
 		}
 		time.increment();
 	}
 
+	@SuppressWarnings("unchecked")
+	@Override
+	public void observe(SharedStateSnapshot state) {
+		if (this.storage == null)
+			return;
+		final Serializable members = state.getGlobal("participants");
+		if (!(members instanceof Set))
+			return;
+		final Set<UUID> pids;
+		synchronized (members) {
+			pids = new HashSet<UUID>((Set<UUID>) members);
+		}
+		final int t = state.getTime().intValue();
+		for (UUID pid : pids) {
+			final Serializable l = state.get("util.location", pid);
+			if (l instanceof Location)
+				storeLocation(pid, (Location) l, t);
+		}
+	}
+
+	private void storeLocation(UUID pid, Location l, int t) {
+		TransientAgentState state = this.storage.getAgentState(pid, t);
+		state.setProperty("x", Double.toString(l.getX()));
+		state.setProperty("y", Double.toString(l.getY()));
+		state.setProperty("z", Double.toString(l.getZ()));
+	}
+
 	@Override
 	public void initialise() {
 	}
@@ -41,6 +41,10 @@ public final class NetworkModule extends AbstractModule {
 	private Class<? extends NetworkConnector> connector;
 	private Class<? extends NetworkController> controller;
 	private Set<Class<? extends NetworkConstraint>> constraints = new HashSet<Class<? extends NetworkConstraint>>();
+	private MessageEventMode messageEvents = null;
+	private Class<? extends LatencyModel> latencyModel = null;
+	private Class<? extends LossModel> lossModel = null;
+	private Class<? extends BandwidthModel> bandwidthModel = null;
 
 	NetworkModule(Class<? extends NetworkConnector> connector,
 			Class<? extends NetworkController> controller) {
@@ -82,6 +86,22 @@ public final class NetworkModule extends AbstractModule {
 				.withConstraints(constraints);
 	}
 
+	/**
+	 * Module to bind a constrained network where messages may be delayed or
+	 * lost. This uses a {@link LatencyNetworkController}, with the models
+	 * given to {@link #withLatencyModel(Class)}, {@link #withLossModel(Class)}
+	 * and {@link #withBandwidthModel(Class)}.
+	 * 
+	 * @param constraints
+	 *            {@link NetworkConstraint}s to use.
+	 * @return {@link AbstractModule} binding network interfaces.
+	 */
+	public static NetworkModule latencyNetworkModule(
+			final Set<Class<? extends NetworkConstraint>> constraints) {
+		return new NetworkModule(BasicNetworkConnector.class,
+				LatencyNetworkController.class).withConstraints(constraints);
+	}
+
 	public static NetworkModule noNetworkModule() {
 		return new NetworkModule(DisconnectedNetworkConnector.class,
 				DisconnectedNetworkController.class);
@@ -94,23 +114,44 @@ public final class NetworkModule extends AbstractModule {
 		bind(NetworkChannel.class).to(this.controller).in(Singleton.class);
 		install(new FactoryModuleBuilder().build(NetworkAddressFactory.class));
 
+		if (this.messageEvents != null) {
+			bind(MessageEventMode.class).toInstance(this.messageEvents);
+		}
+
 		if (this.constraints.size() > 0) {
 			Multibinder<NetworkConstraint> constraintBinder = Multibinder
 					.newSetBinder(binder(), NetworkConstraint.class);
-			Multibinder<EnvironmentService> serviceBinder = Multibinder
-					.newSetBinder(binder(), EnvironmentService.class);
+			Multibinder.newSetBinder(binder(), EnvironmentService.class);
 			for (Class<? extends NetworkConstraint> c : constraints) {
 				constraintBinder.addBinding().to(c);
-
-				if (c.isAnnotationPresent(ServiceDependencies.class)) {
-					for (Class<? extends EnvironmentService> dep : c
-							.getAnnotation(ServiceDependencies.class).value()) {
-						serviceBinder.addBinding().to(dep);
-					}
-				}
+				bindServiceDependencies(c);
 			}
 
 		}
+
+		if (this.latencyModel != null) {
+			bind(LatencyModel.class).to(this.latencyModel);
+			bindServiceDependencies(this.latencyModel);
+		}
+		if (this.lossModel != null) {
+			bind(LossModel.class).to(this.lossModel);
+			bindServiceDependencies(this.lossModel);
+		}
+		if (this.bandwidthModel != null) {
+			bind(BandwidthModel.class).to(this.bandwidthModel);
+			bindServiceDependencies(this.bandwidthModel);
+		}
+	}
+
+	private void bindServiceDependencies(Class<?> c) {
+		if (c.isAnnotationPresent(ServiceDependencies.class)) {
+			Multibinder<EnvironmentService> serviceBinder = Multibinder
+					.newSetBinder(binder(), EnvironmentService.class);
+			for (Class<? extends EnvironmentService> dep : c.getAnnotation(
+					ServiceDependencies.class).value()) {
+				serviceBinder.addBinding().to(dep);
+			}
+		}
 	}
 
 	public NetworkModule withNodeDiscovery() {
@@ -118,4 +159,50 @@ public final class NetworkModule extends AbstractModule {
 		return this;
 	}
 
+	/**
+	 * Set which events the network controller publishes about message
+	 * deliveries.
+	 * 
+	 * @param mode
+	 * @return this module.
+	 */
+	public NetworkModule withMessageEvents(MessageEventMode mode) {
+		this.messageEvents = mode;
+		return this;
+	}
+
+	/**
+	 * Set the {@link LatencyModel} of a {@link #latencyNetworkModule(Set)}.
+	 * 
+	 * @param model
+	 * @return this module.
+	 */
+	public NetworkModule withLatencyModel(Class<? extends LatencyModel> model) {
+		this.latencyModel = model;
+		return this;
+	}
+
+	/**
+	 * Set the {@link LossModel} of a {@link #latencyNetworkModule(Set)}.
+	 * 
+	 * @param model
+	 * @return this module.
+	 */
+	public NetworkModule withLossModel(Class<? extends LossModel> model) {
+		this.lossModel = model;
+		return this;
+	}
+
+	/**
+	 * Set the {@link BandwidthModel} of a {@link #latencyNetworkModule(Set)}.
+	 * 
+	 * @param model
+	 * @return this module.
+	 */
+	public NetworkModule withBandwidthModel(
+			Class<? extends BandwidthModel> model) {
+		this.bandwidthModel = model;
+		return this;
+	}
+
 }
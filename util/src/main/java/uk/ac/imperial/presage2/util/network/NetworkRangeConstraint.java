@@ -18,6 +18,9 @@
  */
 package uk.ac.imperial.presage2.util.network;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 
 import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
@@ -25,9 +28,13 @@ import uk.ac.imperial.presage2.core.environment.ServiceDependencies;
 import uk.ac.imperial.presage2.core.environment.SharedStateAccessException;
 import uk.ac.imperial.presage2.core.environment.UnavailableServiceException;
 import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventListener;
+import uk.ac.imperial.presage2.core.network.AddressRegistry;
+import uk.ac.imperial.presage2.core.network.LinkConstraint;
 import uk.ac.imperial.presage2.core.network.Message;
+import uk.ac.imperial.presage2.core.network.NeighbourhoodConstraint;
 import uk.ac.imperial.presage2.core.network.NetworkAddress;
-import uk.ac.imperial.presage2.core.network.NetworkConstraint;
+import uk.ac.imperial.presage2.core.simulator.EndOfTimeCycle;
 import uk.ac.imperial.presage2.util.environment.CommunicationRangeService;
 import uk.ac.imperial.presage2.util.location.CannotSeeAgent;
 import uk.ac.imperial.presage2.util.location.Location;
@@ -36,16 +43,52 @@ import uk.ac.imperial.presage2.util.location.LocationService;
 import com.google.inject.Inject;
 
 /**
+ * <p>
+ * Blocks messages between agents which are further apart than the smaller of
+ * their communication ranges.
+ * </p>
+ * 
+ * <p>
+ * Broadcast candidates are found from a grid of agent locations, with cells
+ * the size of the largest communication range, so only agents in the cells
+ * around the sender are checked. The grid is built on the first broadcast of
+ * each time cycle.
+ * </p>
+ * 
  * @author Sam Macbeth
  * 
  */
 @ServiceDependencies({ LocationService.class, CommunicationRangeService.class })
-public class NetworkRangeConstraint implements NetworkConstraint {
+public class NetworkRangeConstraint implements NeighbourhoodConstraint,
+		LinkConstraint {
 
 	private LocationService locService;
 
 	private CommunicationRangeService commRangeService;
 
+	/**
+	 * Locations of devices this cycle, or null if it has not been built yet.
+	 */
+	private Neighbourhood neighbourhood = null;
+
+	private static class Neighbourhood {
+		final SpatialGrid grid;
+		/**
+		 * Devices without a location or communication range, which we do not
+		 * block.
+		 */
+		final List<NetworkAddress> unlocated;
+		final int devices;
+
+		Neighbourhood(SpatialGrid grid, List<NetworkAddress> unlocated,
+				int devices) {
+			super();
+			this.grid = grid;
+			this.unlocated = unlocated;
+			this.devices = devices;
+		}
+	}
+
 	@Inject
 	public NetworkRangeConstraint(EnvironmentServiceProvider serviceProvider,
 			EventBus eb) throws UnavailableServiceException {
@@ -70,6 +113,76 @@ public class NetworkRangeConstraint implements NetworkConstraint {
 		return result;
 	}
 
+	@Override
+	public Collection<NetworkAddress> getCandidates(NetworkAddress from,
+			AddressRegistry devices) {
+		final Location senderLoc;
+		final double senderRange;
+		try {
+			senderLoc = locService.getAgentLocation(from.getId());
+			senderRange = commRangeService.getAgentCommunicationRange(from
+					.getId());
+		} catch (SharedStateAccessException e) {
+			// we do not block messages from this sender
+			return null;
+		}
+		if (senderLoc == null || Double.isInfinite(senderRange)
+				|| Double.isNaN(senderRange))
+			return null;
+
+		final Neighbourhood n = getNeighbourhood(devices);
+		final List<NetworkAddress> candidates = new ArrayList<NetworkAddress>(
+				n.unlocated);
+		n.grid.within(senderLoc, senderRange, candidates);
+		return candidates;
+	}
+
+	private synchronized Neighbourhood getNeighbourhood(AddressRegistry devices) {
+		if (neighbourhood != null && neighbourhood.devices == devices.size())
+			return neighbourhood;
+
+		final int count = devices.size();
+		final List<NetworkAddress> located = new ArrayList<NetworkAddress>(
+				count);
+		final List<Location> locations = new ArrayList<Location>(count);
+		final List<NetworkAddress> unlocated = new ArrayList<NetworkAddress>();
+		double maxRange = 0;
+		for (int i = 0; i < count; i++) {
+			final NetworkAddress a = devices.getAddress(i);
+			try {
+				final Location l = locService.getAgentLocation(a.getId());
+				final double range = commRangeService
+						.getAgentCommunicationRange(a.getId());
+				if (l == null || Double.isNaN(range)) {
+					unlocated.add(a);
+					continue;
+				}
+				located.add(a);
+				locations.add(l);
+				if (range > maxRange && !Double.isInfinite(range))
+					maxRange = range;
+			} catch (SharedStateAccessException e) {
+				unlocated.add(a);
+			}
+		}
+		final SpatialGrid grid = new SpatialGrid(maxRange);
+		for (int i = 0; i < located.size(); i++) {
+			grid.add(located.get(i), locations.get(i));
+		}
+		neighbourhood = new Neighbourhood(grid, unlocated, count);
+		return neighbourhood;
+	}
+
+	/**
+	 * Agents may have moved, rebuild the grid next cycle.
+	 * 
+	 * @param e
+	 */
+	@EventListener
+	public synchronized void onEndOfTimeCycle(EndOfTimeCycle e) {
+		neighbourhood = null;
+	}
+
 	protected boolean areLinked(UUID a1, UUID a2) {
 		try {
 			// retrieve locations and comms ranges of sender and receiver.
@@ -0,0 +1,118 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.imperial.presage2.core.network.NetworkAddress;
+import uk.ac.imperial.presage2.util.location.Location;
+
+/**
+ * Uniform grid of {@link NetworkAddress}es by location, for finding the
+ * addresses within a distance of a point. Built once and then only read.
+ * 
+ * @author Sam Macbeth
+ * 
+ */
+class SpatialGrid {
+
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS) - 1;
+
+	private static final class Entry {
+		final NetworkAddress address;
+		final double x;
+		final double y;
+		final double z;
+
+		Entry(NetworkAddress address, Location l) {
+			super();
+			this.address = address;
+			this.x = l.getX();
+			this.y = l.getY();
+			this.z = l.getZ();
+		}
+	}
+
+	private final double cellSize;
+	private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+
+	/**
+	 * @param cellSize
+	 *            width of each cell. Searches are quickest when this is the
+	 *            largest search distance.
+	 */
+	SpatialGrid(double cellSize) {
+		super();
+		this.cellSize = cellSize > 0 ? cellSize : 1;
+	}
+
+	private long cell(double v) {
+		return (long) Math.floor(v / cellSize);
+	}
+
+	private static Long key(long cx, long cy, long cz) {
+		return ((cx & MASK) << (2 * BITS)) | ((cy & MASK) << BITS)
+				| (cz & MASK);
+	}
+
+	void add(NetworkAddress address, Location l) {
+		final Entry e = new Entry(address, l);
+		final Long k = key(cell(e.x), cell(e.y), cell(e.z));
+		List<Entry> c = cells.get(k);
+		if (c == null) {
+			c = new ArrayList<Entry>(4);
+			cells.put(k, c);
+		}
+		c.add(e);
+	}
+
+	/**
+	 * Add every address within <code>distance</code> of <code>l</code> to
+	 * <code>result</code>.
+	 * 
+	 * @param l
+	 * @param distance
+	 * @param result
+	 */
+	void within(Location l, double distance, List<NetworkAddress> result) {
+		final double x = l.getX(), y = l.getY(), z = l.getZ();
+		// allow for rounding so the result includes every address a
+		// Location.distanceTo check would accept.
+		final double d2 = distance * distance * (1 + 1e-9);
+		for (long cx = cell(x - distance); cx <= cell(x + distance); cx++) {
+			for (long cy = cell(y - distance); cy <= cell(y + distance); cy++) {
+				for (long cz = cell(z - distance); cz <= cell(z + distance); cz++) {
+					final List<Entry> c = cells.get(key(cx, cy, cz));
+					if (c == null)
+						continue;
+					for (Entry e : c) {
+						final double dx = e.x - x, dy = e.y - y, dz = e.z - z;
+						if (dx * dx + dy * dy + dz * dz <= d2)
+							result.add(e.address);
+					}
+				}
+			}
+		}
+	}
+
+}
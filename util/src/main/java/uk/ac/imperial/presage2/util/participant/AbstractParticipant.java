@@ -19,6 +19,8 @@
 
 package uk.ac.imperial.presage2.util.participant;
 
+import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -28,6 +30,7 @@ import java.util.UUID;
 
 import org.apache.log4j.Logger;
 
+import uk.ac.imperial.presage2.core.IntegerTime;
 import uk.ac.imperial.presage2.core.Time;
 import uk.ac.imperial.presage2.core.TimeDriven;
 import uk.ac.imperial.presage2.core.db.StorageService;
@@ -43,6 +46,8 @@ import uk.ac.imperial.presage2.core.messaging.Input;
 import uk.ac.imperial.presage2.core.network.NetworkAdaptor;
 import uk.ac.imperial.presage2.core.network.NetworkConnectorFactory;
 import uk.ac.imperial.presage2.core.participant.Participant;
+import uk.ac.imperial.presage2.core.participant.ParticipantActivity;
+import uk.ac.imperial.presage2.core.simulator.Checkpointable;
 
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
@@ -59,7 +64,8 @@ import com.google.inject.assistedinject.Assisted;
  * @author Sam Macbeth
  * 
  */
-public abstract class AbstractParticipant implements Participant, EnvironmentServiceProvider {
+public abstract class AbstractParticipant implements Participant, EnvironmentServiceProvider,
+		Checkpointable {
 
 	/**
 	 * {@link Logger} for this agent.
@@ -112,6 +118,11 @@ public abstract class AbstractParticipant implements Participant, EnvironmentSer
 	 */
 	protected PersistentAgent persist = null;
 
+	/**
+	 * Tracks whether this participant is awake, if we are able to sleep.
+	 */
+	protected ParticipantActivity activity = null;
+
 	/**
 	 * Assisted Inject constructor.
 	 * 
@@ -208,6 +219,11 @@ public abstract class AbstractParticipant implements Participant, EnvironmentSer
 		this.time = t;
 	}
 
+	@Inject(optional = true)
+	public void initialiseActivity(ParticipantActivity activity) {
+		this.activity = activity;
+	}
+
 	@Inject(optional = true)
 	public void persistParticipant(StorageService storage) {
 		this.persist = storage.createAgent(getID(), getName());
@@ -336,6 +352,101 @@ public abstract class AbstractParticipant implements Participant, EnvironmentSer
 
 	}
 
+	/**
+	 * <p>
+	 * Stop being stepped by the simulator until time <code>t</code>, or until
+	 * a message arrives for us, whichever is sooner.
+	 * </p>
+	 * 
+	 * <p>
+	 * Has no effect if the simulator is not tracking {@link ParticipantActivity}
+	 * .
+	 * </p>
+	 * 
+	 * @param t
+	 */
+	protected void sleepUntil(Time t) {
+		if (this.activity != null)
+			this.activity.sleepUntil(this, t);
+	}
+
+	/**
+	 * Stop being stepped by the simulator until a message arrives for us. Has
+	 * no effect if the simulator is not tracking {@link ParticipantActivity}.
+	 */
+	protected void sleepUntilMessage() {
+		if (this.activity != null)
+			this.activity.sleepUntilMessage(this);
+	}
+
+	/**
+	 * Saved state of an {@link AbstractParticipant}.
+	 */
+	static class State implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		final int time;
+		final ArrayList<Input> inputs;
+		final Serializable state;
+
+		State(int time, ArrayList<Input> inputs, Serializable state) {
+			super();
+			this.time = time;
+			this.inputs = inputs;
+			this.state = state;
+		}
+	}
+
+	/**
+	 * Saves our time, any inputs we have not processed yet (including messages
+	 * delivered by the network for the next cycle) and the state returned by
+	 * {@link #getCheckpointState()}. All inputs must be {@link Serializable}.
+	 */
+	@Override
+	public Serializable checkpoint() {
+		final ArrayList<Input> inputs = new ArrayList<Input>();
+		if (this.inputQueue != null) {
+			if (this.network != null)
+				enqueueInput(this.network.getMessages());
+			inputs.addAll(this.inputQueue);
+		}
+		return new State(getTime().intValue(), inputs, getCheckpointState());
+	}
+
+	@Override
+	public void restore(Serializable state) {
+		final State s = (State) state;
+		getTime().setTime(new IntegerTime(s.time));
+		if (this.inputQueue != null) {
+			this.inputQueue.clear();
+			this.inputQueue.addAll(s.inputs);
+		}
+		restoreCheckpointState(s.state);
+	}
+
+	/**
+	 * Get this agent's own state to save in a checkpoint. Override this to
+	 * save the fields of your agent, copying any which will change as the
+	 * simulation continues.
+	 * 
+	 * @return state, or null if there is none.
+	 */
+	protected Serializable getCheckpointState() {
+		return null;
+	}
+
+	/**
+	 * Restore this agent's own state from a checkpoint. The state may be
+	 * shared with other simulations forked from the same checkpoint, so copy
+	 * anything you will change rather than modifying it.
+	 * 
+	 * @param state
+	 *            value returned by {@link #getCheckpointState()}.
+	 */
+	protected void restoreCheckpointState(Serializable state) {
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T extends EnvironmentService> T getEnvironmentService(Class<T> type)
@@ -0,0 +1,129 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.environment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.environment.SharedStateChangeEvent;
+import uk.ac.imperial.presage2.core.environment.SharedStateSnapshot;
+import uk.ac.imperial.presage2.core.event.Event;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.event.EventBusModule;
+import uk.ac.imperial.presage2.core.event.journal.EventJournal;
+import uk.ac.imperial.presage2.core.event.journal.JournalCodecs;
+
+import com.google.inject.Guice;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class MappedSharedStateTest {
+
+	@Test
+	public void testRestoreIsCopyOnWrite() {
+		final UUID agent = UUID.randomUUID();
+		MappedSharedState parent = new MappedSharedState();
+		parent.createGlobal("round", 1);
+		parent.create("energy", agent, 10);
+		final Serializable checkpoint = parent.checkpoint();
+
+		MappedSharedState child1 = new MappedSharedState();
+		MappedSharedState child2 = new MappedSharedState();
+		child1.restore(checkpoint);
+		child2.restore(checkpoint);
+		assertEquals(10, child1.get("energy", agent));
+		assertEquals(10, child2.get("energy", agent));
+
+		// diverge child1
+		child1.change("energy", agent, 5);
+		child1.changeGlobal("round", 2);
+		child1.create("position", agent, "home");
+		child1.incrementTime();
+
+		assertEquals(5, child1.get("energy", agent));
+		assertEquals(2, child1.getGlobal("round"));
+		assertEquals("home", child1.get("position", agent));
+		// child2 and the checkpoint are unaffected
+		assertEquals(10, child2.get("energy", agent));
+		assertEquals(1, child2.getGlobal("round"));
+		assertEquals(null, child2.get("position", agent));
+		MappedSharedState child3 = new MappedSharedState();
+		child3.restore(checkpoint);
+		assertEquals(10, child3.get("energy", agent));
+		assertEquals(null, child3.get("position", agent));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testRebuildFromJournal() throws Exception {
+		final File directory = File.createTempFile("journal", "");
+		directory.delete();
+		final EventBus eventBus = Guice.createInjector(new EventBusModule())
+				.getInstance(EventBus.class);
+		final IntegerTime time = new IntegerTime(0);
+		final EventJournal journal = new EventJournal(directory, 4096,
+				Collections.<Class<? extends Event>> singleton(SharedStateChangeEvent.class),
+				new JournalCodecs());
+		journal.setEventBus(eventBus);
+		journal.setTime(time);
+		journal.initialise();
+
+		final UUID agent = UUID.randomUUID();
+		final MappedSharedState state = new MappedSharedState();
+		state.setEventBus(eventBus);
+		state.setStateChangeEventsEnabled(true);
+		state.createGlobal("round", 0);
+		state.create("energy", agent, 100);
+		state.create("temp", agent, "x");
+		for (int t = 0; t < 10; t++) {
+			state.changeGlobal("round", t);
+			state.change("energy", agent, 100 - t);
+			if (t == 5)
+				state.delete("temp", agent);
+			state.incrementTime();
+			time.increment();
+		}
+		journal.onSimulationComplete();
+
+		SharedStateSnapshot at3 = SharedStateReplay.snapshotAt(directory, 3);
+		assertEquals(3, at3.getGlobal("round"));
+		assertEquals(97, at3.get("energy", agent));
+		assertEquals("x", at3.get("temp", agent));
+
+		SharedStateSnapshot end = SharedStateReplay.snapshotAt(directory, 10);
+		assertEquals(state.getGlobal("round"), end.getGlobal("round"));
+		assertEquals(state.get("energy", agent), end.get("energy", agent));
+		assertNull(end.get("temp", agent));
+
+		for (File f : directory.listFiles())
+			f.delete();
+		directory.delete();
+	}
+
+}
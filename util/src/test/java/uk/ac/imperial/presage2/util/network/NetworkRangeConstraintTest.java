@@ -0,0 +1,141 @@
+/**
+ * 	Copyright (C) 2011-2012 Sam Macbeth <sm1106 [at] imperial [dot] ac [dot] uk>
+ *
+ * 	This file is part of Presage2.
+ *
+ *     Presage2 is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     Presage2 is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser Public License
+ *     along with Presage2.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.ac.imperial.presage2.util.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.imperial.presage2.core.IntegerTime;
+import uk.ac.imperial.presage2.core.environment.EnvironmentServiceProvider;
+import uk.ac.imperial.presage2.core.event.EventBus;
+import uk.ac.imperial.presage2.core.messaging.Performative;
+import uk.ac.imperial.presage2.core.network.AddressRegistry;
+import uk.ac.imperial.presage2.core.network.BroadcastMessage;
+import uk.ac.imperial.presage2.core.network.NetworkAddress;
+import uk.ac.imperial.presage2.core.network.NetworkChannel;
+import uk.ac.imperial.presage2.core.util.random.Random;
+import uk.ac.imperial.presage2.util.environment.CommunicationRangeService;
+import uk.ac.imperial.presage2.util.environment.MappedSharedState;
+import uk.ac.imperial.presage2.util.location.Location;
+import uk.ac.imperial.presage2.util.location.LocationService;
+
+/**
+ * @author Sam Macbeth
+ * 
+ */
+public class NetworkRangeConstraintTest {
+
+	final Mockery context = new Mockery();
+	final EnvironmentServiceProvider serviceProvider = context
+			.mock(EnvironmentServiceProvider.class);
+	final EventBus eventBus = context.mock(EventBus.class);
+	final NetworkChannel link = context.mock(NetworkChannel.class);
+
+	final MappedSharedState state = new MappedSharedState();
+	final AddressRegistry devices = new AddressRegistry();
+	NetworkRangeConstraint constraint;
+
+	@Before
+	public void setUp() throws Exception {
+		final LocationService locations = new LocationService(state,
+				serviceProvider);
+		final CommunicationRangeService ranges = new CommunicationRangeService(
+				state);
+		context.checking(new Expectations() {
+			{
+				allowing(serviceProvider).getEnvironmentService(
+						LocationService.class);
+				will(returnValue(locations));
+				allowing(serviceProvider).getEnvironmentService(
+						CommunicationRangeService.class);
+				will(returnValue(ranges));
+				allowing(eventBus).subscribe(with(any(Object.class)));
+			}
+		});
+		constraint = new NetworkRangeConstraint(serviceProvider, eventBus);
+	}
+
+	private NetworkAddress addDevice(Location l, double range) {
+		final UUID id = Random.randomUUID();
+		if (l != null)
+			state.create("util.location", id, l);
+		state.create("network.commrange", id, range);
+		final NetworkAddress a = new NetworkAddress(id);
+		devices.register(a, link);
+		return a;
+	}
+
+	@Test
+	public void testCandidatesIncludeAllLinked() {
+		final Random rand = Random.getInstance();
+		for (int i = 0; i < 500; i++) {
+			addDevice(new Location(rand.nextDouble() * 100,
+					rand.nextDouble() * 100), 1 + rand.nextDouble() * 10);
+		}
+		final NetworkAddress unlocated = addDevice(null, 5);
+
+		for (int i = 0; i < 50; i++) {
+			final NetworkAddress from = devices.getAddress(i);
+			final BroadcastMessage<Object> m = new BroadcastMessage<Object>(
+					Performative.INFORM, from, new IntegerTime(0));
+
+			final Collection<NetworkAddress> candidates = constraint
+					.getCandidates(from, devices);
+			final Set<NetworkAddress> candidateSet = new HashSet<NetworkAddress>(
+					candidates);
+			assertEquals(candidates.size(), candidateSet.size());
+			assertTrue(candidateSet.contains(unlocated));
+			assertTrue(candidates.size() < devices.size());
+
+			// every device the constraint does not block must be a candidate
+			for (NetworkAddress to : devices.getAddresses()) {
+				if (!to.equals(unlocated)
+						&& !constraint.blockMessageDelivery(to, m))
+					assertTrue(candidateSet.contains(to));
+			}
+		}
+	}
+
+	@Test
+	public void testUnlocatedSender() {
+		addDevice(new Location(0, 0), 10);
+		final NetworkAddress from = addDevice(null, 10);
+		assertNull(constraint.getCandidates(from, devices));
+	}
+
+	@Test
+	public void testNewDevicesAreCandidates() {
+		final NetworkAddress from = addDevice(new Location(0, 0), 10);
+		assertEquals(1, constraint.getCandidates(from, devices).size());
+		final NetworkAddress near = addDevice(new Location(1, 1), 10);
+		assertTrue(constraint.getCandidates(from, devices).contains(near));
+	}
+
+}